@@ -0,0 +1,206 @@
+package plugin;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-benchmarks of the plugin hot paths: ASTM/HL7 conversions, E1381 framing, mapping lookups,
+ * timestamps and control IDs.
+ * <p>
+ * Each benchmark is run in warm-up iterations, then in measured iterations of a fixed duration.
+ * Every result line reports throughput (ops/s, ns/op) and allocation (B/op, MB/s), measured with the
+ * per-thread allocation counter of the HotSpot {@code ThreadMXBean}.
+ * <p>
+ * Usage: {@code GeneXpertBench [-wi 3] [-i 5] [-t 1000] [-f filter] [-m mapping.toml]}
+ * <ul>
+ *   <li>-wi: warm-up iterations (default 3)</li>
+ *   <li>-i: measured iterations (default 5)</li>
+ *   <li>-t: iteration duration in ms (default 1000)</li>
+ *   <li>-f: only run benchmarks whose name contains this text</li>
+ *   <li>-m: mapping file (default doc/mapping_genexpert.toml)</li>
+ * </ul>
+ */
+public final class GeneXpertBench {
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** Results are folded into this field so that the JIT cannot drop the benchmarked calls. */
+    static volatile long sink;
+
+    private static final class Bench {
+        final String name;
+        final Callable<Object> op;
+
+        Bench(String name, Callable<Object> op) {
+            this.name = name;
+            this.op = op;
+        }
+    }
+
+    private GeneXpertBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int warmups = 3;
+        int iterations = 5;
+        long iterationMs = 1000;
+        String filter = "";
+        String mappingPath = "doc/mapping_genexpert.toml";
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi": warmups = Integer.parseInt(args[++i]); break;
+                case "-i": iterations = Integer.parseInt(args[++i]); break;
+                case "-t": iterationMs = Long.parseLong(args[++i]); break;
+                case "-f": filter = args[++i]; break;
+                case "-m": mappingPath = args[++i]; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        AnalyzerGeneXpert analyzer = new AnalyzerGeneXpert();
+        analyzer.setId_analyzer("GX_BENCH");
+        analyzer.mappingToml = Connect_util.loadMappingToml(mappingPath);
+        if (analyzer.mapping().findTestByVendorCode("xpert_mtb_rif") == null) {
+            System.err.println("Mapping file not found or incomplete: " + mappingPath);
+            System.exit(2);
+        }
+
+        List<Bench> benches = benchmarks(analyzer);
+
+        System.out.printf(Locale.ROOT, "# JVM %s, warm-up %d x %d ms, measure %d x %d ms%n",
+                System.getProperty("java.vm.version"), warmups, iterationMs, iterations, iterationMs);
+        System.out.printf(Locale.ROOT, "%-36s %14s %12s %12s %10s%n", "Benchmark", "ops/s", "ns/op", "B/op", "MB/s");
+
+        for (Bench b : benches) {
+            if (!b.name.contains(filter)) continue;
+            for (int i = 0; i < warmups; i++) {
+                measure(b, iterationMs);
+            }
+            long ops = 0, nanos = 0, bytes = 0;
+            for (int i = 0; i < iterations; i++) {
+                long[] r = measure(b, iterationMs);
+                ops += r[0];
+                nanos += r[1];
+                bytes += r[2];
+            }
+            double opsPerSec = ops * 1e9 / nanos;
+            System.out.printf(Locale.ROOT, "%-36s %14.1f %12.1f %12.1f %10.1f%n",
+                    b.name, opsPerSec, (double) nanos / ops, (double) bytes / ops, bytes * 1e9 / nanos / (1024 * 1024));
+        }
+    }
+
+    /**
+     * Runs a benchmark for about the given duration.
+     *
+     * @return { operations, elapsed nanos, allocated bytes }
+     */
+    private static long[] measure(Bench b, long durationMs) throws Exception {
+        long tid = Thread.currentThread().getId();
+        long deadline = System.nanoTime() + durationMs * 1_000_000L;
+        long ops = 0;
+        long acc = 0;
+        long bytes0 = threads.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        long now;
+        do {
+            // batches of 16 keep the clock reads out of the measurement
+            for (int k = 0; k < 16; k++) {
+                Object r = b.op.call();
+                acc += (r == null) ? 0 : System.identityHashCode(r);
+            }
+            ops += 16;
+            now = System.nanoTime();
+        } while (now < deadline);
+        long bytes1 = threads.getThreadAllocatedBytes(tid);
+        sink += acc;
+        return new long[] { ops, now - t0, bytes1 - bytes0 };
+    }
+
+    private static List<Bench> benchmarks(AnalyzerGeneXpert analyzer) {
+        List<Bench> list = new ArrayList<>();
+
+        // === Conversions ===
+        String[] lab29Small = GeneXpertSamples.lab29Upload(1, 1).split("\r");
+        String[] lab29Large = GeneXpertSamples.lab29Upload(1, 20).split("\r");
+        String[] lab29CatchUp = GeneXpertSamples.lab29Upload(1, 500).split("\r");
+        String[] lab27Query = GeneXpertSamples.lab27Query("SP000001").split("\r");
+        String rsp1 = GeneXpertSamples.rspK11(1);
+        String rsp20 = GeneXpertSamples.rspK11(20);
+        String oml = GeneXpertSamples.omlO33("SP000001");
+
+        list.add(new Bench("convertASTMtoOUL_R22.1patient", () -> analyzer.convertASTMtoOUL_R22(lab29Small)));
+        list.add(new Bench("convertASTMtoOUL_R22.20patients", () -> analyzer.convertASTMtoOUL_R22(lab29Large)));
+        list.add(new Bench("convertASTMtoOUL_R22.500patients", () -> analyzer.convertASTMtoOUL_R22(lab29CatchUp)));
+        list.add(new Bench("convertRSP_K11toASTM.1order", () -> analyzer.convertRSP_K11toASTM(rsp1)));
+        list.add(new Bench("convertRSP_K11toASTM.20orders", () -> analyzer.convertRSP_K11toASTM(rsp20)));
+        list.add(new Bench("convertOML_O33ToASTM", () -> analyzer.convertOML_O33ToASTM(oml)));
+        list.add(new Bench("convertASTMQueryToQBP_Q11", () -> analyzer.convertASTMQueryToQBP_Q11(lab27Query)));
+        list.add(new Bench("convertACKtoASTM", () -> analyzer.convertACKtoASTM(GeneXpertSamples.ACK_AA)));
+
+        // === E1381 framing ===
+        String record = lab29Small[3];
+        list.add(new Bench("frame.encode", () -> GeneXpertFrameCodec.encodeFrame(3, record)));
+
+        byte[] frame = GeneXpertFrameCodec.encodeFrame(3, record);
+        GeneXpertFrameCodec decoder = new GeneXpertFrameCodec();
+        ArraySource source = new ArraySource(frame);
+        list.add(new Bench("frame.decode", () -> {
+            source.rewind();
+            if (!decoder.readFrame(source)) throw new IllegalStateException("checksum mismatch");
+            return decoder.length();
+        }));
+
+        // === Mapping lookups ===
+        GeneXpertMapping mapping = analyzer.mapping();
+        list.add(new Bench("mapping.findTestByVendorCode", () -> mapping.findTestByVendorCode("xpert_mtb_rif")));
+        list.add(new Bench("mapping.vendorTestCodeForLis", () -> mapping.vendorTestCodeForLis("gx06")));
+        list.add(new Bench("mapping.findResult", () ->
+                mapping.findResult("xpert_mtb_rif", "^xpert_mtb_rif^^rifresist^Xpert MTB-RIF Ultra^4^RIF Resistance^")));
+
+        // === Duplicate results ===
+        long[] lab29Keys = GeneXpertDedupIndex.resultKeys("GX_BENCH", lab29Large);
+        GeneXpertDedupIndex dedup = new GeneXpertDedupIndex(65536, TimeUnit.HOURS.toMillis(1), null);
+        dedup.addAll(lab29Keys);
+        list.add(new Bench("dedup.resultKeys.20patients", () -> GeneXpertDedupIndex.resultKeys("GX_BENCH", lab29Large)));
+        list.add(new Bench("dedup.containsAll.20patients", () -> dedup.containsAll(lab29Keys)));
+
+        // === Clock and control IDs ===
+        list.add(new Bench("clock.timestamp", GeneXpertClock::timestamp));
+        list.add(new Bench("clock.timestampMicros", GeneXpertClock::timestampMicros));
+        list.add(new Bench("clock.nextControlId", () -> GeneXpertClock.nextControlId()));
+
+        return list;
+    }
+
+    /**
+     * Byte source over an encoded frame, positioned after its STX.
+     */
+    private static final class ArraySource implements GeneXpertFrameCodec.ByteSource {
+        private final byte[] data;
+        private int pos;
+
+        ArraySource(byte[] data) {
+            this.data = data;
+        }
+
+        void rewind() {
+            pos = 1;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return (pos < data.length) ? (data[pos++] & 0xFF) : -1;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * E1381 proxy between a simulated instrument and the plugin, injecting link faults into the
+ * transmissions of the instrument.
+ * <p>
+ * Bytes are forwarded both ways; the instrument-to-plugin direction is followed frame by frame, and
+ * each frame gets at most one fault, drawn with the configured rates:
+ * <ul>
+ *   <li>{@code CHECKSUM}: the first checksum digit is altered (the plugin must NAK, the instrument retransmit)</li>
+ *   <li>{@code NAK}: the ACK of the plugin to the frame is turned into a NAK (the instrument retransmits a frame
+ *       the plugin already accepted)</li>
+ *   <li>{@code TRAILER}: CR and LF after the checksum are dropped</li>
+ *   <li>{@code NOISE}: stray printable bytes are sent before STX</li>
+ *   <li>{@code STALL}: the instrument stops in the middle of the frame, the connection stays open</li>
+ * </ul>
+ * and each ENQ gets, with its own rate, an {@code EMPTY} transmission before it (ENQ, EOT without frames).
+ * It uses the carrier of the plugin ({@code genexpert.transport}).
+ * <p>
+ * The time of the first fault not yet followed by a successful transaction is kept, so that the
+ * instrument can report the recovery time (see {@link #recovered()}).
+ */
+final class GeneXpertFaultProxy {
+
+    private static final int ENQ = 0x05;
+    private static final int ACK = 0x06;
+    private static final int NAK = 0x15;
+    private static final int EOT = 0x04;
+
+    private static final byte[] NOISE_BYTES = "#~?*".getBytes(StandardCharsets.US_ASCII);
+
+    /** Injected faults. */
+    enum Fault { CHECKSUM, NAK, TRAILER, NOISE, STALL, EMPTY }
+
+    private static final Fault[] FRAME_FAULTS = { Fault.CHECKSUM, Fault.NAK, Fault.TRAILER, Fault.NOISE, Fault.STALL };
+
+    /**
+     * Fault rates (per frame, or per ENQ for {@code EMPTY}) and counts, shared by all proxies.
+     */
+    static final class Faults {
+        final double[] rates = new double[Fault.values().length];
+        final LongAdder[] injected = new LongAdder[Fault.values().length];
+        final GeneXpertHistogram recovery = new GeneXpertHistogram();
+        volatile boolean enabled = false;
+
+        Faults() {
+            for (int i = 0; i < injected.length; i++) {
+                injected[i] = new LongAdder();
+            }
+        }
+
+        void rate(Fault fault, double rate) {
+            rates[fault.ordinal()] = rate;
+        }
+
+        long injected(Fault fault) {
+            return injected[fault.ordinal()].sum();
+        }
+    }
+
+    private final int port;
+    private final String targetHost;
+    private final int targetPort;
+    private final Faults faults;
+    private final Random random;
+    private final AtomicLong faultAt = new AtomicLong(); // nanoTime of the first unrecovered fault, 0 if none
+    private volatile GeneXpertTransport.Listener listener;
+
+    /**
+     * @param port Port the instrument connects to
+     * @param targetHost Host of the plugin
+     * @param targetPort Port of the plugin
+     * @param seed Seed of the fault draws
+     */
+    GeneXpertFaultProxy(int port, String targetHost, int targetPort, Faults faults, long seed) {
+        this.port = port;
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.faults = faults;
+        this.random = new Random(seed);
+    }
+
+    /** Opens the port and accepts connections on a daemon thread. */
+    void start() throws IOException {
+        listener = GeneXpertRuntime.get().transport().listen(port);
+        daemon("FaultProxy-" + port, this::acceptLoop).start();
+    }
+
+    void stop() {
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException ignore) {
+            // already closed
+        }
+    }
+
+    /**
+     * Called by the instrument after a successful transaction: records the time since the first fault
+     * injected after the previous successful transaction, if any.
+     */
+    void recovered() {
+        long at = faultAt.getAndSet(0L);
+        if (at != 0L) faults.recovery.recordNanos(System.nanoTime() - at);
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            GeneXpertTransport instrument;
+            try {
+                instrument = listener.accept();
+            } catch (IOException e) {
+                return; // proxy stopped
+            }
+            try {
+                new Link(instrument, GeneXpertRuntime.get().transport().connect(targetHost, targetPort)).start();
+            } catch (IOException e) {
+                close(instrument);
+            }
+        }
+    }
+
+    private void injected(Fault fault) {
+        faults.injected[fault.ordinal()].increment();
+        faultAt.compareAndSet(0L, System.nanoTime());
+    }
+
+    /** Draws the fault of the next frame, or null. */
+    private synchronized Fault nextFrameFault() {
+        if (!faults.enabled) return null;
+        double r = random.nextDouble();
+        for (Fault fault : FRAME_FAULTS) {
+            r -= faults.rates[fault.ordinal()];
+            if (r < 0) return fault;
+        }
+        return null;
+    }
+
+    private synchronized boolean draw(Fault fault) {
+        return faults.enabled && random.nextDouble() < faults.rates[fault.ordinal()];
+    }
+
+    /**
+     * One proxied connection: a pump per direction.
+     */
+    private final class Link {
+        private final GeneXpertTransport instrument;
+        private final GeneXpertTransport plugin;
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final Semaphore swallowed = new Semaphore(0);
+        private volatile boolean nakNextAck = false;
+        private volatile int swallow = 0;       // plugin replies to keep from the instrument (EMPTY transmissions)
+        private volatile int swallowedReply = -1;
+
+        Link(GeneXpertTransport instrument, GeneXpertTransport plugin) {
+            this.instrument = instrument;
+            this.plugin = plugin;
+        }
+
+        void start() {
+            daemon("FaultProxy-" + port + "-up", this::fromInstrument).start();
+            daemon("FaultProxy-" + port + "-down", this::fromPlugin).start();
+        }
+
+        /** Instrument to plugin: follows the frames and injects the faults. */
+        private void fromInstrument() {
+            InputStream in = instrument.input();
+            OutputStream out = plugin.output();
+            try {
+                int b;
+                while ((b = in.read()) >= 0) {
+                    if (b == ENQ && draw(Fault.EMPTY)) emptyTransmission(out);
+                    if (b != GeneXpertFrameCodec.STX) {
+                        out.write(b);
+                        if (in.available() == 0) out.flush();
+                        continue;
+                    }
+                    if (!frame(in, out, nextFrameFault())) {
+                        closed.await(); // stalled: the plugin must time out and close the connection
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // connection closed by either side
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                end();
+            }
+        }
+
+        /**
+         * Forwards one frame (STX already read) with its fault.
+         *
+         * @return false if the frame was stalled
+         */
+        private boolean frame(InputStream in, OutputStream out, Fault fault) throws IOException {
+            if (fault == Fault.NOISE) {
+                int n = 1 + random.nextInt(8);
+                for (int i = 0; i < n; i++) {
+                    out.write(NOISE_BYTES[i % NOISE_BYTES.length]);
+                }
+            }
+            out.write(GeneXpertFrameCodec.STX);
+            int stallAt = (fault == Fault.STALL) ? 1 + random.nextInt(16) : -1;
+            int count = 0;
+            int b;
+            while ((b = in.read()) >= 0 && b != GeneXpertFrameCodec.ETX && b != GeneXpertFrameCodec.ETB) {
+                if (count++ == stallAt) {
+                    out.flush();
+                    injected(fault);
+                    return false;
+                }
+                out.write(b);
+            }
+            if (b < 0) throw new IOException("Instrument closed during frame");
+            out.write(b);
+            // trailer: C1 C2 CR LF
+            for (int i = 0; i < 4; i++) {
+                b = in.read();
+                if (b < 0) throw new IOException("Instrument closed during frame trailer");
+                if (i == 0 && fault == Fault.CHECKSUM) b = (b == '0') ? '1' : '0';
+                if (i >= 2 && fault == Fault.TRAILER) continue;
+                if (i == 3 && fault == Fault.NAK) nakNextAck = true; // before the frame can be ACKed
+                out.write(b);
+            }
+            if (fault != null && fault != Fault.STALL) injected(fault); // a frame shorter than the stall point is sent whole
+            out.flush();
+            return true;
+        }
+
+        /** Sends ENQ, waits for the plugin reply (kept from the instrument), then EOT if acknowledged. */
+        private void emptyTransmission(OutputStream out) throws IOException, InterruptedException {
+            swallow = 1;
+            out.write(ENQ);
+            out.flush();
+            if (!swallowed.tryAcquire(15, TimeUnit.SECONDS)) throw new IOException("No reply to injected ENQ");
+            if (swallowedReply == ACK) {
+                out.write(EOT);
+                out.flush();
+                injected(Fault.EMPTY);
+            }
+        }
+
+        /** Plugin to instrument: forwarded, except the replies to injected faults. */
+        private void fromPlugin() {
+            InputStream in = plugin.input();
+            OutputStream out = instrument.output();
+            try {
+                int b;
+                while ((b = in.read()) >= 0) {
+                    if (swallow > 0 && (b == ACK || b == NAK)) {
+                        swallow = 0;
+                        swallowedReply = b;
+                        swallowed.release();
+                        continue;
+                    }
+                    if (b == ACK && nakNextAck) {
+                        nakNextAck = false;
+                        b = NAK;
+                    }
+                    out.write(b);
+                    if (in.available() == 0) out.flush();
+                }
+            } catch (IOException e) {
+                // connection closed by either side
+            } finally {
+                end();
+            }
+        }
+
+        private void end() {
+            closed.countDown();
+            swallowed.release();
+            close(instrument);
+            close(plugin);
+        }
+    }
+
+    private static void close(GeneXpertTransport transport) {
+        try {
+            transport.close();
+        } catch (IOException ignore) {
+            // already closed
+        }
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,245 @@
+package plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simulated GeneXpert instrument: connects to the plugin (server mode) and runs E1381 sessions.
+ * It uses the carrier of the plugin ({@code genexpert.transport}), so that {@code memory} runs the whole
+ * stack in process.
+ * <p>
+ * Each transaction is either a LAB-29 result upload ({@code patients} patients per message) or a
+ * LAB-27 host query for one specimen, sent as ENQ / one frame per record / EOT. The plugin's reply
+ * (ASTM turnaround) is then received and ACKed. End-to-end latency runs from ENQ to the reply EOT.
+ * <p>
+ * An ENQ answered with NAK (plugin busy) is not counted as a transaction: as required by E1381,
+ * the instrument waits 10 s before starting a new one.
+ */
+final class GeneXpertInstrument implements Runnable {
+
+    private static final int ENQ = 0x05;
+    private static final int ACK = 0x06;
+    private static final int NAK = 0x15;
+    private static final int EOT = 0x04;
+
+    // E1381: after a NAK to its ENQ, the sender waits at least 10 s before a new ENQ
+    private static final long BUSY_WAIT_MS = 10000;
+
+    /**
+     * Results shared by all simulated instruments.
+     */
+    static final class Stats {
+        final GeneXpertHistogram lab27Latency = new GeneXpertHistogram();
+        final GeneXpertHistogram lab29Latency = new GeneXpertHistogram();
+        final LongAdder lab27Done = new LongAdder();
+        final LongAdder lab29Done = new LongAdder();
+        final LongAdder lab27Errors = new LongAdder();
+        final LongAdder lab29Errors = new LongAdder();
+        final LongAdder reconnects = new LongAdder();
+        final LongAdder busy = new LongAdder();
+    }
+
+    private final int index;
+    private final String sender;
+    private final String host;
+    private final int port;
+    private final double lab29Share;
+    private final int patients;
+    private final long thinkMs;
+    private final int replyTimeoutMs;
+    private final long measureFromNanos;
+    private final long deadlineNanos;
+    private final Stats stats;
+    private final Random random;
+
+    private final GeneXpertFrameCodec decoder = new GeneXpertFrameCodec();
+    private final GeneXpertTimerWheel.Deadline replyTimer = GeneXpertRuntime.get().timers().deadline(this::closeConnection);
+    private volatile GeneXpertTransport connection;
+    private InputStream in;
+    private OutputStream out;
+    private int nextSpecimen;
+    private boolean refused;
+
+    /**
+     * @param index Instrument number, also used to seed the transaction mix and to pick specimen IDs
+     * @param sender System name sent in the header records (H.5), used for shared port routing
+     * @param lab29Share Share of LAB-29 uploads in the transaction mix (0.0 - 1.0), the rest are LAB-27 queries
+     * @param patients Number of patients per LAB-29 upload
+     * @param thinkMs Pause between two transactions (ms)
+     * @param replyTimeoutMs Maximum wait for the next reply of the plugin (ms); the connection is then closed
+     * @param measureFromNanos Transactions started before this time (warm-up) are not recorded
+     * @param deadlineNanos No transaction is started after this time
+     */
+    GeneXpertInstrument(int index, String sender, String host, int port, double lab29Share, int patients, long thinkMs,
+            int replyTimeoutMs, long measureFromNanos, long deadlineNanos, Stats stats) {
+        this.index = index;
+        this.sender = sender;
+        this.host = host;
+        this.port = port;
+        this.lab29Share = lab29Share;
+        this.patients = patients;
+        this.thinkMs = thinkMs;
+        this.replyTimeoutMs = replyTimeoutMs;
+        this.measureFromNanos = measureFromNanos;
+        this.deadlineNanos = deadlineNanos;
+        this.stats = stats;
+        this.random = new Random(index);
+        this.nextSpecimen = index * 1_000_000 + 1;
+    }
+
+    @Override
+    public void run() {
+        while (System.nanoTime() < deadlineNanos) {
+            try (GeneXpertTransport transport = connect()) {
+                connection = transport;
+                in = transport.input();
+                out = transport.output();
+
+                while (System.nanoTime() < deadlineNanos) {
+                    boolean lab29 = random.nextDouble() < lab29Share;
+                    long start = System.nanoTime();
+                    boolean ok;
+                    try {
+                        ok = lab29 ? uploadResults() : queryOrders();
+                    } catch (IOException e) {
+                        if (!replyTimer.expired()) throw e;
+                        record(lab29, start, false); // no reply from the plugin (e.g. LAB-27 upstream failure)
+                        throw e;
+                    } finally {
+                        replyTimer.disarm();
+                    }
+                    if (refused) {
+                        refused = false;
+                        if (start >= measureFromNanos) stats.busy.increment();
+                        Thread.sleep(BUSY_WAIT_MS);
+                        continue;
+                    }
+                    record(lab29, start, ok);
+                    if (thinkMs > 0) Thread.sleep(thinkMs);
+                }
+            } catch (IOException e) {
+                stats.reconnects.increment(); // connection lost (or protocol out of step): reconnect
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private GeneXpertTransport connect() throws IOException, InterruptedException {
+        IOException last = null;
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try {
+                return GeneXpertRuntime.get().transport().connect(host, port);
+            } catch (IOException e) {
+                last = e;
+                Thread.sleep(100); // plugin server thread not listening yet
+            }
+        }
+        throw last;
+    }
+
+    /** Reply timer expiry: closes the connection, which ends the blocked read. */
+    private void closeConnection() {
+        GeneXpertTransport c = connection;
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /** Reads the next reply byte of the plugin, within the reply timeout. */
+    private int awaitReply() throws IOException {
+        replyTimer.arm(replyTimeoutMs);
+        return in.read();
+    }
+
+    private void record(boolean lab29, long start, boolean ok) {
+        if (start < measureFromNanos) return;
+        long nanos = System.nanoTime() - start;
+        if (lab29) {
+            stats.lab29Done.increment();
+            stats.lab29Latency.recordNanos(nanos);
+            if (!ok) stats.lab29Errors.increment();
+        } else {
+            stats.lab27Done.increment();
+            stats.lab27Latency.recordNanos(nanos);
+            if (!ok) stats.lab27Errors.increment();
+        }
+    }
+
+    private boolean uploadResults() throws IOException {
+        String msg = GeneXpertSamples.withSender(GeneXpertSamples.lab29Upload(nextSpecimen, patients), sender);
+        nextSpecimen += patients;
+        if (!send(msg.split("\r"))) return false;
+        String reply = receive();
+        return reply.contains("L|1|Y");
+    }
+
+    private boolean queryOrders() throws IOException {
+        String msg = GeneXpertSamples.withSender(GeneXpertSamples.lab27Query(GeneXpertSamples.specimenId(nextSpecimen++)), sender);
+        if (!send(msg.split("\r"))) return false;
+        String reply = receive();
+        return reply.contains("O|");
+    }
+
+    /**
+     * Sends one ASTM message: ENQ, one frame per record, EOT.
+     *
+     * @return false if the plugin did not ACK the ENQ or a frame ({@code refused} set on a NAK to the ENQ)
+     */
+    private boolean send(String[] records) throws IOException {
+        out.write(ENQ);
+        out.flush();
+        int reply = awaitReply();
+        if (reply != ACK) {
+            refused = (reply == NAK);
+            return false;
+        }
+
+        for (int i = 0; i < records.length; i++) {
+            out.write(GeneXpertFrameCodec.encodeFrame((i + 1) % 8, records[i] + "\r"));
+            out.flush();
+            if (awaitReply() != ACK) return false;
+        }
+        out.write(EOT);
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Receives the plugin's reply: waits for ENQ, ACKs it and every frame until EOT.
+     *
+     * @return Reply records separated by CR
+     */
+    private String receive() throws IOException {
+        int b = awaitReply();
+        if (b != ENQ) throw new IOException("Expected ENQ from plugin, got " + b);
+        out.write(ACK);
+        out.flush();
+
+        StringBuilder reply = new StringBuilder(256);
+        while (true) {
+            b = awaitReply();
+            if (b < 0) throw new IOException("Connection closed during reply");
+            if (b == EOT) break;
+            if (b != GeneXpertFrameCodec.STX) continue;
+            decoder.readFrame(in::read);
+            reply.append(new String(decoder.payload(), 0, decoder.length(), StandardCharsets.US_ASCII)).append('\r');
+            out.write(ACK);
+            out.flush();
+        }
+        return reply.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "instrument " + index + " -> " + host + ":" + port;
+    }
+}
@@ -0,0 +1,178 @@
+package plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP stand-in for the LabBook LAB-27 and LAB-29 endpoints.
+ * <p>
+ * Requests are answered with {@link Connect_util#cannedResponse} after a configurable latency
+ * (base + uniform jitter + a time per patient (PID segment) of the request, as LIS work grows with the results). A configurable share of requests fails with HTTP 500.
+ * With a capacity, a LIS that thrashes under load is simulated: when more requests than the capacity are in progress,
+ * the latency is multiplied by the square of their ratio to the capacity, so the throughput falls as concurrency grows.
+ * {@link #client()} returns an upstream function for {@link Connect_util#upstream} that posts over HTTP.
+ * An observer can be given the requests answered successfully (see {@link #observe}).
+ */
+final class GeneXpertLisStub {
+
+    static final String PATH_LAB27 = "/lab27";
+    static final String PATH_LAB29 = "/lab29";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMs;
+    private final long jitterMs;
+    private final long patientLatencyMs;
+    private final double errorRate;
+    private final int capacity;
+    private final AtomicInteger active = new AtomicInteger();
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final AtomicInteger maxActive = new AtomicInteger();
+
+    private volatile BiConsumer<String, String> observer = (path, request) -> { };
+
+    /**
+     * @param latencyMs Base response latency (ms)
+     * @param jitterMs Maximum extra latency, uniformly distributed (ms)
+     * @param patientLatencyMs Extra latency per PID segment of the request (ms)
+     * @param errorRate Share of requests answered with HTTP 500 (0.0 - 1.0)
+     * @param capacity Concurrent requests served without slowing down (0 = unlimited)
+     */
+    GeneXpertLisStub(long latencyMs, long jitterMs, long patientLatencyMs, double errorRate, int capacity) throws IOException {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.patientLatencyMs = patientLatencyMs;
+        this.errorRate = errorRate;
+        this.capacity = capacity;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "LisStub-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        server.createContext(PATH_LAB27, this::handle);
+        server.createContext(PATH_LAB29, this::handle);
+        server.setExecutor(executor);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sets the observer of the requests answered with HTTP 200, called with the path and the HL7 request
+     * before the response is sent.
+     */
+    void observe(BiConsumer<String, String> observer) {
+        this.observer = observer;
+    }
+
+    /** Base URL of the stub (http://127.0.0.1:port). */
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        int concurrent = active.incrementAndGet();
+        maxActive.accumulateAndGet(concurrent, Math::max);
+        try {
+            serve(exchange, concurrent);
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private void serve(HttpExchange exchange, int concurrent) throws IOException {
+        String request;
+        try (InputStream in = exchange.getRequestBody()) {
+            request = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        long delay = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0);
+        if (patientLatencyMs > 0) {
+            for (int i = request.indexOf("\rPID|"); i >= 0; i = request.indexOf("\rPID|", i + 1)) {
+                delay += patientLatencyMs;
+            }
+        }
+        if (capacity > 0 && concurrent > capacity) {
+            double overload = (double) concurrent / capacity;
+            delay = (long) (delay * overload * overload);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int status = 200;
+        String response;
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            failures.increment();
+            status = 500;
+            response = "Internal Server Error";
+        } else {
+            response = Connect_util.cannedResponse(exchange.getRequestURI().getPath(), request);
+            observer.accept(exchange.getRequestURI().getPath(), request);
+        }
+
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Returns an upstream function posting the HL7 message to the given URL.
+     * The response body is returned whatever the HTTP status; I/O failures return null.
+     */
+    static BiFunction<String, String, String> client() {
+        HttpClient http = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        return (url, hl7) -> {
+            try {
+                HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                        .timeout(Duration.ofSeconds(30))
+                        .header("Content-Type", "text/plain; charset=utf-8")
+                        .POST(HttpRequest.BodyPublishers.ofString(hl7, StandardCharsets.UTF_8))
+                        .build();
+                return http.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8)).body();
+            } catch (IOException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        };
+    }
+}
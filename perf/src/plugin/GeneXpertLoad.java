@@ -0,0 +1,188 @@
+package plugin;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-JVM load generator: N simulated GeneXpert instruments against N plugin instances and a LabBook stub.
+ * <p>
+ * As in a LabBook Connect deployment, every instrument has its own {@link AnalyzerGeneXpert}
+ * (server mode, own port, own id_analyzer). With {@code -shared}, all analyzers use mode "shared"
+ * on one port instead, and instruments are routed by the sender name of their header records.
+ * Upstream calls go over HTTP to an embedded {@link GeneXpertLisStub} with configurable latency and error rate.
+ * <p>
+ * The report gives throughput, end-to-end latency (ENQ to reply EOT, as seen by the instrument)
+ * per transaction, error counts, heap use and GC activity, to size a Connect host before adding instruments.
+ * <p>
+ * Usage: {@code GeneXpertLoad [-n 4] [-d 30] [-w 5] [-lab29 0.7] [-patients 3] [-think 0]
+ * [-latency 20] [-jitter 10] [-patientLatency 0] [-errors 0.0] [-lisCapacity 0] [-port 17600] [-shared] [-timeout 15000] [-m mapping.toml]}
+ */
+public final class GeneXpertLoad {
+
+    private GeneXpertLoad() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int instruments = 4;
+        long durationSec = 30;
+        long warmupSec = 5;
+        double lab29Share = 0.7;
+        int patients = 3;
+        long thinkMs = 0;
+        long latencyMs = 20;
+        long jitterMs = 10;
+        long patientLatencyMs = 0;
+        double errorRate = 0.0;
+        int lisCapacity = 0;
+        int basePort = 17600;
+        boolean shared = false;
+        int replyTimeoutMs = 15000;
+        String mappingPath = "doc/mapping_genexpert.toml";
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-n": instruments = Integer.parseInt(args[++i]); break;
+                case "-d": durationSec = Long.parseLong(args[++i]); break;
+                case "-w": warmupSec = Long.parseLong(args[++i]); break;
+                case "-lab29": lab29Share = Double.parseDouble(args[++i]); break;
+                case "-patients": patients = Integer.parseInt(args[++i]); break;
+                case "-think": thinkMs = Long.parseLong(args[++i]); break;
+                case "-latency": latencyMs = Long.parseLong(args[++i]); break;
+                case "-jitter": jitterMs = Long.parseLong(args[++i]); break;
+                case "-patientLatency": patientLatencyMs = Long.parseLong(args[++i]); break;
+                case "-errors": errorRate = Double.parseDouble(args[++i]); break;
+                case "-lisCapacity": lisCapacity = Integer.parseInt(args[++i]); break;
+                case "-port": basePort = Integer.parseInt(args[++i]); break;
+                case "-shared": shared = true; break;
+                case "-timeout": replyTimeoutMs = Integer.parseInt(args[++i]); break;
+                case "-m": mappingPath = args[++i]; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        // === LabBook stub ===
+        GeneXpertLisStub lis = new GeneXpertLisStub(latencyMs, jitterMs, patientLatencyMs, errorRate, lisCapacity);
+        lis.start();
+        Connect_util.upstream = GeneXpertLisStub.client();
+
+        // === Plugin instances (one per instrument, as configured in Connect) ===
+        for (int i = 0; i < instruments; i++) {
+            AnalyzerGeneXpert analyzer = new AnalyzerGeneXpert();
+            analyzer.setId_analyzer(String.format("GX_LOAD_%02d", i + 1));
+            analyzer.setType_cnx("socket_E1381");
+            analyzer.setMode(shared ? "shared" : "server");
+            analyzer.setPort_analyzer(shared ? basePort : basePort + i);
+            analyzer.setMappingPath(mappingPath);
+            analyzer.setUrl_upstream_lab27(lis.baseUrl() + GeneXpertLisStub.PATH_LAB27);
+            analyzer.setUrl_upstream_lab29(lis.baseUrl() + GeneXpertLisStub.PATH_LAB29);
+            analyzer.listenDevice();
+        }
+
+        System.out.printf(Locale.ROOT, "# %d instruments%s, %d s (+%d s warm-up), LAB-29 share %.2f, %d patients/upload, think %d ms%n",
+                instruments, shared ? " on shared port " + basePort : "", durationSec, warmupSec, lab29Share, patients, thinkMs);
+        System.out.printf(Locale.ROOT, "# LIS stub %s: latency %d ms + 0-%d ms + %d ms per patient, error rate %.3f, capacity %s%n",
+                lis.baseUrl(), latencyMs, jitterMs, patientLatencyMs, errorRate, (lisCapacity > 0) ? lisCapacity + " requests" : "unlimited");
+
+        // === Instruments ===
+        GeneXpertInstrument.Stats stats = new GeneXpertInstrument.Stats();
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSec);
+        long deadline = measureFrom + TimeUnit.SECONDS.toNanos(durationSec);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < instruments; i++) {
+            GeneXpertInstrument instrument = new GeneXpertInstrument(i + 1, String.format("GX_LOAD_%02d", i + 1),
+                    "127.0.0.1", shared ? basePort : basePort + i,
+                    lab29Share, patients, thinkMs, replyTimeoutMs, measureFrom, deadline, stats);
+            Thread t = new Thread(instrument, "Instrument-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+
+        // === Heap sampling and progress ===
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long gcCount0 = 0, gcTime0 = 0;
+        boolean measuring = false;
+        long heapMax = 0;
+        long lastReport = start;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(200);
+            long now = System.nanoTime();
+            if (!measuring && now >= measureFrom) {
+                measuring = true;
+                gcCount0 = gcCount();
+                gcTime0 = gcTime();
+            }
+            long used = memory.getHeapMemoryUsage().getUsed();
+            if (measuring) heapMax = Math.max(heapMax, used);
+            if (now - lastReport >= TimeUnit.SECONDS.toNanos(5)) {
+                lastReport = now;
+                System.out.printf(Locale.ROOT, "[%5.1f s] LAB-27 %d, LAB-29 %d, heap %d MB%n",
+                        (now - start) / 1e9, stats.lab27Done.sum(), stats.lab29Done.sum(), used >> 20);
+            }
+        }
+        for (Thread t : threads) {
+            t.join(replyTimeoutMs + 1000L);
+        }
+        long elapsed = System.nanoTime() - measureFrom;
+        long gcCount = gcCount() - gcCount0;
+        long gcTime = gcTime() - gcTime0;
+
+        // === Report ===
+        double seconds = elapsed / 1e9;
+        long lab27 = stats.lab27Done.sum();
+        long lab29 = stats.lab29Done.sum();
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-8s %10s %10s %8s   %s%n", "", "count", "tx/s", "errors", "end-to-end latency (us)");
+        System.out.printf(Locale.ROOT, "%-8s %10d %10.1f %8d   %s%n", "LAB-27", lab27, lab27 / seconds,
+                stats.lab27Errors.sum(), stats.lab27Latency.snapshot());
+        System.out.printf(Locale.ROOT, "%-8s %10d %10.1f %8d   %s%n", "LAB-29", lab29, lab29 / seconds,
+                stats.lab29Errors.sum(), stats.lab29Latency.snapshot());
+        System.out.printf(Locale.ROOT, "%-8s %10d %10.1f%n", "total", lab27 + lab29, (lab27 + lab29) / seconds);
+        System.out.printf(Locale.ROOT, "results/s (LAB-29, %d results per upload): %.1f%n",
+                patients * 5, lab29 * patients * 5 / seconds);
+        System.out.printf(Locale.ROOT, "LIS requests %d (failed %d, at most %d at a time), reconnects %d%n",
+                lis.requests.sum(), lis.failures.sum(), lis.maxActive.get(), stats.reconnects.sum());
+        for (String path : new String[] { GeneXpertLisStub.PATH_LAB27, GeneXpertLisStub.PATH_LAB29 }) {
+            GeneXpertUpstreamLimiter limiter = GeneXpertRuntime.get().upstreamLimiter(lis.baseUrl() + path);
+            if (limiter != null) System.out.println(limiter);
+        }
+        long held = 0, refused = 0;
+        for (int i = 0; i < instruments; i++) {
+            GeneXpertMetrics m = GeneXpertMetrics.forAnalyzer(String.format("GX_LOAD_%02d", i + 1));
+            held += m.getEnqDelayed();
+            refused += m.getEnqRefused();
+        }
+        System.out.printf(Locale.ROOT, "admission control: ENQ held %d, refused %d (instruments busy-waited %d times)%n",
+                held, refused, stats.busy.sum());
+        System.out.printf(Locale.ROOT, "heap max used %d MB (max %d MB), GC %d collections, %d ms%n",
+                heapMax >> 20, memory.getHeapMemoryUsage().getMax() >> 20, gcCount, gcTime);
+
+        lis.stop();
+        System.exit(0);
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += Math.max(0, gc.getCollectionCount());
+        }
+        return n;
+    }
+
+    private static long gcTime() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += Math.max(0, gc.getCollectionTime());
+        }
+        return n;
+    }
+}
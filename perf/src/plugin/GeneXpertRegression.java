@@ -0,0 +1,462 @@
+package plugin;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Performance regression suite driven by a message corpus (perf/corpus).
+ * <p>
+ * Each corpus case is a directory named {@code lab27_*}, {@code lab28_*} or {@code lab29_*} holding:
+ * <ul>
+ *   <li>{@code input.txt}: ASTM message from the analyzer (LAB-27, LAB-29) or OML^O33 from LabBook (LAB-28).
+ *       Several messages separated by {@code ---} lines are processed in turn (e.g. an upload and its resend).</li>
+ *   <li>{@code lis.txt}: LabBook response returned by the stub upstream (LAB-27, LAB-29; optional).
+ *       Several responses separated by {@code ---} lines are returned in turn, one per upstream request
+ *       (e.g. the pages of a paged RSP^K11); the last one is repeated if there are more requests.</li>
+ *   <li>{@code expected.txt}: expected output, i.e. the HL7 sent upstream and the reply (LAB-27, LAB-29),
+ *       or the E1381 traffic sent to the analyzer and the HL7 ACK (LAB-28)</li>
+ * </ul>
+ * Records and segments are stored one per line; they are CR-delimited when fed to the plugin.
+ * The plugin clock is pinned to {@link #PINNED_TIME} (UTC) and generated control IDs are masked before comparison.
+ * Every run of a case starts with an empty LAB-29 dedup index.
+ * <p>
+ * Every case must produce byte-identical (masked) output, and its median latency and allocated bytes
+ * per message must stay within tolerance of {@code baseline.properties}. The process exits with status 1
+ * on any failure. {@code -record} rewrites expected outputs and baselines.
+ * <p>
+ * Usage: {@code GeneXpertRegression [-c perf/corpus] [-m mapping.toml] [-wi 1000] [-i 500]
+ * [-lt 0.5] [-ls 50] [-at 0.1] [-f filter] [-record]}
+ */
+public final class GeneXpertRegression {
+
+    static final Instant PINNED_TIME = Instant.parse("2026-01-01T12:00:00Z");
+
+    private static final Pattern CONTROL_ID = Pattern.compile("MSG\\d{10,}");
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final AnalyzerGeneXpert analyzer = new AnalyzerGeneXpert();
+    private final List<String> upstreamRequests = new ArrayList<>();
+    private volatile List<String> lisResponses;
+    private StubInstrument instrument;
+
+    private GeneXpertRegression() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // resources/logback.xml would write logs/labbook_connect.log into the tree
+        if (System.getProperty("logback.configurationFile") == null) {
+            System.setProperty("logback.configurationFile", "perf/logback-perf.xml");
+        }
+        Path corpus = Paths.get("perf/corpus");
+        String mappingPath = "doc/mapping_genexpert.toml";
+        int warmups = 1000;
+        int iterations = 500;
+        double latencyTolerance = 0.5;
+        long latencySlackUs = 50;
+        double allocTolerance = 0.1;
+        String filter = "";
+        boolean record = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-c": corpus = Paths.get(args[++i]); break;
+                case "-m": mappingPath = args[++i]; break;
+                case "-wi": warmups = Integer.parseInt(args[++i]); break;
+                case "-i": iterations = Integer.parseInt(args[++i]); break;
+                case "-lt": latencyTolerance = Double.parseDouble(args[++i]); break;
+                case "-ls": latencySlackUs = Long.parseLong(args[++i]); break;
+                case "-at": allocTolerance = Double.parseDouble(args[++i]); break;
+                case "-f": filter = args[++i]; break;
+                case "-record": record = true; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        GeneXpertRegression suite = new GeneXpertRegression();
+        suite.setUp(mappingPath);
+
+        Path baselineFile = corpus.resolve("baseline.properties");
+        Properties baseline = new Properties();
+        if (Files.isRegularFile(baselineFile)) {
+            try (Reader r = Files.newBufferedReader(baselineFile, StandardCharsets.UTF_8)) {
+                baseline.load(r);
+            }
+        }
+        TreeMap<String, String> recorded = new TreeMap<>();
+        for (String key : baseline.stringPropertyNames()) {
+            recorded.put(key, baseline.getProperty(key));
+        }
+
+        List<Path> cases;
+        try (Stream<Path> s = Files.list(corpus)) {
+            cases = s.filter(Files::isDirectory).sorted().collect(Collectors.toList());
+        }
+
+        System.out.printf(Locale.ROOT, "%-28s %-6s %12s %12s %12s %12s%n",
+                "Case", "Result", "p50 us", "baseline", "B/msg", "baseline");
+        int failures = 0;
+        for (Path dir : cases) {
+            String name = dir.getFileName().toString();
+            if (!name.contains(filter)) continue;
+
+            List<String> problems = new ArrayList<>();
+
+            // === Output ===
+            String actual = suite.output(dir);
+            Path expectedFile = dir.resolve("expected.txt");
+            if (record) {
+                Files.write(expectedFile, actual.getBytes(StandardCharsets.UTF_8));
+            } else if (!Files.isRegularFile(expectedFile)) {
+                problems.add("missing expected.txt (run with -record)");
+            } else {
+                String expected = new String(Files.readAllBytes(expectedFile), StandardCharsets.UTF_8);
+                String diff = firstDifference(expected, actual);
+                if (diff != null) problems.add(diff);
+            }
+
+            // === Latency and allocation ===
+            for (int i = 0; i < warmups; i++) {
+                suite.output(dir);
+            }
+            GeneXpertHistogram latency = new GeneXpertHistogram();
+            long bytes = 0;
+            String last = null;
+            for (int i = 0; i < iterations; i++) {
+                long[] r = suite.measure(dir);
+                latency.recordNanos(r[0]);
+                bytes += r[1];
+                if (i == iterations - 1) last = suite.output(dir);
+            }
+            if (last != null && !last.equals(actual)) {
+                problems.add("output changed between runs: " + firstDifference(actual, last));
+            }
+            long p50 = latency.percentile(50.0);
+            long bytesPerMsg = bytes / Math.max(1, iterations);
+
+            String latencyKey = name + ".latency_p50_us";
+            String allocKey = name + ".alloc_bytes";
+            long baseLatency = parse(baseline.getProperty(latencyKey));
+            long baseAlloc = parse(baseline.getProperty(allocKey));
+            if (record) {
+                recorded.put(latencyKey, Long.toString(p50));
+                recorded.put(allocKey, Long.toString(bytesPerMsg));
+            } else {
+                // the absolute slack keeps scheduler and timer noise from failing cases of a few tens of us
+                if (baseLatency > 0 && p50 > baseLatency * (1.0 + latencyTolerance) + latencySlackUs) {
+                    problems.add(String.format(Locale.ROOT, "latency p50 %d us > baseline %d us + %.0f%% + %d us",
+                            p50, baseLatency, latencyTolerance * 100, latencySlackUs));
+                }
+                if (baseAlloc > 0 && bytesPerMsg > baseAlloc * (1.0 + allocTolerance)) {
+                    problems.add(String.format(Locale.ROOT, "allocation %d B/msg > baseline %d B/msg + %.0f%%",
+                            bytesPerMsg, baseAlloc, allocTolerance * 100));
+                }
+            }
+
+            System.out.printf(Locale.ROOT, "%-28s %-6s %12d %12s %12d %12s%n", name,
+                    record ? "REC" : (problems.isEmpty() ? "OK" : "FAIL"),
+                    p50, baseLatency > 0 ? Long.toString(baseLatency) : "-",
+                    bytesPerMsg, baseAlloc > 0 ? Long.toString(baseAlloc) : "-");
+            for (String p : problems) {
+                System.out.println("    " + p);
+            }
+            if (!problems.isEmpty()) failures++;
+        }
+
+        if (record) {
+            try (Writer w = Files.newBufferedWriter(baselineFile, StandardCharsets.UTF_8)) {
+                w.write("# GeneXpertRegression baselines (latency: median us per message, alloc: bytes per message)\n");
+                w.write("# Recorded with JVM " + System.getProperty("java.vm.version") + "\n");
+                for (java.util.Map.Entry<String, String> e : recorded.entrySet()) {
+                    w.write(e.getKey() + "=" + e.getValue() + "\n");
+                }
+            }
+            System.out.println("Expected outputs and baselines recorded in " + corpus);
+        }
+
+        suite.instrument.close();
+        if (failures > 0) {
+            System.out.println(failures + " case(s) failed");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    // === Plugin setup ===
+
+    private void setUp(String mappingPath) throws IOException {
+        analyzer.setId_analyzer("GX_REGRESSION");
+        analyzer.setUrl_upstream_lab27("http://labbook/lab27");
+        analyzer.setUrl_upstream_lab29("http://labbook/lab29");
+        analyzer.mappingToml = Connect_util.loadMappingToml(mappingPath);
+        GeneXpertClock.setClock(Clock.fixed(PINNED_TIME, ZoneOffset.UTC));
+
+        Connect_util.upstream = (url, hl7) -> {
+            int request = upstreamRequests.size();
+            upstreamRequests.add(hl7);
+            List<String> responses = lisResponses;
+            return (responses == null) ? null : responses.get(Math.min(request, responses.size() - 1));
+        };
+
+        // LAB-28 transport: plugin connected (client side) to a stub instrument on loopback
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        analyzer.setIp_analyzer(server.getInetAddress().getHostAddress());
+        analyzer.setPort_analyzer(server.getLocalPort());
+        analyzer.connectAsClient();
+        Socket peer = server.accept();
+        peer.setTcpNoDelay(true);
+        instrument = new StubInstrument(peer);
+        server.close();
+        instrument.start();
+    }
+
+    // === Case execution ===
+
+    /**
+     * Runs a case once and returns its masked output.
+     */
+    private String output(Path dir) throws Exception {
+        String name = dir.getFileName().toString();
+        List<String> inputs = readMessages(dir.resolve("input.txt"));
+        lisResponses = readMessages(dir.resolve("lis.txt"));
+        upstreamRequests.clear();
+        GeneXpertRuntime.get().dedup().clear();
+
+        StringBuilder out = new StringBuilder();
+        for (String input : inputs) {
+            if (name.startsWith("lab28")) {
+                String ack = analyzer.lab28(input);
+                byte[] traffic = instrument.nextMessage();
+                out.append("=== transport ===\n").append(render(traffic));
+                out.append("=== reply ===\n").append(lines(ack));
+            } else {
+                int first = upstreamRequests.size();
+                String reply = name.startsWith("lab27") ? analyzer.lab27(input) : analyzer.lab29(input);
+                for (String request : upstreamRequests.subList(first, upstreamRequests.size())) {
+                    out.append("=== upstream ===\n").append(lines(request));
+                }
+                out.append("=== reply ===\n").append(lines(reply));
+            }
+        }
+        return mask(out.toString());
+    }
+
+    /**
+     * Runs a case once for measurement.
+     *
+     * @return { elapsed nanos, bytes allocated by the calling thread }
+     */
+    private long[] measure(Path dir) throws Exception {
+        String name = dir.getFileName().toString();
+        List<String> inputs = readMessages(dir.resolve("input.txt"));
+        lisResponses = readMessages(dir.resolve("lis.txt"));
+        upstreamRequests.clear();
+        GeneXpertRuntime.get().dedup().clear();
+
+        long tid = Thread.currentThread().getId();
+        long elapsed = 0;
+        long bytes = 0;
+        for (String input : inputs) {
+            long bytes0 = threads.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            if (name.startsWith("lab28")) {
+                analyzer.lab28(input);
+            } else if (name.startsWith("lab27")) {
+                analyzer.lab27(input);
+            } else {
+                analyzer.lab29(input);
+            }
+            long t1 = System.nanoTime();
+            long bytes1 = threads.getThreadAllocatedBytes(tid);
+            if (name.startsWith("lab28")) instrument.nextMessage();
+            elapsed += t1 - t0;
+            bytes += bytes1 - bytes0;
+        }
+        return new long[] { elapsed, bytes };
+    }
+
+    // === Corpus files and output formatting ===
+
+    private static String read(Path file) throws IOException {
+        String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        return text.replace("\r\n", "\n").trim().replace('\n', '\r');
+    }
+
+    /**
+     * Messages of a corpus file, separated by {@code ---} lines (null if the file does not exist).
+     */
+    private static List<String> readMessages(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) return null;
+        List<String> messages = new ArrayList<>();
+        for (String message : read(file).split("\r---\r", -1)) {
+            messages.add(message.trim());
+        }
+        return messages;
+    }
+
+    /** One segment/record per line; null rendered as {@code <null>}. */
+    private static String lines(String message) {
+        if (message == null) return "<null>\n";
+        String s = message.replace("\r\n", "\n").replace('\r', '\n');
+        return s.endsWith("\n") ? s : s + "\n";
+    }
+
+    /**
+     * Renders E1381 traffic one frame per line, control bytes as {@code <STX>}, {@code <CR>}, ...
+     * A frame with an invalid checksum is flagged with {@code <CS bad, expected XX>}.
+     */
+    static String render(byte[] traffic) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < traffic.length) {
+            int b = traffic[i] & 0xFF;
+            if (b == GeneXpertFrameCodec.STX) {
+                int end = i + 1;
+                while (end < traffic.length && traffic[end] != GeneXpertFrameCodec.ETX && traffic[end] != GeneXpertFrameCodec.ETB) end++;
+                int frameEnd = Math.min(end + 5, traffic.length);
+                sb.append(text(traffic, i, frameEnd));
+                if (end + 2 < traffic.length) {
+                    int sum = 0;
+                    for (int k = i + 1; k <= end; k++) sum += traffic[k] & 0xFF;
+                    String expected = String.format("%02X", sum & 0xFF);
+                    if (!expected.equals(new String(traffic, end + 1, 2, StandardCharsets.US_ASCII))) {
+                        sb.append(" <CS bad, expected ").append(expected).append('>');
+                    }
+                }
+                sb.append('\n');
+                i = frameEnd;
+            } else {
+                sb.append(text(traffic, i, i + 1)).append('\n');
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String text(byte[] data, int from, int to) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            int b = data[i] & 0xFF;
+            switch (b) {
+                case 0x02: sb.append("<STX>"); break;
+                case 0x03: sb.append("<ETX>"); break;
+                case 0x04: sb.append("<EOT>"); break;
+                case 0x05: sb.append("<ENQ>"); break;
+                case 0x06: sb.append("<ACK>"); break;
+                case 0x0A: sb.append("<LF>"); break;
+                case 0x0D: sb.append("<CR>"); break;
+                case 0x15: sb.append("<NAK>"); break;
+                case 0x17: sb.append("<ETB>"); break;
+                default:
+                    if (b >= 0x20 && b < 0x7F) sb.append((char) b);
+                    else sb.append(String.format("<0x%02X>", b));
+            }
+        }
+        return sb.toString();
+    }
+
+    static String mask(String output) {
+        return CONTROL_ID.matcher(output).replaceAll("MSG<ID>");
+    }
+
+    private static String firstDifference(String expected, String actual) {
+        if (expected.equals(actual)) return null;
+        String[] e = expected.split("\n", -1);
+        String[] a = actual.split("\n", -1);
+        int n = Math.min(e.length, a.length);
+        for (int i = 0; i < n; i++) {
+            if (!e[i].equals(a[i])) {
+                return "output differs at line " + (i + 1) + "\n      expected: " + e[i] + "\n      actual:   " + a[i];
+            }
+        }
+        return "output differs in length: expected " + e.length + " lines, actual " + a.length;
+    }
+
+    private static long parse(String value) {
+        try {
+            return (value == null) ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Stub analyzer side of the LAB-28 transport: ACKs ENQ and every frame, hands over each
+     * transmission (ENQ to EOT) as raw bytes.
+     */
+    private static final class StubInstrument extends Thread {
+        private final Socket socket;
+        private final BlockingQueue<byte[]> messages = new ArrayBlockingQueue<>(4);
+
+        StubInstrument(Socket socket) {
+            super("StubInstrument");
+            setDaemon(true);
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try (InputStream in = new BufferedInputStream(socket.getInputStream());
+                 OutputStream out = socket.getOutputStream()) {
+                ByteArrayOutputStream current = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) >= 0) {
+                    current.write(b);
+                    if (b == 0x05 || b == 0x0A) {
+                        out.write(0x06); // ACK the ENQ or the frame (LF ends a frame)
+                        out.flush();
+                    } else if (b == 0x04) {
+                        messages.put(current.toByteArray());
+                        current.reset();
+                    }
+                }
+            } catch (IOException e) {
+                // transport closed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** Next complete transmission sent by the plugin, or an empty array if none arrives within 10 s. */
+        byte[] nextMessage() throws InterruptedException {
+            byte[] m = messages.poll(10, TimeUnit.SECONDS);
+            return (m == null) ? new byte[0] : m;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
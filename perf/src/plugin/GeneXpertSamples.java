@@ -0,0 +1,95 @@
+package plugin;
+
+/**
+ * Synthetic but realistic GeneXpert / LabBook messages used by the performance tools.
+ * <p>
+ * Test and result codes match doc/mapping_genexpert.toml so that mapping lookups hit.
+ * ASTM messages are CR-delimited, as assembled by the E1381 receiver.
+ */
+final class GeneXpertSamples {
+
+    private GeneXpertSamples() {
+    }
+
+    static final String ASTM_HEADER = "H|\\^&|||GeneXpert^4.7||||||P|1394-97|20260101120000";
+
+    /**
+     * LAB-29 result upload: per patient one P, one MTB/RIF order with 3 results and a comment,
+     * and one HBV viral load order with 2 results.
+     *
+     * @param firstSpecimen Index of the first specimen (specimen IDs are SP + 6 digits)
+     * @param patients Number of patients in the transmission
+     */
+    static String lab29Upload(int firstSpecimen, int patients) {
+        StringBuilder sb = new StringBuilder(512 * patients);
+        sb.append(ASTM_HEADER).append('\r');
+        for (int p = 0; p < patients; p++) {
+            String spm = specimenId(firstSpecimen + p);
+            sb.append("P|").append(p + 1).append("|PAT").append(spm).append("||DOE^JOHN||19800101|M\r");
+            sb.append("O|1|").append(spm).append("||^^^xpert_mtb_rif|R|20260101100000|||||||||SPUTUM||||||||||F\r");
+            sb.append("R|1|^xpert_mtb_rif^^mtb^Xpert MTB-RIF Ultra^4^MTB^|MTB DETECTED MEDIUM^|||||F||||20260101113000\r");
+            sb.append("R|2|^xpert_mtb_rif^^mtbtrace^Xpert MTB-RIF Ultra^4^MTB Trace^|NOT DETECTED^|||||F||||20260101113000\r");
+            sb.append("R|3|^xpert_mtb_rif^^rifresist^Xpert MTB-RIF Ultra^4^RIF Resistance^|Rif Resistance NOT DETECTED^|||||F||||20260101113000\r");
+            sb.append("C|1|I|Sample processed on module A1|G\r");
+            sb.append("O|2|").append(spm).append("||^^^hbv_viral_load|R|20260101100000|||||||||PLASMA||||||||||F\r");
+            sb.append("R|1|^^^hbv_viral_load^Xpert HBV Viral Load^1^^|^1.52E03|IU/mL|10 to 1.00E09||||F||||20260101114500\r");
+            sb.append("R|2|^^^hbv_viral_load^Xpert HBV Viral Load^1^^LOG|^3.18||||||F||||20260101114500\r");
+        }
+        sb.append("L|1|N");
+        return sb.toString();
+    }
+
+    /**
+     * Replaces the system name (first component of H.5, "GeneXpert" in the samples) of a message header.
+     */
+    static String withSender(String astm, String systemName) {
+        return astm.replaceFirst("^H\\|([^|]*)\\|\\|\\|GeneXpert\\^", "H|$1|||" + systemName + "^");
+    }
+
+    /**
+     * LAB-27 host query for one specimen, or for all pending orders when specimen is null.
+     */
+    static String lab27Query(String specimen) {
+        return "H|\\^&|||GeneXpert^4.7||||||Q|1394-97|20260101120000\r"
+             + (specimen != null ? "Q|1|^" + specimen + "||ALL||||||||O\r" : "Q|1|||ALL||||||||A\r")
+             + "L|1|N";
+    }
+
+    /**
+     * RSP^K11 reply from LabBook with the given number of orders (one patient and specimen each).
+     */
+    static String rspK11(int orders) {
+        StringBuilder sb = new StringBuilder(128 + 160 * orders);
+        sb.append("MSH|^~\\&|LabBook|LIS|GeneXpert|Analyzer|20260101120000||RSP^K11^RSP_K11|R0001|P|2.5.1\r");
+        sb.append("MSA|AA|MSG0001\r");
+        sb.append("QAK|GENEXPERT|OK\r");
+        sb.append("QPD|LAB-27^IHE|GENEXPERT|ALL\r");
+        for (int i = 0; i < orders; i++) {
+            String spm = specimenId(i + 1);
+            sb.append("PID|1||PAT").append(spm).append("||DOE^JOHN||19800101|M\r");
+            sb.append("SPM|1|").append(spm).append("||SPUTUM\r");
+            sb.append("OBR|1|").append(spm).append("||^^^").append(i % 2 == 0 ? "GX06" : "GX02").append("\r");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * LAB-28 OML^O33 order for one specimen.
+     */
+    static String omlO33(String specimen) {
+        return "MSH|^~\\&|LabBook|LIS|GeneXpert|Analyzer|20260101120000||OML^O33^OML_O33|OML" + specimen + "|P|2.5.1\r"
+             + "PID|1||PAT" + specimen + "^^^LIS~ALT" + specimen + "^^^LIS||DOE^JOHN||19800101|M|||1 RUE DES LILAS^^LYON^^69000||0400000000\r"
+             + "SPM|1|" + specimen + "||SPUTUM\r"
+             + "ORC|NW|" + specimen + "\r"
+             + "OBR|1|" + specimen + "||GX06^Xpert MTB-RIF Ultra\r";
+    }
+
+    /** HL7 ACK returned by LabBook for a LAB-29 upload. */
+    static final String ACK_AA =
+            "MSH|^~\\&|LabBook|LIS|GeneXpert|Analyzer|20260101120000||ACK^R22^ACK|A0001|P|2.5.1\r"
+          + "MSA|AA|MSG0001\r";
+
+    static String specimenId(int index) {
+        return String.format("SP%06d", index);
+    }
+}
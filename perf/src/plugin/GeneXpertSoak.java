@@ -0,0 +1,525 @@
+package plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Soak test of the E1381 link layer: simulated instruments upload results and query orders through
+ * a {@link GeneXpertFaultProxy} in front of each plugin instance, for a long time, with link faults
+ * injected at configurable rates.
+ * <p>
+ * The first {@code -w} seconds run without faults. Then faults are injected for {@code -d} seconds;
+ * an upload is sent again until the plugin acknowledges it with L|1|Y (after a reconnection if needed),
+ * as a GeneXpert does. Finally faults stop, pending uploads are completed, and the run checks that:
+ * <ul>
+ *   <li>every upload was acknowledged and every specimen reached LabBook exactly once, with all its results
+ *       (no lost or duplicated result)</li>
+ *   <li>live threads did not grow beyond the first sample by more than {@code -threadSlack}</li>
+ *   <li>heap used after GC did not grow beyond the first sample by more than {@code -heapSlack} MB</li>
+ *   <li>the time from a fault to the next successful transaction of the instrument never exceeded
+ *       {@code -maxRecovery} ms</li>
+ * </ul>
+ * The exit status is 1 when a check fails.
+ * <p>
+ * Usage: {@code GeneXpertSoak [-n 2] [-d 300] [-w 10] [-lab29 0.8] [-patients 2] [-latency 5]
+ * [-checksum 0.01] [-nak 0.01] [-trailer 0.002] [-noise 0.01] [-stall 0.002] [-empty 0.01]
+ * [-sample 30] [-heapSlack 16] [-threadSlack 4n+8] [-maxRecovery 30000] [-port 17700] [-timeout 15000] [-m mapping.toml]}
+ */
+public final class GeneXpertSoak {
+
+    private static final int ENQ = 0x05;
+    private static final int ACK = 0x06;
+    private static final int NAK = 0x15;
+    private static final int EOT = 0x04;
+
+    // E1381: a frame is sent at most 6 times; after a NAK to its ENQ, the sender waits 10 s
+    private static final int MAX_FRAME_ATTEMPTS = 6;
+    private static final long BUSY_WAIT_MS = 10000;
+
+    // Time given to the instruments to complete their pending uploads once faults stop
+    private static final long DRAIN_SECONDS = 60;
+
+    private GeneXpertSoak() {
+    }
+
+    /**
+     * Results shared by all instruments and the LabBook stub.
+     */
+    static final class Stats {
+        final LongAdder lab27Done = new LongAdder();
+        final LongAdder lab29Done = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder reconnects = new LongAdder();
+        final LongAdder retransmissions = new LongAdder();
+        final LongAdder busy = new LongAdder();
+        final Set<String> acknowledged = ConcurrentHashMap.newKeySet();
+        final Set<String> unacknowledged = ConcurrentHashMap.newKeySet();
+        final Map<String, Integer> deliveries = new ConcurrentHashMap<>();
+        final Map<String, Integer> resultCounts = new ConcurrentHashMap<>();
+
+        /**
+         * Records an OUL^R22 accepted by the LabBook stub: one delivery per specimen (SPM-2, one SPM per order),
+         * and the number of its results (OBX).
+         */
+        void delivered(String oul) {
+            Map<String, Integer> results = new HashMap<>();
+            String specimen = null;
+            for (String segment : oul.split("\r")) {
+                if (segment.startsWith("SPM|")) {
+                    String[] fields = segment.split("\\|", -1);
+                    specimen = (fields.length > 2) ? fields[2] : "";
+                    results.putIfAbsent(specimen, 0);
+                } else if (segment.startsWith("OBX|") && specimen != null) {
+                    results.merge(specimen, 1, Integer::sum);
+                }
+            }
+            for (Map.Entry<String, Integer> delivered : results.entrySet()) {
+                deliveries.merge(delivered.getKey(), 1, Integer::sum);
+                resultCounts.put(delivered.getKey(), delivered.getValue());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int instruments = 2;
+        long durationSec = 300;
+        long warmupSec = 10;
+        double lab29Share = 0.8;
+        int patients = 2;
+        long latencyMs = 5;
+        long sampleSec = 30;
+        long heapSlackMb = 16;
+        int threadSlack = -1;
+        long maxRecoveryMs = 30000;
+        int basePort = 17700;
+        int replyTimeoutMs = 15000;
+        String mappingPath = "doc/mapping_genexpert.toml";
+        GeneXpertFaultProxy.Faults faults = new GeneXpertFaultProxy.Faults();
+        faults.rate(GeneXpertFaultProxy.Fault.CHECKSUM, 0.01);
+        faults.rate(GeneXpertFaultProxy.Fault.NAK, 0.01);
+        faults.rate(GeneXpertFaultProxy.Fault.TRAILER, 0.002);
+        faults.rate(GeneXpertFaultProxy.Fault.NOISE, 0.01);
+        faults.rate(GeneXpertFaultProxy.Fault.STALL, 0.002);
+        faults.rate(GeneXpertFaultProxy.Fault.EMPTY, 0.01);
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-n": instruments = Integer.parseInt(args[++i]); break;
+                case "-d": durationSec = Long.parseLong(args[++i]); break;
+                case "-w": warmupSec = Long.parseLong(args[++i]); break;
+                case "-lab29": lab29Share = Double.parseDouble(args[++i]); break;
+                case "-patients": patients = Integer.parseInt(args[++i]); break;
+                case "-latency": latencyMs = Long.parseLong(args[++i]); break;
+                case "-checksum": faults.rate(GeneXpertFaultProxy.Fault.CHECKSUM, Double.parseDouble(args[++i])); break;
+                case "-nak": faults.rate(GeneXpertFaultProxy.Fault.NAK, Double.parseDouble(args[++i])); break;
+                case "-trailer": faults.rate(GeneXpertFaultProxy.Fault.TRAILER, Double.parseDouble(args[++i])); break;
+                case "-noise": faults.rate(GeneXpertFaultProxy.Fault.NOISE, Double.parseDouble(args[++i])); break;
+                case "-stall": faults.rate(GeneXpertFaultProxy.Fault.STALL, Double.parseDouble(args[++i])); break;
+                case "-empty": faults.rate(GeneXpertFaultProxy.Fault.EMPTY, Double.parseDouble(args[++i])); break;
+                case "-sample": sampleSec = Math.max(1, Long.parseLong(args[++i])); break;
+                case "-heapSlack": heapSlackMb = Long.parseLong(args[++i]); break;
+                case "-threadSlack": threadSlack = Integer.parseInt(args[++i]); break;
+                case "-maxRecovery": maxRecoveryMs = Long.parseLong(args[++i]); break;
+                case "-port": basePort = Integer.parseInt(args[++i]); break;
+                case "-timeout": replyTimeoutMs = Integer.parseInt(args[++i]); break;
+                case "-m": mappingPath = args[++i]; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+        // sessions of stalled connections end with the plugin timers, so some threads may overlap
+        if (threadSlack < 0) threadSlack = 4 * instruments + 8;
+
+        // === LabBook stub ===
+        Stats stats = new Stats();
+        GeneXpertLisStub lis = new GeneXpertLisStub(latencyMs, 0, 0, 0.0, 0);
+        lis.observe((path, request) -> {
+            if (GeneXpertLisStub.PATH_LAB29.equals(path)) stats.delivered(request);
+        });
+        lis.start();
+        Connect_util.upstream = GeneXpertLisStub.client();
+
+        // === Plugin instances, each behind a fault proxy ===
+        List<GeneXpertFaultProxy> proxies = new ArrayList<>();
+        for (int i = 0; i < instruments; i++) {
+            AnalyzerGeneXpert analyzer = new AnalyzerGeneXpert();
+            analyzer.setId_analyzer(String.format("GX_SOAK_%02d", i + 1));
+            analyzer.setType_cnx("socket_E1381");
+            analyzer.setMode("server");
+            analyzer.setPort_analyzer(basePort + i);
+            analyzer.setMappingPath(mappingPath);
+            analyzer.setUrl_upstream_lab27(lis.baseUrl() + GeneXpertLisStub.PATH_LAB27);
+            analyzer.setUrl_upstream_lab29(lis.baseUrl() + GeneXpertLisStub.PATH_LAB29);
+            analyzer.listenDevice();
+
+            GeneXpertFaultProxy proxy = new GeneXpertFaultProxy(basePort + 100 + i, "127.0.0.1", basePort + i, faults, i + 1);
+            proxy.start();
+            proxies.add(proxy);
+        }
+
+        System.out.printf(Locale.ROOT, "# %d instruments, %d s with faults (+%d s warm-up), LAB-29 share %.2f, %d patients/upload%n",
+                instruments, durationSec, warmupSec, lab29Share, patients);
+        StringBuilder rates = new StringBuilder("# fault rates:");
+        for (GeneXpertFaultProxy.Fault fault : GeneXpertFaultProxy.Fault.values()) {
+            rates.append(String.format(Locale.ROOT, " %s %.4f", fault.name().toLowerCase(Locale.ROOT), faults.rates[fault.ordinal()]));
+        }
+        System.out.println(rates + " (per frame, empty per ENQ)");
+
+        // === Instruments ===
+        long start = System.nanoTime();
+        long faultsFrom = start + TimeUnit.SECONDS.toNanos(warmupSec);
+        long faultsUntil = faultsFrom + TimeUnit.SECONDS.toNanos(durationSec);
+        long drainUntil = faultsUntil + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < instruments; i++) {
+            Instrument instrument = new Instrument(i + 1, basePort + 100 + i, proxies.get(i), lab29Share, patients,
+                    replyTimeoutMs, faultsUntil, drainUntil, stats);
+            Thread t = new Thread(instrument, "SoakInstrument-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+
+        // === Heap and thread samples ===
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        List<long[]> samples = new ArrayList<>(); // seconds, heap after GC, live threads
+        long nextSample = faultsFrom;
+        long lastReport = start;
+        while (System.nanoTime() < faultsUntil) {
+            Thread.sleep(200);
+            long now = System.nanoTime();
+            if (!faults.enabled && now >= faultsFrom) faults.enabled = true;
+            if (now >= nextSample) {
+                nextSample += TimeUnit.SECONDS.toNanos(sampleSec);
+                System.gc();
+                long[] sample = { (now - start) / 1_000_000_000L, memory.getHeapMemoryUsage().getUsed(), threadBean.getThreadCount() };
+                samples.add(sample);
+            }
+            if (now - lastReport >= TimeUnit.SECONDS.toNanos(10)) {
+                lastReport = now;
+                System.out.printf(Locale.ROOT, "[%6.1f s] LAB-29 %d, LAB-27 %d, failed %d, faults %d, reconnects %d, heap %d MB, threads %d%n",
+                        (now - start) / 1e9, stats.lab29Done.sum(), stats.lab27Done.sum(), stats.failed.sum(), injected(faults),
+                        stats.reconnects.sum(), memory.getHeapMemoryUsage().getUsed() >> 20, threadBean.getThreadCount());
+            }
+        }
+        faults.enabled = false;
+        for (Thread t : threads) {
+            t.join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(drainUntil - System.nanoTime())) + replyTimeoutMs);
+        }
+        Thread.sleep(1000); // last LabBook requests
+
+        // === Report ===
+        System.out.println();
+        System.out.printf(Locale.ROOT, "transactions: LAB-29 %d, LAB-27 %d, failed %d (retried), reconnects %d, frames retransmitted %d, ENQ refused %d%n",
+                stats.lab29Done.sum(), stats.lab27Done.sum(), stats.failed.sum(), stats.reconnects.sum(),
+                stats.retransmissions.sum(), stats.busy.sum());
+        StringBuilder injectedLine = new StringBuilder("faults injected:");
+        for (GeneXpertFaultProxy.Fault fault : GeneXpertFaultProxy.Fault.values()) {
+            injectedLine.append(' ').append(fault.name().toLowerCase(Locale.ROOT)).append(' ').append(faults.injected(fault));
+        }
+        System.out.println(injectedLine);
+        long checksumErrors = 0, timeouts = 0;
+        for (int i = 0; i < instruments; i++) {
+            GeneXpertMetrics m = GeneXpertMetrics.forAnalyzer(String.format("GX_SOAK_%02d", i + 1));
+            checksumErrors += m.getChecksumErrors();
+            timeouts += m.getTimeouts();
+        }
+        System.out.printf(Locale.ROOT, "plugin: checksum errors %d, timeouts %d%n", checksumErrors, timeouts);
+        System.out.println("recovery time (us): " + faults.recovery.snapshot());
+        System.out.println("samples (s, heap after GC MB, threads):");
+        for (long[] sample : samples) {
+            System.out.printf(Locale.ROOT, "  %6d %6d %6d%n", sample[0], sample[1] >> 20, sample[2]);
+        }
+
+        List<String> failures = new ArrayList<>();
+
+        // no lost or duplicated result
+        Map<Integer, Integer> countFrequency = new HashMap<>();
+        for (int count : stats.resultCounts.values()) {
+            countFrequency.merge(count, 1, Integer::sum);
+        }
+        int expectedResults = countFrequency.entrySet().stream()
+                .max(Map.Entry.comparingByValue()).map(Map.Entry::getKey).orElse(0);
+        int lost = 0, duplicated = 0, incomplete = 0;
+        for (String specimen : stats.acknowledged) {
+            if (!stats.deliveries.containsKey(specimen)) lost++;
+        }
+        for (Map.Entry<String, Integer> delivered : stats.deliveries.entrySet()) {
+            if (delivered.getValue() > 1) duplicated++;
+            if (stats.resultCounts.getOrDefault(delivered.getKey(), -1) != expectedResults) incomplete++;
+        }
+        System.out.printf(Locale.ROOT, "specimens: acknowledged %d, delivered %d, lost %d, duplicated %d, "
+                + "not %d results %d, never acknowledged %d%n", stats.acknowledged.size(), stats.deliveries.size(),
+                lost, duplicated, expectedResults, incomplete, stats.unacknowledged.size());
+        if (lost > 0) failures.add(lost + " acknowledged specimens never reached LabBook");
+        if (duplicated > 0) failures.add(duplicated + " specimens reached LabBook more than once");
+        if (incomplete > 0) failures.add(incomplete + " specimens reached LabBook without exactly " + expectedResults + " results");
+        if (!stats.unacknowledged.isEmpty()) failures.add(stats.unacknowledged.size() + " specimens never acknowledged by the plugin");
+
+        // flat heap and threads
+        if (samples.size() >= 2) {
+            long[] first = samples.get(0);
+            long[] last = samples.get(samples.size() - 1);
+            long heapGrowthMb = (last[1] - first[1]) >> 20;
+            long maxThreads = samples.stream().mapToLong(s -> s[2]).max().orElse(first[2]);
+            if (heapGrowthMb > heapSlackMb) {
+                failures.add("heap after GC grew by " + heapGrowthMb + " MB (slack " + heapSlackMb + " MB)");
+            }
+            if (maxThreads - first[2] > threadSlack) {
+                failures.add("live threads grew from " + first[2] + " to " + maxThreads + " (slack " + threadSlack + ")");
+            }
+        } else {
+            failures.add("fewer than 2 heap/thread samples: run longer than -sample");
+        }
+
+        // bounded recovery
+        long maxRecovery = TimeUnit.MICROSECONDS.toMillis(faults.recovery.snapshot().getMaxMicros());
+        if (maxRecovery > maxRecoveryMs) {
+            failures.add("recovery after a fault took " + maxRecovery + " ms (limit " + maxRecoveryMs + " ms)");
+        }
+
+        System.out.println();
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        System.out.println(failures.isEmpty() ? "soak test OK" : "soak test FAILED");
+
+        for (GeneXpertFaultProxy proxy : proxies) {
+            proxy.stop();
+        }
+        lis.stop();
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static long injected(GeneXpertFaultProxy.Faults faults) {
+        long n = 0;
+        for (GeneXpertFaultProxy.Fault fault : GeneXpertFaultProxy.Fault.values()) {
+            n += faults.injected(fault);
+        }
+        return n;
+    }
+
+    /**
+     * Simulated GeneXpert for the soak test: E1381 sender with frame retransmission, and uploads
+     * sent again until acknowledged.
+     */
+    private static final class Instrument implements Runnable {
+
+        private final int index;
+        private final String sender;
+        private final int port;
+        private final GeneXpertFaultProxy proxy;
+        private final double lab29Share;
+        private final int patients;
+        private final int replyTimeoutMs;
+        private final long newUntilNanos;
+        private final long drainUntilNanos;
+        private final Stats stats;
+        private final Random random;
+
+        private final GeneXpertFrameCodec decoder = new GeneXpertFrameCodec();
+        private final GeneXpertTimerWheel.Deadline replyTimer = GeneXpertRuntime.get().timers().deadline(this::closeConnection);
+        private volatile GeneXpertTransport connection;
+        private InputStream in;
+        private OutputStream out;
+        private int nextSpecimen;
+        private String[] upload;          // records of the upload waiting for L|1|Y
+        private List<String> uploadSpecimens;
+        private boolean refused;
+
+        Instrument(int index, int port, GeneXpertFaultProxy proxy, double lab29Share, int patients, int replyTimeoutMs,
+                long newUntilNanos, long drainUntilNanos, Stats stats) {
+            this.index = index;
+            this.sender = String.format("GX_SOAK_%02d", index);
+            this.port = port;
+            this.proxy = proxy;
+            this.lab29Share = lab29Share;
+            this.patients = patients;
+            this.replyTimeoutMs = replyTimeoutMs;
+            this.newUntilNanos = newUntilNanos;
+            this.drainUntilNanos = drainUntilNanos;
+            this.stats = stats;
+            this.random = new Random(index);
+            this.nextSpecimen = index * 10_000_000 + 1;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (active()) {
+                    try (GeneXpertTransport transport = connect()) {
+                        connection = transport;
+                        in = transport.input();
+                        out = transport.output();
+                        while (active()) {
+                            transaction();
+                        }
+                    } catch (IOException e) {
+                        stats.failed.increment();
+                        stats.reconnects.increment(); // connection lost or closed by a timer: reconnect
+                    } finally {
+                        replyTimer.disarm();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (uploadSpecimens != null) stats.unacknowledged.addAll(uploadSpecimens);
+            }
+        }
+
+        /** New transactions until the end of the fault period, then only the pending upload. */
+        private boolean active() {
+            long now = System.nanoTime();
+            return now < newUntilNanos || (upload != null && now < drainUntilNanos);
+        }
+
+        private void transaction() throws IOException, InterruptedException {
+            if (upload == null && random.nextDouble() < lab29Share) {
+                String msg = GeneXpertSamples.withSender(GeneXpertSamples.lab29Upload(nextSpecimen, patients), sender);
+                upload = msg.split("\r");
+                uploadSpecimens = new ArrayList<>(patients);
+                for (int p = 0; p < patients; p++) {
+                    uploadSpecimens.add(GeneXpertSamples.specimenId(nextSpecimen + p));
+                }
+                nextSpecimen += patients;
+            }
+
+            boolean ok;
+            try {
+                if (upload != null) {
+                    ok = send(upload) && receive().contains("L|1|Y");
+                    if (ok) {
+                        stats.acknowledged.addAll(uploadSpecimens);
+                        stats.lab29Done.increment();
+                        upload = null;
+                        uploadSpecimens = null;
+                    }
+                } else {
+                    String query = GeneXpertSamples.withSender(
+                            GeneXpertSamples.lab27Query(GeneXpertSamples.specimenId(nextSpecimen++)), sender);
+                    ok = send(query.split("\r")) && receive().contains("O|");
+                    if (ok) stats.lab27Done.increment();
+                }
+            } finally {
+                replyTimer.disarm();
+            }
+
+            if (refused) {
+                refused = false;
+                stats.busy.increment();
+                Thread.sleep(BUSY_WAIT_MS);
+            } else if (ok) {
+                proxy.recovered();
+            } else {
+                stats.failed.increment();
+            }
+        }
+
+        private GeneXpertTransport connect() throws IOException, InterruptedException {
+            IOException last = null;
+            for (int attempt = 0; attempt < 50; attempt++) {
+                try {
+                    return GeneXpertRuntime.get().transport().connect("127.0.0.1", port);
+                } catch (IOException e) {
+                    last = e;
+                    Thread.sleep(100); // proxy or plugin not listening yet
+                }
+            }
+            throw last;
+        }
+
+        private void closeConnection() {
+            GeneXpertTransport c = connection;
+            if (c == null) return;
+            try {
+                c.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+
+        private int awaitReply() throws IOException {
+            replyTimer.arm(replyTimeoutMs);
+            return in.read();
+        }
+
+        /**
+         * Sends one ASTM message: ENQ, one frame per record (sent again on NAK, up to 6 times), EOT.
+         *
+         * @return false if the ENQ was refused or a frame was rejected 6 times
+         * @throws IOException If the connection failed or the plugin replied out of protocol
+         */
+        private boolean send(String[] records) throws IOException {
+            out.write(ENQ);
+            out.flush();
+            int reply = awaitReply();
+            if (reply == NAK) {
+                refused = true;
+                return false;
+            }
+            if (reply != ACK) throw new IOException("Expected ACK to ENQ, got " + reply);
+
+            for (int i = 0; i < records.length; i++) {
+                byte[] frame = GeneXpertFrameCodec.encodeFrame((i + 1) % 8, records[i] + "\r");
+                int attempt = 0;
+                while (true) {
+                    out.write(frame);
+                    out.flush();
+                    reply = awaitReply();
+                    if (reply == ACK) break;
+                    if (reply != NAK) throw new IOException("Expected ACK to frame, got " + reply);
+                    stats.retransmissions.increment();
+                    if (++attempt == MAX_FRAME_ATTEMPTS) {
+                        out.write(EOT);
+                        out.flush();
+                        return false;
+                    }
+                }
+            }
+            out.write(EOT);
+            out.flush();
+            return true;
+        }
+
+        /**
+         * Receives the plugin's reply: waits for ENQ, ACKs it and every frame until EOT.
+         */
+        private String receive() throws IOException {
+            int b = awaitReply();
+            if (b != ENQ) throw new IOException("Expected ENQ from plugin, got " + b);
+            out.write(ACK);
+            out.flush();
+
+            StringBuilder reply = new StringBuilder(256);
+            while (true) {
+                b = awaitReply();
+                if (b < 0) throw new IOException("Connection closed during reply");
+                if (b == EOT) break;
+                if (b != GeneXpertFrameCodec.STX) continue;
+                decoder.readFrame(in::read);
+                reply.append(new String(decoder.payload(), 0, decoder.length(), StandardCharsets.US_ASCII)).append('\r');
+                out.write(ACK);
+                out.flush();
+            }
+            return reply.toString();
+        }
+    }
+}
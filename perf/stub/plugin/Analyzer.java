@@ -0,0 +1,43 @@
+package plugin;
+
+/**
+ * Stand-in for the LabBook Connect {@code Analyzer} interface.
+ * <p>
+ * Used only to build the performance tools (perf/) without the LabBook Connect project.
+ * The plugin itself is always compiled against the real Connect classes.
+ */
+public interface Analyzer {
+
+    String getId_analyzer();
+    void setId_analyzer(String id_analyzer);
+
+    String getUrl_upstream_lab27();
+    void setUrl_upstream_lab27(String url);
+
+    String getUrl_upstream_lab29();
+    void setUrl_upstream_lab29(String url);
+
+    void setVersion(String version);
+    void setType_cnx(String type_cnx);
+    void setType_msg(String type_msg);
+    void setArchive_msg(String archive_msg);
+    void setOperationMode(String operation_mode);
+    void setMode(String mode);
+    void setIp_analyzer(String ip_analyzer);
+    void setPort_analyzer(int port_analyzer);
+
+    String getMappingPath();
+    void setMappingPath(String mappingPath);
+
+    Analyzer copy();
+    String test();
+    String info();
+    boolean isListening();
+
+    String lab27(String msg);
+    String lab28(String msg);
+    String lab29(String msg);
+
+    void listenDevice();
+    void stopListening();
+}
@@ -0,0 +1,71 @@
+package plugin;
+
+import java.io.File;
+import java.util.function.BiFunction;
+
+import com.moandjiezana.toml.Toml;
+
+/**
+ * Stand-in for the LabBook Connect {@code Connect_util} helpers used by the plugin.
+ * <p>
+ * Used only to build the performance tools (perf/). Upstream calls are answered by {@link #upstream},
+ * which returns canned LabBook responses by default and can be replaced (e.g. by an HTTP client
+ * or a delayed/failing responder). Archiving is a no-op.
+ */
+public class Connect_util {
+
+    /** Upstream responder: (url, HL7 request) -> HL7 response. */
+    public static volatile BiFunction<String, String, String> upstream = Connect_util::cannedResponse;
+
+    public static void archiveMessage(String id_analyzer, String archive_msg, String msg, String type, String source) {
+        // no archiving in performance tools
+    }
+
+    public static String send_hl7_msg(Analyzer analyzer, String url, String msg) {
+        return upstream.apply(url, msg);
+    }
+
+    /**
+     * Loads a mapping file; the path may be given with or without the .toml extension.
+     */
+    public static Toml loadMappingToml(String path) {
+        if (path == null || path.isEmpty()) return new Toml();
+        File file = new File(path);
+        if (!file.isFile()) file = new File(path + ".toml");
+        return file.isFile() ? new Toml().read(file) : new Toml();
+    }
+
+    /**
+     * Canned LabBook behaviour: RSP^K11 with one GX02 order for a QBP^Q11, ACK AA for anything else.
+     */
+    public static String cannedResponse(String url, String request) {
+        String controlId = field(segment(request, "MSH"), 10);
+        if (request.contains("|QBP^Q11")) {
+            String specimen = field(segment(request, "QPD"), 3);
+            if (specimen.isEmpty() || "ALL".equals(specimen)) specimen = "SP000001";
+            return "MSH|^~\\&|LabBook|LIS|GeneXpert|Analyzer|20260101120000||RSP^K11^RSP_K11|R" + controlId + "|P|2.5.1\r"
+                 + "MSA|AA|" + controlId + "\r"
+                 + "QAK|GENEXPERT|OK\r"
+                 + "QPD|LAB-27^IHE|GENEXPERT|" + specimen + "\r"
+                 + "PID|1||PAT" + specimen + "||DOE^JOHN||19800101|M\r"
+                 + "SPM|1|" + specimen + "||BLD\r"
+                 + "OBR|1|" + specimen + "||^^^GX02\r";
+        }
+        return "MSH|^~\\&|LabBook|LIS|GeneXpert|Analyzer|20260101120000||ACK^R22^ACK|A" + controlId + "|P|2.5.1\r"
+             + "MSA|AA|" + controlId + "\r";
+    }
+
+    private static String segment(String msg, String name) {
+        for (String seg : msg.split("\r")) {
+            if (seg.startsWith(name + "|")) return seg;
+        }
+        return "";
+    }
+
+    /** Returns HL7 field n of a segment (MSH-1 being the field separator itself). */
+    private static String field(String segment, int n) {
+        String[] fields = segment.split("\\|", -1);
+        int i = segment.startsWith("MSH|") ? n - 1 : n;
+        return (i < fields.length) ? fields[i] : "";
+    }
+}
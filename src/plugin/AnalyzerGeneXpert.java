@@ -1,19 +1,24 @@
 package plugin;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.io.SequenceInputStream;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -71,27 +76,69 @@ public class AnalyzerGeneXpert implements Analyzer {
     protected int port_analyzer = 0;
     protected String mappingPath = "";
     protected Toml mappingToml = new Toml();
+    private volatile GeneXpertMapping mapping;
 
     // === Runtime State ===
     protected AtomicBoolean listening = new AtomicBoolean(false);
-    private ServerSocket serverSocket;
-    private Socket socket;
+    private GeneXpertTransport.Listener listener;
+    private volatile GeneXpertTransport connection;
     private InputStream inputStream;
     private OutputStream outputStream;
+
+    // E1381 timers of the current connection (receiving session, transmission to the analyzer);
+    // an expired timer closes the connection. Created with the first connection (see startLink)
+    private volatile GeneXpertTimerWheel.Deadline receiveTimer;
+    private volatile GeneXpertTimerWheel.Deadline sendTimer;
+
+    // Round trips of the current connection (ACK after a frame sent): they adapt the deadline of that ACK,
+    // within the E1381 value (see GeneXpertRttEstimator)
+    private volatile GeneXpertRttEstimator ackRtt;
+    private long ackWaitMs; // deadline of the last ACK wait, for logs
+    
+    // Shared port (mode "shared"): one routed connection at a time per analyzer
+    // (a permit, not a lock: a session that waits on the event loop ends on another thread)
+    private volatile GeneXpertSharedPort sharedPort;
+    private final Semaphore routedSession = new Semaphore(1);
+
+    // E1381 line of the connection: owned by the session for a transmission from the analyzer (ENQ to reply),
+    // or by a transmission to the analyzer started outside the session (LAB-28). While waiting for ENQ,
+    // the session reads the replies to that transmission and hands them over (see routeReply)
+    private final Object lineMonitor = new Object();
+    private Object lineOwner = null; // guarded by lineMonitor: null (free), INBOUND or the outbound Transmission
+    private int urgentWaiting = 0; // guarded by lineMonitor: urgent transmissions to the analyzer waiting for the line
+    private volatile boolean sessionReading = false;
+
+    // LAB-28 order queue (genexpert.orderQueueDir): one delivery task at a time, none before the retry time
+    private final AtomicBoolean delivering = new AtomicBoolean(false);
+    private volatile long deliveryNotBefore = System.nanoTime();
     
     // ASTM control characters
     private static final byte ENQ = 0x05;
     private static final byte ACK = 0x06;
     private static final byte NAK = 0x15;
     private static final byte EOT = 0x04;
+    private static final int TIMED_OUT = -2; // readAck(): no reply before the timer expired
+    private static final Object INBOUND = new Object(); // line owner: transmission from the analyzer
     private static final byte STX = 0x02;
-    private static final byte ETX = 0x03;
-    private static final byte CR = 0x0D;
-    private static final byte LF = 0x0A;
-    private static final byte ETB = 0x17; // End of Transmission Block (multi-frame continuation)
+    // ETX, ETB (multi-frame continuation), CR and LF framing bytes: see GeneXpertFrameCodec
     
     private volatile String lastReplyHeader = "";
     
+    // LAB-27 paging: bound on followed DSC pointers (page size: genexpert.queryPageSize)
+    private static final int MAX_QUERY_PAGES = 1000;
+
+    // LAB-28 order delivery: orders merged per transmission, delay before sending again after a NAK or an error
+    private static final int MAX_ORDERS_PER_TRANSMISSION = 32;
+    private static final long ORDER_RETRY_MS = 10_000L;
+    
+    // Recent wire traffic of the current session, dumped only on protocol errors or on demand
+    private static final int WIRE_TRACE_BYTES = 8192;
+    private static final Pattern FRAME_NUMBER_PREFIX = Pattern.compile("^[0-7](?=[A-Z]\\|)");
+    private final GeneXpertWireTrace wireTrace = new GeneXpertWireTrace(WIRE_TRACE_BYTES);
+    
+    // Counters and latencies published over JMX (shared per id_analyzer)
+    private volatile GeneXpertMetrics metrics;
+    
     /**
      * Default constructor.
      * <p>
@@ -221,39 +268,122 @@ public class AnalyzerGeneXpert implements Analyzer {
      */
     @Override
     public String lab27(final String msg) {
-        logger.info("Lab27 GeneXpert : Received ASTM query message\n" + msg);
+        StringBuilder reply = new StringBuilder(256);
+        boolean produced = lab27(msg, splitAstm(msg), record -> {
+            if (reply.length() > 0) reply.append('\r');
+            reply.append(record);
+        });
+        return produced ? reply.toString() : null;  // Send back ASTM response
+    }
+
+    /**
+     * Handles a LAB-27 transaction, giving the ASTM reply to {@code reply} record by record.
+     * <p>
+     * The RSP^K11 is converted segment by segment, and when LabBook pages its reply (DSC continuation
+     * pointer), each page is requested only after the records of the previous one have been given to
+     * {@code reply}: a streaming destination sends a long worklist while it is still being fetched.
+     * If a later page fails, the reply already started is ended with L|1|N.
+     *
+     * @param msg The raw ASTM message received from GeneXpert
+     * @param astmLines Records of the message
+     * @param reply Destination of the ASTM reply records
+     * @return true if a reply was produced, false on error before the first reply record
+     */
+    private boolean lab27(final String msg, final String[] astmLines, GeneXpertFrameCodec.RecordSink reply) {
+        logger.info("Lab27 GeneXpert : Received ASTM query message ({} chars)", msg.length());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Lab27 GeneXpert : ASTM query message\n{}", msg.replace("\r", "\n"));
+        }
+
+        GeneXpertMetrics m = metrics();
+        m.lab27Count.increment();
+        GeneXpertSpecimenTracker specimens = specimens();
+        if (specimens != null) specimens.recordAll(astmLines, GeneXpertSpecimenTracker.Stage.QUERIED);
+
+        // Time spent handing records to the reply (e.g. sending frames) is not conversion time
+        long[] replyNanos = new long[1];
+        GeneXpertRspReader reader = new GeneXpertRspReader(mapping(), replyHeader(), record -> {
+            long t = System.nanoTime();
+            reply.record(record);
+            replyNanos[0] += System.nanoTime() - t;
+            if (specimens != null && isRecord(record, 'O')) {
+                specimens.record(GeneXpertSpecimenTracker.specimenOf(record), GeneXpertSpecimenTracker.Stage.ORDER_SENT);
+            }
+        });
 
         try {
-            Connect_util.archiveMessage(this.getId_analyzer(), this.archive_msg, msg, "LAB-27", "Analyzer");
+            archive(msg, "LAB-27", "Analyzer");
 
-            // Parse ASTM message into lines
-            String[] astmLines = logAndSplitAstm(msg);
+            logAstm(astmLines);
 
             // Convert ASTM query to HL7 QBP^Q11
+            long convStart = System.nanoTime();
+            GeneXpertEvents.Conversion qbpEvent = new GeneXpertEvents.Conversion();
+            qbpEvent.begin();
             String qbpMsg = convertASTMQueryToQBP_Q11(astmLines);
+            qbpEvent.end();
+            long convNanos = System.nanoTime() - convStart;
+            commitConversion(qbpEvent, msg, "ASTM->QBP^Q11", qbpMsg != null);
             if (qbpMsg == null) {
                 logger.error("Lab27 GeneXpert : Failed to convert ASTM to HL7 QBP^Q11");
-                return null;
+                m.lab27Errors.increment();
+                return false;
             }
 
-            logger.info("Lab27 GeneXpert : Converted HL7 QBP^Q11\n" + qbpMsg.replace("\r", "\n"));
+            boolean processed;
+            int pages = 0;
+            while (true) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Lab27 GeneXpert : Converted HL7 QBP^Q11\n{}", qbpMsg.replace("\r", "\n"));
+                }
 
-            // Send QBP^Q11 to LabBook
-            String rspMsg = Connect_util.send_hl7_msg(this, this.url_upstream_lab27, qbpMsg);
-            logger.info("Lab27 GeneXpert : Received RSP^K11 from LabBook\n" + rspMsg.replace("\r", "\n"));
-            
-            // Convert RSP^K11 back to ASTM message for GeneXpert
-            String[] astmResponse = convertRSP_K11toASTM(rspMsg);
-            if (astmResponse == null || astmResponse.length == 0) {
-                logger.error("Lab27 GeneXpert : Failed to convert RSP^K11 to ASTM response");
-                return null;
+                // Send QBP^Q11 to LabBook
+                String rspMsg = sendUpstream("LAB-27", msg, this.url_upstream_lab27, qbpMsg, GeneXpertPriority.ROUTINE, m.lab27UpstreamRtt);
+                pages++;
+                logger.info("Lab27 GeneXpert : Received RSP^K11 from LabBook ({} chars)", (rspMsg != null) ? rspMsg.length() : 0);
+                if (rspMsg != null && logger.isDebugEnabled()) {
+                    logger.debug("Lab27 GeneXpert : RSP^K11 from LabBook\n{}", rspMsg.replace("\r", "\n"));
+                }
+
+                // Convert RSP^K11 back to ASTM records for GeneXpert
+                convStart = System.nanoTime();
+                replyNanos[0] = 0;
+                GeneXpertEvents.Conversion rspEvent = new GeneXpertEvents.Conversion();
+                rspEvent.begin();
+                processed = reader.page(rspMsg);
+                rspEvent.end();
+                convNanos += System.nanoTime() - convStart - replyNanos[0];
+                commitConversion(rspEvent, msg, "RSP^K11->ASTM", processed);
+
+                // Next page, if LabBook returned a continuation pointer
+                String pointer = reader.continuationPointer();
+                if (!processed || pointer.isEmpty()) break;
+                if (pages >= MAX_QUERY_PAGES) {
+                    logger.warn("Lab27 GeneXpert : Stopped after {} RSP^K11 pages (continuation pointer '{}')", pages, pointer);
+                    break;
+                }
+                qbpMsg = convertASTMQueryToQBP_Q11(astmLines, pointer);
+                if (qbpMsg == null) {
+                    logger.error("Lab27 GeneXpert : Failed to build HL7 QBP^Q11 for continuation pointer '{}'", pointer);
+                    processed = false;
+                    break;
+                }
             }
 
-            return String.join("\r", astmResponse);  // Send back ASTM response
+            reader.finish(processed);
+            m.lab27Conversion.recordNanos(convNanos);
+            return true;
 
         } catch (Exception e) {
             logger.error("Lab27 GeneXpert : Unexpected error: " + e.getMessage(), e);
-            return null;
+            m.lab27Errors.increment();
+            if (!reader.started()) return false;
+            try {
+                reader.finish(false);
+            } catch (IOException ignore) {
+                // transmission to the analyzer already aborted
+            }
+            return true;
         }
     }
     
@@ -263,18 +393,26 @@ public class AnalyzerGeneXpert implements Analyzer {
      * converts the message into ASTM format, and sends it to the analyzer over socket.
      * 
      * Returns an HL7 ACK^R22 to confirm whether the analyzer accepted the message (ACK) or not (NAK).
+     * When genexpert.orderQueueDir is set, the order is queued on disk instead and acknowledged at once;
+     * it is delivered when the analyzer line is free (see {@link #queueOrder}).
      *
      * @param str_OML_O33 HL7 message string in ER7 format (OML^O33)
      * @return HL7 ACK^R22 message to be returned to LabBook
      */
     @Override
     public String lab28(final String str_OML_O33) {
-        logger.info("Lab28 GeneXpert : Received message\n" + str_OML_O33.replace("\r", "\r\n"));
+        logger.info("Lab28 GeneXpert : Received message ({} chars)", str_OML_O33.length());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Lab28 GeneXpert : OML^O33 message\n{}", str_OML_O33.replace("\r", "\n"));
+        }
+
+        GeneXpertMetrics m = metrics();
+        m.lab28Count.increment();
 
         try {
-            Connect_util.archiveMessage(this.getId_analyzer(), this.archive_msg, str_OML_O33.replace("\r", "\r\n"), "LAB-28", "LIS");
+            archive(str_OML_O33.replace("\r", "\r\n"), "LAB-28", "LIS");
 
-            PipeParser parser = new PipeParser();
+            PipeParser parser = GeneXpertRuntime.get().parser();
             OML_O33 omlMessage = (OML_O33) parser.parse(str_OML_O33);
 
             // Log and check number of SPECIMEN groups
@@ -283,6 +421,7 @@ public class AnalyzerGeneXpert implements Analyzer {
 
             if (specimenCount == 0) {
                 logger.error("Lab28 GeneXpert : Error - No SPECIMEN group found in the message");
+                m.lab28Errors.increment();
                 return "ERROR Lab28 GeneXpert : No SPECIMEN group found.";
             }
 
@@ -295,23 +434,47 @@ public class AnalyzerGeneXpert implements Analyzer {
 
             if (orderCount == 0) {
                 logger.error("Lab28 GeneXpert : Error - No ORDER group found in SPECIMEN");
+                m.lab28Errors.increment();
                 return "ERROR Lab28 GeneXpert : No ORDER group found.";
             }
 
             // Proceed with conversion using the complete HL7 message
+            long convStart = System.nanoTime();
+            GeneXpertEvents.Conversion omlEvent = new GeneXpertEvents.Conversion();
+            omlEvent.begin();
             String[] astmLines = convertOML_O33ToASTM(str_OML_O33);
+            omlEvent.end();
+            m.lab28Conversion.recordNanos(System.nanoTime() - convStart);
+            commitConversion(omlEvent, str_OML_O33, "OML^O33->ASTM", !(astmLines.length == 1 && astmLines[0].startsWith("ERROR")));
             if (astmLines.length == 1 && astmLines[0].startsWith("ERROR")) {
                 logger.error("Lab28 GeneXpert : Error during conversion to ASTM : " + astmLines[0]);
+                m.lab28Errors.increment();
                 return "ERROR Lab28 GeneXpert : Invalid OML_O33 message";
             }
 
-            logger.info("Lab28 GeneXpert : Converted ASTM message\n" + String.join("\n", astmLines));
+            if (logger.isDebugEnabled()) {
+                logger.debug("Lab28 GeneXpert : Converted ASTM message\n{}", String.join("\n", astmLines));
+            }
+
+            GeneXpertSpecimenTracker specimens = specimens();
+            if (specimens != null) specimens.recordAll(astmLines, GeneXpertSpecimenTracker.Stage.ORDER_RECEIVED);
+
+            GeneXpertPriority priority = GeneXpertPriority.ofHl7(str_OML_O33);
+            if (priority.urgent()) m.urgentMessages.increment();
+
+            GeneXpertOrderQueue queue = orderQueue();
+            if (queue != null) {
+                return queueOrder(queue, str_OML_O33, omlMessage.getMSH().getMessageControlID().getValue(), priority, astmLines);
+            }
 
-            String result = sendASTMMessage(astmLines);
+            String result = sendASTMMessage(astmLines, priority);
 
             String ackCode = "AA"; // Default HL7 ACK = accepted
             if (!"ACK".equals(result)) {
                 ackCode = "AE"; // Application Error if analyzer rejected the message
+                m.lab28Errors.increment();
+            } else if (specimens != null) {
+                specimens.recordAll(astmLines, GeneXpertSpecimenTracker.Stage.ORDER_DELIVERED);
             }
 
             String hl7Ack = generateAckR22(str_OML_O33, ackCode);
@@ -320,74 +483,446 @@ public class AnalyzerGeneXpert implements Analyzer {
                 return hl7Ack;
             } else {
                 logger.error("Lab28 GeneXpert : Failed to generate HL7 ACK^R22");
+                m.lab28Errors.increment();
                 return "ERROR Lab28 GeneXpert : Failed to generate HL7 ACK";
             }
 
         } catch (HL7Exception e) {
             logger.error("Lab28 GeneXpert : HL7Exception while processing OML^O33 - " + e.getMessage());
+            m.lab28Errors.increment();
             return "ERROR Lab28 GeneXpert : Failed to process OML^O33 message";
         } catch (Exception e) {
             logger.error("Lab28 GeneXpert : Unexpected exception - " + e.getMessage(), e);
+            m.lab28Errors.increment();
             return "ERROR Lab28 GeneXpert : Unexpected error occurred";
         }
     }
 
+    /**
+     * Queues a converted LAB-28 order for delivery and answers LabBook at once (see {@link GeneXpertOrderQueue}).
+     * <p>
+     * MSA-1 is AA if the order is queued or delivered, AE if it could not be queued or was rejected by
+     * the analyzer, and MSA-3 gives the delivery status. An OML^O33 sent again (same MSH-10) is not
+     * queued twice: its reply gives the current status of the order.
+     *
+     * @param queue Order queue of this analyzer
+     * @param oml OML^O33 message
+     * @param controlId MSH-10 of the message
+     * @param priority Order priority (urgent orders are delivered first)
+     * @param astmLines Converted ASTM records
+     * @return HL7 ACK^R22 message to be returned to LabBook
+     */
+    private String queueOrder(GeneXpertOrderQueue queue, String oml, String controlId, GeneXpertPriority priority, String[] astmLines) {
+        GeneXpertMetrics m = metrics();
+        GeneXpertOrderQueue.Status status;
+        try {
+            status = queue.submit(controlId, priority, astmLines);
+        } catch (IOException e) {
+            logger.error("Lab28 GeneXpert : Order {} could not be queued - {}", controlId, e.getMessage());
+            m.lab28Errors.increment();
+            return lab28Ack(oml, "AE", "Not queued: " + e.getMessage());
+        }
+
+        if (status == null) {
+            int pending = queue.pending();
+            m.lab28Queued.increment();
+            m.pendingOrders = pending;
+            logger.info("Lab28 GeneXpert : Order {} ({}) queued for analyzer {} ({} pending)", controlId, priority, this.id_analyzer, pending);
+            scheduleOrderDelivery();
+            status = GeneXpertOrderQueue.Status.PENDING;
+        } else {
+            logger.info("Lab28 GeneXpert : Order {} sent again by LabBook, status {}", controlId, status);
+        }
+
+        switch (status) {
+        case DELIVERED:
+            return lab28Ack(oml, "AA", "Delivered to analyzer");
+        case FAILED:
+            m.lab28Errors.increment();
+            return lab28Ack(oml, "AE", "Rejected by analyzer");
+        default:
+            return lab28Ack(oml, "AA", "Queued for analyzer");
+        }
+    }
+
+    private String lab28Ack(String oml, String ackCode, String text) {
+        String hl7Ack = generateAckR22(oml, ackCode, text);
+        if (hl7Ack == null) {
+            logger.error("Lab28 GeneXpert : Failed to generate HL7 ACK^R22");
+            metrics().lab28Errors.increment();
+            return "ERROR Lab28 GeneXpert : Failed to generate HL7 ACK";
+        }
+        return hl7Ack;
+    }
+
     /**
      * Handles a LAB-29 transaction (ASTM results from analyzer).
      * Parses ASTM result lines into HL7 OUL^R22, forwards to LabBook,
      * receives HL7 ACK, and returns an ASTM L|1|Y or L|1|N acknowledgement.
+     * Results already accepted by LabBook (resent by the analyzer) are acknowledged with L|1|Y
+     * without being forwarded again (see {@link GeneXpertDedupIndex}).
      *
      * @param msg ASTM message sent by GeneXpert (results)
      * @return Minimal ASTM ACK segment or fallback error response
      */
     @Override
     public String lab29(final String msg) {
-        logger.info("Lab29 GeneXpert : Received ASTM message\n" + msg);
+        return lab29(msg, splitAstm(msg));
+    }
 
-        try {
-            Connect_util.archiveMessage(this.getId_analyzer(), this.archive_msg, msg, "LAB-29", "Analyzer");
+    /**
+     * Handles a LAB-29 transaction whose records are already split (e.g. read from the receive buffer).
+     *
+     * @param msg ASTM message sent by GeneXpert (results)
+     * @param astmLines Records of the message
+     * @return Minimal ASTM ACK segment or fallback error response
+     */
+    private String lab29(final String msg, final String[] astmLines) {
+        logger.info("Lab29 GeneXpert : Received ASTM message ({} chars)", msg.length());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Lab29 GeneXpert : ASTM message\n{}", msg.replace("\r", "\n"));
+        }
 
-            // Split the ASTM message into individual lines
-            String[] astmLines = logAndSplitAstm(msg);
+        GeneXpertMetrics m = metrics();
+        m.lab29Count.increment();
+        GeneXpertSpecimenTracker specimens = specimens();
+        if (specimens != null) specimens.recordAll(astmLines, GeneXpertSpecimenTracker.Stage.RESULT_RECEIVED);
+
+        try {
+            archive(msg, "LAB-29", "Analyzer");
+
+            logAstm(astmLines);
+
+            // One OUL^R22 per patient when the upload holds several, sent concurrently (genexpert.lab29FanOut)
+            GeneXpertRuntime runtime = GeneXpertRuntime.get();
+            List<String[]> blocks = (runtime.lab29FanOut() > 0) ? splitByPatient(astmLines) : Collections.singletonList(astmLines);
+
+            // Results already accepted by LabBook (resent by the analyzer) are not sent again
+            GeneXpertDedupIndex dedup = runtime.dedup();
+            List<String[]> pending = new ArrayList<>(blocks.size());
+            List<long[]> pendingKeys = new ArrayList<>(blocks.size());
+            for (String[] block : blocks) {
+                long[] keys = dedup.enabled() ? GeneXpertDedupIndex.resultKeys(this.id_analyzer, block) : null;
+                if (keys != null && dedup.containsAll(keys)) continue;
+                pending.add(block);
+                pendingKeys.add(keys);
+            }
+            if (pending.isEmpty()) {
+                logger.info("Lab29 GeneXpert : results already accepted by LabBook, acknowledged without resending");
+                m.lab29Duplicates.increment();
+                trackResults(specimens, astmLines, "L|1|Y");
+                return "L|1|Y";
+            }
+            if (pending.size() < blocks.size()) {
+                logger.info("Lab29 GeneXpert : {} of {} patients already accepted by LabBook, not sent again",
+                        blocks.size() - pending.size(), blocks.size());
+            }
 
             // Convert ASTM to HL7 OUL^R22
-            String hl7Message = convertASTMtoOUL_R22(astmLines);
-            if (hl7Message == null || hl7Message.isEmpty()) {
+            long convStart = System.nanoTime();
+            GeneXpertEvents.Conversion oulEvent = new GeneXpertEvents.Conversion();
+            oulEvent.begin();
+            String[] hl7Messages = new String[pending.size()];
+            boolean converted = true;
+            for (int i = 0; i < hl7Messages.length && converted; i++) {
+                hl7Messages[i] = convertASTMtoOUL_R22(pending.get(i));
+                converted = hl7Messages[i] != null && !hl7Messages[i].isEmpty();
+            }
+            oulEvent.end();
+            m.lab29Conversion.recordNanos(System.nanoTime() - convStart);
+            commitConversion(oulEvent, msg, "ASTM->OUL^R22", converted);
+            if (!converted) {
                 logger.error("Lab29 GeneXpert : Error during conversion to HL7 OUL^R22.");
+                m.lab29Errors.increment();
                 return "L|1|N"; // ASTM error response
             }
 
-            logger.info("Lab29 GeneXpert : Converted HL7 OUL^R22:\n" + hl7Message.replace("\r", "\n"));
+            // Send the HL7 messages to LabBook; L|1|Y only if LabBook accepted all of them
+            String astmAck;
+            if (hl7Messages.length == 1) {
+                astmAck = sendResults(msg, hl7Messages[0], pendingKeys.get(0), GeneXpertPriority.ofAstm(pending.get(0)), m);
+                trackResults(specimens, pending.get(0), astmAck);
+            } else {
+                List<Callable<String>> uploads = new ArrayList<>(hl7Messages.length);
+                for (int i = 0; i < hl7Messages.length; i++) {
+                    String hl7Message = hl7Messages[i];
+                    String[] block = pending.get(i);
+                    long[] keys = pendingKeys.get(i);
+                    uploads.add(() -> {
+                        String ack;
+                        try {
+                            ack = sendResults(hl7Message, hl7Message, keys, GeneXpertPriority.ofAstm(block), m);
+                        } catch (Exception e) {
+                            logger.error("Lab29 GeneXpert : upstream request failed - " + e.getMessage(), e);
+                            ack = "L|1|N";
+                        }
+                        trackResults(specimens, block, ack);
+                        return ack;
+                    });
+                }
+                List<String> acks = runtime.fanOut(uploads, runtime.lab29FanOut());
+                long accepted = acks.stream().filter("L|1|Y"::equals).count();
+                logger.info("Lab29 GeneXpert : {} of {} OUL^R22 accepted by LabBook", accepted, acks.size());
+                astmAck = (accepted == acks.size()) ? "L|1|Y" : "L|1|N";
+            }
+            if (!"L|1|Y".equals(astmAck)) {
+                m.lab29Errors.increment();
+            }
 
-            // Send HL7 message to LabBook and get the HL7 ACK response
-            String hl7Ack = Connect_util.send_hl7_msg(this, this.url_upstream_lab29, hl7Message);
+            return astmAck;
 
-            if (hl7Ack == null || !hl7Ack.startsWith("MSH|")) {
-                logger.error("Lab29 GeneXpert : upstream returned non-HL7 or null; returning ASTM NACK. First 80 chars: {}",
-                             hl7Ack != null ? hl7Ack.substring(0, Math.min(80, hl7Ack.length())) : "null");
-                return "L|1|N";
+        } catch (Exception e) {
+            logger.error("Lab29 GeneXpert : Unexpected error - " + e.getMessage(), e);
+            m.lab29Errors.increment();
+            return "L|1|N"; // ASTM fallback error response
+        }
+    }
+
+    /**
+     * Handles a LAB-29 upload spilled to the memory-mapped file of the receive buffer, one patient at a time:
+     * the records of a patient, with the header and terminator records as in {@link #splitByPatient}, are read
+     * from the file, archived, checked against the dedup index, converted and sent to LabBook before the next
+     * patient is read. Patients are sent in order ({@code genexpert.lab29FanOut} does not apply).
+     *
+     * @param rx Receive buffer holding the spilled upload
+     * @return L|1|Y if LabBook accepted (or had already accepted) the results of every patient, L|1|N otherwise
+     */
+    private String lab29(GeneXpertReceiveBuffer rx) {
+        logger.info("Lab29 GeneXpert : Received ASTM message ({} bytes), read from its spill file one patient at a time", rx.length());
+
+        GeneXpertMetrics m = metrics();
+        m.lab29Count.increment();
+
+        // First pass: header (before the first P) and trailer (from the terminator after the patients)
+        List<String> header = new ArrayList<>();
+        List<String> trailer = new ArrayList<>();
+        int total = 0;
+        boolean patients = false;
+        for (String record : rx.eachRecord()) {
+            char type = recordType(record);
+            if (!trailer.isEmpty() || (patients && type == 'L')) {
+                trailer.add(record);
+            } else if (type == 'P') {
+                patients = true;
+            } else if (!patients) {
+                header.add(record);
+            }
+            total++;
+        }
+
+        // Second pass: one block per patient
+        int blocks = 0;
+        int accepted = 0;
+        int duplicates = 0;
+        List<String> block = new ArrayList<>(header);
+        int i = 0;
+        for (String record : rx.eachRecord()) {
+            if (i >= header.size() && i < total - trailer.size()) {
+                if (recordType(record) == 'P' && block.size() > header.size()) {
+                    String ack = lab29Patient(concat(block, trailer), m);
+                    blocks++;
+                    if (ack == null) duplicates++;
+                    else if ("L|1|Y".equals(ack)) accepted++;
+                    block.subList(header.size(), block.size()).clear();
+                }
+                block.add(record);
+            }
+            i++;
+        }
+        String ack = lab29Patient(concat(block, trailer), m);
+        blocks++;
+        if (ack == null) duplicates++;
+        else if ("L|1|Y".equals(ack)) accepted++;
+
+        if (duplicates == blocks) {
+            logger.info("Lab29 GeneXpert : results already accepted by LabBook, acknowledged without resending");
+            m.lab29Duplicates.increment();
+            return "L|1|Y";
+        }
+        logger.info("Lab29 GeneXpert : {} of {} patients accepted by LabBook ({} already accepted)",
+                accepted, blocks - duplicates, duplicates);
+        if (accepted + duplicates < blocks) {
+            m.lab29Errors.increment();
+            return "L|1|N";
+        }
+        return "L|1|Y";
+    }
+
+    private static String[] concat(List<String> records, List<String> trailer) {
+        String[] all = new String[records.size() + trailer.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (i < records.size()) ? records.get(i) : trailer.get(i - records.size());
+        }
+        return all;
+    }
+
+    /**
+     * Handles the results of one patient of a spilled LAB-29 upload (see {@link #lab29(GeneXpertReceiveBuffer)}).
+     *
+     * @param block Header, patient and terminator records
+     * @return L|1|Y if LabBook accepted the results, L|1|N otherwise, null if they were already accepted
+     */
+    private String lab29Patient(String[] block, GeneXpertMetrics m) {
+        GeneXpertSpecimenTracker specimens = specimens();
+        if (specimens != null) specimens.recordAll(block, GeneXpertSpecimenTracker.Stage.RESULT_RECEIVED);
+        String msg = String.join("\r", block);
+        try {
+            archive(msg, "LAB-29", "Analyzer");
+
+            logAstm(block);
+
+            GeneXpertDedupIndex dedup = GeneXpertRuntime.get().dedup();
+            long[] keys = dedup.enabled() ? GeneXpertDedupIndex.resultKeys(this.id_analyzer, block) : null;
+            if (keys != null && dedup.containsAll(keys)) {
+                trackResults(specimens, block, "L|1|Y");
+                return null;
             }
-            logger.info("Lab29 GeneXpert : HL7 ACK from LabBook:\n" + hl7Ack.replace("\r", "\n"));
 
-            // Convert HL7 ACK back to a minimal ASTM acknowledgment
-            String astmAck = convertACKtoASTM(hl7Ack);
-            logger.info("Lab29 GeneXpert : Converted ASTM ACK to return:\n" + astmAck);
+            long convStart = System.nanoTime();
+            GeneXpertEvents.Conversion oulEvent = new GeneXpertEvents.Conversion();
+            oulEvent.begin();
+            String hl7Message = convertASTMtoOUL_R22(block);
+            oulEvent.end();
+            m.lab29Conversion.recordNanos(System.nanoTime() - convStart);
+            boolean converted = hl7Message != null && !hl7Message.isEmpty();
+            commitConversion(oulEvent, msg, "ASTM->OUL^R22", converted);
+            if (!converted) {
+                logger.error("Lab29 GeneXpert : Error during conversion to HL7 OUL^R22.");
+                return "L|1|N";
+            }
 
+            String astmAck = sendResults(msg, hl7Message, keys, GeneXpertPriority.ofAstm(block), m);
+            trackResults(specimens, block, astmAck);
             return astmAck;
 
         } catch (Exception e) {
             logger.error("Lab29 GeneXpert : Unexpected error - " + e.getMessage(), e);
-            return "L|1|N"; // ASTM fallback error response
+            return "L|1|N";
         }
     }
-    
+
+    /**
+     * Sends one OUL^R22 to LabBook and converts its acknowledgement; accepted results are added to
+     * the dedup index.
+     *
+     * @param source Message the OUL^R22 was built from (ASTM upload or the OUL^R22 itself, for events)
+     * @param hl7Message OUL^R22 to send
+     * @param keys Dedup keys of its results (null if the index is disabled)
+     * @param priority Priority of the results (urgent ones get the next upstream slot)
+     * @param m Metrics of the analyzer
+     * @return L|1|Y if LabBook accepted the message, L|1|N otherwise
+     */
+    private String sendResults(String source, String hl7Message, long[] keys, GeneXpertPriority priority, GeneXpertMetrics m) throws Exception {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Lab29 GeneXpert : Converted HL7 OUL^R22:\n{}", hl7Message.replace("\r", "\n"));
+        }
+
+        // Send HL7 message to LabBook and get the HL7 ACK response
+        String hl7Ack = sendUpstream("LAB-29", source, this.url_upstream_lab29, hl7Message, priority, m.lab29UpstreamRtt);
+
+        if (hl7Ack == null || !hl7Ack.startsWith("MSH|")) {
+            logger.error("Lab29 GeneXpert : upstream returned non-HL7 or null; returning ASTM NACK. First 80 chars: {}",
+                         hl7Ack != null ? hl7Ack.substring(0, Math.min(80, hl7Ack.length())) : "null");
+            return "L|1|N";
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Lab29 GeneXpert : HL7 ACK from LabBook:\n{}", hl7Ack.replace("\r", "\n"));
+        }
+
+        // Convert HL7 ACK back to a minimal ASTM acknowledgment
+        String astmAck = convertACKtoASTM(hl7Ack);
+        logger.info("Lab29 GeneXpert : Converted ASTM ACK to return: {}", astmAck);
+        if ("L|1|Y".equals(astmAck) && keys != null) {
+            GeneXpertRuntime.get().dedup().addAll(keys);
+        }
+        return astmAck;
+    }
+
+    /** Records the reply of LabBook to the results of some specimens (see {@link GeneXpertSpecimenTracker}). */
+    private static void trackResults(GeneXpertSpecimenTracker specimens, String[] records, String astmAck) {
+        if (specimens == null) return;
+        specimens.recordAll(records, "L|1|Y".equals(astmAck)
+                ? GeneXpertSpecimenTracker.Stage.RESULT_ACCEPTED : GeneXpertSpecimenTracker.Stage.RESULT_REJECTED);
+    }
+
+    /**
+     * Splits LAB-29 records into one block per patient: each block holds the records before the first
+     * P (header), one P with its O/R/C records, and the terminator (L) if any.
+     *
+     * @param lines ASTM records of the upload (frame number prefixes allowed)
+     * @return One block per patient, or the records unchanged (one block) if they hold fewer than two patients
+     */
+    static List<String[]> splitByPatient(String[] lines) {
+        List<Integer> patients = new ArrayList<>();
+        int terminator = lines.length;
+        for (int i = 0; i < lines.length; i++) {
+            char type = recordType(lines[i]);
+            if (type == 'P' && terminator == lines.length) {
+                patients.add(i);
+            } else if (type == 'L' && !patients.isEmpty() && terminator == lines.length) {
+                terminator = i;
+            }
+        }
+        if (patients.size() < 2) return Collections.singletonList(lines);
+
+        int header = patients.get(0);
+        int trailer = lines.length - terminator;
+        List<String[]> blocks = new ArrayList<>(patients.size());
+        for (int k = 0; k < patients.size(); k++) {
+            int from = patients.get(k);
+            int to = (k + 1 < patients.size()) ? patients.get(k + 1) : terminator;
+            String[] block = new String[header + (to - from) + trailer];
+            System.arraycopy(lines, 0, block, 0, header);
+            System.arraycopy(lines, from, block, header, to - from);
+            System.arraycopy(lines, terminator, block, header + (to - from), trailer);
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    /**
+     * First record of a spilled message of one of two types (e.g. the O or Q record carrying the specimen ID).
+     *
+     * @return The record, or null if there is none
+     */
+    private static String firstRecord(GeneXpertReceiveBuffer rx, char type, char otherType) {
+        for (String record : rx.eachRecord()) {
+            char t = recordType(record);
+            if (t == type || t == otherType) return record;
+        }
+        return null;
+    }
+
+    /**
+     * Record type of an ASTM record (H, P, O, R, C, Q, L...), ignoring a frame number prefix; 0 if none.
+     */
+    private static char recordType(String record) {
+        if (record == null || record.isEmpty()) return 0;
+        int p = (record.length() > 2 && record.charAt(0) >= '0' && record.charAt(0) <= '7' && record.charAt(2) == '|') ? 1 : 0;
+        return (record.length() > p + 1 && record.charAt(p + 1) == '|') ? record.charAt(p) : 0;
+    }
+
     // === Conversions HL7 <=> ASTM ===
     
     private String[] stripASTMPrefixNumbers(String[] lines) {
         return Arrays.stream(lines)
-            .map(line -> line.replaceFirst("^[0-7](?=[A-Z]\\|)", ""))
+            .map(AnalyzerGeneXpert::stripASTMPrefixNumber)
             .toArray(String[]::new);
     }
+
+    private static String stripASTMPrefixNumber(String line) {
+        return FRAME_NUMBER_PREFIX.matcher(line).replaceFirst("");
+    }
+
+    /**
+     * true if the record, once its frame number prefix is stripped, is of the given type
+     * (first field equal to the type letter, as in the conversions).
+     */
+    private static boolean isRecord(String line, char type) {
+        int p = (line.length() > 2 && line.charAt(0) >= '0' && line.charAt(0) <= '7'
+                && line.charAt(1) >= 'A' && line.charAt(1) <= 'Z' && line.charAt(2) == '|') ? 1 : 0;
+        return line.length() > p && line.charAt(p) == type && (line.length() == p + 1 || line.charAt(p + 1) == '|');
+    }
     
     /**
      * Converts an HL7 OML^O33 order message into a set of ASTM lines compatible with GeneXpert.
@@ -400,10 +935,10 @@ public class AnalyzerGeneXpert implements Analyzer {
      */
     public String[] convertOML_O33ToASTM(String oml) {
         List<String> lines = new ArrayList<>();
-        String now = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+        String now = GeneXpertClock.timestamp();
 
         try {
-            PipeParser parser = new PipeParser();
+            PipeParser parser = GeneXpertRuntime.get().parser();
             OML_O33 message = (OML_O33) parser.parse(oml);
 
             PID pid = message.getPATIENT().getPID();
@@ -509,14 +1044,27 @@ public class AnalyzerGeneXpert implements Analyzer {
      * @return The generated HL7 ACK^R22 message in ER7 format, or null if generation failed
      */
     public String generateAckR22(String originalOML, String ackCode) {
+        return generateAckR22(originalOML, ackCode, null);
+    }
+
+    /**
+     * Generates an HL7 ACK^R22 message with a text message (MSA-3).
+     *
+     * @param originalOML The original HL7 OML^O33 message string
+     * @param ackCode The acknowledgment code to return: "AA" (Accept) or "AE" (Error)
+     * @param text MSA-3 text, or null for none
+     * @return The generated HL7 ACK^R22 message in ER7 format, or null if generation failed
+     */
+    String generateAckR22(String originalOML, String ackCode, String text) {
         try {
-            PipeParser parser = new PipeParser();
+            PipeParser parser = GeneXpertRuntime.get().parser();
             OML_O33 originalMsg = (OML_O33) parser.parse(originalOML);
 
             ACK ack = new ACK();
+            ack.setParser(parser);
             ack.initQuickstart("ACK", "R22", "P");
 
-            ack.getMSH().getDateTimeOfMessage().getTime().setValue(new SimpleDateFormat("yyyyMMddHHmmss").format(new Date()));
+            ack.getMSH().getDateTimeOfMessage().getTime().setValue(GeneXpertClock.timestamp());
             ack.getMSH().getMessageControlID().setValue(originalMsg.getMSH().getMessageControlID().getValue());
             ack.getMSH().getSendingApplication().parse("GeneXpert");
             ack.getMSH().getSendingFacility().parse("Analyzer");
@@ -525,6 +1073,7 @@ public class AnalyzerGeneXpert implements Analyzer {
 
             ack.getMSA().getAcknowledgmentCode().setValue(ackCode); // "AA" or "AE"
             ack.getMSA().getMessageControlID().setValue(originalMsg.getMSH().getMessageControlID().getValue());
+            if (text != null) ack.getMSA().getTextMessage().setValue(text);
 
             return parser.encode(ack);
         } catch (Exception e) {
@@ -540,7 +1089,7 @@ public class AnalyzerGeneXpert implements Analyzer {
      */
     public String convertASTMtoOUL_R22(String[] lines) {
         try {
-            lines = stripASTMPrefixNumbers(lines);
+            GeneXpertMapping mapping = mapping();
 
             StringBuilder hl7 = new StringBuilder();
 
@@ -549,8 +1098,8 @@ public class AnalyzerGeneXpert implements Analyzer {
             String sendingFacility = "Analyzer";
             String receivingApp = "LabBook";
             String receivingFacility = "LIS";
-            String datetime = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
-            String controlId = "MSG" + System.currentTimeMillis();
+            String datetime = GeneXpertClock.timestamp();
+            String controlId = GeneXpertClock.nextControlId();
 
             hl7.append("MSH|^~\\&|")
                 .append(sendingApp).append("|")
@@ -560,255 +1109,331 @@ public class AnalyzerGeneXpert implements Analyzer {
                 .append(datetime).append("||")
                 .append("OUL^R22|").append(controlId).append("|P|2.5.1\r");
 
-            String patientId = null;
-            String specimenId = null;
-            int obxIndex = 1;
-
-            // Mapping context for the current order (O) to map subsequent results (R)
-            String currentTestName = "";
-            String currentLisTestCode = "";
-
-            for (String line : lines) {
-                String[] fields = line.split("\\|", -1);
+            // Large uploads: blocks of patients converted in parallel (genexpert.convertParallelism)
+            GeneXpertRuntime runtime = GeneXpertRuntime.get();
+            int patients = 0;
+            if (runtime.convertParallelism() > 1) {
+                for (String line : lines) {
+                    if (isRecord(line, 'P')) patients++;
+                }
+            }
+            if (patients >= runtime.convertParallelPatients() && patients > 1) {
+                ConvertBlocks blocks = new ConvertBlocks(lines, patients, mapping, runtime.convertParallelism());
+                runtime.converters().invoke(blocks);
+                blocks.appendTo(hl7);
+            } else {
+                appendResultSegments(hl7, lines, 0, lines.length, mapping, 1, null);
+            }
 
-                switch (fields[0]) {
-                case "P":
-                    patientId = (fields.length > 2) ? fields[2] : null;
-                    hl7.append("PID|||").append(patientId != null ? patientId : "")
-                       .append("||").append("\r");
-                    break;
+            return hl7.toString();
 
-                case "O":
-                    // O: order/specimen identifier from ASTM
-                    specimenId = (fields.length > 2 && fields[2] != null) ? fields[2].trim() : "";
-                    logger.info("convertASTMtoOUL_R22: specimenId from ASTM O segment = '{}'", specimenId);
-
-                    // Resolve test from mapping using O|5 (fields[4]) vendor test code
-                    String vendorTestCode = "";
-                    if (fields.length > 4 && fields[4] != null) {
-                        String[] comps = fields[4].split("\\^", -1);
-                        for (int i = comps.length - 1; i >= 0; i--) {
-                            String s = (comps[i] == null) ? "" : comps[i].trim();
-                            if (!s.isEmpty()) {
-                                vendorTestCode = s;
-                                break;
-                            }
-                        }
-                    }
+        } catch (Exception e) {
+            logger.error("GeneXpert: Failed to convert ASTM to HL7 OUL_R22", e);
+            return null;
+        }
+    }
 
-                    currentTestName = "";
-                    currentLisTestCode = "";
-                    List<Toml> tests = mappingToml.getTables("ivd_test");
-                    if (tests != null && !vendorTestCode.isEmpty()) {
-                        for (Toml t : tests) {
-                            String v = t.getString("vendor_test_code");
-                            if (v != null && v.trim().equals(vendorTestCode)) {
-                                String n = t.getString("name");
-                                String lis = t.getString("lis_test_code");
-                                currentTestName = (n == null) ? "" : n.trim();
-                                currentLisTestCode = (lis == null) ? "" : lis.trim();
-                                break;
-                            }
-                        }
-                    }
+    /**
+     * Appends the PID, SPM, ORC, OBR, OBX and NTE segments of a range of LAB-29 records.
+     * The range may start anywhere in the upload: the caller gives the state reached at its start.
+     *
+     * @param hl7 OUL^R22 being built
+     * @param lines ASTM records of the upload (frame number prefixes allowed)
+     * @param from First record of the range
+     * @param to End of the range (exclusive)
+     * @param mapping Mapping of the analyzer
+     * @param obxIndex Set ID of the first OBX of the range (1 + number of R records before it)
+     * @param order Last O record before the range, or null; its test maps the R records before the first O of the range
+     */
+    private void appendResultSegments(StringBuilder hl7, String[] lines, int from, int to, GeneXpertMapping mapping,
+            int obxIndex, String order) {
+        String patientId = null;
+        String specimenId = null;
+
+        // Mapping context for the current order (O) to map subsequent results (R)
+        String currentTestName = "";
+        String currentLisTestCode = "";
+        if (order != null) {
+            GeneXpertMapping.Test test = mapping.findTestByVendorCode(vendorTestCodeOf(stripASTMPrefixNumber(order).split("\\|", -1)));
+            currentTestName = (test != null) ? test.name : "";
+        }
 
-                    // SPM must carry the specimen ID in SPM-2 so LabBook can resolve the sample
-                    hl7.append("SPM|1|")
-                       .append(specimenId)
-                       .append("\r");
-
-                    // ORC with placer order number = specimenId
-                    hl7.append("ORC|RE|")
-                       .append(specimenId)
-                       .append("\r");
-
-                    // OBR with same placer order number; test code from mapping if found, otherwise from O|5
-                    hl7.append("OBR|1|")
-                       .append(specimenId)
-                       .append("||");
-                    if (!currentLisTestCode.isEmpty()) {
-                        hl7.append("^^^").append(currentLisTestCode);
-                    } else if (fields.length > 4 && fields[4] != null) {
-                        hl7.append(fields[4]); // ^^^code^text^ver
-                    }
-                    hl7.append("\r");
-                    break;
+        for (int l = from; l < to; l++) {
+            String[] fields = stripASTMPrefixNumber(lines[l]).split("\\|", -1);
 
-                case "R":
-                    // ASTM R fields:
-                    // 0: "R"
-                    // 1: sequence
-                    // 2: test id (maps to OBX-3)
-                    // 3: result value (may start with '^')
-                    // 4: units
-                    // 5: reference range
-                    // 6: abnormal flags (ignored)
-                    // 7: nature of abnormal test (ignored)
-                    // 8: status (F, P, etc.)
-
-                	String vendorResultCode = (fields.length > 2 && fields[2] != null) ? fields[2].trim() : "";
-
-                    String lisResultCode = "";
-                    String lisUnit = "";
-                    String convert = "none";
-                    double factor = 0.0;
-
-                    List<Toml> maps = mappingToml.getTables("ivd_mapping");
-                    if (maps != null && !currentTestName.isEmpty() && !vendorResultCode.isEmpty()) {
-                        for (Toml m : maps) {
-                            String t = m.getString("test");
-                            String vrc = m.getString("vendor_result_code");
-                            if (t != null && vrc != null
-                                    && t.trim().equals(currentTestName)
-                                    && vrc.trim().equals(vendorResultCode)) {
-
-                                String lrc = m.getString("lis_result_code");
-                                lisResultCode = (lrc == null) ? "" : lrc.trim();
-
-                                String lu = m.getString("lis_unit");
-                                lisUnit = (lu == null) ? "" : lu.trim();
-
-                                String cv = m.getString("convert");
-                                convert = (cv == null) ? "none" : cv.trim();
-
-                                factor = 0.0;
-                                try {
-                                    Object factorObj = m.toMap().get("factor");
-                                    if (factorObj instanceof Number) {
-                                        factor = ((Number) factorObj).doubleValue();
-                                    } else if (factorObj instanceof String) {
-                                        String s = ((String) factorObj).trim();
-                                        if (!s.isEmpty()) {
-                                            factor = Double.parseDouble(s.replace(",", "."));
-                                        }
-                                    }
-                                } catch (Exception ignore) {
-                                    factor = 0.0;
-                                }
+            switch (fields[0]) {
+            case "P":
+                patientId = (fields.length > 2) ? fields[2] : null;
+                hl7.append("PID|||").append(patientId != null ? patientId : "")
+                   .append("||").append("\r");
+                break;
 
-                                break;
-                            }
-                        }
-                    }
+            case "O":
+                // O: order/specimen identifier from ASTM
+                specimenId = (fields.length > 2 && fields[2] != null) ? fields[2].trim() : "";
+                logger.debug("convertASTMtoOUL_R22: specimenId from ASTM O segment = '{}'", specimenId);
+
+                // Resolve test from mapping using O|5 (fields[4]) vendor test code
+                String vendorTestCode = vendorTestCodeOf(fields);
+
+                GeneXpertMapping.Test test = mapping.findTestByVendorCode(vendorTestCode);
+                currentTestName = (test != null) ? test.name : "";
+                currentLisTestCode = (test != null) ? test.lisTestCode : "";
+
+                // SPM must carry the specimen ID in SPM-2 so LabBook can resolve the sample
+                hl7.append("SPM|1|")
+                   .append(specimenId)
+                   .append("\r");
+
+                // ORC with placer order number = specimenId
+                hl7.append("ORC|RE|")
+                   .append(specimenId)
+                   .append("\r");
+
+                // OBR with same placer order number; test code from mapping if found, otherwise from O|5
+                hl7.append("OBR|1|")
+                   .append(specimenId)
+                   .append("||");
+                if (!currentLisTestCode.isEmpty()) {
+                    hl7.append("^^^").append(currentLisTestCode);
+                } else if (fields.length > 4 && fields[4] != null) {
+                    hl7.append(fields[4]); // ^^^code^text^ver
+                }
+                hl7.append("\r");
+                break;
 
-                    hl7.append("OBX|").append(obxIndex).append("|TX|");
-                    if (!lisResultCode.isEmpty()) {
-                        hl7.append(lisResultCode);
-                    } else if (fields.length > 2) {
-                        hl7.append(fields[2]); // OBX-3 (fallback)
-                    }
-                    hl7.append("||"); // OBX-4 empty
-
-                    // OBX-5: value
-                    String value = "";
-                    if (fields.length > 3 && fields[3] != null) {
-                        String raw = fields[3];
-                        String[] comps = raw.split("\\^", -1);
-                        for (String c : comps) {
-                            if (c != null && !c.isEmpty()) {
-                                value = c;
-                                break;
-                            }
+            case "R":
+                // ASTM R fields:
+                // 0: "R"
+                // 1: sequence
+                // 2: test id (maps to OBX-3)
+                // 3: result value (may start with '^')
+                // 4: units
+                // 5: reference range
+                // 6: abnormal flags (ignored)
+                // 7: nature of abnormal test (ignored)
+                // 8: status (F, P, etc.)
+
+            	String vendorResultCode = (fields.length > 2 && fields[2] != null) ? fields[2].trim() : "";
+
+                GeneXpertMapping.Result mapped = mapping.findResult(currentTestName, vendorResultCode);
+                String lisResultCode = mapped.lisResultCode;
+                String lisUnit = mapped.lisUnit;
+                String convert = mapped.convert;
+                double factor = mapped.factor;
+
+                hl7.append("OBX|").append(obxIndex).append("|TX|");
+                if (!lisResultCode.isEmpty()) {
+                    hl7.append(lisResultCode);
+                } else if (fields.length > 2) {
+                    hl7.append(fields[2]); // OBX-3 (fallback)
+                }
+                hl7.append("||"); // OBX-4 empty
+
+                // OBX-5: value
+                String value = "";
+                if (fields.length > 3 && fields[3] != null) {
+                    String raw = fields[3];
+                    String[] comps = raw.split("\\^", -1);
+                    for (String c : comps) {
+                        if (c != null && !c.isEmpty()) {
+                            value = c;
+                            break;
                         }
                     }
-                    value = value.trim();
-
-                    // OBX-6: units
-                    String units = "";
-                    if (fields.length > 4 && fields[4] != null) {
-                        units = fields[4].trim();
-                    }
+                }
+                value = value.trim();
 
-                    // Override units from mapping if provided
-                    if (!lisUnit.isEmpty()) {
-                        units = lisUnit;
-                    }
+                // OBX-6: units
+                String units = "";
+                if (fields.length > 4 && fields[4] != null) {
+                    units = fields[4].trim();
+                }
 
-                    // Apply conversion if configured and value is numeric
-                    if (value != null) {
-                        String vtrim = value.trim();
-                        if (!vtrim.isEmpty() && !"none".equalsIgnoreCase(convert)) {
-                            try {
-                                double num = Double.parseDouble(vtrim.replace(",", "."));
+                // Override units from mapping if provided
+                if (!lisUnit.isEmpty()) {
+                    units = lisUnit;
+                }
 
-                                if ("multiply".equalsIgnoreCase(convert)) {
-                                    num = num * factor;
-                                    value = String.valueOf(num);
-                                } else if ("divide".equalsIgnoreCase(convert)) {
-                                    if (factor != 0.0) {
-                                        num = num / factor;
-                                        value = String.valueOf(num);
-                                    }
-                                } else if ("add".equalsIgnoreCase(convert)) {
-                                    num = num + factor;
+                // Apply conversion if configured and value is numeric
+                if (value != null) {
+                    String vtrim = value.trim();
+                    if (!vtrim.isEmpty() && !"none".equalsIgnoreCase(convert)) {
+                        try {
+                            double num = Double.parseDouble(vtrim.replace(",", "."));
+
+                            if ("multiply".equalsIgnoreCase(convert)) {
+                                num = num * factor;
+                                value = String.valueOf(num);
+                            } else if ("divide".equalsIgnoreCase(convert)) {
+                                if (factor != 0.0) {
+                                    num = num / factor;
                                     value = String.valueOf(num);
-                                } else if ("subtract".equalsIgnoreCase(convert)) {
-                                    num = num - factor;
+                                }
+                            } else if ("add".equalsIgnoreCase(convert)) {
+                                num = num + factor;
+                                value = String.valueOf(num);
+                            } else if ("subtract".equalsIgnoreCase(convert)) {
+                                num = num - factor;
+                                value = String.valueOf(num);
+                            } else if ("log10".equalsIgnoreCase(convert)) {
+                                if (num > 0.0) {
+                                    num = Math.log10(num);
                                     value = String.valueOf(num);
-                                } else if ("log10".equalsIgnoreCase(convert)) {
-                                    if (num > 0.0) {
-                                        num = Math.log10(num);
-                                        value = String.valueOf(num);
-                                    }
                                 }
-
-                            } catch (Exception e) {
-                                logger.info("convertASTMtoOUL_R22: non numeric value for conversion vendorResultCode={} value={}", vendorResultCode, vtrim);
                             }
-                        }
-                    }
 
-                    // OBX-7: reference range
-                    String refRange = "";
-                    if (fields.length > 5 && fields[5] != null) {
-                        refRange = fields[5].trim();
-                    }
-                    
-                    // Build "< value" from reference range lower bound
-                    if (!value.isEmpty() && !refRange.isEmpty() && refRange.contains("to")) {
-                        String[] parts = refRange.split("to");
-                        if (parts.length == 2) {
-                            value = value + " < " + parts[0].trim();
+                        } catch (Exception e) {
+                            logger.info("convertASTMtoOUL_R22: non numeric value for conversion vendorResultCode={} value={}", vendorResultCode, vtrim);
                         }
                     }
+                }
 
-                    // OBX-11: status (we will place it in field 11)
-                    String status = "F";
-                    if (fields.length > 8 && fields[8] != null && !fields[8].trim().isEmpty()) {
-                        status = fields[8].trim();
+                // OBX-7: reference range
+                String refRange = "";
+                if (fields.length > 5 && fields[5] != null) {
+                    refRange = fields[5].trim();
+                }
+                
+                // Build "< value" from reference range lower bound
+                if (!value.isEmpty() && !refRange.isEmpty() && refRange.contains("to")) {
+                    String[] parts = refRange.split("to");
+                    if (parts.length == 2) {
+                        value = value + " < " + parts[0].trim();
                     }
+                }
 
-                 // Build OBX segment fields (HL7 v2.5.1):
-                 // OBX-5 = observation value
-                 // OBX-6 = units
-                 // OBX-7 = reference range
-                 // OBX-8..10 = intentionally left empty (no abnormal flags / probability / nature)
-                 // OBX-11 = observation result status (F, P, etc.)
-                 hl7.append(value)
-                     .append("|").append(units)
-                     .append("|").append(refRange)
-                     .append("|")   // OBX-8 (abnormal flags - not used)
-                     .append("|")   // OBX-9 (probability - not used)
-                     .append("|")   // OBX-10 (nature of abnormal test - not used)
-                     .append(status) // OBX-11 (result status)
-                     .append("\r");
-
-                    obxIndex++;
-                    break;
+                // OBX-11: status (we will place it in field 11)
+                String status = "F";
+                if (fields.length > 8 && fields[8] != null && !fields[8].trim().isEmpty()) {
+                    status = fields[8].trim();
+                }
 
-                case "C":
-                    hl7.append("NTE|1|L|").append(
-                            String.join(" ", Arrays.copyOfRange(fields, 1, fields.length))
-                    ).append("\r");
-                    break;
+             // Build OBX segment fields (HL7 v2.5.1):
+             // OBX-5 = observation value
+             // OBX-6 = units
+             // OBX-7 = reference range
+             // OBX-8..10 = intentionally left empty (no abnormal flags / probability / nature)
+             // OBX-11 = observation result status (F, P, etc.)
+             hl7.append(value)
+                 .append("|").append(units)
+                 .append("|").append(refRange)
+                 .append("|")   // OBX-8 (abnormal flags - not used)
+                 .append("|")   // OBX-9 (probability - not used)
+                 .append("|")   // OBX-10 (nature of abnormal test - not used)
+                 .append(status) // OBX-11 (result status)
+                 .append("\r");
+
+                obxIndex++;
+                break;
+
+            case "C":
+                hl7.append("NTE|1|L|").append(
+                        String.join(" ", Arrays.copyOfRange(fields, 1, fields.length))
+                ).append("\r");
+                break;
+            }
+        }
+    }
+
+    /**
+     * Vendor test code of an ASTM O record: last non-empty component of O|5 (fields[4]), or an empty string.
+     */
+    private static String vendorTestCodeOf(String[] fields) {
+        if (fields.length > 4 && fields[4] != null) {
+            String[] comps = fields[4].split("\\^", -1);
+            for (int i = comps.length - 1; i >= 0; i--) {
+                String s = (comps[i] == null) ? "" : comps[i].trim();
+                if (!s.isEmpty()) {
+                    return s;
                 }
             }
+        }
+        return "";
+    }
 
-            return hl7.toString();
+    /**
+     * Parallel conversion of the records of a large LAB-29 upload, on the conversion pool of the runtime.
+     * <p>
+     * The records are cut before each P record into blocks (the first block holds the header records).
+     * A sequential scan first gives each block the state the sequential conversion would have at its
+     * start (OBX set ID and current order); the blocks are then converted by recursive halving, each leaf
+     * into its own buffer, and the buffers are appended in record order, so that the result is identical
+     * to {@link #appendResultSegments} over the whole upload.
+     */
+    private final class ConvertBlocks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] lines;
+        private final GeneXpertMapping mapping;
+        private final int[] starts;    // first record of each block, plus lines.length
+        private final int[] obxStart;  // OBX set ID at the start of each block
+        private final String[] orders; // last O record before each block
+        private final StringBuilder[] parts;
+        private final int grain;
+        private final int lo;
+        private final int hi;
+
+        ConvertBlocks(String[] lines, int patients, GeneXpertMapping mapping, int parallelism) {
+            this.lines = lines;
+            this.mapping = mapping;
+            int n = patients + 1;
+            this.starts = new int[n + 1];
+            this.obxStart = new int[n];
+            this.orders = new String[n];
+            this.parts = new StringBuilder[n];
+            int block = 0;
+            int obx = 1;
+            String order = null;
+            obxStart[0] = 1;
+            for (int i = 0; i < lines.length; i++) {
+                String line = lines[i];
+                if (isRecord(line, 'P')) {
+                    block++;
+                    starts[block] = i;
+                    obxStart[block] = obx;
+                    orders[block] = order;
+                } else if (isRecord(line, 'O')) {
+                    order = line;
+                } else if (isRecord(line, 'R')) {
+                    obx++;
+                }
+            }
+            starts[n] = lines.length;
+            this.grain = Math.max(1, n / (4 * parallelism));
+            this.lo = 0;
+            this.hi = n;
+        }
 
-        } catch (Exception e) {
-            logger.error("GeneXpert: Failed to convert ASTM to HL7 OUL_R22", e);
-            return null;
+        private ConvertBlocks(ConvertBlocks parent, int lo, int hi) {
+            this.lines = parent.lines;
+            this.mapping = parent.mapping;
+            this.starts = parent.starts;
+            this.obxStart = parent.obxStart;
+            this.orders = parent.orders;
+            this.parts = parent.parts;
+            this.grain = parent.grain;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= grain) {
+                StringBuilder part = new StringBuilder(64 * (starts[hi] - starts[lo]));
+                appendResultSegments(part, lines, starts[lo], starts[hi], mapping, obxStart[lo], orders[lo]);
+                parts[lo] = part;
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ConvertBlocks(this, lo, mid), new ConvertBlocks(this, mid, hi));
+            }
+        }
+
+        /** Appends the converted blocks, in record order. */
+        void appendTo(StringBuilder hl7) {
+            for (StringBuilder part : parts) {
+                if (part != null) hl7.append(part);
+            }
         }
     }
     
@@ -828,7 +1453,7 @@ public class AnalyzerGeneXpert implements Analyzer {
                 return "L|1|N";
             }
         	
-            PipeParser parser = new PipeParser();
+            PipeParser parser = GeneXpertRuntime.get().parser();
             Message ackMsg = parser.parse(hl7Ack);
 
             if (!(ackMsg instanceof ACK)) {
@@ -854,6 +1479,20 @@ public class AnalyzerGeneXpert implements Analyzer {
      * @return HL7 QBP^Q11 message in ER7 format or null if conversion fails.
      */
     public String convertASTMQueryToQBP_Q11(String[] lines) {
+        return convertASTMQueryToQBP_Q11(lines, "");
+    }
+
+    /**
+     * Converts an ASTM query into an HL7 QBP^Q11 message, optionally asking for the next page of a paged reply.
+     * <p>
+     * Query-all requests carry the page size of {@code genexpert.queryPageSize} in RCP-2 when it is set;
+     * a continuation request repeats the query with the continuation pointer in DSC-1.
+     *
+     * @param lines ASTM message lines
+     * @param continuationPointer DSC-1 of the previous RSP^K11 page, or empty for the first request
+     * @return HL7 QBP^Q11 in ER7 format, or null if conversion failed
+     */
+    String convertASTMQueryToQBP_Q11(String[] lines, String continuationPointer) {
         try {
         	lines = stripASTMPrefixNumbers(lines);
         	
@@ -873,6 +1512,7 @@ public class AnalyzerGeneXpert implements Analyzer {
 
             // Prepare HL7 QBP_Q11 message (HL7 v2.5.1)
             QBP_Q11 qbp = new QBP_Q11();
+            qbp.setParser(GeneXpertRuntime.get().parser());
             qbp.initQuickstart("QBP", "Q11", "P");
 
             // Fill MSH (standard HL7 header)
@@ -881,8 +1521,8 @@ public class AnalyzerGeneXpert implements Analyzer {
             msh.getSendingFacility().getNamespaceID().setValue("Analyzer");
             msh.getReceivingApplication().getNamespaceID().setValue("LabBook");
             msh.getReceivingFacility().getNamespaceID().setValue("LIS");
-            msh.getDateTimeOfMessage().getTime().setValue(new SimpleDateFormat("yyyyMMddHHmmss").format(new Date()));
-            msh.getMessageControlID().setValue("MSG" + System.currentTimeMillis());
+            msh.getDateTimeOfMessage().getTime().setValue(GeneXpertClock.timestamp());
+            msh.getMessageControlID().setValue(GeneXpertClock.nextControlId());
             msh.getVersionID().getVersionID().setValue("2.5.1");
 
             // Fill QPD segment (Query Parameter Definition)
@@ -920,10 +1560,20 @@ public class AnalyzerGeneXpert implements Analyzer {
             // Fill RCP (response control parameters)
             RCP rcp = qbp.getRCP();
             rcp.getQueryPriority().setValue("I");  // I = Immediate
+            int pageSize = GeneXpertRuntime.get().queryPageSize();
+            if (isQueryAll && specimenId.isEmpty() && pageSize > 0) {
+                rcp.getQuantityLimitedRequest().getQuantity().setValue(Integer.toString(pageSize));
+                rcp.getQuantityLimitedRequest().getUnits().getIdentifier().setValue("RD");  // RD = records
+            }
+
+            // DSC: continuation of a paged reply (I = incremental)
+            if (continuationPointer != null && !continuationPointer.isEmpty()) {
+                qbp.getDSC().getContinuationPointer().setValue(continuationPointer);
+                qbp.getDSC().getContinuationStyle().setValue("I");
+            }
 
             // Encode to HL7 string
-            PipeParser parser = new PipeParser();
-            return parser.encode(qbp);
+            return qbp.encode();
 
         } catch (Exception e) {
             logger.error("convertASTMQueryToQBP_Q11: Failed to convert ASTM to QBP^Q11: " + e.getMessage(), e);
@@ -942,225 +1592,473 @@ public class AnalyzerGeneXpert implements Analyzer {
      * @return Array of ASTM-formatted lines to return to the analyzer
      */
     public String[] convertRSP_K11toASTM(String hl7Message) {
-        StringBuilder astm = new StringBuilder();
-
-        if (hl7Message == null || hl7Message.trim().isEmpty() || !hl7Message.startsWith("MSH|")) {
-            logger.warn("convertRSP_K11toASTM: invalid HL7 input (null/empty/no MSH)");
-            astm.append(isBlank(this.lastReplyHeader) ? buildReplyHeader(null) : this.lastReplyHeader).append("\r");
-            astm.append("L|1|N");
-            return astm.toString().split("\r");
+        List<String> records = new ArrayList<>();
+        try {
+            GeneXpertRspReader reader = new GeneXpertRspReader(mapping(), replyHeader(), records::add);
+            reader.finish(reader.page(hl7Message));
+        } catch (Exception e) {
+            logger.error("convertRSP_K11toASTM: exception - " + e.getMessage(), e);
+            records.clear();
+            records.add(replyHeader());
+            records.add("L|1|N");
         }
+        return records.toArray(new String[0]);
+    }
 
+    // === Communication Management ===
+    
+    /**
+     * Sends an ASTM message (line by line) to the analyzer over the active connection.
+     *
+     * Each line is framed using ASTM E1381 protocol (STX, frame number, payload,
+     * ETX, checksum, CR, LF).
+     *
+     * The sender waits for ACK or NAK after ENQ and after each frame.
+     *
+     * This implementation does not retry frame transmission after a NAK.
+     * On NAK or timeout, the transmission is aborted and an error status is returned.
+     *
+     * The transmission waits (up to genexpert.ackTimeoutMs) for the line to be free of a transmission from
+     * the analyzer, and yields if the analyzer sends ENQ in reply to its ENQ (contention: the instrument has priority).
+     *
+     * @param lines ASTM message split into lines (H|..., P|..., O|..., L|...)
+     * @return "ACK" if all frames were accepted, "BUSY" if the analyzer was transmitting, otherwise "NAK", "UNKNOWN", or "ERROR"
+     */
+    public String sendASTMMessage(String[] lines) {
+        return sendASTMMessage(lines, GeneXpertPriority.ROUTINE);
+    }
+
+    /**
+     * Sends an ASTM message to the analyzer (see {@link #sendASTMMessage(String[])}); while urgent messages
+     * wait for the line, routine ones let them go first.
+     *
+     * @param lines ASTM message split into lines
+     * @param priority Priority of the message
+     * @return Transmission status, as {@link #sendASTMMessage(String[])}
+     */
+    String sendASTMMessage(String[] lines, GeneXpertPriority priority) {
+        if (connection == null) {
+            logger.warn("No analyzer connected: ASTM message not sent");
+            return "ERROR";
+        }
+        Transmission transmission = new Transmission(sessionReading);
+        if (!acquireLine(transmission, priority, GeneXpertRuntime.get().ackTimeoutMs())) {
+            logger.warn("Analyzer line busy: ASTM message not sent");
+            return "BUSY";
+        }
         try {
-        	astm.append(isBlank(this.lastReplyHeader) ? buildReplyHeader(null) : this.lastReplyHeader).append("\r");
+            return transmit(transmission, lines);
+        } finally {
+            releaseLine(transmission);
+        }
+    }
 
-            String[] segments = hl7Message.split("\r");
+    /**
+     * Sends the records of a message on a transmission and ends it.
+     *
+     * @return Status of {@link Transmission#finish()}
+     */
+    private String transmit(Transmission transmission, String[] lines) {
+        transmission.start();
+        try {
+            for (String line : lines) {
+                transmission.record(line);
+            }
+        } catch (IOException aborted) {
+            // status already recorded by the transmission
+        }
+        return transmission.finish();
+    }
 
-            // Current patient context
-            String patientId = "";
-            String patientName = "";
-            String birthDate = "";
-            String sex = "";
-            boolean patientHeaderEmitted = false;
+    // === LAB-28 order queue ===
 
-            // Current order context (within patient)
-            String spmId = "";
+    /** Specimen tracker of this analyzer, or null if specimens are not tracked. */
+    private GeneXpertSpecimenTracker specimens() {
+        return GeneXpertRuntime.get().specimens(this.id_analyzer);
+    }
 
-            boolean hasAnyOrder = false;
+    /** Order queue of this analyzer, or null if LAB-28 orders are sent while LabBook waits. */
+    private GeneXpertOrderQueue orderQueue() {
+        return GeneXpertRuntime.get().orderQueue(this.id_analyzer);
+    }
 
-            for (String segment : segments) {
-                if (segment.startsWith("PID|")) {
-                    // Switch patient context (do NOT emit P here)
-                    String[] fields = segment.split("\\|", -1);
-                    patientId = (fields.length > 3) ? fields[3] : "";
-                    patientName = (fields.length > 5) ? fields[5] : "";
-                    birthDate = (fields.length > 7) ? fields[7] : "";
-                    sex = (fields.length > 8) ? fields[8] : "";
+    /**
+     * Starts the delivery of the queued LAB-28 orders in the background, unless a delivery is running, nothing
+     * is pending, no analyzer is connected, the line is in use, or a failed delivery waits for its retry time.
+     * Called when an order is queued, when a session starts and each time the line is released.
+     */
+    private void scheduleOrderDelivery() {
+        GeneXpertOrderQueue queue = orderQueue();
+        if (queue == null || connection == null || System.nanoTime() - deliveryNotBefore < 0) return;
+        int pending = queue.pending();
+        metrics().pendingOrders = pending;
+        if (pending == 0) return;
+        synchronized (lineMonitor) {
+            if (lineOwner != null) return; // the owner releases the line when done
+        }
+        if (delivering.compareAndSet(false, true)) {
+            GeneXpertRuntime.get().background("AnalyzerGeneXpert-Orders-" + this.id_analyzer, () -> deliverOrders(queue));
+        }
+    }
 
-                    patientHeaderEmitted = false;
-                    spmId = "";
-                    continue;
+    /**
+     * Delivers the queued LAB-28 orders while the analyzer is connected and the line is free.
+     * <p>
+     * Pending orders are merged into transmissions of up to {@value #MAX_ORDERS_PER_TRANSMISSION} orders
+     * (see {@link #mergeOrders}). When the analyzer rejects a merged transmission (NAK), its orders are sent
+     * again one per transmission, so that only a faulty order counts the rejection. After a rejection or a
+     * link error, the next delivery waits {@value #ORDER_RETRY_MS} ms; when the analyzer transmits first,
+     * the delivery resumes as soon as its transmission ends.
+     */
+    private void deliverOrders(GeneXpertOrderQueue queue) {
+        GeneXpertMetrics m = metrics();
+        int batchSize = MAX_ORDERS_PER_TRANSMISSION;
+        try {
+            while (connection != null && !connection.isClosed()) {
+                List<GeneXpertOrderQueue.Order> batch = queue.next(batchSize);
+                if (batch.isEmpty()) break;
+                Transmission transmission = new Transmission(sessionReading);
+                if (!acquireLine(transmission, batch.get(0).priority, 0L)) break; // resumed when the line is released
+                String status;
+                try {
+                    status = transmit(transmission, mergeOrders(batch));
+                } finally {
+                    releaseLine(transmission);
                 }
 
-                if (segment.startsWith("SPM|")) {
-                    String[] fields = segment.split("\\|", -1);
-                    spmId = (fields.length > 2) ? fields[2] : "";
-                    continue;
+                if ("ACK".equals(status)) {
+                    queue.delivered(batch);
+                    long now = System.currentTimeMillis();
+                    GeneXpertSpecimenTracker specimens = specimens();
+                    for (GeneXpertOrderQueue.Order order : batch) {
+                        m.lab28Delivery.recordNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(0L, now - order.queuedAt)));
+                        if (specimens != null) specimens.recordAll(order.records, GeneXpertSpecimenTracker.Stage.ORDER_DELIVERED);
+                    }
+                    m.lab28Delivered.add(batch.size());
+                    logger.info("Lab28 GeneXpert : {} order(s) delivered to analyzer {} in one transmission", batch.size(), this.id_analyzer);
+                    batchSize = MAX_ORDERS_PER_TRANSMISSION;
+                } else if ("NAK".equals(status) && batch.size() > 1) {
+                    logger.warn("Lab28 GeneXpert : {} merged orders rejected by analyzer {}, sending them one by one", batch.size(), this.id_analyzer);
+                    batchSize = 1;
+                } else if ("NAK".equals(status)) {
+                    for (GeneXpertOrderQueue.Order failed : queue.rejected(batch)) {
+                        m.lab28Failed.increment();
+                        logger.error("Lab28 GeneXpert : Order {} rejected {} times by analyzer {}, abandoned",
+                                failed.controlId, GeneXpertOrderQueue.MAX_ATTEMPTS, this.id_analyzer);
+                    }
+                    retryOrdersLater();
+                    break;
+                } else {
+                    // BUSY: the analyzer transmits first; otherwise the link failed and the orders wait
+                    if (!"BUSY".equals(status)) retryOrdersLater();
+                    break;
                 }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Lab28 GeneXpert : Order delivery failed - " + e.getMessage(), e);
+            retryOrdersLater();
+        } finally {
+            m.pendingOrders = queue.pending();
+            delivering.set(false);
+        }
+        // an order queued or the line released while this delivery was ending
+        scheduleOrderDelivery();
+    }
 
-                if (segment.startsWith("OBR|")) {
-                    String[] fields = segment.split("\\|", -1);
-
-                    //String obrName = "";
-                    String lisTestCode = "";
-                    if (fields.length > 4) {
-                        String[] testInfo = fields[4].split("\\^", -1);
-
-                        // Prefer component 4 (^^^GX01) but accept component 1 (89371-9)
-                        if (testInfo.length > 3 && testInfo[3] != null && !testInfo[3].trim().isEmpty()) {
-                            lisTestCode = testInfo[3].trim();
-                        } else if (testInfo.length > 0 && testInfo[0] != null) {
-                            lisTestCode = testInfo[0].trim();
-                        }
-
-                        //obrName = (testInfo.length > 1 && testInfo[1] != null) ? testInfo[1].trim() : "";
-                    }
+    private void retryOrdersLater() {
+        long delay = TimeUnit.MILLISECONDS.toNanos(ORDER_RETRY_MS);
+        deliveryNotBefore = System.nanoTime() + delay;
+        GeneXpertRuntime.get().timers().schedule(delay, this::scheduleOrderDelivery);
+    }
 
-                    String obrCode = mapLisTestCodeToVendorTestCode(lisTestCode);
+    /**
+     * Merges queued orders into one ASTM message: the header of the first order, the P and O records
+     * of each order (patients numbered in sequence), and one terminator.
+     */
+    static String[] mergeOrders(List<GeneXpertOrderQueue.Order> orders) {
+        if (orders.size() == 1) return orders.get(0).records;
+        List<String> merged = new ArrayList<>();
+        int patient = 0;
+        for (GeneXpertOrderQueue.Order order : orders) {
+            for (String record : order.records) {
+                if (isRecord(record, 'H')) {
+                    if (merged.isEmpty()) merged.add(record);
+                } else if (isRecord(record, 'P')) {
+                    int bar = record.indexOf('|', 2);
+                    merged.add("P|" + (++patient) + ((bar < 0) ? "" : record.substring(bar)));
+                } else if (!isRecord(record, 'L')) {
+                    merged.add(record);
+                }
+            }
+        }
+        merged.add("L|1|F");
+        return merged.toArray(new String[0]);
+    }
 
-                    if (isBlank(spmId)) {
-                        logger.warn("convertRSP_K11toASTM: OBR received but spmId is empty (OBR-4='{}')", (fields.length > 4 ? fields[4] : ""));
-                        continue;
-                    }
+    // === E1381 line ===
 
-                    if (isBlank(obrCode)) {
-                        logger.warn("convertRSP_K11toASTM: unmapped lisTestCode='{}' (OBR-4='{}')", lisTestCode, (fields.length > 4 ? fields[4] : ""));
+    /**
+     * Takes the line of the connection for a transmission to the analyzer.
+     * A routine transmission does not take a free line while an urgent one is waiting for it,
+     * unless it has itself waited {@link GeneXpertPriority#AGING_MS}.
+     *
+     * @param owner Transmission to the analyzer
+     * @param priority Priority of the transmission
+     * @param waitMs Longest wait for the line to be free, in ms (0 = no wait)
+     * @return true if the line was taken
+     */
+    private boolean acquireLine(Transmission owner, GeneXpertPriority priority, long waitMs) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        long aged = start + TimeUnit.MILLISECONDS.toNanos(GeneXpertPriority.AGING_MS);
+        boolean urgent = priority.urgent();
+        synchronized (lineMonitor) {
+            if (urgent) urgentWaiting++;
+            try {
+                while (lineOwner != null || (!urgent && urgentWaiting > 0)) {
+                    long now = System.nanoTime();
+                    long left = deadline - now;
+                    if (left <= 0) return false;
+                    if (!urgent && now - aged >= 0) {
+                        urgent = true; // aged: no longer held back, and holds back newer routine transmissions
+                        urgentWaiting++;
                         continue;
                     }
-
-                    // Emit patient only when we actually have a mapped order to send
-                    if (!patientHeaderEmitted) {
-                        if (isBlank(patientId)) {
-                            logger.warn("convertRSP_K11toASTM: mapped order found but patientId is empty; skipping patient block");
-                            continue;
-                        }
-
-                        astm.append("P|1|").append(patientId).append("||").append(patientName).append("||")
-                            .append(birthDate).append("|").append(sex).append("\r");
-                        patientHeaderEmitted = true;
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(lineMonitor, urgent ? left : Math.min(left, aged - now));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
                     }
-
-                    String[] orderFields = new String[26];
-                    Arrays.fill(orderFields, "");
-
-                    orderFields[0] = "O";
-                    orderFields[1] = "1";
-                    orderFields[2] = spmId;
-                    orderFields[4] = "^^^" + obrCode;
-                    orderFields[5] = "R"; // Priority
-                    orderFields[6] = getCurrentDateTime();
-                    orderFields[11] = "A";
-                    orderFields[15] = "ORH";
-                    orderFields[25] = "Q";
-
-                    astm.append(String.join("|", orderFields)).append("\r");
-
-                    hasAnyOrder = true;
                 }
+                lineOwner = owner;
+                return true;
+            } finally {
+                // routine transmissions held back by this one may go
+                if (urgent && --urgentWaiting == 0) lineMonitor.notifyAll();
             }
+        }
+    }
 
-            astm.append("L|1|F");
-
-            if (!hasAnyOrder) {
-                logger.info("convertRSP_K11toASTM: processed RSP^K11 but no mapped orders found; returning L|1|Y");
+    /**
+     * Takes the line for a transmission from the analyzer, whose ENQ was just read. A transmission to the
+     * analyzer holding the line gets this ENQ as its reply and yields: on contention the instrument has priority.
+     */
+    private void acquireInboundLine() throws IOException {
+        synchronized (lineMonitor) {
+            if (lineOwner instanceof Transmission) ((Transmission) lineOwner).reply(ENQ);
+            while (lineOwner != null) {
+                try {
+                    lineMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the line", e);
+                }
             }
+            lineOwner = INBOUND;
+        }
+    }
 
-            return astm.toString().split("\r");
-
-        } catch (Exception e) {
-            logger.error("convertRSP_K11toASTM: exception - " + e.getMessage(), e);
-            astm.setLength(0);
-            astm.append(isBlank(this.lastReplyHeader) ? buildReplyHeader(null) : this.lastReplyHeader).append("\r");
-            astm.append("L|1|N");
-            return astm.toString().split("\r");
+    /**
+     * Releases the line, then resumes the delivery of queued orders if any.
+     */
+    private void releaseLine(Object owner) {
+        synchronized (lineMonitor) {
+            if (lineOwner != owner) return;
+            lineOwner = null;
+            lineMonitor.notifyAll();
         }
+        scheduleOrderDelivery();
     }
 
-    // === Communication Management ===
-    
     /**
-     * Sends an ASTM message (line by line) to the analyzer over the active socket.
-     *
-     * Each line is framed using ASTM E1381 protocol (STX, frame number, payload,
-     * ETX, checksum, CR, LF).
-     *
-     * The sender waits for ACK or NAK after ENQ and after each frame.
-     *
-     * This implementation does not retry frame transmission after a NAK.
-     * On NAK or timeout, the transmission is aborted and an error status is returned.
+     * Hands a byte read by the session while waiting for ENQ to the transmission to the analyzer holding the line.
      *
-     * @param lines ASTM message split into lines (H|..., P|..., O|..., L|...)
-     * @return "ACK" if all frames were accepted, otherwise "NAK", "UNKNOWN", or "ERROR"
+     * @return true if a transmission to the analyzer took it
      */
-    public String sendASTMMessage(String[] lines) {
-        try {
-            logger.info(">>> Sending ENQ");
-            outputStream.write(ENQ);
-            outputStream.flush();
+    private boolean routeReply(int b) {
+        synchronized (lineMonitor) {
+            if (!(lineOwner instanceof Transmission)) return false;
+            ((Transmission) lineOwner).reply(b);
+            return true;
+        }
+    }
 
-            socket.setSoTimeout(10000);
-            int response;
+    /**
+     * ASTM E1381 transmission to the analyzer on the current connection, one frame per record.
+     * <p>
+     * ENQ is sent with the first record (or by {@link #start()}), then each record is framed and sent
+     * as soon as it is given, so that a long reply starts flowing before it is complete.
+     * The first NAK, timeout or I/O error aborts the transmission: {@link #record} then fails
+     * and {@link #finish()} returns the failure status without sending EOT.
+     */
+    private final class Transmission implements GeneXpertFrameCodec.RecordSink {
+        private final GeneXpertMetrics m = metrics();
+        private final BlockingQueue<Integer> replies; // replies handed over by the session, or null to read them
+        private String status = null; // null: not started, "ACK": in progress, otherwise the failure
+        private int frames = 0;
+        private String specimenId = ""; // last O| or Q| record of the frames committed as JFR events
+
+        /** Transmission reading its replies from the connection (reply of the session, or no session running). */
+        Transmission() {
+            this(false);
+        }
+
+        /**
+         * @param routed true if the session reads the connection: replies are handed over by {@link #routeReply}
+         */
+        Transmission(boolean routed) {
+            this.replies = routed ? new ArrayBlockingQueue<>(8) : null;
+        }
+
+        /** Reply read by the session (dropped if this transmission reads its own replies). */
+        void reply(int b) {
+            if (replies != null) replies.offer(b);
+        }
+
+        /** true once ENQ has been sent. */
+        boolean started() {
+            return status != null;
+        }
+
+        /**
+         * Sends ENQ and waits for the analyzer ACK (genexpert.ackTimeoutMs: the instrument may hold it while busy).
+         */
+        void start() {
+            if (status != null) return;
             try {
-                socket.setSoTimeout(10000);
-                response = inputStream.read();
-            } catch (SocketTimeoutException e) {
-                logger.warn("Timeout waiting for ACK after ENQ (10s)");
-                return "ERROR";
+                logger.debug(">>> Sending ENQ");
+                writeByte(ENQ);
+                outputStream.flush();
+
+                int response = readAck(replies, false);
+                if (response == TIMED_OUT) {
+                    logger.warn("Timeout waiting for ACK after ENQ ({} ms), connection closed", ackWaitMs);
+                    m.timeouts.increment();
+                    dumpWireTrace("timeout waiting for ACK after ENQ");
+                    status = "ERROR";
+                    return;
+                }
+
+                if (response == ACK) {
+                    logger.debug("<<< Response: ACK");
+                    status = "ACK";
+                } else if (response == NAK) {
+                    logger.warn("<<< Response: NAK");
+                    m.nakReceived.increment();
+                    dumpWireTrace("NAK received after ENQ");
+                    status = "NAK";
+                } else if (response == ENQ) {
+                    logger.info("<<< Response: ENQ (contention), the analyzer transmits first");
+                    status = "BUSY";
+                } else {
+                    logger.warn("<<< Response: Unexpected byte: {}", response);
+                    dumpWireTrace("unexpected reply after ENQ");
+                    status = "UNKNOWN";
+                }
+            } catch (IOException e) {
+                sendError(e);
             }
-            
-            if (response == ACK) {
-                logger.info("<<< Response: ACK");
-            } else if (response == NAK) {
-                logger.warn("<<< Response: NAK");
-                return "NAK";
-            } else {
-                logger.warn("<<< Response: Unexpected byte: " + response);
-                return "UNKNOWN";
+        }
+
+        /**
+         * Commits a JFR FrameSent event if a recording wants it. The specimen ID is that of the record,
+         * or of the last O| or Q| record committed before it in this transmission.
+         */
+        private void commitFrameSent(GeneXpertEvents.FrameSent event, String record, int frameNo, String reply) {
+            event.end();
+            if (event.shouldCommit()) {
+                String specimen = GeneXpertEvents.specimenOf(record);
+                if (!specimen.isEmpty()) specimenId = specimen;
+                event.analyzerId = id_analyzer;
+                event.specimenId = specimenId;
+                event.frameNumber = frameNo;
+                event.payloadBytes = record.length();
+                event.reply = reply;
+                event.commit();
             }
+        }
 
-            for (int i = 0; i < lines.length; i++) {
-            	// ASTM E1381: frame number cycles from 0 to 7
-                String body = ((i + 1) % 8) + lines[i];
-                byte[] bodyBytes = body.getBytes(StandardCharsets.US_ASCII);
-                ByteArrayOutputStream frame = new ByteArrayOutputStream();
-                frame.write(STX);
-                frame.write(bodyBytes);
-                frame.write(ETX);
-
-                int checksum = 0;
-                for (byte b : bodyBytes) checksum += (b & 0xFF);
-                checksum += ETX;
-                checksum &= 0xFF;
-                String checksumStr = String.format("%02X", checksum);
-
-                frame.write(checksumStr.getBytes(StandardCharsets.US_ASCII));
-                frame.write(CR);
-                frame.write(LF);
-
-                logger.info(">>> Sending frame " + (i + 1) + ": " + lines[i]);
-                outputStream.write(frame.toByteArray());
+        /**
+         * Frames and sends one record, then waits for the analyzer ACK (adaptive deadline, at most genexpert.ackTimeoutMs).
+         *
+         * @throws IOException If the transmission was aborted (by this record or before)
+         */
+        @Override
+        public void record(String record) throws IOException {
+            if (status == null) start();
+            if (!"ACK".equals(status)) throw new IOException("ASTM transmission aborted (" + status + ")");
+
+            // ASTM E1381: frame number cycles from 0 to 7
+            int index = frames++;
+            int frameNo = (index + 1) % 8;
+            byte[] frame = GeneXpertFrameCodec.encodeFrame(frameNo, record);
+
+            logger.debug(">>> Sending frame {}: {}", index + 1, record);
+            GeneXpertEvents.FrameSent frameEvent = new GeneXpertEvents.FrameSent();
+            frameEvent.begin();
+            try {
+                writeBytes(frame);
                 outputStream.flush();
-
-                socket.setSoTimeout(10000);
-                int frameResp;
-                try {
-                    socket.setSoTimeout(10000);
-                    frameResp = inputStream.read();
-                } catch (SocketTimeoutException e) {
-                    logger.warn("Timeout waiting for ACK after frame " + (i + 1) + " (10s)");
-                    return "ERROR";
+                long frameSent = System.nanoTime();
+                m.framesSent.increment();
+
+                int frameResp = readAck(replies, true);
+                if (frameResp == TIMED_OUT) {
+                    logger.warn("Timeout waiting for ACK after frame {} ({} ms), connection closed", index + 1, ackWaitMs);
+                    m.timeouts.increment();
+                    commitFrameSent(frameEvent, record, frameNo, "TIMEOUT");
+                    dumpWireTrace("timeout waiting for ACK after frame " + (index + 1));
+                    status = "ERROR";
+                    throw new IOException("ASTM transmission aborted (timeout)");
                 }
-                
+
                 if (frameResp == ACK) {
-                    logger.info("<<< Response: ACK");
+                    m.frameAckRtt.recordNanos(System.nanoTime() - frameSent);
+                    commitFrameSent(frameEvent, record, frameNo, "ACK");
+                    logger.debug("<<< Response: ACK");
                 } else if (frameResp == NAK) {
                     logger.warn("<<< Response: NAK");
-                    return "NAK";
+                    m.nakReceived.increment();
+                    commitFrameSent(frameEvent, record, frameNo, "NAK");
+                    dumpWireTrace("NAK received after frame " + (index + 1));
+                    status = "NAK";
+                    throw new IOException("ASTM transmission aborted (NAK)");
                 } else {
-                    logger.warn("<<< Response: Unexpected byte: " + frameResp);
-                    return "UNKNOWN";
+                    logger.warn("<<< Response: Unexpected byte: {}", frameResp);
+                    commitFrameSent(frameEvent, record, frameNo, "UNKNOWN");
+                    dumpWireTrace("unexpected reply after frame " + (index + 1));
+                    status = "UNKNOWN";
+                    throw new IOException("ASTM transmission aborted (unexpected reply)");
                 }
+            } catch (IOException e) {
+                if ("ACK".equals(status)) sendError(e);
+                throw e;
             }
+        }
 
-            logger.info(">>> Sending EOT");
-            outputStream.write(EOT);
-            outputStream.flush();
-
-            return "ACK";
+        /**
+         * Ends the transmission with EOT if all frames were accepted.
+         *
+         * @return "ACK" if all frames were accepted, "BUSY" (contention), "NAK", "UNKNOWN" or "ERROR" otherwise, null if nothing was sent
+         */
+        String finish() {
+            if ("ACK".equals(status)) {
+                try {
+                    logger.debug(">>> Sending EOT");
+                    writeByte(EOT);
+                    outputStream.flush();
+                } catch (IOException e) {
+                    sendError(e);
+                }
+            }
+            return status;
+        }
 
-        } catch (IOException e) {
+        private void sendError(IOException e) {
             logger.error("ASTM send error: " + e.getMessage());
-            return "ERROR";
+            dumpWireTrace("send error: " + e.getMessage());
+            status = "ERROR";
         }
     }
     
@@ -1193,8 +2091,6 @@ public class AnalyzerGeneXpert implements Analyzer {
     	logger.info("DEBUG: this.type_cnx = " + this.type_cnx);
     	logger.info("DEBUG: this.mode = " + this.mode);
     	logger.info("Connecting to analyzer at " + ip_analyzer + ":" + port_analyzer);
-    	
-    	this.mappingToml = Connect_util.loadMappingToml(this.getMappingPath());
 
     	if (!"socket_E1381".equalsIgnoreCase(this.type_cnx) && !"socket".equalsIgnoreCase(this.type_cnx)) {
     		logger.info("Unsupported connection type: " + type_cnx);
@@ -1202,7 +2098,21 @@ public class AnalyzerGeneXpert implements Analyzer {
     		return;
     	}
 
-    	Thread mainListener = new Thread(() -> {
+    	// HAPI and converters warm up in the background while the port opens (first analyzer only)
+    	GeneXpertRuntime.get().warmUp(this.getMappingPath());
+
+    	if ("shared".equalsIgnoreCase(this.mode)) {
+    		// One listener for all "shared" analyzers of this port; mapping and metrics are set up
+    		// on the first connection routed to this analyzer (see runRoutedSession)
+    		logger.info("Registering on shared ASTM port {}...", this.port_analyzer);
+    		this.sharedPort = GeneXpertSharedPort.register(this);
+    		this.listening.set(this.sharedPort != null);
+    		return;
+    	}
+
+    	prepare();
+
+    	GeneXpertRuntime.get().startListener("AnalyzerGeneXpert-MainListener-" + this.id_analyzer, () -> {
     		if ("client".equalsIgnoreCase(this.mode)) {
     			logger.info("Starting ASTM client mode...");
 
@@ -1212,15 +2122,15 @@ public class AnalyzerGeneXpert implements Analyzer {
     			this.listening.set(true);
     			while (this.listening.get()) {
     				try {
-    					// Step 3: open socket
+    					// Step 3: open connection
     					connectAsClient();
 
     					// >>> reset backoff on successful (re)connect
     					backoffDelayMs = 5000;
 
-    					// Step 4: run E1381 FSM (blocks until socket closed or I/O error)
+    					// Step 4: run E1381 FSM (blocks until connection closed or I/O error)
     					this.listening.set(true);
-    					listenForIncomingMessages();
+    					runSession(false, null, null);
 
     					// Step 5: FSM returned => we'll try to reconnect
     					logger.warn("Client FSM ended; will attempt to reconnect.");
@@ -1230,10 +2140,10 @@ public class AnalyzerGeneXpert implements Analyzer {
     					logger.error("Client I/O error: " + ioEx.getMessage(), ioEx);
 
     				} finally {
-    					// Step 7: ensure socket is closed and clear state
+    					// Step 7: ensure connection is closed and clear state
     					this.listening.set(false);
-    					try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignore) {}
-    					socket = null;
+    					try { if (connection != null) connection.close(); } catch (IOException ignore) {}
+    					connection = null;
     					inputStream = null;
     					outputStream = null;
     				}
@@ -1249,20 +2159,87 @@ public class AnalyzerGeneXpert implements Analyzer {
     				backoffDelayMs = Math.min(backoffDelayMs * 2, backoffMaxMs);
     			}
     		} else {
-    			// Step 1: Start ASTM server (blocking accept loop; per-connection threads run the FSM)
+    			// Step 1: Start ASTM server (accept loop; sessions run one at a time)
     			logger.info("Starting ASTM server mode...");
-    			startASTMServer(); // never returns
+    			startASTMServer(); // returns when stopped, or when the event loop takes over the wait
     		}
     	});
-    	mainListener.setName("AnalyzerGeneXpert-MainListener");
-    	mainListener.setDaemon(true); // "daemon"
-    	mainListener.start();
+    }
+
+    /**
+     * Loads the mapping snapshot and publishes the wire trace over JMX.
+     */
+    private void prepare() {
+    	// one snapshot per mapping file, shared with the other analyzers using it
+    	setMapping(GeneXpertRuntime.get().mapping(this.getMappingPath()));
+    	metrics().setWireTraceSource(this::getWireTrace);
+    }
+
+    /**
+     * Runs the E1381 session of a connection accepted on a shared port and routed to this analyzer.
+     * <p>
+     * The router has already acknowledged the ENQ of the first transmission; its first frame
+     * (not yet acknowledged) is read again from {@code firstFrame} before the connection stream.
+     * A newer connection of the same analyzer closes the current one and waits for its session to end.
+     * The session owns the connection from here: it closes it when it ends, possibly on another thread
+     * (see {@link #runSession}).
+     *
+     * @param client Routed connection
+     * @param firstFrame Raw bytes of the first frame (STX to LF)
+     */
+    void runRoutedSession(GeneXpertTransport client, byte[] firstFrame) {
+        GeneXpertTransport previous = this.connection;
+        if (previous != null) {
+            logger.warn("Analyzer {}: new connection from {}, closing the previous one", this.id_analyzer, client.remoteAddress());
+            try { previous.close(); } catch (IOException ignore) {}
+        }
+
+        routedSession.acquireUninterruptibly();
+        Runnable onEnd = () -> {
+            try {
+                endSession(client);
+                this.listening.set(this.sharedPort != null);
+            } finally {
+                routedSession.release();
+            }
+        };
+        boolean ready = false;
+        try {
+            if (this.mapping == null) prepare();
+            startLink();
+            this.connection = client;
+            this.inputStream = wireTrace.tap(new SequenceInputStream(new ByteArrayInputStream(firstFrame), client.input()));
+            wireTrace.rx(ENQ);
+            wireTrace.tx(ACK);
+            this.outputStream = client.output();
+            this.listening.set(true);
+            ready = true;
+        } finally {
+            if (!ready) onEnd.run();
+        }
+        runSession(true, onEnd, null);
+    }
+
+    /**
+     * Closes the connection of a session that ended and clears the connection state.
+     */
+    private void endSession(GeneXpertTransport client) {
+        try {
+            client.close();
+        } catch (IOException ignore) {
+            // already closed
+        } finally {
+            this.connection = null;
+            this.inputStream = null;
+            this.outputStream = null;
+            logger.info("Client connection closed.");
+        }
     }
 
     /**
      * Establishes a connection to the analyzer in CLIENT mode.
      * <p>
-     * This method initializes the socket connection using the configured IP address and port of the analyzer.
+     * This method opens the connection (carrier of {@code genexpert.transport}) using the configured IP address and port of the analyzer.
      * It sets up input and output streams for subsequent message exchanges (e.g., ASTM transactions).
      * <p>
      * If a connection already exists and is open, no action is performed.
@@ -1270,61 +2247,205 @@ public class AnalyzerGeneXpert implements Analyzer {
      * @throws IOException if the connection attempt fails due to network errors or invalid connection parameters.
      */
     public void connectAsClient() throws IOException {
-        if (socket != null && !socket.isClosed()) return;
-        socket = new Socket(ip_analyzer, port_analyzer);
-        inputStream = socket.getInputStream();
-        outputStream = socket.getOutputStream();
+        if (connection != null && !connection.isClosed()) return;
+        GeneXpertTransport c = GeneXpertRuntime.get().transport().connect(ip_analyzer, port_analyzer);
+        startLink();
+        connection = c;
+        inputStream = wireTrace.tap(c.input());
+        outputStream = c.output();
     }
     
     /**
      * Starts an ASTM server that listens for incoming ASTM messages.
+     * Returns when the server stops, or when a wait is handed over to the event loop of the carrier
+     * (serving then goes on in {@link #resumeServing}).
      */
     private void startASTMServer() {
     	this.listening.set(true);
         while (this.listening.get()) {
+            GeneXpertTransport.Listener server;
             try {
-            	this.serverSocket = new ServerSocket(this.port_analyzer);
-                logger.info("ASTM Server started on port {}", this.port_analyzer);
-
-                while (true) {
-                    try (Socket clientSocket = serverSocket.accept()) {
-                        logger.info("Accepted connection from {}", clientSocket.getInetAddress());
-                        this.socket = clientSocket;
-                        this.inputStream = clientSocket.getInputStream();
-                        this.outputStream = clientSocket.getOutputStream();
-                        listenForIncomingMessages();
-                    } catch (IOException ioEx) {
-                        logger.error("ERROR: Client handling failed: {}", ioEx.getMessage(), ioEx);
-                    } finally {
-                        this.socket = null; 
-                        this.inputStream = null; 
-                        this.outputStream = null;                        
-                        logger.info("Client connection closed.");
-                    }
-                }
+            	server = GeneXpertRuntime.get().transport().listen(this.port_analyzer);
             } catch (IOException startEx) {
                 this.listening.set(false);
-                try { if (this.socket != null) this.socket.close(); } catch (IOException ignore) {}
-                this.socket = null;
+                try { if (this.connection != null) this.connection.close(); } catch (IOException ignore) {}
+                this.connection = null;
                 logger.error("ERROR: Failed to start ASTM server on port {}: {}", this.port_analyzer, startEx.getMessage());
                 break;
-            } finally {
+            }
+            this.listener = server;
+            logger.info("ASTM Server started on port {}", this.port_analyzer);
+            if (serveOrHandOver(server)) return;
+        }
+    }
+
+    /**
+     * Serves a listener again on an I/O thread, after the event loop reported a pending connection
+     * or after a session that had given its thread back ended.
+     */
+    private void resumeServing(GeneXpertTransport.Listener server) {
+        if (serveOrHandOver(server)) return;
+        if (this.listening.get()) startASTMServer();
+    }
+
+    /**
+     * Runs {@link #serve}, then closes the listener unless serving goes on in another thread.
+     *
+     * @return true if serving goes on in another thread
+     */
+    private boolean serveOrHandOver(GeneXpertTransport.Listener server) {
+        boolean handedOver = false;
+        try {
+            handedOver = serve(server);
+        } finally {
+            if (!handedOver) {
                 try {
-                    if (this.serverSocket != null && !this.serverSocket.isClosed()) {
-                        this.serverSocket.close();
-                    }
+                    if (!server.isClosed()) server.close();
                 } catch (IOException e) {
-                    logger.warn("Error while closing serverSocket in finally: " + e.getMessage(), e);
+                    logger.warn("Error while closing listener in finally: " + e.getMessage(), e);
                 } finally {
-                    this.serverSocket = null;
+                    this.listener = null;
                 }
             }
         }
+        return handedOver;
+    }
+
+    /**
+     * Accepts the connections of a listener and runs their sessions, one at a time, until it is closed.
+     * <p>
+     * On a carrier with an event loop ({@link GeneXpertTransport.Listener#onAcceptable}), the thread is given
+     * back while no connection is pending and while the session waits for ENQ: an idle analyzer then
+     * holds no thread.
+     *
+     * @return true if serving goes on in another thread ({@link #resumeServing}), false once the listener is closed
+     */
+    private boolean serve(GeneXpertTransport.Listener server) {
+        String name = "AnalyzerGeneXpert-MainListener-" + this.id_analyzer;
+        Runnable resume = () -> resumeServing(server);
+        // stopListening() closes the listener: accept() then fails and the loop ends
+        // (a session ending sets listening to false, so it cannot be the loop condition)
+        while (!server.isClosed()) {
+            if (server.onAcceptable(() -> GeneXpertRuntime.get().startListener(name, resume))) return true;
+            GeneXpertTransport client;
+            try {
+                client = server.accept();
+            } catch (IOException ioEx) {
+                if (server.isClosed()) break;
+                logger.error("ERROR: Client handling failed: {}", ioEx.getMessage(), ioEx);
+                continue;
+            }
+            logger.info("Accepted connection from {}", client.remoteAddress());
+            startLink();
+            this.connection = client;
+            this.inputStream = wireTrace.tap(client.input());
+            this.outputStream = client.output();
+            if (runSession(false, () -> endSession(client), resume)) return true;
+        }
+        return false;
     }
     
+    /**
+     * Runs the E1381 FSM on the current connection, keeping session metrics and JFR events.
+     * <p>
+     * With {@code onEnd}, the session gives its thread back while it waits for ENQ on a carrier with an event
+     * loop ({@link GeneXpertTransport#onReadable}), and goes on in the I/O executor when bytes arrive.
+     * Otherwise it blocks until the connection is closed or fails.
+     *
+     * @param enqAcknowledged true if the ENQ of the first transmission was already acknowledged (shared port)
+     * @param onEnd Run when the session ends, on the thread that ends it; null to keep this thread (client mode)
+     * @param next Run after {@code onEnd} when the session had given this thread back, or null
+     * @return true if the session gave this thread back (it then ends on another thread)
+     */
+    private boolean runSession(boolean enqAcknowledged, Runnable onEnd, Runnable next) {
+        return new Session(onEnd, next).start(enqAcknowledged);
+    }
+
+    /**
+     * E1381 session of one connection, from its first ENQ wait to its close.
+     */
+    private final class Session implements Runnable {
+        private final GeneXpertReceiveBuffer rx = GeneXpertRuntime.get().receiveBuffer();
+        private final GeneXpertEvents.SessionClosed closed = new GeneXpertEvents.SessionClosed();
+        private final String remote;
+        private final Runnable onEnd;
+        private final Runnable next;
+        private final Runnable resume; // null: the session keeps its thread
+
+        Session(Runnable onEnd, Runnable next) {
+            GeneXpertTransport c = connection;
+            this.remote = (c != null) ? c.remoteAddress() : "";
+            this.onEnd = onEnd;
+            this.next = next;
+            String name = "AnalyzerGeneXpert-Session-" + id_analyzer;
+            this.resume = (onEnd == null) ? null : () -> GeneXpertRuntime.get().background(name, this);
+        }
+
+        /**
+         * Runs the session on this thread until it ends or gives the thread back.
+         *
+         * @return true if the session gave the thread back
+         */
+        boolean start(boolean enqAcknowledged) {
+            GeneXpertEvents.SessionAccepted accepted = new GeneXpertEvents.SessionAccepted();
+            if (accepted.shouldCommit()) {
+                accepted.analyzerId = id_analyzer;
+                accepted.remoteAddress = remote;
+                accepted.commit();
+            }
+            closed.begin();
+            metrics().activeSessions.incrementAndGet();
+            sessionReading = true;
+            boolean parked = false;
+            try {
+                // queued LAB-28 orders go out while the analyzer is idle (after the routed first transmission)
+                if (!enqAcknowledged) scheduleOrderDelivery();
+                parked = listenForIncomingMessages(enqAcknowledged, rx, resume);
+            } finally {
+                if (!parked) end();
+            }
+            return parked;
+        }
+
+        /**
+         * Goes on after the event loop reported the connection readable (bytes, end of stream or close).
+         */
+        @Override
+        public void run() {
+            if (receiveTimer.expired()) {
+                listening.set(false);
+                logger.info("No transmission within {} ms — idle connection closed", GeneXpertRuntime.get().idleTimeoutMs());
+            }
+            boolean parked = false;
+            try {
+                parked = listenForIncomingMessages(false, rx, resume);
+            } finally {
+                if (!parked) end();
+            }
+            if (!parked && next != null) next.run();
+        }
+
+        private void end() {
+            sessionReading = false;
+            try {
+                routeReply(-1); // a transmission to the analyzer no longer gets replies
+                GeneXpertRuntime.get().recycle(rx);
+            } finally {
+                metrics().activeSessions.decrementAndGet();
+                closed.end();
+                if (closed.shouldCommit()) {
+                    closed.analyzerId = id_analyzer;
+                    closed.remoteAddress = remote;
+                    closed.commit();
+                }
+                if (onEnd != null) onEnd.run();
+            }
+        }
+    }
+
     /**
      * Returns a printable representation of a control or ASCII byte.
-     * Used for logging/debugging low-level byte traffic on the socket.
+     * Used for logging/debugging low-level byte traffic on the connection.
      *
      * @param b Byte value to convert
      * @return String description (e.g., "ACK", "CR", "LF", or character literal)
@@ -1345,55 +2466,274 @@ public class AnalyzerGeneXpert implements Analyzer {
         }
     }
 
+    /**
+     * Reads the reply to an ENQ or a frame sent, within genexpert.ackTimeoutMs. The reply to a frame is
+     * a round trip of the link: its deadline adapts to the round trips measured on the connection, and a
+     * reply in time is a sample. The reply to an ENQ may be held by a busy instrument, so it is neither.
+     *
+     * @param routed Replies handed over by the session, or null to read the connection
+     * @param adaptive true for the reply to a frame
+     * @return Reply byte, -1 at end of stream, or {@link #TIMED_OUT} if the timer expired (the connection is then closed)
+     * @throws IOException If the connection read fails, or if interrupted while waiting for a routed reply
+     */
+    private int readAck(BlockingQueue<Integer> routed, boolean adaptive) throws IOException {
+        GeneXpertRttEstimator rtt = adaptive ? this.ackRtt : null;
+        long limitMs = GeneXpertRuntime.get().ackTimeoutMs();
+        ackWaitMs = (rtt != null) ? rtt.timeoutMs(limitMs) : limitMs;
+        metrics().ackTimeoutMs = ackWaitMs;
+        long start = System.nanoTime();
+        if (routed != null) {
+            Integer b;
+            try {
+                b = routed.poll(ackWaitMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for ACK", e);
+            }
+            if (b == null) {
+                expireConnection();
+                return TIMED_OUT;
+            }
+            if (b >= 0 && rtt != null) rtt.sample(System.nanoTime() - start);
+            return b;
+        }
+        sendTimer.arm(ackWaitMs);
+        try {
+            int b = readByte();
+            if (b < 0 && sendTimer.expired()) return TIMED_OUT;
+            if (b >= 0 && rtt != null) rtt.sample(System.nanoTime() - start);
+            return b;
+        } catch (IOException e) {
+            if (sendTimer.expired()) return TIMED_OUT;
+            throw e;
+        } finally {
+            sendTimer.disarm();
+        }
+    }
+
+    /**
+     * Sets up the link state of a new connection, before it is published in {@link #connection}:
+     * a fresh round-trip history, and the E1381 timers on the first connection (not in field initializers,
+     * so that creating or copying an analyzer does not start the shared runtime).
+     */
+    private void startLink() {
+        GeneXpertRuntime runtime = GeneXpertRuntime.get();
+        if (this.sendTimer == null) {
+            this.receiveTimer = runtime.timers().deadline(this::expireConnection);
+            this.sendTimer = runtime.timers().deadline(this::expireConnection);
+        }
+        this.ackRtt = runtime.rttEstimator();
+    }
+
+    /**
+     * Timer expiry: closes the current connection, which ends the blocked read of the session.
+     */
+    private void expireConnection() {
+        GeneXpertTransport s = this.connection;
+        if (s == null) return;
+        try {
+            s.close();
+        } catch (IOException e) {
+            logger.debug("Error while closing timed out connection: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Reads one byte from the analyzer and records it in the session wire trace.
+     *
+     * @return The byte read, or -1 at end of stream
+     * @throws IOException If the connection read fails or times out
+     */
+    private int readByte() throws IOException {
+        int b = inputStream.read();
+        if (b >= 0 && logger.isTraceEnabled()) {
+            logger.trace("<<< BYTE 0x{} ({})", String.format("%02X", b), printable(b));
+        }
+        return b;
+    }
+
+    /**
+     * Writes one byte to the analyzer and records it in the session wire trace (no flush).
+     */
+    private void writeByte(int b) throws IOException {
+        outputStream.write(b);
+        wireTrace.tx(b);
+    }
+
+    /**
+     * Writes a block of bytes to the analyzer and records it in the session wire trace (no flush).
+     */
+    private void writeBytes(byte[] buf) throws IOException {
+        outputStream.write(buf);
+        wireTrace.tx(buf, 0, buf.length);
+    }
+
+    /**
+     * Logs the recent wire traffic of the current session at WARN level.
+     * Called on checksum errors, NAKs, timeouts and I/O errors only.
+     *
+     * @param reason Short description of the event that triggered the dump
+     */
+    private void dumpWireTrace(String reason) {
+        String trace = wireTrace.dump();
+        if (!trace.isEmpty()) {
+            logger.warn("ASTM wire trace ({}), analyzer {}:\n{}", reason, this.id_analyzer, trace);
+        }
+    }
+
+    /**
+     * Commits a JFR FrameReceived event if a recording wants it.
+     * The specimen ID is only known when the frame carries an O| or Q| record.
+     */
+    private void commitFrameReceived(GeneXpertEvents.FrameReceived event, GeneXpertFrameCodec frame, String reply) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.analyzerId = this.id_analyzer;
+            event.specimenId = GeneXpertEvents.specimenOf(new String(frame.payload(), 0, frame.length(), StandardCharsets.US_ASCII));
+            event.frameNumber = Character.digit(frame.frameNumber(), 10);
+            event.payloadBytes = frame.length();
+            event.lastFrame = frame.isLastFrame();
+            event.reply = reply;
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns the recent wire traffic of the current session (on-demand diagnostics).
+     *
+     * @return Timestamped trace, one line per direction change, or an empty string
+     */
+    public String getWireTrace() {
+        return wireTrace.dump();
+    }
+
     /**
      * Listens for incoming ASTM messages using ASTM E1381 framing.
      *
-     * STEP 1: Wait for ENQ from the analyzer (15s timeout) and reply with ACK.
+     * STEP 1: Wait for ENQ from the analyzer and reply with ACK.
      * STEP 2: Receive one or more frames:
      *         STX + frame number + payload + ETX/ETB + checksum + CR + LF.
      * STEP 3: Validate checksum for each frame and reply ACK or NAK
      *         (ETB = continuation frame, ETX = final frame).
-     * STEP 4: Assemble the complete ASTM message until EOT is received.
+     * STEP 4: Assemble the complete ASTM message until EOT is received
+     *         (bounded by genexpert.maxFrameBytes / genexpert.maxMessageBytes: a longer transmission
+     *         is answered with EOT, the E1381 receiver interrupt, and discarded).
      * STEP 5: Dispatch the message to LAB-27 or LAB-29 depending on content.
      * STEP 6: If a response is produced, send it back to the analyzer on the same connection.
      *
-     * This method is blocking and runs while the socket is open and listening is enabled.
+     * The session holds the line from ENQ to its response. While it waits for ENQ, a transmission to the analyzer
+     * (LAB-28) may hold the line: the bytes read are its replies and are handed over to it, and an ENQ
+     * (contention) makes it yield.
+     *
+     * Timeouts are driven by the shared timer wheel, not by read timeouts of the transport: the wait for ENQ has
+     * none (unless genexpert.idleTimeoutMs is set), frames and EOT must arrive within an adaptive
+     * deadline based on the gaps measured on this connection, at most genexpert.receiveTimeoutMs.
+     * An expired timer closes the connection, which ends the session.
+     *
+     * This method runs while the connection is open and listening is enabled, or until the session gives
+     * its thread back while waiting for ENQ.
+     *
+     * @param enqAcknowledged true if STEP 1 was already done for the first transmission (shared port router)
+     * @param rx Receive buffer of the session
+     * @param resume Task resuming the session when the connection is readable, or null to keep the thread
+     * @return true if the session gave its thread back ({@code resume} runs later)
      */
-    private void listenForIncomingMessages() {
-    	// Loop while the socket is alive; per-connection FSM
-        while (socket != null && !socket.isClosed()) {
+    private boolean listenForIncomingMessages(boolean enqAcknowledged, GeneXpertReceiveBuffer rx, Runnable resume) {
+        GeneXpertMetrics m = metrics();
+        GeneXpertFrameCodec decoder = rx.decoder();
+        boolean skipEnq = enqAcknowledged;
+    	// Loop while the connection is alive; per-connection FSM
+        GeneXpertTransport c;
+        while ((c = connection) != null && !c.isClosed()) {
+            // STEP 1 on a carrier with an event loop: an idle connection gives its thread back until bytes arrive
+            if (resume != null && !skipEnq && parkUntilReadable(c, resume)) return true;
+            boolean inTransfer = false;
+            long frameWaitMs = 0; // deadline of the last frame wait, for logs
+            boolean inbound = false; // line taken for this transmission
+            boolean admitted = false;
             try {
-                // STEP 1: Wait for ENQ (15s)
-                socket.setSoTimeout(15000);
-                int firstByte = inputStream.read();
-                if (firstByte == -1) {
-                    logger.info("Stream closed by peer during ENQ wait. Exiting listener.");
-                    this.listening.set(false);
-                    break;
+                if (skipEnq) {
+                    // STEP 1-2 done by the shared port router: the first frame follows.
+                    // Its ENQ is already acknowledged, so admission can only hold the ACK of that frame;
+                    // if refused, the connection is closed and the instrument sends again after reconnecting.
+                    skipEnq = false;
+                    acquireInboundLine();
+                    inbound = true;
+                    if (!admit(m)) {
+                        logger.warn("Upstream work limit reached: first transmission of analyzer {} refused, closing connection", this.id_analyzer);
+                        connection.close();
+                        break;
+                    }
+                    admitted = true;
+                } else {
+                    // STEP 1: Wait for ENQ (no timeout, unless idle connections are reaped)
+                    long idleTimeout = GeneXpertRuntime.get().idleTimeoutMs();
+                    if (idleTimeout > 0) receiveTimer.arm(idleTimeout);
+                    int firstByte = readByte();
+                    receiveTimer.disarm();
+                    if (firstByte != ENQ && firstByte != -1 && routeReply(firstByte)) {
+                        continue; // reply to a transmission to the analyzer (LAB-28)
+                    }
+                    if (firstByte == -1) {
+                        logger.info("Stream closed by peer during ENQ wait. Exiting listener.");
+                        this.listening.set(false);
+                        break;
+                    }
+                    if (firstByte != ENQ) {
+                        logger.warn("Expected ENQ but received: {}", printable(firstByte));
+                        continue; // keep waiting for a proper ENQ
+                    }
+                    acquireInboundLine();
+                    inbound = true;
+
+                    // STEP 2: Admission (in-flight limits), then ACK the ENQ to start the transfer.
+                    // When the limits are reached, the ACK is held up to genexpert.enqHoldMs, then the ENQ
+                    // is refused with NAK (busy): the instrument retries later, nothing is buffered here.
+                    if (!admit(m)) {
+                        writeByte(NAK);
+                        outputStream.flush();
+                        m.nakSent.increment();
+                        logger.warn("Upstream work limit reached: ENQ refused with NAK, analyzer {} will retry", this.id_analyzer);
+                        continue;
+                    }
+                    admitted = true;
+                    writeByte(ACK);
+                    outputStream.flush();
                 }
-                logger.info("<<< DEBUG BYTE 0x{} ({})", String.format("%02X", firstByte), printable(firstByte));
-                if (firstByte != ENQ) {
-                    logger.warn("Expected ENQ but received: {}", printable(firstByte));
-                    continue; // keep waiting for a proper ENQ
+                inTransfer = true;
+                long enqReceived = System.nanoTime();
+                int framesInMessage = 0;
+
+                GeneXpertEvents.EnqReceived enqEvent = new GeneXpertEvents.EnqReceived();
+                if (enqEvent.shouldCommit()) {
+                    enqEvent.analyzerId = this.id_analyzer;
+                    enqEvent.commit();
                 }
-
-                // STEP 2: ACK the ENQ to start the transfer
-                outputStream.write(ACK);
-                outputStream.flush();
-                logger.info(">>> Sent ACK [0x06] in response to ENQ");
+                GeneXpertEvents.MessageAssembled assembledEvent = new GeneXpertEvents.MessageAssembled();
+                assembledEvent.begin();
+                logger.debug(">>> Sent ACK [0x06] in response to ENQ");
 
                 // STEP 3: Receive frames until EOT
-                ByteArrayOutputStream assembledMessage = new ByteArrayOutputStream();
+                rx.reset();
+                boolean oversized = false;
+                int lastFrameNo = -1; // frame number of the last frame accepted
 
                 framesLoop:
                 while (true) {
-                    int b = inputStream.read();
+                    // Next frame or EOT within genexpert.receiveTimeoutMs, otherwise the connection is closed.
+                    // Not adapted: the gap between frames is the instrument's own pace, not a round trip
+                    frameWaitMs = GeneXpertRuntime.get().receiveTimeoutMs();
+                    m.frameTimeoutMs = frameWaitMs;
+                    receiveTimer.arm(frameWaitMs);
+                    int b = readByte();
                     if (b == -1) throw new IOException("Stream closed while waiting for STX/EOT");
-                    logger.info("<<< DEBUG BYTE 0x{} ({})", String.format("%02X", b), printable(b));
 
                     // STEP 3.1: End of transmission?
                     if (b == EOT) {
-                        logger.info("<<< Received EOT — message transmission complete");
+                        receiveTimer.disarm();
+                        m.enqToEot.recordNanos(System.nanoTime() - enqReceived);
+                        assembledEvent.end();
+                        logger.debug("<<< Received EOT — message transmission complete");
                         break framesLoop;
                     }
 
@@ -1403,136 +2743,228 @@ public class AnalyzerGeneXpert implements Analyzer {
                         continue; // ignore noise and keep reading
                     }
 
-                    // STEP 3.3: Read frame number (ASCII '0'..'7' typically)
-                    int frameNo = inputStream.read();
-                    if (frameNo < 0) throw new IOException("Frame aborted: missing frame number after STX");
-
-                    // STEP 3.4: Read payload up to ETX or ETB (terminator not included in payload)
-                    ByteArrayOutputStream frameContent = new ByteArrayOutputStream();
-                    int c;
-                    while (true) {
-                        c = inputStream.read();
-                        if (c < 0) throw new IOException("Frame aborted: stream closed before ETX/ETB");
-                        if (c == ETX || c == ETB) break; // end of text for this frame
-                        frameContent.write(c);
-                    }
-                    byte terminator = (byte) c; // ETX (final) or ETB (more frames follow)
-
-                    // STEP 3.5: Read checksum (2 ASCII hex) + CR + LF
-                    int c1 = inputStream.read();
-                    int c2 = inputStream.read();
-                    int cr = inputStream.read();
-                    int lf = inputStream.read();
-                    if (c1 < 0 || c2 < 0 || cr < 0 || lf < 0) {
-                        throw new IOException("Incomplete trailer after ETX/ETB (checksum/CR/LF missing)");
+                    // STEP 3.3-3.6: Read frame number, payload up to ETX/ETB, checksum + CR + LF,
+                    // and verify the checksum over [frameNo + payload + terminator]
+                    GeneXpertEvents.FrameReceived frameEvent = new GeneXpertEvents.FrameReceived();
+                    frameEvent.begin();
+                    boolean checksumOk = decoder.readFrame(this::readByte);
+
+                    // E1381: a frame with the number of the last frame accepted is a retransmission
+                    // (our ACK was lost or garbled): acknowledged again, but not appended twice
+                    if (checksumOk && !oversized && decoder.frameNumber() == lastFrameNo) {
+                        writeByte(ACK);
+                        outputStream.flush();
+                        commitFrameReceived(frameEvent, decoder, "ACK");
+                        logger.warn("Frame {} received again (retransmission), acknowledged and ignored", (char) lastFrameNo);
+                        continue;
                     }
-                    if (cr != CR || lf != LF) {
-                        throw new IOException(String.format("Invalid trailer bytes: CR=0x%02X LF=0x%02X", cr, lf));
+
+                    // STEP 3.7: Oversized transmission: answer every frame with EOT (receiver interrupt)
+                    // until the sender ends with EOT; nothing more is kept
+                    if (oversized || decoder.isOversized() || (checksumOk && !rx.appendFrame())) {
+                        writeByte(EOT);
+                        outputStream.flush();
+                        commitFrameReceived(frameEvent, decoder, "EOT");
+                        if (!oversized) {
+                            oversized = true;
+                            m.oversizedMessages.increment();
+                            logger.warn("ASTM message from analyzer {} exceeds the frame or message size limit after {} bytes: "
+                                    + "receiver interrupt sent, message discarded", this.id_analyzer, rx.length());
+                            dumpWireTrace("oversized message (receiver interrupt sent)");
+                        }
+                        continue;
                     }
-                    String receivedChecksum = "" + (char) c1 + (char) c2;
-
-                    // STEP 3.6: Compute checksum over [frameNo + payload + terminator]
-                    int sum = (frameNo & 0xFF);
-                    byte[] payloadBytes = frameContent.toByteArray();
-                    for (byte pb : payloadBytes) sum += (pb & 0xFF);
-                    sum += (terminator & 0xFF);
-                    sum &= 0xFF;
-                    String expectedChecksum = String.format("%02X", sum);
-
-                    // STEP 3.7: ACK/NAK the frame based on checksum validity
-                    if (!receivedChecksum.equalsIgnoreCase(expectedChecksum)) {
-                        logger.warn("Checksum mismatch: expected {} but got {}", expectedChecksum, receivedChecksum);
-                        outputStream.write(NAK);
+
+                    // STEP 3.8: ACK/NAK the frame based on checksum validity
+                    if (!checksumOk) {
+                        logger.warn("Checksum mismatch: expected {} but got {}", decoder.expectedChecksum(), decoder.receivedChecksum());
+                        writeByte(NAK);
                         outputStream.flush();
+                        m.checksumErrors.increment();
+                        m.nakSent.increment();
+                        commitFrameReceived(frameEvent, decoder, "NAK");
+                        dumpWireTrace("checksum mismatch (NAK sent)");
                         // Wait for retransmission of the same frame; do not append to assembly
                         continue;
                     } else {
-                        outputStream.write(ACK);
+                        writeByte(ACK);
                         outputStream.flush();
+                        m.framesReceived.increment();
+                        framesInMessage++;
+                        lastFrameNo = decoder.frameNumber();
+                        commitFrameReceived(frameEvent, decoder, "ACK");
                     }
 
-                    // STEP 3.8: Append frame payload into the assembled message (NO extra delimiter here)
+                    // Frame payload was appended to the assembled message above (NO extra delimiter here)
                     // The payload already contains CR between ASTM records; frames can split a record arbitrarily.
                     // Do NOT inject CR here, or you will break records that continue in the next frame.
                     // Frames may split an ASTM record across multiple frames.
-                    assembledMessage.write(payloadBytes);
 
                     // NOTE: If terminator == ETB, there will be continuation frames before EOT.
                     // We keep looping: next expected bytes are STX ... until EOT arrives.
                 }
                 
+                if (oversized) {
+                    inTransfer = false;
+                    continue;
+                }
+
                 // STEP 4: Build full ASTM message string
                 // Normalize assembled bytes to String; collapse CRLF to CR defensively.
-                byte[] assembled = assembledMessage.toByteArray();
-                String astmMessage = new String(assembled, StandardCharsets.US_ASCII)
-                        .replace("\r\n", "\r")
-                        .trim();
-
-                if (astmMessage.isEmpty()) {
+                // A spilled message stays in its memory-mapped file: its records are read from it when needed.
+                if (rx.isBlank()) {
                     logger.warn("Empty ASTM message received — ignored.");
                     continue;
                 }
-                logger.info("DEBUG: Complete ASTM message:\n{}", astmMessage.replace("\r", "\n"));
+                inTransfer = false;
+                GeneXpertReceiveBuffer spilled = rx.isSpilled() ? rx : null;
+                String astmMessage = (spilled != null) ? null : rx.text()
+                        .replace("\r\n", "\r")
+                        .trim();
+                String[] astmLines = (spilled != null) ? null : rx.records();
+                if (spilled != null) m.spilledMessages.increment();
+
+                if (assembledEvent.shouldCommit()) {
+                    assembledEvent.analyzerId = this.id_analyzer;
+                    assembledEvent.specimenId = (spilled != null)
+                            ? GeneXpertEvents.specimenOf(firstRecord(spilled, 'O', 'Q')) : GeneXpertEvents.specimenOf(astmMessage);
+                    assembledEvent.frames = framesInMessage;
+                    assembledEvent.messageBytes = rx.length();
+                    assembledEvent.commit();
+                }
+                if (spilled == null && logger.isDebugEnabled()) {
+                    logger.debug("Complete ASTM message:\n{}", astmMessage.replace("\r", "\n"));
+                }
                 
-                this.lastReplyHeader = buildReplyHeader(astmMessage);
-
-                // STEP 5: Dispatch to LAB-27/LAB-29; if response produced, do ASTM turnaround send
-                String responseMessage = processAnalyzerMsg(astmMessage);
-                if (responseMessage != null && !responseMessage.isEmpty()) {
-                    logger.info(">>> Sending ASTM response (turnaround):\n{}", responseMessage.replace("\r", "\n"));
-                    String[] responseLines = responseMessage.replaceAll("[\\u000d\\u000a]+", "\n").split("\n");
-                    sendASTMMessage(responseLines); // ENQ → ACK → frames → EOT
-                } else {
+                this.lastReplyHeader = buildReplyHeader((spilled != null) ? firstRecord(spilled, 'H', 'H') : astmMessage);
+
+                // STEP 5: Dispatch to LAB-27/LAB-29; the response (ASTM turnaround: ENQ → ACK → frames → EOT)
+                // is sent record by record as it is produced
+                // (conversions and LabBook calls run on the shared worker pool, within this analyzer's quota,
+                // urgent messages first when the workers are busy)
+                Transmission reply = new Transmission();
+                GeneXpertPriority priority = (spilled != null) // O.6 of the results, routine for a query
+                        ? GeneXpertPriority.ofAstm(spilled.eachRecord()) : GeneXpertPriority.ofAstm(astmLines);
+                if (priority.urgent()) m.urgentMessages.increment();
+                GeneXpertRuntime.get().process(this.id_analyzer, priority, () -> processAnalyzerMsg(astmMessage, astmLines, spilled, reply));
+                if (!reply.started()) {
                     logger.warn("No response generated for received ASTM message.");
                 }
 
-            } catch (SocketTimeoutException timeoutEx) {
-                // STEP 6: No byte received in the window — keep waiting
-                logger.warn("No data received within 15000 ms — continuing to wait...");
-                continue;
-
             } catch (IOException ioEx) {
-                // STEP 7: Fatal I/O — stop listening on this socket
+                // STEP 6: Fatal I/O or expired timer (the timer closed the connection) — stop listening on this connection
             	this.listening.set(false);
-                logger.error("Exception in listenForIncomingMessages (ASTM): {}", ioEx.getMessage(), ioEx);
+                if (receiveTimer.expired() && inTransfer) {
+                    logger.warn("No frame or EOT received within {} ms — transmission aborted, connection closed", frameWaitMs);
+                    m.timeouts.increment();
+                    dumpWireTrace("timeout during message reception");
+                } else if (receiveTimer.expired()) {
+                    logger.info("No transmission within {} ms — idle connection closed", GeneXpertRuntime.get().idleTimeoutMs());
+                } else {
+                    logger.error("Exception in listenForIncomingMessages (ASTM): {}", ioEx.getMessage(), ioEx);
+                    dumpWireTrace("I/O error: " + ioEx.getMessage());
+                }
+            } finally {
+                receiveTimer.disarm();
+                if (admitted) GeneXpertRuntime.get().release(this.id_analyzer);
+                if (inbound) releaseLine(INBOUND);
             }
         }
+        return false;
     }
 
     /**
-     * Dispatches a decoded ASTM message to the appropriate LAB handler.
+     * Hands the ENQ wait of the session over to the event loop of the carrier, if it has one and nothing
+     * was received yet. The idle timer (genexpert.idleTimeoutMs) stays armed meanwhile: closing the
+     * connection also resumes the session, which then ends.
+     *
+     * @return true if {@code resume} runs when the connection is readable
+     */
+    private boolean parkUntilReadable(GeneXpertTransport c, Runnable resume) {
+        try {
+            if (inputStream.available() > 0) return false;
+        } catch (IOException e) {
+            return false; // the read reports it
+        }
+        long idleTimeout = GeneXpertRuntime.get().idleTimeoutMs();
+        if (idleTimeout > 0) receiveTimer.arm(idleTimeout);
+        if (c.onReadable(resume)) return true;
+        receiveTimer.disarm();
+        return false;
+    }
+
+    /**
+     * Waits for admission of the transmission announced by an ENQ (see {@link GeneXpertRuntime#admit})
+     * and records the wait.
+     *
+     * @return true if admitted, false if the in-flight limits are still reached after the hold time
+     */
+    private boolean admit(GeneXpertMetrics m) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = GeneXpertRuntime.get().admit(this.id_analyzer);
+        long waited = System.nanoTime() - start;
+        m.admissionWait.recordNanos(waited);
+        if (!ok) {
+            m.enqRefused.increment();
+        } else if (waited >= 1_000_000L) {
+            m.enqDelayed.increment(); // ACK held (an uncontended admission takes microseconds)
+        }
+        return ok;
+    }
+
+    /**
+     * Dispatches a decoded ASTM message to the appropriate LAB handler and sends its response.
      *
      * Routing rules:
-     * - presence of a Q| segment → LAB-27
+     * - presence of a Q| segment → LAB-27 (response streamed while LabBook pages are converted)
      * - otherwise, presence of an H| segment → LAB-29
      * - otherwise, the message is ignored
      *
-     * @param receivedMessage Raw ASTM message (CR-delimited)
-     * @return ASTM response message or null if no response is required
+     * A message spilled to a memory-mapped file is not read into memory as a whole: its LAB-29 results
+     * are handled one patient at a time ({@link #lab29(GeneXpertReceiveBuffer)}); a query, a few records
+     * long, is read into memory.
+     *
+     * @param receivedMessage Raw ASTM message (CR-delimited), null if spilled
+     * @param lines Records of the message, null if spilled
+     * @param spilled Receive buffer holding the spilled message, or null
+     * @param reply Transmission of the response to the analyzer (left unstarted if there is no response)
+     * @return Transmission status ("ACK" if the response was accepted), or null if no response was sent
      */
-    private String processAnalyzerMsg(String receivedMessage) {
+    private String processAnalyzerMsg(String receivedMessage, String[] lines, GeneXpertReceiveBuffer spilled, Transmission reply) {
         try {
-            // Normalize to lines
-            String[] lines = receivedMessage.replaceAll("[\\u000d\\u000a]+", "\n").split("\n");
-
-            boolean hasH = Arrays.stream(lines).anyMatch(l -> l.matches("^\\d*H\\|.*"));
-            boolean hasQ = Arrays.stream(lines).anyMatch(l -> l.matches("^\\d*Q\\|.*"));
+            boolean hasH = false;
+            boolean hasQ = false;
+            for (String l : (spilled != null) ? spilled.eachRecord() : Arrays.asList(lines)) {
+                if (!hasH && l.matches("^\\d*H\\|.*")) hasH = true;
+                if (l.matches("^\\d*Q\\|.*")) {
+                    hasQ = true;
+                    break;
+                }
+            }
 
             if (hasQ) {
                 logger.info("Detected ASTM query message with Q| segment, routing to lab27...");
-                return lab27(receivedMessage);
+                String[] queryLines = (spilled != null) ? spilled.records() : lines;
+                lab27((spilled != null) ? String.join("\r", queryLines) : receivedMessage, queryLines, reply);
             } else if (hasH) {
                 logger.info("Detected ASTM result message with H| segment, routing to lab29...");
-                return lab29(receivedMessage);
+                String response = (spilled != null) ? lab29(spilled) : lab29(receivedMessage, lines);
+                if (response != null && !response.isEmpty()) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug(">>> Sending ASTM response (turnaround):\n{}", response.replace("\r", "\n"));
+                    }
+                    for (String line : response.split("[\r\n]+")) {
+                        if (!line.isEmpty()) reply.record(line);
+                    }
+                }
             } else {
                 logger.warn("Received message without recognizable H| or Q| segment, ignored.");
-                return null;
             }
 
         } catch (Exception e) {
             logger.error("ERROR: Exception in processAnalyzerMsg: " + e.getMessage(), e);
-            return null;
         }
+        return reply.finish();
     }
     
     /**
@@ -1582,8 +3014,8 @@ public class AnalyzerGeneXpert implements Analyzer {
 
         String msg = buffer.toString(StandardCharsets.US_ASCII).trim();
 
-        if (!msg.isEmpty()) {
-            logger.info("Complete ASTM message received:\n{}", msg.replace("\r", "\n"));
+        if (!msg.isEmpty() && logger.isDebugEnabled()) {
+            logger.debug("Complete ASTM message received:\n{}", msg.replace("\r", "\n"));
         }
 
         return msg;
@@ -1593,27 +3025,36 @@ public class AnalyzerGeneXpert implements Analyzer {
     public void stopListening() {
     	this.listening.set(false);
 
+    	GeneXpertSharedPort shared = this.sharedPort;
+    	if (shared != null) {
+    		this.sharedPort = null;
+    		shared.unregister(this);
+    	}
+
         try {
-            if (this.socket != null && !this.socket.isClosed()) {
-            	this.socket.close();
+            if (this.connection != null) {
+            	this.connection.close();
             }
         } catch (IOException e) {
-            logger.warn("stopListening: error while closing client socket: " + e.getMessage(), e);
+            logger.warn("stopListening: error while closing client connection: " + e.getMessage(), e);
         } finally {
-        	this.socket = null;
+        	this.connection = null;
         	this.inputStream = null;
         	this.outputStream = null;
         }
 
         try {
-            if (this.serverSocket != null && !this.serverSocket.isClosed()) {
-            	this.serverSocket.close();
+            if (this.listener != null && !this.listener.isClosed()) {
+            	this.listener.close();
             }
         } catch (IOException e) {
-            logger.warn("stopListening: error while closing server socket: " + e.getMessage(), e);
+            logger.warn("stopListening: error while closing listener: " + e.getMessage(), e);
         } finally {
-        	this.serverSocket = null;
+        	this.listener = null;
         }
+
+        GeneXpertSpecimenTracker specimens = specimens();
+        if (specimens != null) specimens.snapshot();
     }
     
     // === Utility methods ===
@@ -1720,24 +3161,142 @@ public class AnalyzerGeneXpert implements Analyzer {
      * @return Formatted current timestamp (e.g., "20250722143000")
      */
     private static String getCurrentDateTime() {
-        return java.time.format.DateTimeFormatter.ofPattern("yyyyMMddHHmmss").format(java.time.LocalDateTime.now());
+        return GeneXpertClock.timestamp();
     }
     
     /**
-     * Splits a raw ASTM message into lines using CR/LF normalization,
-     * and logs each individual line for debugging purposes.
+     * Splits a raw ASTM message into lines using CR/LF normalization.
      *
      * @param msg Raw ASTM message as a single string (may include CR/LF or LF)
      * @return Array of message lines (e.g., H|..., P|..., O|..., etc.)
      */
-    private String[] logAndSplitAstm(String msg) {
-        String[] lines = msg.replaceAll("[\\u000d\\u000a]+", "\n").split("\n");
-        for (String l : lines) {
-            logger.info("ASTM line: " + l);
+    private static String[] splitAstm(String msg) {
+        return msg.replaceAll("[\\u000d\\u000a]+", "\n").split("\n");
+    }
+
+    /**
+     * Logs each line of an ASTM message at DEBUG level.
+     */
+    private void logAstm(String[] lines) {
+        if (logger.isDebugEnabled()) {
+            for (String l : lines) {
+                logger.debug("ASTM line: {}", l);
+            }
         }
-        return lines;
     }
     
+    /**
+     * Returns the metrics registry entry of this analyzer (created and registered over JMX on first use).
+     */
+    private GeneXpertMetrics metrics() {
+        GeneXpertMetrics m = this.metrics;
+        if (m == null || !m.getAnalyzerId().equals(this.id_analyzer)) {
+            m = GeneXpertMetrics.forAnalyzer(this.id_analyzer);
+            this.metrics = m;
+        }
+        return m;
+    }
+
+    /**
+     * Sends an HL7 message to LabBook, records the round-trip time and emits a JFR UpstreamCall event.
+     * <p>
+     * The request first takes a slot of the adaptive concurrency limit of the URL, shared by all analyzers
+     * (see {@link GeneXpertUpstreamLimiter}); if no slot frees up within {@code genexpert.upstreamWaitMs},
+     * the request is not sent and null is returned, as for an unreachable LabBook.
+     *
+     * @param transaction Transaction name (LAB-27 or LAB-29)
+     * @param astmMsg Originating ASTM message (used for the specimen ID of the JFR event only)
+     * @param url Upstream URL (LAB-27 or LAB-29 endpoint)
+     * @param hl7 HL7 message in ER7 format
+     * @param priority Priority of the request (urgent requests get the next free slot)
+     * @param rtt Histogram receiving the upstream round-trip time
+     * @return Raw upstream response (may be null)
+     */
+    private String sendUpstream(String transaction, String astmMsg, String url, String hl7, GeneXpertPriority priority,
+                                GeneXpertHistogram rtt) throws Exception {
+        GeneXpertMetrics m = metrics();
+        GeneXpertUpstreamLimiter limiter = GeneXpertRuntime.get().upstreamLimiter(url);
+        if (limiter != null) {
+            long waitStart = System.nanoTime();
+            boolean admitted = limiter.acquire(priority, GeneXpertRuntime.get().upstreamWaitMs());
+            m.upstreamWait.recordNanos(System.nanoTime() - waitStart);
+            if (!admitted) {
+                m.upstreamRefused.increment();
+                logger.warn("{} GeneXpert : no LabBook request slot within {} ms ({}), request not sent",
+                        transaction, GeneXpertRuntime.get().upstreamWaitMs(), limiter);
+                return null;
+            }
+        }
+        GeneXpertEvents.UpstreamCall event = new GeneXpertEvents.UpstreamCall();
+        event.begin();
+        long start = System.nanoTime();
+        String response = null;
+        try {
+            response = Connect_util.send_hl7_msg(this, url, hl7);
+            return response;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            rtt.recordNanos(nanos);
+            if (limiter != null) {
+                limiter.release(nanos, response != null && response.startsWith("MSH|"));
+                m.upstreamLimit = limiter.limit();
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.analyzerId = this.id_analyzer;
+                event.specimenId = GeneXpertEvents.specimenOf(astmMsg);
+                event.transaction = transaction;
+                event.url = url;
+                event.requestBytes = hl7.length();
+                event.responseBytes = (response != null) ? response.length() : 0;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Archives a message through Connect and emits a JFR ArchiveWrite event.
+     *
+     * @param msg Message to archive
+     * @param transaction Transaction name (LAB-27, LAB-28 or LAB-29)
+     * @param source Message source (Analyzer or LIS)
+     */
+    private void archive(String msg, String transaction, String source) throws Exception {
+        GeneXpertEvents.ArchiveWrite event = new GeneXpertEvents.ArchiveWrite();
+        event.begin();
+        try {
+            Connect_util.archiveMessage(this.getId_analyzer(), this.archive_msg, msg, transaction, source);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.analyzerId = this.id_analyzer;
+                event.specimenId = GeneXpertEvents.specimenOf(msg);
+                event.transaction = transaction;
+                event.source = source;
+                event.messageBytes = msg.length();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Commits a JFR Conversion event if a recording wants it.
+     *
+     * @param event Event already begun and ended around the conversion
+     * @param sourceMsg Message being converted (specimen ID lookup)
+     * @param stage Conversion stage name (e.g. "ASTM->OUL^R22")
+     * @param success Whether the conversion produced a usable message
+     */
+    private void commitConversion(GeneXpertEvents.Conversion event, String sourceMsg, String stage, boolean success) {
+        if (event.shouldCommit()) {
+            event.analyzerId = this.id_analyzer;
+            event.specimenId = GeneXpertEvents.specimenOf(sourceMsg);
+            event.stage = stage;
+            event.success = success;
+            event.commit();
+        }
+    }
+
     /**
      * Checks whether a string is null, empty, or contains only whitespace.
      * Replacement for StringUtils.isBlank() to avoid external dependencies.
@@ -1749,24 +3308,33 @@ public class AnalyzerGeneXpert implements Analyzer {
         return s == null || s.trim().isEmpty();
     }
     
-    private String mapLisTestCodeToVendorTestCode(String lisTestCode) {
-        if (lisTestCode == null) return "";
-        String key = lisTestCode.trim();
-        if (key.isEmpty()) return "";
-
-        List<Toml> tests = mappingToml.getTables("ivd_test");
-        if (tests == null) return "";
-
-        for (Toml t : tests) {
-            String lis = t.getString("lis_test_code");
-            if (lis != null && lis.trim().equalsIgnoreCase(key)) {
-                String vendor = t.getString("vendor_test_code");
-                return (vendor == null) ? "" : vendor.trim();
-            }
+    /**
+     * Returns the lookup view of the current mapping file (rebuilt when mappingToml is reloaded).
+     */
+    GeneXpertMapping mapping() {
+        GeneXpertMapping m = this.mapping;
+        if (m == null || m.toml() != this.mappingToml) {
+            m = new GeneXpertMapping(this.mappingToml);
+            this.mapping = m;
         }
-        return "";
+        return m;
     }
     
+    /**
+     * Uses a mapping snapshot shared with other analyzers (or with the warm-up).
+     */
+    void setMapping(GeneXpertMapping mapping) {
+        this.mappingToml = mapping.toml();
+        this.mapping = mapping;
+    }
+    
+    /**
+     * Header of a reply to the analyzer: the header of its last transmission when known.
+     */
+    private String replyHeader() {
+        return isBlank(lastReplyHeader) ? buildReplyHeader(null) : lastReplyHeader;
+    }
+
     /**
      * Builds an ASTM H| header for the reply message.
      *
@@ -1796,7 +3364,7 @@ public class AnalyzerGeneXpert implements Analyzer {
                 if (line.startsWith("H|")) {
                     String[] fields = line.split("\\|", -1);
                     
-                    fields[2] = java.time.LocalDateTime.now().format(java.time.format.DateTimeFormatter.ofPattern("yyyyMMddHHmmssSSSSSS"));
+                    fields[2] = GeneXpertClock.timestampMicros();
 
                     if (fields.length > 13) {
                         String tmp = fields[4];   // H.5
@@ -0,0 +1,324 @@
+package plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * E1381 over non-blocking NIO socket channels ({@code genexpert.transport = nio}), served by one
+ * {@link GeneXpertEventLoop} for all listeners and connections.
+ * <p>
+ * A session waiting for ENQ gives its thread back with {@link #onReadable}: an idle connection is then
+ * only a key of the selector. The streams keep the blocking contract of {@link GeneXpertTransport} for
+ * the frames of a transmission: a read or write that cannot proceed waits for the event loop to report
+ * the channel ready, and {@link #close()} wakes it. Accepting works the same way ({@link Listener#onAcceptable}).
+ * <p>
+ * Each direction has one direct buffer of the connection: the kernel copies into and out of it
+ * without the intermediate heap copy of socket streams, and a received frame costs one read call.
+ * TCP_NODELAY is set, as for {@link GeneXpertSocketTransport}.
+ */
+final class GeneXpertChannelTransport implements GeneXpertTransport {
+
+    private static final int BUFFER_BYTES = 8192;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    /**
+     * Provider of this carrier, on the given event loop.
+     */
+    static Provider provider(GeneXpertEventLoop loop) {
+        return new Provider() {
+            @Override
+            public String name() {
+                return "nio";
+            }
+
+            @Override
+            public Listener listen(int port) throws IOException {
+                ServerSocketChannel server = ServerSocketChannel.open();
+                try {
+                    server.configureBlocking(false);
+                    server.bind(new InetSocketAddress(port));
+                } catch (IOException e) {
+                    server.close();
+                    throw e;
+                }
+                return new ChannelListener(server, loop);
+            }
+
+            @Override
+            public GeneXpertTransport connect(String host, int port) throws IOException {
+                SocketChannel channel = SocketChannel.open();
+                try {
+                    channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                    return new GeneXpertChannelTransport(channel, loop);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+        };
+    }
+
+    private final SocketChannel channel;
+    private final GeneXpertEventLoop loop;
+    private final String remote;
+    private final ChannelInput input = new ChannelInput();
+    private final OutputStream output = new ChannelOutput();
+    private final Waiter readable = new Waiter();
+    private final Waiter writable = new Waiter();
+    private final AtomicReference<Runnable> parked = new AtomicReference<>(); // onReadable task not yet run
+
+    GeneXpertChannelTransport(SocketChannel channel, GeneXpertEventLoop loop) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            this.remote = String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream input() {
+        return input;
+    }
+
+    @Override
+    public OutputStream output() {
+        return output;
+    }
+
+    @Override
+    public String remoteAddress() {
+        return remote;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            readable.release();
+            writable.release();
+            runParked(parked);
+        }
+    }
+
+    @Override
+    public boolean onReadable(Runnable task) {
+        if (!channel.isOpen()) return false;
+        try {
+            if (input.poll()) return false;
+        } catch (IOException e) {
+            return false; // the read reports it
+        }
+        parked.set(task);
+        loop.watch(channel, SelectionKey.OP_READ, () -> runParked(parked));
+        if (!channel.isOpen()) runParked(parked); // closed meanwhile: close() may have run before the task was set
+        return true;
+    }
+
+    private static void runParked(AtomicReference<Runnable> parked) {
+        Runnable task = parked.getAndSet(null);
+        if (task != null) task.run();
+    }
+
+    /**
+     * Thread waiting for the event loop to report a channel ready (one per direction or listener).
+     */
+    private static final class Waiter {
+        private final Semaphore ready = new Semaphore(0);
+        private final Runnable signal = ready::release;
+
+        /**
+         * Waits until the event loop reports {@code channel} ready for {@code op}, or until it is closed.
+         */
+        void await(GeneXpertEventLoop loop, SelectableChannel channel, int op) throws IOException {
+            if (!channel.isOpen()) throw new AsynchronousCloseException();
+            loop.watch(channel, op, signal);
+            try {
+                ready.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the connection");
+            }
+            if (!channel.isOpen()) throw new AsynchronousCloseException();
+        }
+
+        /** Wakes the waiting thread (close). */
+        void release() {
+            ready.release();
+        }
+    }
+
+    private final class ChannelInput extends InputStream {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+        ChannelInput() {
+            buffer.limit(0); // nothing received yet
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        /**
+         * Reads what the channel has without waiting; true if bytes or the end of stream are there.
+         */
+        boolean poll() throws IOException {
+            if (buffer.hasRemaining()) return true;
+            buffer.clear();
+            int n = channel.read(buffer);
+            buffer.flip();
+            return n != 0;
+        }
+
+        /** Reads from the channel when the buffer is empty, waiting for the event loop; false at end of stream. */
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining()) return true;
+            buffer.clear();
+            int n;
+            while ((n = channel.read(buffer)) == 0) {
+                readable.await(loop, channel, SelectionKey.OP_READ);
+            }
+            buffer.flip();
+            return n > 0;
+        }
+    }
+
+    private final class ChannelOutput extends OutputStream {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) flush();
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) flush();
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.write(buffer) == 0) writable.await(loop, channel, SelectionKey.OP_WRITE);
+                }
+            } finally {
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Listener of the carrier: accepts without blocking, and waits for the event loop when no connection is pending.
+     */
+    private static final class ChannelListener implements Listener {
+        private final ServerSocketChannel server;
+        private final GeneXpertEventLoop loop;
+        private final Waiter acceptable = new Waiter();
+        private final AtomicReference<Runnable> parked = new AtomicReference<>();
+        private SocketChannel pending; // guarded by this: accepted by onAcceptable, returned by the next accept()
+
+        ChannelListener(ServerSocketChannel server, GeneXpertEventLoop loop) {
+            this.server = server;
+            this.loop = loop;
+        }
+
+        @Override
+        public GeneXpertTransport accept() throws IOException {
+            SocketChannel channel;
+            synchronized (this) {
+                channel = pending;
+                pending = null;
+            }
+            while (channel == null) {
+                channel = server.accept();
+                if (channel == null) acceptable.await(loop, server, SelectionKey.OP_ACCEPT);
+            }
+            return new GeneXpertChannelTransport(channel, loop);
+        }
+
+        @Override
+        public boolean onAcceptable(Runnable task) {
+            if (!server.isOpen()) return false;
+            synchronized (this) {
+                if (pending != null) return false;
+                try {
+                    pending = server.accept();
+                } catch (IOException e) {
+                    return false; // accept() reports it
+                }
+                if (pending != null) return false;
+            }
+            parked.set(task);
+            loop.watch(server, SelectionKey.OP_ACCEPT, () -> runParked(parked));
+            if (!server.isOpen()) runParked(parked);
+            return true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !server.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            SocketChannel channel;
+            synchronized (this) {
+                channel = pending;
+                pending = null;
+            }
+            try {
+                server.close();
+                if (channel != null) channel.close();
+            } finally {
+                acceptable.release();
+                runParked(parked);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package plugin;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timestamps and HL7 control IDs for the messages built by the plugin.
+ * <p>
+ * The formatted second ({@code yyyyMMddHHmmss}, local time) is cached and only reformatted when
+ * the second changes, so building a message does not allocate a formatter.
+ * <p>
+ * Control IDs ({@code "MSG" + number}) come from one sequence shared by all analyzers of the JVM:
+ * {@code max(previous + 1, current epoch millis)}. MSH-3/MSH-4 are the same for every analyzer, so
+ * the sequence is not split per analyzer: two analyzers building a message in the same millisecond
+ * get different IDs. IDs stay above those of a previous run after a restart (as long as fewer than
+ * 1000 IDs per second were issued on average).
+ */
+final class GeneXpertClock {
+
+    private static final DateTimeFormatter SECOND = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private static final class Cached {
+        final long epochSecond;
+        final String text;
+
+        Cached(long epochSecond, String text) {
+            this.epochSecond = epochSecond;
+            this.text = text;
+        }
+    }
+
+    private static volatile Clock clock = Clock.systemDefaultZone();
+    private static volatile Cached cached = new Cached(Long.MIN_VALUE, "");
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private GeneXpertClock() {
+    }
+
+    /**
+     * Current local date/time as {@code yyyyMMddHHmmss} (HL7 TS / ASTM date-time).
+     */
+    static String timestamp() {
+        return secondText(Math.floorDiv(clock.millis(), 1000L));
+    }
+
+    /**
+     * Current local date/time with microseconds, as {@code yyyyMMddHHmmssSSSSSS}.
+     */
+    static String timestampMicros() {
+        Instant now = clock.instant();
+        String second = secondText(now.getEpochSecond());
+        char[] buf = new char[20];
+        second.getChars(0, 14, buf, 0);
+        int micros = now.getNano() / 1000;
+        for (int i = 19; i >= 14; i--) {
+            buf[i] = (char) ('0' + micros % 10);
+            micros /= 10;
+        }
+        return new String(buf);
+    }
+
+    /**
+     * Next HL7 message control ID (MSH-10), unique among all analyzers of the JVM.
+     *
+     * @return Control ID, e.g. MSG1767268800000
+     */
+    static String nextControlId() {
+        long now = clock.millis();
+        long prev;
+        long next;
+        do {
+            prev = sequence.get();
+            next = Math.max(prev + 1, now);
+        } while (!sequence.compareAndSet(prev, next));
+        return "MSG" + next;
+    }
+
+    /**
+     * Replaces the time source (performance tools pin it to get reproducible output).
+     */
+    static void setClock(Clock newClock) {
+        clock = (newClock == null) ? Clock.systemDefaultZone() : newClock;
+        cached = new Cached(Long.MIN_VALUE, "");
+    }
+
+    private static String secondText(long epochSecond) {
+        Cached c = cached;
+        if (c.epochSecond != epochSecond) {
+            Clock source = clock;
+            c = new Cached(epochSecond, SECOND.withZone(source.getZone()).format(Instant.ofEpochSecond(epochSecond)));
+            cached = c;
+        }
+        return c.text;
+    }
+}
@@ -0,0 +1,301 @@
+package plugin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the LAB-29 results already accepted by LabBook, used to recognise the uploads the GeneXpert
+ * sends again (after an {@code L|1|N}, or when the reply was lost with the connection).
+ * <p>
+ * Each result is reduced to a 64-bit hash of (analyzer, specimen ID, test, vendor result code, completion
+ * time). Hashes are kept with their acceptance time in a fixed-size open-addressing table (16 bytes per
+ * entry, no allocation after construction): an entry is valid for the time window only, and when the
+ * probe sequence of a new entry is full, its oldest entry is replaced. The index is therefore bounded
+ * both in size and in age; an evicted entry only means that a resend is forwarded to LabBook again.
+ * <p>
+ * Optionally, accepted hashes are appended to a file and reloaded at startup (entries older than the
+ * window are dropped, and the file is rewritten when it grows beyond twice the capacity). Writes are not
+ * forced to disk: after a crash, the last entries may be missing and their resends are forwarded again.
+ */
+final class GeneXpertDedupIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeneXpertDedupIndex.class);
+
+    private static final long MAGIC = 0x4758444544555031L; // "GXDEDUP1"
+    private static final int PROBES = 8;
+    private static final int RECORD_BYTES = 16;
+
+    private final long windowMs;
+    private final long[] hashes;   // 0 = empty slot
+    private final long[] accepted; // acceptance time (epoch ms)
+    private final int mask;
+
+    private final Path file;
+    private FileChannel log;
+    private long logRecords = 0;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+
+    /**
+     * @param capacity Number of entries (rounded up to a power of two)
+     * @param windowMs Time during which an accepted result is recognised, in ms (0 = index disabled)
+     * @param file Persistence file, or null to keep the index in memory only
+     */
+    GeneXpertDedupIndex(int capacity, long windowMs, Path file) {
+        int n = Integer.highestOneBit(Math.max(PROBES, capacity) - 1) << 1;
+        this.windowMs = Math.max(0L, windowMs);
+        this.hashes = new long[(this.windowMs > 0) ? n : 0];
+        this.accepted = new long[hashes.length];
+        this.mask = hashes.length - 1;
+        this.file = (this.windowMs > 0) ? file : null;
+        if (this.file != null) load();
+    }
+
+    /** true if the index is in use (non-zero window). */
+    boolean enabled() {
+        return hashes.length > 0;
+    }
+
+    /**
+     * Computes the result keys of a LAB-29 upload: one per R record, with the specimen ID (O.3) and
+     * the vendor test code (last non-empty component of O.5) of its order. Fields are hashed in place,
+     * without splitting the records.
+     *
+     * @param analyzerId Analyzer identifier (id_analyzer)
+     * @param records ASTM records of the upload (frame number prefixes allowed)
+     * @return Result keys, empty if the upload holds no result
+     */
+    static long[] resultKeys(String analyzerId, String[] records) {
+        String id = (analyzerId == null) ? "" : analyzerId;
+        long[] keys = new long[8];
+        int count = 0;
+        long analyzer = hash(0xcbf29ce484222325L, id, 0, id.length());
+        long order = hashField(hashField(analyzer, null, 0, 2, false), null, 0, 4, true); // results before any O
+        for (String r : records) {
+            if (r == null) continue;
+            int type = (r.length() > 1 && r.charAt(0) >= '0' && r.charAt(0) <= '7' && r.charAt(1) != '|') ? 1 : 0;
+            if (r.length() < type + 2 || r.charAt(type + 1) != '|') continue;
+            char c = r.charAt(type);
+            if (c == 'O') {
+                order = hashField(hashField(analyzer, r, type, 2, false), r, type, 4, true);
+            } else if (c == 'R') {
+                long h = hashField(hashField(order, r, type, 2, false), r, type, 12, false);
+                if (count == keys.length) keys = Arrays.copyOf(keys, count * 2);
+                keys[count++] = mix(h);
+            }
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * @return true if every key was accepted within the window (false for no keys)
+     */
+    synchronized boolean containsAll(long[] keys) {
+        if (!enabled() || keys.length == 0) return false;
+        long now = System.currentTimeMillis();
+        for (long key : keys) {
+            if (find(key, now) < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records the keys of results accepted by LabBook (and appends them to the file, if any).
+     */
+    synchronized void addAll(long[] keys) {
+        if (!enabled() || keys.length == 0) return;
+        long now = System.currentTimeMillis();
+        for (long key : keys) {
+            put(key, now);
+        }
+        append(keys, now);
+    }
+
+    /** Removes all entries (the file, if any, is truncated). */
+    synchronized void clear() {
+        Arrays.fill(hashes, 0L);
+        Arrays.fill(accepted, 0L);
+        if (log != null) rewrite();
+    }
+
+    // === Table ===
+
+    private int find(long key, long now) {
+        int i = (int) key & mask;
+        for (int p = 0; p < PROBES; p++, i = (i + 1) & mask) {
+            if (hashes[i] == key && now - accepted[i] < windowMs) return i;
+        }
+        return -1;
+    }
+
+    private void put(long key, long at) {
+        int slot = -1;
+        long oldest = Long.MAX_VALUE;
+        int i = (int) key & mask;
+        for (int p = 0; p < PROBES; p++, i = (i + 1) & mask) {
+            if (hashes[i] == key) { // same result again: keep the latest acceptance
+                accepted[i] = Math.max(accepted[i], at);
+                return;
+            }
+            long age = (hashes[i] == 0L || at - accepted[i] >= windowMs) ? Long.MIN_VALUE : accepted[i];
+            if (age < oldest) {
+                oldest = age;
+                slot = i;
+            }
+        }
+        hashes[slot] = key;
+        accepted[slot] = at;
+    }
+
+    /**
+     * Hashes field {@code index} of a record (trimmed), or only its last non-empty component.
+     * A missing record or field hashes as an empty field.
+     */
+    private static long hashField(long h, String record, int start, int index, boolean lastComponent) {
+        int from = 0;
+        int to = 0;
+        if (record != null) {
+            from = start;
+            for (int f = 0; f < index && from >= 0; f++) {
+                int bar = record.indexOf('|', from);
+                from = (bar < 0) ? -1 : bar + 1;
+            }
+            if (from < 0) {
+                from = 0;
+            } else {
+                int bar = record.indexOf('|', from);
+                to = (bar < 0) ? record.length() : bar;
+            }
+            if (lastComponent) {
+                while (to > from && (record.charAt(to - 1) <= ' ' || record.charAt(to - 1) == '^')) to--;
+                int caret = record.lastIndexOf('^', to - 1);
+                if (caret >= from) from = caret + 1;
+            }
+            while (from < to && record.charAt(from) <= ' ') from++;
+            while (to > from && record.charAt(to - 1) <= ' ') to--;
+        }
+        return hash(h, record, from, to);
+    }
+
+    private static long hash(long h, String s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return (h ^ 0x1f) * 0x100000001b3L; // field separator
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h == 0L) ? 1L : h;
+    }
+
+    // === Persistence ===
+
+    private void load() {
+        int loaded = 0;
+        if (Files.isRegularFile(file)) {
+            long now = System.currentTimeMillis();
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES * 4096);
+                boolean header = true;
+                int n;
+                do {
+                    n = in.read(buffer);
+                    buffer.flip();
+                    if (header && buffer.remaining() >= 8) {
+                        if (buffer.getLong() != MAGIC) {
+                            logger.warn("GeneXpert dedup file {} has an unknown format: replaced", file);
+                            break;
+                        }
+                        header = false;
+                    }
+                    while (!header && buffer.remaining() >= RECORD_BYTES) {
+                        long key = buffer.getLong();
+                        long at = buffer.getLong();
+                        if (key != 0L && at <= now && now - at < windowMs) {
+                            put(key, at);
+                            loaded++;
+                        }
+                    }
+                    buffer.compact(); // a truncated last record is ignored
+                } while (n >= 0);
+            } catch (IOException e) {
+                logger.warn("Cannot read GeneXpert dedup file {} ({}): starting empty", file, e.getMessage());
+            }
+        }
+        rewrite();
+        logger.info("GeneXpert dedup index: {} entries, window {} ms, {} results loaded from {}", hashes.length, windowMs, loaded, file);
+    }
+
+    /** Replaces the file with the valid entries of the table, then reopens it for appending. */
+    private void rewrite() {
+        closeLog();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            long now = System.currentTimeMillis();
+            long records = 0;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES * 4096);
+                buffer.putLong(MAGIC);
+                for (int i = 0; i < hashes.length; i++) {
+                    if (hashes[i] == 0L || now - accepted[i] >= windowMs) continue;
+                    if (buffer.remaining() < RECORD_BYTES) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) out.write(buffer);
+                        buffer.clear();
+                    }
+                    buffer.putLong(hashes[i]).putLong(accepted[i]);
+                    records++;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) out.write(buffer);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            logRecords = records;
+        } catch (IOException e) {
+            logger.warn("Cannot write GeneXpert dedup file {} ({}): index kept in memory only", file, e.getMessage());
+            closeLog();
+        }
+    }
+
+    private void append(long[] keys, long at) {
+        if (log == null) return;
+        try {
+            for (long key : keys) {
+                record.clear();
+                record.putLong(key).putLong(at).flip();
+                while (record.hasRemaining()) log.write(record);
+            }
+            logRecords += keys.length;
+        } catch (IOException e) {
+            logger.warn("Cannot append to GeneXpert dedup file {} ({}): index kept in memory only", file, e.getMessage());
+            closeLog();
+            return;
+        }
+        if (logRecords > 2L * hashes.length) rewrite();
+    }
+
+    private void closeLog() {
+        if (log == null) return;
+        try {
+            log.close();
+        } catch (IOException ignore) {
+            // nothing left to release
+        }
+        log = null;
+    }
+}
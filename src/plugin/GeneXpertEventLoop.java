@@ -0,0 +1,143 @@
+package plugin;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * I/O event loop of the {@code nio} carrier: one daemon thread and one {@link Selector} for the listeners
+ * and connections of all analyzers.
+ * <p>
+ * Interest is one-shot: {@link #watch} asks for one readiness of a channel (a pending connection, bytes
+ * to read, room to write), and when the selector reports it, the interest is cleared and the callback
+ * runs on the loop thread. Callbacks must be short: they wake a thread waiting in a read or a write, or
+ * hand a parked session to the I/O executor. A channel closed while watched gets no callback from the
+ * selector; its transport wakes its waiters itself.
+ */
+final class GeneXpertEventLoop {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeneXpertEventLoop.class);
+
+    /** Callbacks of one channel, one per operation (loop thread only). */
+    private static final class Interest {
+        Runnable accept;
+        Runnable read;
+        Runnable write;
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Opens the selector and starts the loop thread.
+     *
+     * @param name Name of the loop thread
+     * @throws IOException If the selector cannot be opened
+     */
+    GeneXpertEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        Thread t = new Thread(this::run, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Runs {@code ready} once on the loop thread when the channel is ready for {@code op}, or at once if
+     * the channel is already closed.
+     *
+     * @param channel Channel in non-blocking mode
+     * @param op {@link SelectionKey#OP_ACCEPT}, {@link SelectionKey#OP_READ} or {@link SelectionKey#OP_WRITE}
+     * @param ready Callback (replaces a callback of the same channel and operation not yet run)
+     */
+    void watch(SelectableChannel channel, int op, Runnable ready) {
+        pending.add(() -> arm(channel, op, ready));
+        selector.wakeup();
+    }
+
+    private void arm(SelectableChannel channel, int op, Runnable ready) {
+        try {
+            if (!channel.isOpen()) throw new ClosedChannelException();
+            SelectionKey key = channel.keyFor(selector);
+            if (key == null) key = channel.register(selector, 0, new Interest());
+            Interest interest = (Interest) key.attachment();
+            switch (op) {
+            case SelectionKey.OP_ACCEPT:
+                interest.accept = ready;
+                break;
+            case SelectionKey.OP_READ:
+                interest.read = ready;
+                break;
+            default:
+                interest.write = ready;
+                break;
+            }
+            key.interestOps(key.interestOps() | op);
+        } catch (ClosedChannelException | CancelledKeyException e) {
+            fire(ready);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    task.run();
+                }
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ready(key);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("GeneXpert event loop: {}", e.toString());
+            }
+        }
+    }
+
+    private void ready(SelectionKey key) {
+        Interest interest = (Interest) key.attachment();
+        int ops;
+        try {
+            ops = key.readyOps() & key.interestOps();
+            key.interestOps(key.interestOps() & ~ops);
+        } catch (CancelledKeyException e) {
+            ops = SelectionKey.OP_ACCEPT | SelectionKey.OP_READ | SelectionKey.OP_WRITE; // closed: wake every waiter
+        }
+        if ((ops & SelectionKey.OP_ACCEPT) != 0) {
+            Runnable r = interest.accept;
+            interest.accept = null;
+            fire(r);
+        }
+        if ((ops & SelectionKey.OP_READ) != 0) {
+            Runnable r = interest.read;
+            interest.read = null;
+            fire(r);
+        }
+        if ((ops & SelectionKey.OP_WRITE) != 0) {
+            Runnable r = interest.write;
+            interest.write = null;
+            fire(r);
+        }
+    }
+
+    private static void fire(Runnable callback) {
+        if (callback == null) return;
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            logger.warn("GeneXpert event loop callback failed: {}", e.toString());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package plugin;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events emitted by the GeneXpert plugin.
+ * <p>
+ * Events are created, begun and ended on the hot paths, but their fields (analyzer ID, specimen ID, ...)
+ * are only filled in when {@link Event#shouldCommit()} returns true, so the cost is negligible when no
+ * recording is running. All events appear under the "LabBook Connect / GeneXpert" category.
+ */
+final class GeneXpertEvents {
+
+    private GeneXpertEvents() {
+    }
+
+    @Name("labbook.genexpert.SessionAccepted")
+    @Label("Session Accepted")
+    @Category({ "LabBook Connect", "GeneXpert" })
+    @Description("An analyzer connection was accepted (server mode) or opened (client mode)")
+    @StackTrace(false)
+    static final class SessionAccepted extends Event {
+        @Label("Analyzer ID") String analyzerId;
+        @Label("Remote Address") String remoteAddress;
+    }
+
+    @Name("labbook.genexpert.SessionClosed")
+    @Label("Session Closed")
+    @Category({ "LabBook Connect", "GeneXpert" })
+    @Description("An analyzer connection was closed; the duration covers the whole session")
+    @StackTrace(false)
+    static final class SessionClosed extends Event {
+        @Label("Analyzer ID") String analyzerId;
+        @Label("Remote Address") String remoteAddress;
+    }
+
+    @Name("labbook.genexpert.EnqReceived")
+    @Label("ENQ Received")
+    @Category({ "LabBook Connect", "GeneXpert", "E1381" })
+    @StackTrace(false)
+    static final class EnqReceived extends Event {
+        @Label("Analyzer ID") String analyzerId;
+    }
+
+    @Name("labbook.genexpert.FrameReceived")
+    @Label("Frame Received")
+    @Category({ "LabBook Connect", "GeneXpert", "E1381" })
+    @Description("One E1381 frame read from the analyzer, from STX to the ACK/NAK reply (EOT: receiver interrupt)")
+    @StackTrace(false)
+    static final class FrameReceived extends Event {
+        @Label("Analyzer ID") String analyzerId;
+        @Label("Specimen ID") String specimenId;
+        @Label("Frame Number") int frameNumber;
+        @Label("Payload Bytes") int payloadBytes;
+        @Label("Last Frame") boolean lastFrame;
+        @Label("Reply") String reply;
+    }
+
+    @Name("labbook.genexpert.FrameSent")
+    @Label("Frame Sent")
+    @Category({ "LabBook Connect", "GeneXpert", "E1381" })
+    @Description("One E1381 frame written to the analyzer, until its ACK/NAK reply")
+    @StackTrace(false)
+    static final class FrameSent extends Event {
+        @Label("Analyzer ID") String analyzerId;
+        @Label("Specimen ID") String specimenId;
+        @Label("Frame Number") int frameNumber;
+        @Label("Payload Bytes") int payloadBytes;
+        @Label("Reply") String reply;
+    }
+
+    @Name("labbook.genexpert.MessageAssembled")
+    @Label("Message Assembled")
+    @Category({ "LabBook Connect", "GeneXpert", "E1381" })
+    @Description("A complete ASTM message was received; the duration covers ENQ to EOT")
+    @StackTrace(false)
+    static final class MessageAssembled extends Event {
+        @Label("Analyzer ID") String analyzerId;
+        @Label("Specimen ID") String specimenId;
+        @Label("Frames") int frames;
+        @Label("Message Bytes") int messageBytes;
+    }
+
+    @Name("labbook.genexpert.Conversion")
+    @Label("Conversion")
+    @Category({ "LabBook Connect", "GeneXpert", "Transaction" })
+    @Description("ASTM/HL7 conversion stage")
+    @StackTrace(false)
+    static final class Conversion extends Event {
+        @Label("Analyzer ID") String analyzerId;
+        @Label("Specimen ID") String specimenId;
+        @Label("Stage") String stage;
+        @Label("Success") boolean success;
+    }
+
+    @Name("labbook.genexpert.UpstreamCall")
+    @Label("Upstream Call")
+    @Category({ "LabBook Connect", "GeneXpert", "Transaction" })
+    @Description("HL7 request sent to LabBook and its response")
+    @StackTrace(false)
+    static final class UpstreamCall extends Event {
+        @Label("Analyzer ID") String analyzerId;
+        @Label("Specimen ID") String specimenId;
+        @Label("Transaction") String transaction;
+        @Label("URL") String url;
+        @Label("Request Bytes") int requestBytes;
+        @Label("Response Bytes") int responseBytes;
+    }
+
+    @Name("labbook.genexpert.ArchiveWrite")
+    @Label("Archive Write")
+    @Category({ "LabBook Connect", "GeneXpert", "Transaction" })
+    @StackTrace(false)
+    static final class ArchiveWrite extends Event {
+        @Label("Analyzer ID") String analyzerId;
+        @Label("Specimen ID") String specimenId;
+        @Label("Transaction") String transaction;
+        @Label("Source") String source;
+        @Label("Message Bytes") int messageBytes;
+    }
+
+    /**
+     * Extracts the first specimen ID of an ASTM (O| or Q| record) or HL7 (SPM segment) message.
+     * Only called when an event is about to be committed.
+     *
+     * @param message Raw ASTM or HL7 message (CR and/or LF delimited)
+     * @return Specimen ID, or an empty string if none is found
+     */
+    static String specimenOf(String message) {
+        if (message == null) return "";
+        int start = 0;
+        int len = message.length();
+        while (start < len) {
+            int end = start;
+            while (end < len && message.charAt(end) != '\r' && message.charAt(end) != '\n') end++;
+
+            int p = start;
+            if (p < end && message.charAt(p) >= '0' && message.charAt(p) <= '7') p++; // ASTM frame number
+            if (message.startsWith("O|", p) || message.startsWith("Q|", p) || message.startsWith("SPM|", p)) {
+                String[] fields = message.substring(p, end).split("\\|", -1);
+                if (fields.length > 2) {
+                    String id = fields[2];
+                    if (id.startsWith("^")) id = id.substring(1);
+                    int caret = id.indexOf('^');
+                    return (caret >= 0 ? id.substring(0, caret) : id).trim();
+                }
+            }
+            start = end + 1;
+        }
+        return "";
+    }
+}
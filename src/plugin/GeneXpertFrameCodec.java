@@ -0,0 +1,179 @@
+package plugin;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ASTM E1381 frame encoding and decoding.
+ * <p>
+ * A frame is {@code STX + frame number + text + ETX|ETB + checksum (2 hex) + CR + LF}.
+ * The checksum is the modulo-256 sum of the bytes from the frame number up to and including ETX/ETB.
+ * <p>
+ * The decoder is stateful and reuses its payload buffer from one frame to the next;
+ * one instance belongs to a single session thread. The payload buffer never grows beyond the
+ * maximum frame size given at construction: the text of a longer frame is read and checksummed,
+ * but not kept, and the frame is flagged as oversized.
+ */
+final class GeneXpertFrameCodec {
+
+    static final byte STX = 0x02;
+    static final byte ETX = 0x03;
+    static final byte ETB = 0x17;
+    static final byte CR = 0x0D;
+    static final byte LF = 0x0A;
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Source of bytes for the decoder (typically the session socket read, with wire tracing).
+     */
+    @FunctionalInterface
+    interface ByteSource {
+        /** @return Next byte (0-255) or -1 at end of stream */
+        int read() throws IOException;
+    }
+
+    /**
+     * Destination of ASTM records, one frame per record (e.g. a transmission to the analyzer in progress).
+     */
+    @FunctionalInterface
+    interface RecordSink {
+        /** Accepts the next record of the message (without CR). */
+        void record(String record) throws IOException;
+    }
+
+    // === Encoding ===
+
+    /**
+     * Encodes one final (ETX) frame.
+     *
+     * @param frameNo Frame number 0-7
+     * @param text Frame text (ASTM record, US-ASCII)
+     * @return Complete frame bytes, ready to write on the wire
+     */
+    static byte[] encodeFrame(int frameNo, String text) {
+        int len = text.length();
+        byte[] body = null;
+        for (int i = 0; i < len; i++) {
+            if (text.charAt(i) >= 0x80) {
+                body = text.getBytes(StandardCharsets.US_ASCII); // same replacement as the JDK encoder
+                len = body.length;
+                break;
+            }
+        }
+
+        byte[] frame = new byte[len + 7];
+        int p = 0;
+        frame[p++] = STX;
+        frame[p++] = (byte) ('0' + (frameNo & 0x07));
+        int sum = frame[1];
+        for (int i = 0; i < len; i++) {
+            byte b = (body != null) ? body[i] : (byte) text.charAt(i);
+            frame[p++] = b;
+            sum += (b & 0xFF);
+        }
+        frame[p++] = ETX;
+        sum = (sum + ETX) & 0xFF;
+        frame[p++] = HEX[sum >> 4];
+        frame[p++] = HEX[sum & 0x0F];
+        frame[p++] = CR;
+        frame[p] = LF;
+        return frame;
+    }
+
+    // === Decoding ===
+
+    private final int maxPayload;
+    private byte[] payload = new byte[256];
+    private int length = 0;
+    private boolean oversized = false;
+    private int frameNo = -1;
+    private int terminator = -1;
+    private int expectedSum = 0;
+    private int receivedHi = 0;
+    private int receivedLo = 0;
+
+    /**
+     * Decoder without frame size limit (tools and tests).
+     */
+    GeneXpertFrameCodec() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxPayload Longest frame text kept, in bytes; longer frames are flagged with {@link #isOversized()}
+     */
+    GeneXpertFrameCodec(int maxPayload) {
+        this.maxPayload = Math.max(1, maxPayload);
+    }
+
+    /**
+     * Reads the rest of a frame after its STX: frame number, text, ETX/ETB, checksum, CR and LF.
+     *
+     * @param in Byte source positioned just after STX
+     * @return true if the checksum is valid, false if it does not match (the frame must be NAKed)
+     * @throws IOException If the stream ends inside the frame or the CR/LF trailer is invalid
+     */
+    boolean readFrame(ByteSource in) throws IOException {
+        length = 0;
+        oversized = false;
+        frameNo = in.read();
+        if (frameNo < 0) throw new IOException("Frame aborted: missing frame number after STX");
+
+        int sum = frameNo & 0xFF;
+        int c;
+        while (true) {
+            c = in.read();
+            if (c < 0) throw new IOException("Frame aborted: stream closed before ETX/ETB");
+            if (c == ETX || c == ETB) break;
+            sum += c;
+            if (length >= maxPayload) {
+                oversized = true; // keep reading up to ETX/ETB, drop the text
+                continue;
+            }
+            if (length == payload.length) {
+                byte[] bigger = new byte[(int) Math.min((long) payload.length * 2, maxPayload)];
+                System.arraycopy(payload, 0, bigger, 0, length);
+                payload = bigger;
+            }
+            payload[length++] = (byte) c;
+        }
+        terminator = c;
+        expectedSum = (sum + c) & 0xFF;
+
+        int c1 = in.read();
+        int c2 = in.read();
+        int cr = in.read();
+        int lf = in.read();
+        if (c1 < 0 || c2 < 0 || cr < 0 || lf < 0) {
+            throw new IOException("Incomplete trailer after ETX/ETB (checksum/CR/LF missing)");
+        }
+        if (cr != CR || lf != LF) {
+            throw new IOException(String.format("Invalid trailer bytes: CR=0x%02X LF=0x%02X", cr, lf));
+        }
+        receivedHi = c1;
+        receivedLo = c2;
+        return Character.digit(c1, 16) == (expectedSum >> 4) && Character.digit(c2, 16) == (expectedSum & 0x0F);
+    }
+
+    /** Frame payload buffer (valid up to {@link #length()}); reused by the next {@link #readFrame}. */
+    byte[] payload() { return payload; }
+
+    /** Number of payload bytes of the last frame read. */
+    int length() { return length; }
+
+    /** Frame number byte (ASCII digit) of the last frame read. */
+    int frameNumber() { return frameNo; }
+
+    /** true if the text of the last frame exceeded the maximum frame size (payload truncated). */
+    boolean isOversized() { return oversized; }
+
+    /** true if the last frame ended with ETX (last frame of the message), false for ETB. */
+    boolean isLastFrame() { return terminator == ETX; }
+
+    /** Checksum computed over the last frame, as two hex digits. */
+    String expectedChecksum() { return String.format("%02X", expectedSum); }
+
+    /** Checksum received with the last frame, as sent by the peer. */
+    String receivedChecksum() { return "" + (char) receivedHi + (char) receivedLo; }
+}
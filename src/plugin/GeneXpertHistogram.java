@@ -0,0 +1,142 @@
+package plugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets (HDR-style).
+ * <p>
+ * Values are recorded in microseconds. Each power of two is split into 16 linear sub-buckets,
+ * so percentiles are reported with a relative error below 7%, using a fixed array of counters
+ * and no allocation on the recording path.
+ */
+final class GeneXpertHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // ~12 days in microseconds
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration measured with {@link System#nanoTime()}.
+     *
+     * @param nanos Elapsed time in nanoseconds (negative values are ignored)
+     */
+    void recordNanos(long nanos) {
+        if (nanos < 0) return;
+        record(nanos / 1000L);
+    }
+
+    /**
+     * Records a value in microseconds.
+     */
+    void record(long micros) {
+        if (micros < 0) return;
+        counts.incrementAndGet(indexOf(micros));
+        count.increment();
+        sum.add(micros);
+        long m;
+        while (micros > (m = max.get())) {
+            if (max.compareAndSet(m, micros)) break;
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    private static int indexOf(long v) {
+        if (v < SUB_BUCKETS) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        if (exp > MAX_EXPONENT) {
+            exp = MAX_EXPONENT;
+            v = (1L << (MAX_EXPONENT + 1)) - 1;
+        }
+        int sub = (int) ((v >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Upper bound (inclusive) of the values stored in a bucket. */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exp = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        long base = (1L << exp) + ((long) sub << (exp - SUB_BUCKET_BITS));
+        return base + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Returns the value at the given percentile, in microseconds.
+     *
+     * @param percentile Percentile between 0 and 100
+     */
+    long percentile(double percentile) {
+        long total = 0;
+        int n = counts.length();
+        long[] snapshot = new long[n];
+        for (int i = 0; i < n; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < n; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(highestValueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Takes a consistent-enough view of the histogram for monitoring purposes.
+     */
+    Snapshot snapshot() {
+        long c = count.sum();
+        return new Snapshot(c, c == 0 ? 0 : sum.sum() / c, percentile(50), percentile(90), percentile(99), max.get());
+    }
+
+    /**
+     * Read-only latency summary exposed through JMX (all values in microseconds).
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final long meanMicros;
+        private final long p50Micros;
+        private final long p90Micros;
+        private final long p99Micros;
+        private final long maxMicros;
+
+        Snapshot(long count, long meanMicros, long p50Micros, long p90Micros, long p99Micros, long maxMicros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() { return count; }
+        public long getMeanMicros() { return meanMicros; }
+        public long getP50Micros() { return p50Micros; }
+        public long getP90Micros() { return p90Micros; }
+        public long getP99Micros() { return p99Micros; }
+        public long getMaxMicros() { return maxMicros; }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%dus p50=%dus p90=%dus p99=%dus max=%dus",
+                    count, meanMicros, p50Micros, p90Micros, p99Micros, maxMicros);
+        }
+    }
+}
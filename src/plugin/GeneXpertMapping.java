@@ -0,0 +1,174 @@
+package plugin;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.moandjiezana.toml.Toml;
+
+/**
+ * Lookups in a GeneXpert LIVD-like mapping file (see doc/mapping_genexpert.toml).
+ * <p>
+ * {@code [[ivd_test]]} tables map vendor test codes to LIS test codes,
+ * {@code [[ivd_mapping]]} tables map (test, vendor result code) to LIS result code, unit and conversion.
+ * <p>
+ * Lookup indexes are built once per mapping file; when several entries share a key, the first one
+ * in the file wins. Instances are immutable and shared by all analyzers using the same file.
+ */
+final class GeneXpertMapping {
+
+    /**
+     * One {@code [[ivd_test]]} entry (values trimmed, never null).
+     */
+    static final class Test {
+        final String name;
+        final String vendorTestCode;
+        final String lisTestCode;
+
+        Test(String name, String vendorTestCode, String lisTestCode) {
+            this.name = name;
+            this.vendorTestCode = vendorTestCode;
+            this.lisTestCode = lisTestCode;
+        }
+    }
+
+    /**
+     * One {@code [[ivd_mapping]]} entry (values trimmed, never null).
+     */
+    static final class Result {
+        static final Result NONE = new Result("", "", "none", 0.0);
+
+        final String lisResultCode;
+        final String lisUnit;
+        final String convert;
+        final double factor;
+
+        Result(String lisResultCode, String lisUnit, String convert, double factor) {
+            this.lisResultCode = lisResultCode;
+            this.lisUnit = lisUnit;
+            this.convert = convert;
+            this.factor = factor;
+        }
+    }
+
+    private final Toml toml;
+
+    private final Map<String, Test> testsByVendorCode = new HashMap<>();
+    private final Map<String, String> vendorCodesByLis = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Map<String, Map<String, Result>> resultsByTest = new HashMap<>();
+    private final Test firstTest;
+
+    GeneXpertMapping(Toml toml) {
+        this.toml = (toml == null) ? new Toml() : toml;
+
+        Test first = null;
+        List<Toml> tests = this.toml.getTables("ivd_test");
+        if (tests != null) {
+            for (Toml t : tests) {
+                String v = t.getString("vendor_test_code");
+                if (v != null) {
+                    Test test = new Test(trim(t.getString("name")), v.trim(), trim(t.getString("lis_test_code")));
+                    testsByVendorCode.putIfAbsent(v.trim(), test);
+                    if (first == null && !test.lisTestCode.isEmpty()) first = test;
+                }
+                String lis = t.getString("lis_test_code");
+                if (lis != null) {
+                    vendorCodesByLis.putIfAbsent(lis.trim(), trim(v));
+                }
+            }
+        }
+        this.firstTest = first;
+
+        List<Toml> maps = this.toml.getTables("ivd_mapping");
+        if (maps != null) {
+            for (Toml m : maps) {
+                String t = m.getString("test");
+                String vrc = m.getString("vendor_result_code");
+                if (t == null || vrc == null) continue;
+                String cv = m.getString("convert");
+                resultsByTest.computeIfAbsent(t.trim(), k -> new HashMap<>()).putIfAbsent(vrc.trim(),
+                        new Result(trim(m.getString("lis_result_code")), trim(m.getString("lis_unit")),
+                                (cv == null) ? "none" : cv.trim(), factorOf(m)));
+            }
+        }
+    }
+
+    /** Underlying TOML document. */
+    Toml toml() {
+        return toml;
+    }
+
+    /**
+     * First test of the file with both a vendor and an LIS test code, or null if none.
+     */
+    Test firstTest() {
+        return firstTest;
+    }
+
+    /**
+     * Finds the test whose vendor_test_code equals the given code (ASTM O|5).
+     *
+     * @param vendorTestCode Vendor test code, already trimmed
+     * @return Matching test, or null if none
+     */
+    Test findTestByVendorCode(String vendorTestCode) {
+        if (vendorTestCode == null || vendorTestCode.isEmpty()) return null;
+        return testsByVendorCode.get(vendorTestCode);
+    }
+
+    /**
+     * Maps an LIS test code (OBR-4) to the GeneXpert vendor test code (case-insensitive match).
+     *
+     * @param lisTestCode LIS test code
+     * @return Vendor test code, or an empty string if unmapped
+     */
+    String vendorTestCodeForLis(String lisTestCode) {
+        if (lisTestCode == null) return "";
+        String key = lisTestCode.trim();
+        if (key.isEmpty()) return "";
+
+        String vendorTestCode = vendorCodesByLis.get(key);
+        return (vendorTestCode == null) ? "" : vendorTestCode;
+    }
+
+    /**
+     * Finds the result mapping of a vendor result code (ASTM R|3) for a test.
+     *
+     * @param testName Test name (ivd_test.name) of the current order
+     * @param vendorResultCode Vendor result code, already trimmed
+     * @return Matching mapping, or {@link Result#NONE}
+     */
+    Result findResult(String testName, String vendorResultCode) {
+        if (testName == null || testName.isEmpty() || vendorResultCode == null || vendorResultCode.isEmpty()) {
+            return Result.NONE;
+        }
+        Map<String, Result> results = resultsByTest.get(testName);
+        Result r = (results == null) ? null : results.get(vendorResultCode);
+        return (r == null) ? Result.NONE : r;
+    }
+
+    /**
+     * Reads the conversion factor, accepting integer, float or string values ("1,5" allowed).
+     */
+    private static double factorOf(Toml m) {
+        try {
+            Object factorObj = m.toMap().get("factor");
+            if (factorObj instanceof Number) {
+                return ((Number) factorObj).doubleValue();
+            } else if (factorObj instanceof String) {
+                String s = ((String) factorObj).trim();
+                if (!s.isEmpty()) {
+                    return Double.parseDouble(s.replace(",", "."));
+                }
+            }
+        } catch (Exception ignore) {
+            // invalid factor: no conversion
+        }
+        return 0.0;
+    }
+
+    private static String trim(String s) {
+        return (s == null) ? "" : s.trim();
+    }
+}
@@ -0,0 +1,315 @@
+package plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * E1381 over in-process pipes ({@code genexpert.transport = memory}), for benchmarks and stress tests
+ * of the full protocol stack without kernel sockets.
+ * <p>
+ * Listeners are registered by port number in this JVM; {@code connect} ignores the host and creates
+ * a pair of bounded byte pipes, one per direction. Each side buffers its writes until {@code flush()}
+ * and reads whatever the other side has flushed, as a TCP connection does. Closing one side makes the
+ * other side read the remaining bytes then end of stream, and fail on write.
+ */
+final class GeneXpertMemoryTransport implements GeneXpertTransport {
+
+    private static final int PIPE_BYTES = 64 * 1024;
+    private static final int BUFFER_BYTES = 8192;
+
+    private static final ConcurrentMap<Integer, MemoryListener> listeners = new ConcurrentHashMap<>();
+    private static final AtomicInteger connections = new AtomicInteger();
+
+    /** Provider of this carrier. */
+    static final Provider PROVIDER = new Provider() {
+        @Override
+        public String name() {
+            return "memory";
+        }
+
+        @Override
+        public Listener listen(int port) throws IOException {
+            MemoryListener listener = new MemoryListener(port);
+            if (listeners.putIfAbsent(port, listener) != null) {
+                throw new BindException("Memory port " + port + " already in use");
+            }
+            return listener;
+        }
+
+        @Override
+        public GeneXpertTransport connect(String host, int port) throws IOException {
+            MemoryListener listener = listeners.get(port);
+            if (listener == null) throw new ConnectException("No memory listener on port " + port);
+            Pipe toServer = new Pipe();
+            Pipe toClient = new Pipe();
+            String name = "memory:" + port + "#" + connections.incrementAndGet();
+            GeneXpertMemoryTransport client = new GeneXpertMemoryTransport(toClient, toServer, "memory:" + port);
+            listener.offer(new GeneXpertMemoryTransport(toServer, toClient, name));
+            return client;
+        }
+    };
+
+    private final Pipe in;
+    private final Pipe out;
+    private final String remote;
+    private final InputStream input;
+    private final OutputStream output;
+    private volatile boolean closed = false;
+
+    private GeneXpertMemoryTransport(Pipe in, Pipe out, String remote) {
+        this.in = in;
+        this.out = out;
+        this.remote = remote;
+        this.input = new PipeInput();
+        this.output = new PipeOutput();
+    }
+
+    @Override
+    public InputStream input() {
+        return input;
+    }
+
+    @Override
+    public OutputStream output() {
+        return output;
+    }
+
+    @Override
+    public String remoteAddress() {
+        return remote;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        in.closeReader();
+        out.closeWriter();
+    }
+
+    /**
+     * Listener of one memory port: connections wait in a queue until accepted.
+     */
+    private static final class MemoryListener implements Listener {
+        private static final GeneXpertMemoryTransport CLOSED = new GeneXpertMemoryTransport(null, null, "closed");
+
+        private final int port;
+        private final BlockingQueue<GeneXpertMemoryTransport> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed = false;
+
+        MemoryListener(int port) {
+            this.port = port;
+        }
+
+        void offer(GeneXpertMemoryTransport connection) throws IOException {
+            if (closed) throw new ConnectException("Memory port " + port + " closed");
+            pending.add(connection);
+        }
+
+        @Override
+        public GeneXpertTransport accept() throws IOException {
+            try {
+                GeneXpertMemoryTransport connection = pending.take();
+                if (connection == CLOSED) {
+                    pending.add(CLOSED); // for the other waiting threads
+                    throw new SocketException("Memory port " + port + " closed");
+                }
+                return connection;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("Interrupted while accepting on memory port " + port);
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            listeners.remove(port, this);
+            GeneXpertMemoryTransport connection;
+            while ((connection = pending.poll()) != null) {
+                connection.close();
+            }
+            pending.add(CLOSED);
+        }
+    }
+
+    /**
+     * Bounded byte ring from one side of a connection to the other.
+     */
+    private static final class Pipe {
+        private final byte[] ring = new byte[PIPE_BYTES];
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition readable = lock.newCondition();
+        private final Condition writable = lock.newCondition();
+        private int head = 0; // next byte to read
+        private int count = 0;
+        private boolean readerClosed = false;
+        private boolean writerClosed = false;
+
+        /**
+         * Moves up to {@code len} bytes into {@code b}, waiting for at least one.
+         *
+         * @return Number of bytes, or -1 at end of stream (writer closed and pipe drained)
+         * @throws IOException If the reading side was closed
+         */
+        int read(byte[] b, int off, int len) throws IOException {
+            lock.lock();
+            try {
+                while (count == 0) {
+                    if (readerClosed) throw new SocketException("Connection closed");
+                    if (writerClosed) return -1;
+                    readable.awaitUninterruptibly();
+                }
+                if (readerClosed) throw new SocketException("Connection closed");
+                int n = Math.min(len, count);
+                int first = Math.min(n, ring.length - head);
+                System.arraycopy(ring, head, b, off, first);
+                System.arraycopy(ring, 0, b, off + first, n - first);
+                head = (head + n) % ring.length;
+                count -= n;
+                writable.signal();
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Moves all bytes into the ring, waiting for room as needed.
+         *
+         * @throws IOException If either side was closed
+         */
+        void write(byte[] b, int off, int len) throws IOException {
+            lock.lock();
+            try {
+                while (len > 0) {
+                    if (readerClosed || writerClosed) throw new SocketException("Connection closed");
+                    if (count == ring.length) {
+                        writable.awaitUninterruptibly();
+                        continue;
+                    }
+                    int tail = (head + count) % ring.length;
+                    int n = Math.min(len, Math.min(ring.length - count, ring.length - tail));
+                    System.arraycopy(b, off, ring, tail, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                    readable.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void closeReader() {
+            lock.lock();
+            try {
+                readerClosed = true;
+                readable.signalAll();
+                writable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void closeWriter() {
+            lock.lock();
+            try {
+                writerClosed = true;
+                readable.signalAll();
+                writable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final class PipeInput extends InputStream {
+        private final byte[] buffer = new byte[BUFFER_BYTES];
+        private int pos = 0;
+        private int limit = 0;
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !fill()) return -1;
+            return buffer[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == limit && !fill()) return -1;
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            limit = Math.max(0, n);
+            return n > 0;
+        }
+    }
+
+    private final class PipeOutput extends OutputStream {
+        private final byte[] buffer = new byte[BUFFER_BYTES];
+        private int length = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == buffer.length) flush();
+            buffer[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buffer.length - length) {
+                flush();
+                if (len > buffer.length) {
+                    out.write(b, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buffer, length, len);
+            length += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (length == 0) return;
+            try {
+                out.write(buffer, 0, length);
+            } finally {
+                length = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package plugin;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transaction and link metrics of one GeneXpert analyzer, published over JMX.
+ * <p>
+ * One instance exists per {@code id_analyzer}, shared by all {@link AnalyzerGeneXpert} copies
+ * using that identifier. Counters are {@link LongAdder}s and latencies are {@link GeneXpertHistogram}s,
+ * so recording never blocks the E1381 session threads.
+ */
+public final class GeneXpertMetrics implements GeneXpertMetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeneXpertMetrics.class);
+
+    static final String JMX_DOMAIN = "labbook.connect";
+
+    private static final ConcurrentMap<String, GeneXpertMetrics> registry = new ConcurrentHashMap<>();
+
+    private final String analyzerId;
+
+    final LongAdder lab27Count = new LongAdder();
+    final LongAdder lab27Errors = new LongAdder();
+    final LongAdder lab28Count = new LongAdder();
+    final LongAdder lab28Errors = new LongAdder();
+    final LongAdder lab28Queued = new LongAdder();
+    final LongAdder lab28Delivered = new LongAdder();
+    final LongAdder lab28Failed = new LongAdder();
+    volatile int pendingOrders = 0;
+    final LongAdder lab29Count = new LongAdder();
+    final LongAdder lab29Errors = new LongAdder();
+    final LongAdder lab29Duplicates = new LongAdder();
+    final LongAdder urgentMessages = new LongAdder();
+
+    final GeneXpertHistogram lab27Conversion = new GeneXpertHistogram();
+    final GeneXpertHistogram lab28Conversion = new GeneXpertHistogram();
+    final GeneXpertHistogram lab28Delivery = new GeneXpertHistogram();
+    final GeneXpertHistogram lab29Conversion = new GeneXpertHistogram();
+    final GeneXpertHistogram lab27UpstreamRtt = new GeneXpertHistogram();
+    final GeneXpertHistogram lab29UpstreamRtt = new GeneXpertHistogram();
+    final GeneXpertHistogram enqToEot = new GeneXpertHistogram();
+    final GeneXpertHistogram frameAckRtt = new GeneXpertHistogram();
+    final GeneXpertHistogram admissionWait = new GeneXpertHistogram();
+    final GeneXpertHistogram upstreamWait = new GeneXpertHistogram();
+    final GeneXpertHistogram queryToResult = new GeneXpertHistogram();
+    final GeneXpertHistogram orderToResult = new GeneXpertHistogram();
+
+    final LongAdder framesReceived = new LongAdder();
+    final LongAdder framesSent = new LongAdder();
+    final LongAdder nakSent = new LongAdder();
+    final LongAdder nakReceived = new LongAdder();
+    final LongAdder checksumErrors = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder oversizedMessages = new LongAdder();
+    final LongAdder spilledMessages = new LongAdder();
+    final LongAdder enqDelayed = new LongAdder();
+    final LongAdder enqRefused = new LongAdder();
+    final LongAdder upstreamRefused = new LongAdder();
+    final AtomicInteger activeSessions = new AtomicInteger();
+
+    // Deadlines of the last ACK and frame waits (adaptive, see GeneXpertRttEstimator)
+    volatile long ackTimeoutMs = 0L;
+    volatile long frameTimeoutMs = 0L;
+
+    // Adaptive concurrency limit of the LabBook URL of the last request (see GeneXpertUpstreamLimiter)
+    volatile int upstreamLimit = 0;
+
+    private volatile Supplier<String> wireTraceSource = () -> "";
+
+    private GeneXpertMetrics(String analyzerId) {
+        this.analyzerId = analyzerId;
+    }
+
+    /**
+     * Returns the metrics of an analyzer, creating and registering the MBean on first use.
+     *
+     * @param analyzerId Analyzer identifier (id_analyzer)
+     * @return Shared metrics instance for this analyzer
+     */
+    static GeneXpertMetrics forAnalyzer(String analyzerId) {
+        String key = (analyzerId == null) ? "" : analyzerId;
+        return registry.computeIfAbsent(key, id -> {
+            GeneXpertMetrics metrics = new GeneXpertMetrics(id);
+            metrics.register();
+            return metrics;
+        });
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=AnalyzerGeneXpert,id=" + ObjectName.quote(analyzerId));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            logger.warn("GeneXpert metrics: JMX registration failed for analyzer {}: {}", analyzerId, e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the source used by the {@link #dumpWireTrace()} JMX operation (the analyzer currently listening).
+     */
+    void setWireTraceSource(Supplier<String> source) {
+        this.wireTraceSource = (source == null) ? () -> "" : source;
+    }
+
+    @Override public String getAnalyzerId() { return analyzerId; }
+
+    @Override public long getLab27Count() { return lab27Count.sum(); }
+    @Override public long getLab27Errors() { return lab27Errors.sum(); }
+    @Override public long getLab28Count() { return lab28Count.sum(); }
+    @Override public long getLab28Errors() { return lab28Errors.sum(); }
+    @Override public long getLab28Queued() { return lab28Queued.sum(); }
+    @Override public long getLab28Delivered() { return lab28Delivered.sum(); }
+    @Override public long getLab28Failed() { return lab28Failed.sum(); }
+    @Override public int getPendingOrders() { return pendingOrders; }
+    @Override public long getLab29Count() { return lab29Count.sum(); }
+    @Override public long getLab29Errors() { return lab29Errors.sum(); }
+    @Override public long getLab29Duplicates() { return lab29Duplicates.sum(); }
+    @Override public long getUrgentMessages() { return urgentMessages.sum(); }
+
+    @Override public GeneXpertHistogram.Snapshot getLab27Conversion() { return lab27Conversion.snapshot(); }
+    @Override public GeneXpertHistogram.Snapshot getLab28Conversion() { return lab28Conversion.snapshot(); }
+    @Override public GeneXpertHistogram.Snapshot getLab28Delivery() { return lab28Delivery.snapshot(); }
+    @Override public GeneXpertHistogram.Snapshot getLab29Conversion() { return lab29Conversion.snapshot(); }
+    @Override public GeneXpertHistogram.Snapshot getLab27UpstreamRtt() { return lab27UpstreamRtt.snapshot(); }
+    @Override public GeneXpertHistogram.Snapshot getLab29UpstreamRtt() { return lab29UpstreamRtt.snapshot(); }
+    @Override public GeneXpertHistogram.Snapshot getEnqToEot() { return enqToEot.snapshot(); }
+    @Override public GeneXpertHistogram.Snapshot getFrameAckRtt() { return frameAckRtt.snapshot(); }
+    @Override public GeneXpertHistogram.Snapshot getAdmissionWait() { return admissionWait.snapshot(); }
+    @Override public GeneXpertHistogram.Snapshot getUpstreamWait() { return upstreamWait.snapshot(); }
+    @Override public GeneXpertHistogram.Snapshot getQueryToResult() { return queryToResult.snapshot(); }
+    @Override public GeneXpertHistogram.Snapshot getOrderToResult() { return orderToResult.snapshot(); }
+
+    @Override public long getFramesReceived() { return framesReceived.sum(); }
+    @Override public long getFramesSent() { return framesSent.sum(); }
+    @Override public long getNakSent() { return nakSent.sum(); }
+    @Override public long getNakReceived() { return nakReceived.sum(); }
+    @Override public long getChecksumErrors() { return checksumErrors.sum(); }
+    @Override public long getTimeouts() { return timeouts.sum(); }
+    @Override public long getOversizedMessages() { return oversizedMessages.sum(); }
+    @Override public long getSpilledMessages() { return spilledMessages.sum(); }
+    @Override public long getEnqDelayed() { return enqDelayed.sum(); }
+    @Override public long getEnqRefused() { return enqRefused.sum(); }
+    @Override public long getUpstreamRefused() { return upstreamRefused.sum(); }
+    @Override public int getUpstreamLimit() { return upstreamLimit; }
+    @Override public int getActiveSessions() { return activeSessions.get(); }
+    @Override public long getAckTimeoutMs() { return ackTimeoutMs; }
+    @Override public long getFrameTimeoutMs() { return frameTimeoutMs; }
+
+    @Override
+    public int getTrackedSpecimens() {
+        GeneXpertSpecimenTracker specimens = GeneXpertRuntime.get().specimens(analyzerId);
+        return (specimens == null) ? 0 : specimens.size();
+    }
+
+    @Override public boolean isWarmedUp() { return GeneXpertRuntime.get().warmedUp(); }
+    @Override public long getWarmupMillis() { return GeneXpertRuntime.get().warmupMillis(); }
+
+    @Override
+    public String dumpWireTrace() {
+        return wireTraceSource.get();
+    }
+
+    @Override
+    public String specimenHistory(String specimenId) {
+        GeneXpertSpecimenTracker specimens = GeneXpertRuntime.get().specimens(analyzerId);
+        return (specimens == null) ? "Specimen tracking disabled" : specimens.describe(specimenId);
+    }
+
+    @Override
+    public String unfinishedSpecimens(int max) {
+        GeneXpertSpecimenTracker specimens = GeneXpertRuntime.get().specimens(analyzerId);
+        return (specimens == null) ? "Specimen tracking disabled" : specimens.unfinished(Math.max(1, max));
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder a : new LongAdder[] { lab27Count, lab27Errors, lab28Count, lab28Errors, lab28Queued, lab28Delivered, lab28Failed, lab29Count, lab29Errors, lab29Duplicates, urgentMessages,
+                framesReceived, framesSent, nakSent, nakReceived, checksumErrors, timeouts, oversizedMessages, spilledMessages, enqDelayed, enqRefused, upstreamRefused }) {
+            a.reset();
+        }
+        for (GeneXpertHistogram h : new GeneXpertHistogram[] { lab27Conversion, lab28Conversion, lab28Delivery, lab29Conversion,
+                lab27UpstreamRtt, lab29UpstreamRtt, enqToEot, frameAckRtt, admissionWait, upstreamWait, queryToResult, orderToResult }) {
+            h.reset();
+        }
+    }
+}
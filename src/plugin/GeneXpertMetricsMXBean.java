@@ -0,0 +1,74 @@
+package plugin;
+
+/**
+ * JMX view of the GeneXpert plugin metrics for one analyzer.
+ * <p>
+ * Registered as {@code labbook.connect:type=AnalyzerGeneXpert,id=<id_analyzer>}.
+ * Latencies are reported in microseconds.
+ */
+public interface GeneXpertMetricsMXBean {
+
+    String getAnalyzerId();
+
+    // === Transactions ===
+    long getLab27Count();
+    long getLab27Errors();
+    long getLab28Count();
+    long getLab28Errors();
+    long getLab28Queued();
+    long getLab28Delivered();
+    long getLab28Failed();
+    int getPendingOrders();
+    long getLab29Count();
+    long getLab29Errors();
+    long getLab29Duplicates();
+    long getUrgentMessages();
+
+    // === Latencies ===
+    GeneXpertHistogram.Snapshot getLab27Conversion();
+    GeneXpertHistogram.Snapshot getLab28Conversion();
+    GeneXpertHistogram.Snapshot getLab28Delivery();
+    GeneXpertHistogram.Snapshot getLab29Conversion();
+    GeneXpertHistogram.Snapshot getLab27UpstreamRtt();
+    GeneXpertHistogram.Snapshot getLab29UpstreamRtt();
+    GeneXpertHistogram.Snapshot getEnqToEot();
+    GeneXpertHistogram.Snapshot getFrameAckRtt();
+    GeneXpertHistogram.Snapshot getAdmissionWait();
+    GeneXpertHistogram.Snapshot getUpstreamWait();
+    GeneXpertHistogram.Snapshot getQueryToResult();
+    GeneXpertHistogram.Snapshot getOrderToResult();
+
+    // === E1381 link ===
+    long getFramesReceived();
+    long getFramesSent();
+    long getNakSent();
+    long getNakReceived();
+    long getChecksumErrors();
+    long getTimeouts();
+    long getOversizedMessages();
+    long getSpilledMessages();
+    int getActiveSessions();
+    long getAckTimeoutMs();
+    long getFrameTimeoutMs();
+
+    // === Admission control ===
+    long getEnqDelayed();
+    long getEnqRefused();
+
+    // === Upstream concurrency limit ===
+    int getUpstreamLimit();
+    long getUpstreamRefused();
+
+    // === Specimens ===
+    int getTrackedSpecimens();
+
+    // === Runtime (shared by all analyzers) ===
+    boolean isWarmedUp();
+    long getWarmupMillis();
+
+    // === Operations ===
+    String dumpWireTrace();
+    String specimenHistory(String specimenId);
+    String unfinishedSpecimens(int max);
+    void reset();
+}
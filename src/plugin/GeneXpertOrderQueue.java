@@ -0,0 +1,336 @@
+package plugin;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable queue of the LAB-28 orders of one analyzer, waiting for delivery over E1381.
+ * <p>
+ * An order is accepted from LabBook once it is written to the queue file and forced to disk; it is then
+ * delivered when the analyzer is connected and the line is idle (see {@link AnalyzerGeneXpert}). Each
+ * order keeps the control ID (MSH-10) of its OML^O33, so that LabBook sending the same message again
+ * gets the delivery status instead of a second order.
+ * <p>
+ * Pending orders are delivered most urgent first ({@link GeneXpertPriority} of the OML^O33), then oldest first,
+ * so that STAT orders do not wait behind a routine backlog built up while the analyzer was disconnected.
+ * <p>
+ * The file is a log of entries (queued, delivered, failed), replayed at startup: orders queued and
+ * neither delivered nor failed are pending again. It is rewritten with the pending orders and the
+ * retained statuses when it holds many completed entries. An order rejected by the analyzer (NAK)
+ * {@value #MAX_ATTEMPTS} times is failed; transport errors and timeouts are not counted, the order
+ * simply waits for the next connection.
+ */
+final class GeneXpertOrderQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeneXpertOrderQueue.class);
+
+    private static final long MAGIC = 0x47584f5244455232L; // "GXORDER2"
+    private static final byte QUEUED = 'Q';
+    private static final byte DELIVERED = 'D';
+    private static final byte FAILED = 'F';
+
+    /** Rejections (NAK) after which an order is failed. */
+    static final int MAX_ATTEMPTS = 3;
+    /** Completed orders whose status is kept for LabBook resends. */
+    private static final int STATUS_CAPACITY = 4096;
+
+    /** Delivery status of an order. */
+    enum Status { PENDING, DELIVERED, FAILED }
+
+    /**
+     * Order waiting for delivery: ASTM records converted from one OML^O33.
+     */
+    static final class Order {
+        final long seq;
+        final String controlId;
+        final long queuedAt; // epoch ms
+        final GeneXpertPriority priority;
+        final String[] records;
+        int attempts = 0;
+
+        Order(long seq, String controlId, long queuedAt, GeneXpertPriority priority, String[] records) {
+            this.seq = seq;
+            this.controlId = controlId;
+            this.queuedAt = queuedAt;
+            this.priority = priority;
+            this.records = records;
+        }
+    }
+
+    private final Path file;
+    private final Map<Long, Order> pending = new LinkedHashMap<>();
+    private final Map<String, Order> byControlId = new LinkedHashMap<>();
+    private final Map<String, Status> completed = new LinkedHashMap<String, Status>(16, 0.75f, false) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Status> eldest) {
+            return size() > STATUS_CAPACITY;
+        }
+    };
+    private long nextSeq = 1;
+    private FileChannel log;
+    private long logEntries = 0;
+
+    /**
+     * Opens the queue file (created with its directory if needed) and reloads its pending orders.
+     *
+     * @param file Queue file of the analyzer
+     */
+    GeneXpertOrderQueue(Path file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Queues an order, unless an order with the same control ID is already known.
+     *
+     * @param controlId MSH-10 of the OML^O33
+     * @param priority Priority of the order
+     * @param records ASTM records of the order (H, P, O..., L)
+     * @return null if the order was queued, or the status of the order already known with this control ID
+     * @throws IOException If the order could not be written to disk (it is then not queued)
+     */
+    synchronized Status submit(String controlId, GeneXpertPriority priority, String[] records) throws IOException {
+        String id = (controlId == null) ? "" : controlId;
+        Status known = status(id);
+        if (known != null) return known;
+        if (log == null) throw new IOException("Order queue file " + file + " is not writable");
+
+        Order order = new Order(nextSeq++, id, System.currentTimeMillis(),
+                (priority == null) ? GeneXpertPriority.ROUTINE : priority, records.clone());
+        append(entry(QUEUED, order));
+        pending.put(order.seq, order);
+        if (!id.isEmpty()) byControlId.put(id, order);
+        return null;
+    }
+
+    /**
+     * @return Status of the order with this control ID, or null if unknown
+     */
+    synchronized Status status(String controlId) {
+        if (controlId == null || controlId.isEmpty()) return null;
+        if (byControlId.containsKey(controlId)) return Status.PENDING;
+        return completed.get(controlId);
+    }
+
+    /** Number of orders waiting for delivery. */
+    synchronized int pending() {
+        return pending.size();
+    }
+
+    /**
+     * @return Up to {@code max} pending orders, most urgent first, then oldest first (they stay queued until completed)
+     */
+    synchronized List<Order> next(int max) {
+        if (pending.isEmpty()) return Collections.emptyList();
+        List<Order> batch = new ArrayList<>(Math.min(max, pending.size()));
+        for (GeneXpertPriority priority : GeneXpertPriority.values()) {
+            for (Order order : pending.values()) {
+                if (batch.size() == max) return batch;
+                if (order.priority == priority) batch.add(order);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Records the delivery of orders (accepted by the analyzer).
+     */
+    synchronized void delivered(List<Order> orders) {
+        for (Order order : orders) {
+            complete(order, DELIVERED, Status.DELIVERED);
+        }
+    }
+
+    /**
+     * Records a rejection of orders by the analyzer; orders rejected {@value #MAX_ATTEMPTS} times are failed.
+     *
+     * @return Orders failed by this rejection
+     */
+    synchronized List<Order> rejected(List<Order> orders) {
+        List<Order> failed = new ArrayList<>();
+        for (Order order : orders) {
+            if (!pending.containsKey(order.seq)) continue;
+            if (++order.attempts >= MAX_ATTEMPTS) {
+                complete(order, FAILED, Status.FAILED);
+                failed.add(order);
+            }
+        }
+        return failed;
+    }
+
+    private void complete(Order order, byte type, Status status) {
+        if (pending.remove(order.seq) == null) return;
+        if (!order.controlId.isEmpty()) {
+            byControlId.remove(order.controlId);
+            completed.put(order.controlId, status);
+        }
+        try {
+            append(entry(type, order));
+        } catch (IOException e) {
+            // the order is sent again after a restart
+            logger.warn("Cannot record the status of LAB-28 order {} in {}: {}", order.controlId, file, e.getMessage());
+        }
+        if (logEntries > 2L * (pending.size() + completed.size()) + 1024) rewrite();
+    }
+
+    // === Persistence ===
+
+    private static byte[] entry(byte type, Order order) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(order.seq);
+        out.writeUTF(order.controlId);
+        if (type == QUEUED) {
+            out.writeLong(order.queuedAt);
+            out.writeByte(order.priority.code().charAt(0));
+            out.writeInt(order.records.length);
+            for (String record : order.records) {
+                out.writeUTF(record);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void load() {
+        int loaded = 0;
+        if (Files.isRegularFile(file)) {
+            try (InputStream stream = Files.newInputStream(file);
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+                long magic = in.readLong();
+                if (magic != MAGIC) {
+                    logger.warn("GeneXpert order queue {} has an unknown format: replaced", file);
+                } else {
+                    while (true) {
+                        byte type = in.readByte();
+                        long seq = in.readLong();
+                        String controlId = in.readUTF();
+                        nextSeq = Math.max(nextSeq, seq + 1);
+                        if (type == QUEUED) {
+                            long queuedAt = in.readLong();
+                            GeneXpertPriority priority = GeneXpertPriority.of(String.valueOf((char) in.readUnsignedByte()));
+                            String[] records = new String[in.readInt()];
+                            for (int i = 0; i < records.length; i++) {
+                                records[i] = in.readUTF();
+                            }
+                            Order order = new Order(seq, controlId, queuedAt, priority, records);
+                            pending.put(seq, order);
+                            if (!controlId.isEmpty()) byControlId.put(controlId, order);
+                        } else {
+                            Order order = pending.remove(seq);
+                            if (order != null && !order.controlId.isEmpty()) byControlId.remove(order.controlId);
+                            if (!controlId.isEmpty()) completed.put(controlId, (type == DELIVERED) ? Status.DELIVERED : Status.FAILED);
+                        }
+                    }
+                }
+            } catch (EOFException end) {
+                // end of the log (a truncated last entry is ignored)
+            } catch (IOException e) {
+                logger.warn("Cannot read GeneXpert order queue {} ({}): pending orders may be lost", file, e.getMessage());
+            }
+            loaded = pending.size();
+        }
+        rewrite();
+        logger.info("GeneXpert order queue {}: {} pending orders loaded", file, loaded);
+    }
+
+    /** Replaces the file with the pending orders and the retained statuses, then reopens it for appending. */
+    private void rewrite() {
+        closeLog();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            long entries = 0;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(8).putLong(MAGIC);
+                header.flip();
+                write(out, header);
+                long seq = 0;
+                for (Map.Entry<String, Status> done : completed.entrySet()) {
+                    Order marker = new Order(seq, done.getKey(), 0L, GeneXpertPriority.ROUTINE, new String[0]);
+                    write(out, ByteBuffer.wrap(entry((done.getValue() == Status.DELIVERED) ? DELIVERED : FAILED, marker)));
+                    entries++;
+                }
+                for (Order order : pending.values()) {
+                    write(out, ByteBuffer.wrap(entry(QUEUED, order)));
+                    entries++;
+                }
+                out.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(file.toAbsolutePath().getParent());
+            log = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            logEntries = entries;
+        } catch (IOException e) {
+            logger.error("Cannot write GeneXpert order queue {} ({}): LAB-28 orders cannot be queued", file, e.getMessage());
+            closeLog();
+        }
+    }
+
+    /**
+     * Forces the directory of the queue file to disk after the rename, so that a crash cannot bring back the
+     * previous file (entries appended to the new one would be lost). Directories cannot be opened on some
+     * platforms (Windows): the rename is then as durable as the file system makes it.
+     */
+    private void forceDirectory(Path dir) {
+        if (dir == null) return;
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.debug("Cannot force directory {} of GeneXpert order queue to disk: {}", dir, e.getMessage());
+        }
+    }
+
+    /** Appends an entry and forces it to disk. */
+    private void append(byte[] entry) throws IOException {
+        if (log == null) throw new IOException("Order queue file " + file + " is not writable");
+        try {
+            write(log, ByteBuffer.wrap(entry));
+            log.force(false);
+            logEntries++;
+        } catch (IOException e) {
+            closeLog();
+            rewrite(); // drops a partly written entry
+            throw e;
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void closeLog() {
+        if (log == null) return;
+        try {
+            log.close();
+        } catch (IOException ignore) {
+            // nothing left to release
+        }
+        log = null;
+    }
+}
@@ -0,0 +1,149 @@
+package plugin;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Priority of a message, used to schedule urgent work ahead of routine traffic.
+ * <p>
+ * Read from the ASTM O record priority (O.6: S = stat, A = ASAP, R = routine) of the analyzer messages,
+ * and from the HL7 order priority of LabBook messages: ORC-7.6 and OBR-27.6 (quantity/timing), TQ1-9,
+ * or OBR-5 (HL7 table 0027). Only an explicit S or A flag makes a message urgent; other codes
+ * (P = preoperative, C = callback, T = timing critical, R) and messages without orders (queries) are routine.
+ * A message with several orders takes the most urgent of them. Constants are declared most urgent first.
+ * <p>
+ * Urgent work goes first, but routine work waiting longer than {@link #AGING_MS} is no longer held back
+ * by it, so that a steady flow of urgent messages cannot starve the routine backlog.
+ */
+enum GeneXpertPriority {
+    STAT("S"),
+    ASAP("A"),
+    ROUTINE("R");
+
+    /** Wait (ms) after which routine work competes with urgent work for a slot or for the line. */
+    static final long AGING_MS = 1000L;
+
+    private final String code;
+
+    GeneXpertPriority(String code) {
+        this.code = code;
+    }
+
+    /** ASTM code (O.6) of the priority. */
+    String code() {
+        return code;
+    }
+
+    /** true for STAT and ASAP. */
+    boolean urgent() {
+        return this != ROUTINE;
+    }
+
+    /** The more urgent of two priorities. */
+    GeneXpertPriority max(GeneXpertPriority other) {
+        return (other != null && other.ordinal() < ordinal()) ? other : this;
+    }
+
+    /**
+     * Priority of an ASTM or HL7 priority code (first component, case ignored): S is STAT, A is ASAP;
+     * anything else, empty or null is ROUTINE.
+     */
+    static GeneXpertPriority of(String code) {
+        if (code == null) return ROUTINE;
+        String c = code.trim();
+        int caret = c.indexOf('^');
+        if (caret >= 0) c = c.substring(0, caret).trim();
+        c = c.toUpperCase(Locale.ROOT);
+        switch (c) {
+        case "S":
+            return STAT;
+        case "A":
+            return ASAP;
+        default:
+            return ROUTINE;
+        }
+    }
+
+    /**
+     * Most urgent priority (O.6) of the O records of an ASTM message.
+     *
+     * @param records ASTM records, with or without their frame number
+     */
+    static GeneXpertPriority ofAstm(String[] records) {
+        return ofAstm(Arrays.asList(records));
+    }
+
+    /**
+     * Most urgent priority (O.6) of the O records of an ASTM message read one record at a time.
+     *
+     * @param records ASTM records, with or without their frame number
+     */
+    static GeneXpertPriority ofAstm(Iterable<String> records) {
+        GeneXpertPriority priority = ROUTINE;
+        for (String record : records) {
+            if (record == null) continue;
+            int p = (record.length() > 1 && record.charAt(0) >= '0' && record.charAt(0) <= '7') ? 1 : 0;
+            if (!record.startsWith("O|", p)) continue;
+            priority = priority.max(of(field(record, p, 5)));
+            if (priority == STAT) break;
+        }
+        return priority;
+    }
+
+    /**
+     * Most urgent order priority of an HL7 message (ORC-7.6, TQ1-9, OBR-5, OBR-27.6).
+     *
+     * @param hl7Message HL7 message in ER7 format (segments separated by CR)
+     */
+    static GeneXpertPriority ofHl7(String hl7Message) {
+        GeneXpertPriority priority = ROUTINE;
+        if (hl7Message == null) return priority;
+        int len = hl7Message.length();
+        int start = 0;
+        while (start < len && priority != STAT) {
+            int end = hl7Message.indexOf('\r', start);
+            if (end < 0) end = len;
+            priority = priority.max(ofSegment(hl7Message.substring(start, end)));
+            start = end + 1;
+        }
+        return priority;
+    }
+
+    /**
+     * Order priority carried by one HL7 segment: ORC-7.6, TQ1-9, OBR-5 or OBR-27.6; ROUTINE for other segments.
+     */
+    static GeneXpertPriority ofSegment(String segment) {
+        if (segment.startsWith("ORC|")) {
+            return of(component(field(segment, 0, 7), 5));
+        }
+        if (segment.startsWith("TQ1|")) {
+            return of(field(segment, 0, 9));
+        }
+        if (segment.startsWith("OBR|")) {
+            return of(field(segment, 0, 5)).max(of(component(field(segment, 0, 27), 5)));
+        }
+        return ROUTINE;
+    }
+
+    /** Field {@code n} of a record or segment starting at {@code from} (field 0 = record or segment type), or an empty string. */
+    private static String field(String s, int from, int n) {
+        int start = from;
+        for (int i = 0; i < n; i++) {
+            start = s.indexOf('|', start) + 1;
+            if (start == 0) return "";
+        }
+        int end = s.indexOf('|', start);
+        return s.substring(start, (end < 0) ? s.length() : end);
+    }
+
+    /** Component {@code n} (0-based) of a field, or an empty string. */
+    private static String component(String field, int n) {
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            start = field.indexOf('^', start) + 1;
+            if (start == 0) return "";
+        }
+        int end = field.indexOf('^', start);
+        return field.substring(start, (end < 0) ? field.length() : end);
+    }
+}
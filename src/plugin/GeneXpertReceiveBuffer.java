@@ -0,0 +1,232 @@
+package plugin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receive buffers of one E1381 session: the frame decoder and the assembly buffer of the message
+ * in progress, both bounded.
+ * <p>
+ * Instances are pooled by {@link GeneXpertRuntime}: a session takes one when it starts, reuses it
+ * for every message, and gives it back when the connection ends. Frame text is copied once, from the
+ * decoder payload into the assembly buffer; the buffer grows up to the maximum message size and is
+ * never replaced while the session runs.
+ * <p>
+ * A message longer than the spill threshold moves from the heap to a memory-mapped temporary file
+ * for the rest of its reception, and its records are decoded from the mapped region one at a time
+ * ({@link #eachRecord()}), without a heap copy of the whole message. The file is mapped on the first
+ * spill of the buffer and deleted at once (where the platform allows it: the mapping keeps its pages);
+ * the mapping is then reused by the later messages of every session using the buffer, so that it is
+ * not left to the garbage collector after each message. If the file cannot be created, the message
+ * stays on the heap.
+ */
+final class GeneXpertReceiveBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeneXpertReceiveBuffer.class);
+
+    private final GeneXpertFrameCodec decoder;
+    private final int maxMessage;
+    private final int spillThreshold;
+    private final Path spillDir;
+    private byte[] data = new byte[1024];
+    private int length = 0;
+
+    // Mapped spill file of the buffer (null until the first spill), and whether the current message uses it
+    private MappedByteBuffer spill;
+    private boolean spilled = false;
+
+    /**
+     * @param maxFrame Longest frame text, in bytes
+     * @param maxMessage Longest assembled message, in bytes
+     * @param spillThreshold Message size above which the message is spilled to a mapped file (0: never)
+     * @param spillDir Directory of the spill files
+     */
+    GeneXpertReceiveBuffer(int maxFrame, int maxMessage, int spillThreshold, Path spillDir) {
+        this.decoder = new GeneXpertFrameCodec(maxFrame);
+        this.maxMessage = Math.max(1, maxMessage);
+        this.spillThreshold = (spillThreshold > 0 && spillThreshold < this.maxMessage) ? spillThreshold : Integer.MAX_VALUE;
+        this.spillDir = spillDir;
+    }
+
+    /** Frame decoder of the session. */
+    GeneXpertFrameCodec decoder() {
+        return decoder;
+    }
+
+    /** Starts a new message. */
+    void reset() {
+        length = 0;
+        spilled = false;
+    }
+
+    /**
+     * Appends the text of the last decoded frame to the message.
+     *
+     * @return false if the frame was oversized or the message would exceed the maximum size (nothing appended)
+     */
+    boolean appendFrame() {
+        if (decoder.isOversized()) return false;
+        int n = decoder.length();
+        if (n > maxMessage - length) return false;
+
+        if (!spilled && length + n > spillThreshold) {
+            spilled = spill();
+        }
+        if (spilled) {
+            spill.put(length, decoder.payload(), 0, n);
+            length += n;
+            return true;
+        }
+
+        if (length + n > data.length) {
+            byte[] bigger = new byte[(int) Math.min(Math.max((long) data.length * 2, (long) length + n), maxMessage)];
+            System.arraycopy(data, 0, bigger, 0, length);
+            data = bigger;
+        }
+        System.arraycopy(decoder.payload(), 0, data, length, n);
+        length += n;
+        return true;
+    }
+
+    /**
+     * Moves the message assembled so far to the spill file, mapping the file first if needed.
+     *
+     * @return true if the message continues in the spill file
+     */
+    private boolean spill() {
+        try {
+            if (spill == null) spill = map();
+            spill.put(0, data, 0, length);
+            logger.info("ASTM message over {} bytes: reception continues in a mapped file of {}", spillThreshold, spillDir);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot spill ASTM message to {} ({}): message kept in memory", spillDir, e.getMessage());
+            return false;
+        }
+    }
+
+    /** Maps a new spill file of the maximum message size, then deletes the file (the mapping stays valid). */
+    private MappedByteBuffer map() throws IOException {
+        Path file = Files.createTempFile(spillDir, "genexpert-rx-", ".spill");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, maxMessage);
+        } finally {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit(); // still mapped (e.g. on Windows)
+            }
+        }
+    }
+
+    /** Number of bytes of the message assembled so far. */
+    int length() {
+        return length;
+    }
+
+    /** true if the current message was spilled to the mapped file. */
+    boolean isSpilled() {
+        return spilled;
+    }
+
+    /** true if the message holds nothing but whitespace. */
+    boolean isBlank() {
+        ByteBuffer src = source();
+        for (int i = 0; i < length; i++) {
+            if ((src.get(i) & 0xFF) > ' ') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Assembled message as text (US-ASCII). Only for a message kept on the heap: a spilled message is
+     * read with {@link #eachRecord()}.
+     */
+    String text() {
+        if (spilled) throw new IllegalStateException("Spilled message: read its records one at a time");
+        return new String(data, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Splits the assembled message into records (see {@link #eachRecord()}).
+     *
+     * @return Records of the message, without CR/LF (none for an empty message)
+     */
+    String[] records() {
+        List<String> records = new ArrayList<>();
+        for (String record : eachRecord()) {
+            records.add(record);
+        }
+        return records.toArray(new String[0]);
+    }
+
+    /**
+     * Records of the assembled message, decoded one at a time from the buffer or the mapped file when
+     * iterated: leading and trailing whitespace of the message is ignored, records are separated by runs
+     * of CR/LF. Valid until the next message starts.
+     */
+    Iterable<String> eachRecord() {
+        return RecordIterator::new;
+    }
+
+    private ByteBuffer source() {
+        return spilled ? spill : ByteBuffer.wrap(data, 0, length);
+    }
+
+    /** Iterator over the records of the message (see {@link #eachRecord()}). */
+    private final class RecordIterator implements Iterator<String> {
+        private final ByteBuffer src = source();
+        private final int end;
+        private int next = 0;
+        private byte[] scratch;
+
+        RecordIterator() {
+            int e = length;
+            while (next < e && (src.get(next) & 0xFF) <= ' ') next++;
+            while (e > next && (src.get(e - 1) & 0xFF) <= ' ') e--;
+            this.end = e;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < end;
+        }
+
+        @Override
+        public String next() {
+            if (next >= end) throw new NoSuchElementException();
+            int from = next;
+            int i = from;
+            while (i < end && src.get(i) != '\r' && src.get(i) != '\n') i++;
+            int n = i - from;
+            while (i < end && (src.get(i) == '\r' || src.get(i) == '\n')) i++;
+            next = i;
+            if (!spilled) return new String(data, from, n, StandardCharsets.US_ASCII);
+            if (scratch == null || n > scratch.length) scratch = new byte[Math.max(n, 256)];
+            src.get(from, scratch, 0, n);
+            return new String(scratch, 0, n, StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Starts over and gives back the assembly buffer if it grew beyond the given capacity (before going
+     * back to the pool). The mapped spill file, if any, is kept for the next sessions.
+     */
+    void shrink(int capacity) {
+        reset();
+        if (data.length > capacity) data = new byte[capacity];
+    }
+}
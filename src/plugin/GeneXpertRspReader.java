@@ -0,0 +1,219 @@
+package plugin;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Incremental RSP^K11 to ASTM conversion (LAB-27 reply to a GeneXpert query).
+ * <p>
+ * RSP^K11 pages are read segment by segment. The reply header is emitted first, then every P and O
+ * record as soon as its OBR has been read, so that a long worklist can be sent to the analyzer
+ * while later pages are still being requested. The DSC continuation pointer of the last page is kept
+ * for paging; the patient and specimen context carries over from one page to the next.
+ * <p>
+ * Records emitted:
+ * <ul>
+ *   <li>P only for a patient with at least one mapped order</li>
+ *   <li>one O per OBR whose LIS test code is mapped (others are skipped with a warning), with the priority
+ *       of the order (ORC-7.6, TQ1-9, OBR-5 or OBR-27.6, see {@link GeneXpertPriority}) in O.6</li>
+ *   <li>L|1|F at the end of a processed reply, even without orders; L|1|N on technical errors</li>
+ * </ul>
+ */
+final class GeneXpertRspReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeneXpertRspReader.class);
+
+    private final GeneXpertMapping mapping;
+    private final String header;
+    private final GeneXpertFrameCodec.RecordSink out;
+
+    private boolean headerSent = false;
+    private String continuationPointer = "";
+
+    // Current patient context
+    private String patientId = "";
+    private String patientName = "";
+    private String birthDate = "";
+    private String sex = "";
+    private boolean patientHeaderEmitted = false;
+
+    // Current order context (within patient)
+    private String spmId = "";
+    private GeneXpertPriority orderPriority = GeneXpertPriority.ROUTINE; // ORC-7.6 / TQ1-9 of the order being read
+
+    private boolean hasAnyOrder = false;
+
+    /**
+     * @param mapping Mapping used to translate LIS test codes (OBR-4) to vendor test codes
+     * @param header Reply header record (H)
+     * @param out Destination of the ASTM records
+     */
+    GeneXpertRspReader(GeneXpertMapping mapping, String header, GeneXpertFrameCodec.RecordSink out) {
+        this.mapping = mapping;
+        this.header = header;
+        this.out = out;
+    }
+
+    /**
+     * Reads one RSP^K11 page and emits its records (the header first, on the first page).
+     *
+     * @param hl7Message HL7 RSP^K11 message in ER7 format
+     * @return false if the page is not an HL7 message (nothing but the header is emitted)
+     * @throws IOException If the record destination fails
+     */
+    boolean page(String hl7Message) throws IOException {
+        emitHeader();
+        continuationPointer = "";
+
+        if (hl7Message == null || hl7Message.trim().isEmpty() || !hl7Message.startsWith("MSH|")) {
+            logger.warn("convertRSP_K11toASTM: invalid HL7 input (null/empty/no MSH)");
+            return false;
+        }
+
+        int len = hl7Message.length();
+        int start = 0;
+        while (start < len) {
+            int end = hl7Message.indexOf('\r', start);
+            if (end < 0) end = len;
+            segment(hl7Message.substring(start, end));
+            start = end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Continuation pointer (DSC-1) of the last page read, or an empty string if it was the last page.
+     */
+    String continuationPointer() {
+        return continuationPointer;
+    }
+
+    /** true once the header has been emitted. */
+    boolean started() {
+        return headerSent;
+    }
+
+    /**
+     * Ends the reply with its terminator record.
+     *
+     * @param ok true for a processed reply (L|1|F), false after a technical error (L|1|N)
+     * @throws IOException If the record destination fails
+     */
+    void finish(boolean ok) throws IOException {
+        emitHeader();
+        out.record(ok ? "L|1|F" : "L|1|N");
+        if (ok && !hasAnyOrder) {
+            logger.info("convertRSP_K11toASTM: processed RSP^K11 but no mapped orders found; returning L|1|Y");
+        }
+    }
+
+    private void emitHeader() throws IOException {
+        if (!headerSent) {
+            headerSent = true;
+            out.record(header);
+        }
+    }
+
+    private void segment(String segment) throws IOException {
+        if (segment.startsWith("PID|")) {
+            // Switch patient context (do NOT emit P here)
+            String[] fields = segment.split("\\|", -1);
+            patientId = (fields.length > 3) ? fields[3] : "";
+            patientName = (fields.length > 5) ? fields[5] : "";
+            birthDate = (fields.length > 7) ? fields[7] : "";
+            sex = (fields.length > 8) ? fields[8] : "";
+
+            patientHeaderEmitted = false;
+            spmId = "";
+            orderPriority = GeneXpertPriority.ROUTINE;
+            return;
+        }
+
+        if (segment.startsWith("SPM|")) {
+            String[] fields = segment.split("\\|", -1);
+            spmId = (fields.length > 2) ? fields[2] : "";
+            orderPriority = GeneXpertPriority.ROUTINE;
+            return;
+        }
+
+        if (segment.startsWith("ORC|")) {
+            orderPriority = GeneXpertPriority.ofSegment(segment);
+            return;
+        }
+
+        if (segment.startsWith("TQ1|")) {
+            orderPriority = orderPriority.max(GeneXpertPriority.ofSegment(segment));
+            return;
+        }
+
+        if (segment.startsWith("DSC|")) {
+            String[] fields = segment.split("\\|", -1);
+            continuationPointer = (fields.length > 1) ? fields[1].trim() : "";
+            return;
+        }
+
+        if (!segment.startsWith("OBR|")) return;
+
+        String[] fields = segment.split("\\|", -1);
+        GeneXpertPriority priority = orderPriority.max(GeneXpertPriority.ofSegment(segment));
+        orderPriority = GeneXpertPriority.ROUTINE;
+
+        String lisTestCode = "";
+        if (fields.length > 4) {
+            String[] testInfo = fields[4].split("\\^", -1);
+
+            // Prefer component 4 (^^^GX01) but accept component 1 (89371-9)
+            if (testInfo.length > 3 && testInfo[3] != null && !testInfo[3].trim().isEmpty()) {
+                lisTestCode = testInfo[3].trim();
+            } else if (testInfo.length > 0 && testInfo[0] != null) {
+                lisTestCode = testInfo[0].trim();
+            }
+        }
+
+        String obrCode = mapping.vendorTestCodeForLis(lisTestCode);
+
+        if (isBlank(spmId)) {
+            logger.warn("convertRSP_K11toASTM: OBR received but spmId is empty (OBR-4='{}')", (fields.length > 4 ? fields[4] : ""));
+            return;
+        }
+
+        if (isBlank(obrCode)) {
+            logger.warn("convertRSP_K11toASTM: unmapped lisTestCode='{}' (OBR-4='{}')", lisTestCode, (fields.length > 4 ? fields[4] : ""));
+            return;
+        }
+
+        // Emit patient only when we actually have a mapped order to send
+        if (!patientHeaderEmitted) {
+            if (isBlank(patientId)) {
+                logger.warn("convertRSP_K11toASTM: mapped order found but patientId is empty; skipping patient block");
+                return;
+            }
+
+            out.record("P|1|" + patientId + "||" + patientName + "||" + birthDate + "|" + sex);
+            patientHeaderEmitted = true;
+        }
+
+        String[] orderFields = new String[26];
+        Arrays.fill(orderFields, "");
+
+        orderFields[0] = "O";
+        orderFields[1] = "1";
+        orderFields[2] = spmId;
+        orderFields[4] = "^^^" + obrCode;
+        orderFields[5] = priority.code(); // Priority
+        orderFields[6] = GeneXpertClock.timestamp();
+        orderFields[11] = "A";
+        orderFields[15] = "ORH";
+        orderFields[25] = "Q";
+
+        out.record(String.join("|", orderFields));
+        hasAnyOrder = true;
+    }
+
+    private static boolean isBlank(String s) {
+        return s == null || s.trim().isEmpty();
+    }
+}
@@ -0,0 +1,70 @@
+package plugin;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trip time estimator of one E1381 connection, giving adaptive reply deadlines.
+ * <p>
+ * Samples are smoothed as in TCP (RFC 6298): SRTT is an EWMA of the samples (gain 1/8) and RTTVAR an
+ * EWMA of their deviation from SRTT (gain 1/4). The deadline is {@code SRTT + max(granularity, 4 * RTTVAR)},
+ * clamped between a floor and the E1381 value of the wait. Until enough samples are taken, the E1381
+ * value is used, so a link is judged on its own history only.
+ * <p>
+ * On a LAN, where an instrument replies within a few ms, a dead link is then detected at the floor
+ * instead of after 10 s; a slow serial-to-TCP converter gets deadlines above its own delays,
+ * up to the E1381 value. Only the ACK to a frame sent is a round trip: the reply to an ENQ and the
+ * frames received follow the instrument's own pace, and keep the E1381 deadlines.
+ */
+final class GeneXpertRttEstimator {
+
+    private final long floorNanos;
+    private final long granularityNanos;
+    private final int minSamples;
+
+    private long srtt = 0L;   // ns
+    private long rttvar = 0L; // ns
+    private int samples = 0;
+
+    /**
+     * @param floorMs Shortest deadline (ms)
+     * @param granularityMs Timer resolution (ms), the least margin over SRTT
+     * @param minSamples Samples needed before the deadline adapts (0 = adaptive deadlines disabled)
+     */
+    GeneXpertRttEstimator(long floorMs, long granularityMs, int minSamples) {
+        this.floorNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, floorMs));
+        this.granularityNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, granularityMs));
+        this.minSamples = Math.max(0, minSamples);
+    }
+
+    /**
+     * Adds a measured round trip (wait that ended with a reply, not with a timeout).
+     */
+    synchronized void sample(long nanos) {
+        if (nanos < 0) return;
+        if (samples == 0) {
+            srtt = nanos;
+            rttvar = nanos / 2;
+        } else {
+            rttvar += (Math.abs(srtt - nanos) - rttvar) / 4;
+            srtt += (nanos - srtt) / 8;
+        }
+        if (samples < Integer.MAX_VALUE) samples++;
+    }
+
+    /**
+     * Deadline of the next wait.
+     *
+     * @param maxMs E1381 value of the wait (ms), used until the estimator has enough samples
+     * @return Deadline in ms, between the floor and {@code maxMs}
+     */
+    synchronized long timeoutMs(long maxMs) {
+        if (minSamples == 0 || samples < minSamples) return maxMs;
+        long rto = Math.max(floorNanos, srtt + Math.max(granularityNanos, 4 * rttvar));
+        return Math.min(maxMs, (rto + 999_999L) / 1_000_000L);
+    }
+
+    /** Smoothed round trip time in µs (0 before the first sample). */
+    synchronized long smoothedMicros() {
+        return srtt / 1000L;
+    }
+}
@@ -0,0 +1,768 @@
+package plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.moandjiezana.toml.Toml;
+
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.util.idgenerator.InMemoryIDGenerator;
+
+/**
+ * Resources shared by all GeneXpert analyzers of one LabBook Connect JVM.
+ * <p>
+ * <ul>
+ *   <li>Transport: the {@link GeneXpertTransport} carrier of all E1381 connections; with {@code nio}, one
+ *       {@link GeneXpertEventLoop} selects for all listeners and connections</li>
+ *   <li>I/O executor: listener and E1381 session threads (daemon, created on demand, reused). With {@code tcp},
+ *       each listener and each open connection keeps one thread blocked in its read; with {@code nio}, a
+ *       listener or a connection waiting for ENQ gives its thread back to the event loop</li>
+ *   <li>Worker pool: bounded pool running message processing (conversions and LabBook calls),
+ *       with a per-analyzer quota so that one busy instrument cannot take all workers; queued messages
+ *       are taken urgent first ({@link GeneXpertPriority}, with aging of routine work), then in arrival order</li>
+ *   <li>Upstream limiters: one adaptive {@link GeneXpertUpstreamLimiter} of concurrent requests per LabBook URL</li>
+ *   <li>Admission control: per-analyzer and global limits on received messages in flight
+ *       (from the ACK to their ENQ until their reply is sent)</li>
+ *   <li>Receive buffers: pool of bounded {@link GeneXpertReceiveBuffer}s reused by the E1381 sessions</li>
+ *   <li>Conversion pool: fork-join pool converting the patients of large LAB-29 uploads in parallel</li>
+ *   <li>Timers: one {@link GeneXpertTimerWheel} for the E1381 timeouts of all sessions</li>
+ *   <li>HL7 context: one HAPI context for all analyzers, with one reusable parser per thread</li>
+ *   <li>Mapping snapshots: one {@link GeneXpertMapping} per mapping file, reloaded only when the file changes</li>
+ *   <li>Dedup index: one {@link GeneXpertDedupIndex} of the LAB-29 results accepted by LabBook, all analyzers</li>
+ *   <li>Order queues: one durable {@link GeneXpertOrderQueue} of LAB-28 orders per analyzer (when enabled)</li>
+ *   <li>Specimen trackers: one {@link GeneXpertSpecimenTracker} of specimen lifecycles per analyzer (when enabled)</li>
+ *   <li>Warm-up: one background run of {@link GeneXpertWarmup} when the first analyzer starts listening</li>
+ * </ul>
+ * Sizes are read once from system properties of the Connect JVM:
+ * <ul>
+ *   <li>{@code genexpert.transport}: carrier of the E1381 connections, {@code tcp}, {@code nio} or {@code memory}
+ *       (default {@code tcp})</li>
+ *   <li>{@code genexpert.workers}: worker threads, mostly waiting for LabBook (default: 4 per CPU, at least 16)</li>
+ *   <li>{@code genexpert.workerQuota}: worker tasks per analyzer (default: half of the workers, at least 1)</li>
+ *   <li>{@code genexpert.maxInFlight}: messages in flight, all analyzers (default: twice the workers)</li>
+ *   <li>{@code genexpert.maxInFlightPerAnalyzer}: messages in flight per analyzer (default: 1)</li>
+ *   <li>{@code genexpert.enqHoldMs}: longest delay of the ACK to an ENQ while waiting for admission
+ *       (default 10000, at most 14000 to stay within the 15 s ENQ timer of the instrument)</li>
+ *   <li>{@code genexpert.maxFrameBytes}: longest frame text received (default 8192; E1381 frames hold at most 240)</li>
+ *   <li>{@code genexpert.maxMessageBytes}: longest message received, ENQ to EOT (default 8388608)</li>
+ *   <li>{@code genexpert.spillBytes}: size above which a message being received moves to a memory-mapped
+ *       temporary file (default 262144, 0 = never)</li>
+ *   <li>{@code genexpert.spillDir}: directory of those files (default: {@code java.io.tmpdir})</li>
+ *   <li>{@code genexpert.receiveTimeoutMs}: longest wait for the next frame or EOT of a transmission being received (default 15000)</li>
+ *   <li>{@code genexpert.ackTimeoutMs}: longest wait for the ACK to an ENQ or a frame sent (default 10000)</li>
+ *   <li>{@code genexpert.idleTimeoutMs}: connections without any transmission for this time are closed (default 0 = never)</li>
+ *   <li>{@code genexpert.timerTickMs}: timer resolution (default 100)</li>
+ *   <li>{@code genexpert.adaptiveTimeoutSamples}: round trips measured on a connection before the deadline of
+ *       the ACK to a frame sent adapts to them (default 8, 0 = always the E1381 value above)</li>
+ *   <li>{@code genexpert.adaptiveTimeoutFloorMs}: shortest adaptive deadline (default 1000)</li>
+ *   <li>{@code genexpert.convertParallelism}: threads of the conversion pool (default: number of CPUs, 1 = no parallel conversion)</li>
+ *   <li>{@code genexpert.convertParallelPatients}: LAB-29 uploads with at least this many patients are converted
+ *       in parallel (default 32)</li>
+ *   <li>{@code genexpert.queryPageSize}: page size sent in RCP-2 of LAB-27 "query all" requests
+ *       (default 0 = not sent, LabBook decides)</li>
+ *   <li>{@code genexpert.lab29FanOut}: LAB-29 uploads of several patients are sent to LabBook as one OUL^R22 per
+ *       patient, with at most this many requests at a time (default 0 = one OUL^R22 per upload)</li>
+ *   <li>{@code genexpert.upstreamMaxConcurrency}: highest adaptive limit of concurrent requests per LabBook URL
+ *       (default 64, 0 = no limit)</li>
+ *   <li>{@code genexpert.upstreamInitialConcurrency}: limit before the first requests (default 4)</li>
+ *   <li>{@code genexpert.upstreamLatencyTolerance}: round trip, relative to the no-load round trip, above which
+ *       LabBook is considered congested and the limit decreases (default 2.0)</li>
+ *   <li>{@code genexpert.upstreamWaitMs}: longest wait for a request slot; the request then fails (default 30000)</li>
+ *   <li>{@code genexpert.dedupWindowMs}: time during which a LAB-29 result accepted by LabBook is recognised when
+ *       sent again (default 86400000, 0 = no duplicate detection)</li>
+ *   <li>{@code genexpert.dedupCapacity}: results kept in the dedup index (default 65536, 16 bytes each)</li>
+ *   <li>{@code genexpert.dedupFile}: file persisting the dedup index across restarts (default: none, memory only)</li>
+ *   <li>{@code genexpert.orderQueueDir}: directory of the LAB-28 order queues; when set, orders are queued on disk,
+ *       acknowledged to LabBook at once and delivered when the analyzer line is free (default: none, orders are
+ *       sent while LabBook waits)</li>
+ *   <li>{@code genexpert.specimenCapacity}: specimens tracked per analyzer (default 20000, 0 = no tracking)</li>
+ *   <li>{@code genexpert.specimenWindowMs}: time a specimen is tracked after its last event (default 604800000)</li>
+ *   <li>{@code genexpert.specimenDir}: directory of the specimen snapshots, written every minute when changed and
+ *       reloaded at startup (default: none, memory only)</li>
+ *   <li>{@code genexpert.warmupIterations}: rounds of the conversion warm-up (default 500, 0 = no warm-up)</li>
+ * </ul>
+ */
+final class GeneXpertRuntime {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeneXpertRuntime.class);
+
+    static final String PROP_TRANSPORT = "genexpert.transport";
+    static final String PROP_WORKERS = "genexpert.workers";
+    static final String PROP_WORKER_QUOTA = "genexpert.workerQuota";
+    static final String PROP_MAX_IN_FLIGHT = "genexpert.maxInFlight";
+    static final String PROP_MAX_IN_FLIGHT_PER_ANALYZER = "genexpert.maxInFlightPerAnalyzer";
+    static final String PROP_ENQ_HOLD_MS = "genexpert.enqHoldMs";
+    static final String PROP_MAX_FRAME_BYTES = "genexpert.maxFrameBytes";
+    static final String PROP_MAX_MESSAGE_BYTES = "genexpert.maxMessageBytes";
+    static final String PROP_SPILL_BYTES = "genexpert.spillBytes";
+    static final String PROP_SPILL_DIR = "genexpert.spillDir";
+    static final String PROP_RECEIVE_TIMEOUT_MS = "genexpert.receiveTimeoutMs";
+    static final String PROP_ACK_TIMEOUT_MS = "genexpert.ackTimeoutMs";
+    static final String PROP_IDLE_TIMEOUT_MS = "genexpert.idleTimeoutMs";
+    static final String PROP_TIMER_TICK_MS = "genexpert.timerTickMs";
+    static final String PROP_ADAPTIVE_TIMEOUT_SAMPLES = "genexpert.adaptiveTimeoutSamples";
+    static final String PROP_ADAPTIVE_TIMEOUT_FLOOR_MS = "genexpert.adaptiveTimeoutFloorMs";
+    static final String PROP_WARMUP_ITERATIONS = "genexpert.warmupIterations";
+    static final String PROP_CONVERT_PARALLELISM = "genexpert.convertParallelism";
+    static final String PROP_CONVERT_PARALLEL_PATIENTS = "genexpert.convertParallelPatients";
+    static final String PROP_QUERY_PAGE_SIZE = "genexpert.queryPageSize";
+    static final String PROP_LAB29_FAN_OUT = "genexpert.lab29FanOut";
+    static final String PROP_UPSTREAM_MAX_CONCURRENCY = "genexpert.upstreamMaxConcurrency";
+    static final String PROP_UPSTREAM_INITIAL_CONCURRENCY = "genexpert.upstreamInitialConcurrency";
+    static final String PROP_UPSTREAM_LATENCY_TOLERANCE = "genexpert.upstreamLatencyTolerance";
+    static final String PROP_UPSTREAM_WAIT_MS = "genexpert.upstreamWaitMs";
+    static final String PROP_DEDUP_WINDOW_MS = "genexpert.dedupWindowMs";
+    static final String PROP_DEDUP_CAPACITY = "genexpert.dedupCapacity";
+    static final String PROP_DEDUP_FILE = "genexpert.dedupFile";
+    static final String PROP_ORDER_QUEUE_DIR = "genexpert.orderQueueDir";
+    static final String PROP_SPECIMEN_CAPACITY = "genexpert.specimenCapacity";
+    static final String PROP_SPECIMEN_WINDOW_MS = "genexpert.specimenWindowMs";
+    static final String PROP_SPECIMEN_DIR = "genexpert.specimenDir";
+
+    // E1381 senders give up on an ENQ after 15 s without reply
+    private static final long MAX_ENQ_HOLD_MS = 14000;
+
+    // Assembly buffers above this capacity are released when their session ends
+    private static final int RETAINED_BUFFER_BYTES = 64 * 1024;
+
+    // Interval of the specimen snapshots (written only when a tracker changed)
+    private static final long SPECIMEN_SNAPSHOT_MS = 60000;
+
+    private static final class Holder {
+        static final GeneXpertRuntime INSTANCE = new GeneXpertRuntime();
+    }
+
+    private static final class MappingSnapshot {
+        final long lastModified;
+        final GeneXpertMapping mapping;
+
+        MappingSnapshot(long lastModified, GeneXpertMapping mapping) {
+            this.lastModified = lastModified;
+            this.mapping = mapping;
+        }
+    }
+
+    private final GeneXpertTransport.Provider transport;
+    private final ExecutorService io;
+    private final ThreadPoolExecutor workers;
+    private final int convertParallelism;
+    private final int convertParallelPatients;
+    private volatile ForkJoinPool converters;
+    private final int workerQuota;
+    private final ConcurrentMap<String, Semaphore> quotas = new ConcurrentHashMap<>();
+    private final AtomicLong taskSeq = new AtomicLong();
+
+    private final Semaphore inFlight;
+    private final int inFlightPerAnalyzer;
+    private final ConcurrentMap<String, Semaphore> analyzerInFlight = new ConcurrentHashMap<>();
+    private final long enqHoldNanos;
+
+    private final int maxFrameBytes;
+    private final int maxMessageBytes;
+    private final int spillBytes;
+    private final Path spillDir;
+    private final BlockingQueue<GeneXpertReceiveBuffer> receiveBuffers;
+
+    private final GeneXpertTimerWheel timers;
+    private final long receiveTimeoutMs;
+    private final long ackTimeoutMs;
+    private final long idleTimeoutMs;
+    private final long timerTickMs;
+    private final int adaptiveTimeoutSamples;
+    private final long adaptiveTimeoutFloorMs;
+
+    private final int queryPageSize;
+    private final int lab29FanOut;
+    private final int upstreamMaxConcurrency;
+    private final int upstreamInitialConcurrency;
+    private final double upstreamLatencyTolerance;
+    private final long upstreamWaitMs;
+    private final ConcurrentMap<String, GeneXpertUpstreamLimiter> upstreamLimiters = new ConcurrentHashMap<>();
+    private final GeneXpertDedupIndex dedup;
+    private final Path orderQueueDir;
+    private final ConcurrentMap<String, GeneXpertOrderQueue> orderQueues = new ConcurrentHashMap<>();
+    private final int specimenCapacity;
+    private final long specimenWindowMs;
+    private final Path specimenDir;
+    private final ConcurrentMap<String, GeneXpertSpecimenTracker> specimens = new ConcurrentHashMap<>();
+
+    private final int warmupIterations;
+    private final AtomicBoolean warmupStarted = new AtomicBoolean();
+    private volatile long warmupMillis = -1L;
+
+    private final HapiContext hl7Context;
+    private final ThreadLocal<PipeParser> parsers;
+
+    private final ConcurrentMap<String, MappingSnapshot> mappings = new ConcurrentHashMap<>();
+
+    private GeneXpertRuntime() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        // workers mostly wait for LabBook (the upstream limiters bound its load), so the pool is sized
+        // for blocking calls, not for the CPUs; CPU-bound conversions of large uploads use the conversion pool
+        int workerCount = Math.max(1, Integer.getInteger(PROP_WORKERS, Math.max(16, 4 * cpus)));
+        this.workerQuota = Math.max(1, Math.min(workerCount, Integer.getInteger(PROP_WORKER_QUOTA, Math.max(1, workerCount / 2))));
+
+        this.transport = transportProvider(System.getProperty(PROP_TRANSPORT, "tcp"));
+        this.io = Executors.newCachedThreadPool(daemonThreads("GeneXpert-io-"));
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), daemonThreads("GeneXpert-worker-"));
+        this.workers.allowCoreThreadTimeOut(true);
+        this.convertParallelism = Math.max(1, Integer.getInteger(PROP_CONVERT_PARALLELISM, cpus));
+        this.convertParallelPatients = Math.max(2, Integer.getInteger(PROP_CONVERT_PARALLEL_PATIENTS, 32));
+
+        this.inFlight = new Semaphore(Math.max(1, Integer.getInteger(PROP_MAX_IN_FLIGHT, 2 * workerCount)), true);
+        this.inFlightPerAnalyzer = Math.max(1, Integer.getInteger(PROP_MAX_IN_FLIGHT_PER_ANALYZER, 1));
+        long holdMs = Math.max(0L, Math.min(MAX_ENQ_HOLD_MS, Long.getLong(PROP_ENQ_HOLD_MS, 10000L)));
+        this.enqHoldNanos = TimeUnit.MILLISECONDS.toNanos(holdMs);
+
+        this.maxFrameBytes = Math.max(64, Integer.getInteger(PROP_MAX_FRAME_BYTES, 8192));
+        this.maxMessageBytes = Math.max(maxFrameBytes, Integer.getInteger(PROP_MAX_MESSAGE_BYTES, 8 * 1024 * 1024));
+        this.spillBytes = Math.max(0, Integer.getInteger(PROP_SPILL_BYTES, 256 * 1024));
+        this.spillDir = Paths.get(System.getProperty(PROP_SPILL_DIR, System.getProperty("java.io.tmpdir")));
+        this.receiveBuffers = new ArrayBlockingQueue<>(inFlight.availablePermits());
+
+        this.timerTickMs = Math.max(1L, Long.getLong(PROP_TIMER_TICK_MS, 100L));
+        this.timers = new GeneXpertTimerWheel(timerTickMs, 512);
+        this.receiveTimeoutMs = Math.max(1L, Long.getLong(PROP_RECEIVE_TIMEOUT_MS, 15000L));
+        this.ackTimeoutMs = Math.max(1L, Long.getLong(PROP_ACK_TIMEOUT_MS, 10000L));
+        this.idleTimeoutMs = Math.max(0L, Long.getLong(PROP_IDLE_TIMEOUT_MS, 0L));
+        this.adaptiveTimeoutSamples = Math.max(0, Integer.getInteger(PROP_ADAPTIVE_TIMEOUT_SAMPLES, 8));
+        this.adaptiveTimeoutFloorMs = Math.max(timerTickMs, Long.getLong(PROP_ADAPTIVE_TIMEOUT_FLOOR_MS, 1000L));
+
+        this.queryPageSize = Math.max(0, Integer.getInteger(PROP_QUERY_PAGE_SIZE, 0));
+        this.lab29FanOut = Math.max(0, Integer.getInteger(PROP_LAB29_FAN_OUT, 0));
+        this.upstreamMaxConcurrency = Math.max(0, Integer.getInteger(PROP_UPSTREAM_MAX_CONCURRENCY, 64));
+        this.upstreamInitialConcurrency = Math.max(1, Integer.getInteger(PROP_UPSTREAM_INITIAL_CONCURRENCY, 4));
+        this.upstreamLatencyTolerance = doubleProperty(PROP_UPSTREAM_LATENCY_TOLERANCE, 2.0);
+        this.upstreamWaitMs = Math.max(0L, Long.getLong(PROP_UPSTREAM_WAIT_MS, 30000L));
+        String dedupFile = System.getProperty(PROP_DEDUP_FILE, "").trim();
+        this.dedup = new GeneXpertDedupIndex(Math.max(1, Integer.getInteger(PROP_DEDUP_CAPACITY, 65536)),
+                Long.getLong(PROP_DEDUP_WINDOW_MS, TimeUnit.DAYS.toMillis(1)), dedupFile.isEmpty() ? null : Paths.get(dedupFile));
+        String orderDir = System.getProperty(PROP_ORDER_QUEUE_DIR, "").trim();
+        this.orderQueueDir = orderDir.isEmpty() ? null : Paths.get(orderDir);
+        this.specimenCapacity = Math.max(0, Integer.getInteger(PROP_SPECIMEN_CAPACITY, 20000));
+        this.specimenWindowMs = Math.max(1L, Long.getLong(PROP_SPECIMEN_WINDOW_MS, TimeUnit.DAYS.toMillis(7)));
+        String specimenPath = System.getProperty(PROP_SPECIMEN_DIR, "").trim();
+        this.specimenDir = specimenPath.isEmpty() ? null : Paths.get(specimenPath);
+
+        this.warmupIterations = Math.max(0, Integer.getInteger(PROP_WARMUP_ITERATIONS, 500));
+
+        // MSH-10 is always set by the plugin: keep HAPI's default generator (a file in the working directory) out of the way
+        this.hl7Context = new DefaultHapiContext();
+        this.hl7Context.getParserConfiguration().setIdGenerator(new InMemoryIDGenerator());
+        this.parsers = ThreadLocal.withInitial(hl7Context::getPipeParser);
+
+        logger.info("GeneXpert runtime: {} transport, {} workers, quota {} per analyzer, {} messages in flight ({} per analyzer), ENQ hold {} ms, "
+                + "max frame {} bytes, max message {} bytes, spill above {} bytes to {}",
+                transport.name(), workerCount, workerQuota, inFlight.availablePermits(), inFlightPerAnalyzer, holdMs, maxFrameBytes, maxMessageBytes,
+                spillBytes, spillDir);
+    }
+
+    /** Shared runtime, created on first use. */
+    static GeneXpertRuntime get() {
+        return Holder.INSTANCE;
+    }
+
+    // === Transport ===
+
+    /** Carrier of the E1381 connections ({@code genexpert.transport}). */
+    GeneXpertTransport.Provider transport() {
+        return transport;
+    }
+
+    private static GeneXpertTransport.Provider transportProvider(String name) {
+        switch (name.trim().toLowerCase()) {
+        case "nio":
+            try {
+                return GeneXpertChannelTransport.provider(new GeneXpertEventLoop("GeneXpert-eventloop"));
+            } catch (IOException e) {
+                logger.error("Cannot open the NIO event loop ({}): using tcp", e.getMessage());
+                return GeneXpertSocketTransport.PROVIDER;
+            }
+        case "memory":
+            return GeneXpertMemoryTransport.PROVIDER;
+        case "tcp":
+            return GeneXpertSocketTransport.PROVIDER;
+        default:
+            logger.warn("Unknown {} '{}': using tcp", PROP_TRANSPORT, name);
+            return GeneXpertSocketTransport.PROVIDER;
+        }
+    }
+
+    // === Threads ===
+
+    /**
+     * Runs a long-lived listener (accept loop or client reconnect loop) on the I/O executor (see {@link #background}).
+     */
+    void startListener(String name, Runnable task) {
+        background(name, task);
+    }
+
+    /**
+     * Runs a background task (e.g. a LAB-28 order delivery) on the I/O executor.
+     * The thread carries the given name while the task runs.
+     */
+    void background(String name, Runnable task) {
+        io.execute(() -> {
+            Thread current = Thread.currentThread();
+            String poolName = current.getName();
+            current.setName(name);
+            try {
+                task.run();
+            } finally {
+                current.setName(poolName);
+            }
+        });
+    }
+
+    /**
+     * Runs message processing for an analyzer on the worker pool and waits for its result.
+     * At most {@code genexpert.workerQuota} tasks of one analyzer are queued or running at a time;
+     * further callers of that analyzer wait for a slot. When all workers are busy, queued tasks start
+     * urgent first, then in submission order: a STAT message waits for a free worker, not for the
+     * routine backlog of the other analyzers. A routine task queued for {@link GeneXpertPriority#AGING_MS}
+     * goes before urgent tasks queued after it.
+     *
+     * @param analyzerId Analyzer identifier (id_analyzer)
+     * @param priority Priority of the message
+     * @param task Processing task
+     * @return Task result
+     * @throws IOException If interrupted while waiting, or if the task failed
+     */
+    <T> T process(String analyzerId, GeneXpertPriority priority, Callable<T> task) throws IOException {
+        Semaphore quota = quotas.computeIfAbsent((analyzerId == null) ? "" : analyzerId, id -> new Semaphore(workerQuota, true));
+        boolean acquired = false;
+        try {
+            quota.acquire();
+            acquired = true;
+            PrioritizedTask<T> result = new PrioritizedTask<>(task, priority, taskSeq.getAndIncrement());
+            workers.execute(result);
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for message processing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Message processing failed: " + e.getCause(), e.getCause());
+        } finally {
+            if (acquired) quota.release();
+        }
+    }
+
+    /**
+     * Runs independent tasks of one message (e.g. its upstream requests) with at most {@code parallelism}
+     * of them at a time: the calling thread runs tasks too, the others run on the I/O executor
+     * (not on the worker pool, whose threads may be the callers).
+     *
+     * @param tasks Tasks; they should handle their own errors
+     * @param parallelism Maximum number of tasks running at a time
+     * @return Task results, in task order
+     * @throws IOException If interrupted while waiting, or if a task failed
+     */
+    <T> List<T> fanOut(List<Callable<T>> tasks, int parallelism) throws IOException {
+        int n = tasks.size();
+        Object[] results = new Object[n];
+        Throwable[] failures = new Throwable[n];
+        AtomicInteger next = new AtomicInteger();
+        Runnable runner = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < n) {
+                try {
+                    results[i] = tasks.get(i).call();
+                } catch (Exception e) {
+                    failures[i] = e;
+                }
+            }
+        };
+
+        List<Future<?>> helpers = new ArrayList<>();
+        for (int h = 1; h < Math.min(Math.max(1, parallelism), n); h++) {
+            helpers.add(io.submit(runner));
+        }
+        runner.run();
+        try {
+            for (Future<?> helper : helpers) {
+                helper.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for message processing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Message processing failed: " + e.getCause(), e.getCause());
+        }
+
+        List<T> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            if (failures[i] != null) throw new IOException("Message processing failed: " + failures[i], failures[i]);
+            @SuppressWarnings("unchecked")
+            T result = (T) results[i];
+            list.add(result);
+        }
+        return list;
+    }
+
+    /** Threads converting the patients of one large LAB-29 upload (1 = sequential conversion). */
+    int convertParallelism() {
+        return convertParallelism;
+    }
+
+    /** Minimum number of patients of a LAB-29 upload converted in parallel. */
+    int convertParallelPatients() {
+        return convertParallelPatients;
+    }
+
+    /**
+     * Fork-join pool of the parallel conversions, created on first use. Its daemon threads end
+     * after a while without work.
+     */
+    ForkJoinPool converters() {
+        ForkJoinPool pool = converters;
+        if (pool == null) {
+            synchronized (this) {
+                pool = converters;
+                if (pool == null) {
+                    AtomicInteger count = new AtomicInteger();
+                    pool = new ForkJoinPool(convertParallelism, p -> {
+                        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                        t.setName("GeneXpert-convert-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }, null, false);
+                    converters = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /** RCP-2 page size of LAB-27 "query all" requests (0 = not sent). */
+    int queryPageSize() {
+        return queryPageSize;
+    }
+
+    /** Maximum number of concurrent upstream requests of one LAB-29 upload (0 = one OUL^R22 per upload). */
+    int lab29FanOut() {
+        return lab29FanOut;
+    }
+
+    // === Upstream requests ===
+
+    /**
+     * Adaptive concurrency limiter of a LabBook URL, shared by all analyzers sending to it.
+     *
+     * @param url LabBook URL
+     * @return Limiter of the URL, or null if requests are not limited ({@code genexpert.upstreamMaxConcurrency} = 0)
+     */
+    GeneXpertUpstreamLimiter upstreamLimiter(String url) {
+        if (upstreamMaxConcurrency == 0 || url == null) return null;
+        return upstreamLimiters.computeIfAbsent(url, u -> new GeneXpertUpstreamLimiter(u,
+                Math.min(upstreamInitialConcurrency, upstreamMaxConcurrency), upstreamMaxConcurrency, upstreamLatencyTolerance));
+    }
+
+    /** Longest wait for a request slot of an upstream limiter, in ms. */
+    long upstreamWaitMs() {
+        return upstreamWaitMs;
+    }
+
+    // === Admission control ===
+
+    /**
+     * Admits one received message of an analyzer, waiting up to {@code genexpert.enqHoldMs} for
+     * the per-analyzer and global limits. Each successful call must be paired with {@link #release}.
+     *
+     * @param analyzerId Analyzer identifier (id_analyzer)
+     * @return true if admitted, false if the limits were still reached at the end of the wait
+     * @throws IOException If interrupted while waiting
+     */
+    boolean admit(String analyzerId) throws IOException {
+        Semaphore analyzer = analyzerInFlight.computeIfAbsent((analyzerId == null) ? "" : analyzerId,
+                id -> new Semaphore(inFlightPerAnalyzer, true));
+        long deadline = System.nanoTime() + enqHoldNanos;
+        try {
+            if (!analyzer.tryAcquire(enqHoldNanos, TimeUnit.NANOSECONDS)) return false;
+            if (inFlight.tryAcquire(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) return true;
+            analyzer.release();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for admission", e);
+        }
+    }
+
+    /**
+     * Ends a message admitted by {@link #admit}.
+     */
+    void release(String analyzerId) {
+        Semaphore analyzer = analyzerInFlight.get((analyzerId == null) ? "" : analyzerId);
+        inFlight.release();
+        if (analyzer != null) analyzer.release();
+    }
+
+    // === Receive buffers ===
+
+    /**
+     * Takes receive buffers for a session from the pool (or creates them), sized by
+     * {@code genexpert.maxFrameBytes} and {@code genexpert.maxMessageBytes}, spilling to
+     * {@code genexpert.spillDir} above {@code genexpert.spillBytes}.
+     */
+    GeneXpertReceiveBuffer receiveBuffer() {
+        GeneXpertReceiveBuffer buffer = receiveBuffers.poll();
+        return (buffer != null) ? buffer : new GeneXpertReceiveBuffer(maxFrameBytes, maxMessageBytes, spillBytes, spillDir);
+    }
+
+    /** Longest frame text accepted from an analyzer ({@code genexpert.maxFrameBytes}). */
+    int maxFrameBytes() {
+        return maxFrameBytes;
+    }
+
+    /**
+     * Gives back the receive buffers of an ended session. At most {@code genexpert.maxInFlight}
+     * idle buffers are kept; large assembly buffers are released first, spill mappings are kept for reuse.
+     */
+    void recycle(GeneXpertReceiveBuffer buffer) {
+        buffer.shrink(RETAINED_BUFFER_BYTES);
+        receiveBuffers.offer(buffer);
+    }
+
+    // === Timers ===
+
+    /** Timer wheel shared by all sessions. */
+    GeneXpertTimerWheel timers() {
+        return timers;
+    }
+
+    /** Longest wait for the next frame or EOT of a transmission being received, in ms. */
+    long receiveTimeoutMs() {
+        return receiveTimeoutMs;
+    }
+
+    /** Longest wait for the ACK to an ENQ or a frame sent, in ms. */
+    long ackTimeoutMs() {
+        return ackTimeoutMs;
+    }
+
+    /** Idle time after which a connection is closed, in ms (0 = never). */
+    long idleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    /**
+     * Round-trip estimator for a new connection: ACK and frame deadlines adapt to the link after
+     * {@code genexpert.adaptiveTimeoutSamples} round trips, never below {@code genexpert.adaptiveTimeoutFloorMs}.
+     */
+    GeneXpertRttEstimator rttEstimator() {
+        return new GeneXpertRttEstimator(adaptiveTimeoutFloorMs, timerTickMs, adaptiveTimeoutSamples);
+    }
+
+    /**
+     * Worker task, ordered by due time (submission time, plus {@link GeneXpertPriority#AGING_MS} for routine
+     * work), then by priority, then by submission order. The key does not change while the task is queued.
+     */
+    private static final class PrioritizedTask<T> extends FutureTask<T> implements Comparable<PrioritizedTask<?>> {
+        private static final long AGING_NANOS = TimeUnit.MILLISECONDS.toNanos(GeneXpertPriority.AGING_MS);
+
+        private final GeneXpertPriority priority;
+        private final long due;
+        private final long seq;
+
+        PrioritizedTask(Callable<T> task, GeneXpertPriority priority, long seq) {
+            super(task);
+            this.priority = (priority == null) ? GeneXpertPriority.ROUTINE : priority;
+            this.due = System.nanoTime() + (this.priority.urgent() ? 0L : AGING_NANOS);
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask<?> other) {
+            long d = due - other.due;
+            if (d != 0) return (d < 0) ? -1 : 1;
+            int c = priority.compareTo(other.priority);
+            return (c != 0) ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid {} '{}': using {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // === Duplicate results ===
+
+    /** Index of the LAB-29 results accepted by LabBook, shared by all analyzers (keys include the analyzer). */
+    GeneXpertDedupIndex dedup() {
+        return dedup;
+    }
+
+    // === LAB-28 orders ===
+
+    /**
+     * Order queue of an analyzer, opened on first use ({@code <genexpert.orderQueueDir>/<id_analyzer>.lab28}).
+     *
+     * @param analyzerId Analyzer identifier (id_analyzer)
+     * @return Order queue, or null if LAB-28 orders are not queued ({@code genexpert.orderQueueDir} not set)
+     */
+    GeneXpertOrderQueue orderQueue(String analyzerId) {
+        if (orderQueueDir == null) return null;
+        String id = (analyzerId == null) ? "" : analyzerId;
+        return orderQueues.computeIfAbsent(id,
+                key -> new GeneXpertOrderQueue(orderQueueDir.resolve(key.replaceAll("[^A-Za-z0-9._-]", "_") + ".lab28")));
+    }
+
+    // === Specimens ===
+
+    /**
+     * Specimen tracker of an analyzer, created on first use (and reloaded from
+     * {@code <genexpert.specimenDir>/<id_analyzer>.specimens} when snapshots are enabled).
+     *
+     * @param analyzerId Analyzer identifier (id_analyzer)
+     * @return Specimen tracker, or null if specimens are not tracked ({@code genexpert.specimenCapacity} = 0)
+     */
+    GeneXpertSpecimenTracker specimens(String analyzerId) {
+        if (specimenCapacity == 0) return null;
+        String id = (analyzerId == null) ? "" : analyzerId;
+        GeneXpertSpecimenTracker tracker = specimens.get(id);
+        if (tracker != null) return tracker;
+        return specimens.computeIfAbsent(id, key -> {
+            Path file = (specimenDir == null) ? null
+                    : specimenDir.resolve(key.replaceAll("[^A-Za-z0-9._-]", "_") + ".specimens");
+            GeneXpertSpecimenTracker created = new GeneXpertSpecimenTracker(key, specimenCapacity, specimenWindowMs, file,
+                    GeneXpertMetrics.forAnalyzer(key));
+            if (file != null) scheduleSnapshot(created);
+            return created;
+        });
+    }
+
+    /** Writes the snapshot of a tracker every {@value #SPECIMEN_SNAPSHOT_MS} ms, off the timer thread. */
+    private void scheduleSnapshot(GeneXpertSpecimenTracker tracker) {
+        timers.schedule(TimeUnit.MILLISECONDS.toNanos(SPECIMEN_SNAPSHOT_MS), () -> background("GeneXpert-specimens", () -> {
+            try {
+                tracker.snapshot();
+            } finally {
+                scheduleSnapshot(tracker);
+            }
+        }));
+    }
+
+    // === Warm-up ===
+
+    /**
+     * Starts the conversion warm-up in the background, once per JVM ({@code genexpert.warmupIterations}
+     * rounds, 0 = disabled). Called by every analyzer when it starts listening: only the first call
+     * runs it, with the mapping of that analyzer, in parallel with the opening of the port.
+     *
+     * @param mappingPath Mapping path of the calling analyzer
+     */
+    void warmUp(String mappingPath) {
+        if (warmupIterations == 0 || !warmupStarted.compareAndSet(false, true)) return;
+        startListener("GeneXpert-warmup", () -> {
+            long start = System.nanoTime();
+            try {
+                new GeneXpertWarmup(mapping(mappingPath)).run(warmupIterations);
+                warmupMillis = Math.max(0L, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                logger.info("GeneXpert warm-up done in {} ms ({} rounds)", warmupMillis, warmupIterations);
+            } catch (RuntimeException e) {
+                logger.warn("GeneXpert warm-up failed: {}", e.toString());
+            }
+        });
+    }
+
+    /** true once the warm-up has completed. */
+    boolean warmedUp() {
+        return warmupMillis >= 0L;
+    }
+
+    /** Duration of the completed warm-up in ms, or -1 if it has not completed (running, disabled or failed). */
+    long warmupMillis() {
+        return warmupMillis;
+    }
+
+    // === HL7 ===
+
+    /**
+     * HL7 pipe parser of the calling thread (all parsers share one HAPI context).
+     */
+    PipeParser parser() {
+        return parsers.get();
+    }
+
+    // === Mapping ===
+
+    /**
+     * Returns the mapping of a mapping file, shared by all analyzers configured with the same path.
+     * The file is read again only if its modification time changed; a reloaded file with the same
+     * content keeps the previous snapshot.
+     *
+     * @param path Mapping path as configured (with or without the .toml extension)
+     * @return Mapping snapshot (empty if the file cannot be loaded)
+     */
+    synchronized GeneXpertMapping mapping(String path) {
+        String key = (path == null) ? "" : path.trim();
+        long lastModified = lastModified(key);
+
+        MappingSnapshot snapshot = mappings.get(key);
+        if (snapshot != null && lastModified != 0L && snapshot.lastModified == lastModified) {
+            return snapshot.mapping;
+        }
+
+        Toml toml = Connect_util.loadMappingToml(key);
+        GeneXpertMapping mapping;
+        if (snapshot != null && snapshot.mapping.toml().toMap().equals(toml.toMap())) {
+            mapping = snapshot.mapping;
+        } else {
+            mapping = new GeneXpertMapping(toml);
+            logger.info("GeneXpert mapping loaded: {}", key);
+        }
+        mappings.put(key, new MappingSnapshot(lastModified, mapping));
+        return mapping;
+    }
+
+    private static long lastModified(String path) {
+        if (path.isEmpty()) return 0L;
+        File file = new File(path);
+        if (!file.isFile()) file = new File(path + ".toml");
+        return file.isFile() ? file.lastModified() : 0L;
+    }
+}
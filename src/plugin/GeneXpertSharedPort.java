@@ -0,0 +1,260 @@
+package plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One TCP port shared by several GeneXpert analyzers (mode "shared").
+ * <p>
+ * The port is opened when the first analyzer registers and closed when the last one stops.
+ * Each accepted connection is routed to the analyzer whose id_analyzer equals the first component
+ * of the sender name (H.5) in the header record of its first transmission (case-insensitive).
+ * <p>
+ * The router acknowledges that first ENQ and reads the first frame without acknowledging it, then
+ * hands the connection over to the analyzer, which reads the frame again from a replay buffer and
+ * runs its usual E1381 session. The connection stays with that analyzer until it is closed.
+ * Connections whose sender matches no analyzer are closed.
+ * <p>
+ * On a carrier with an event loop, the accept loop and the ENQ wait of a connection not yet routed
+ * give their thread back until the event loop reports the listener or the connection ready.
+ */
+final class GeneXpertSharedPort {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeneXpertSharedPort.class);
+
+    private static final int ENQ = 0x05;
+    private static final int ACK = 0x06;
+    private static final int NAK = 0x15;
+    private static final int EOT = 0x04;
+
+    // Open shared ports by port number (guarded by the class lock)
+    private static final Map<Integer, GeneXpertSharedPort> ports = new HashMap<>();
+
+    private final int port;
+    private final ConcurrentMap<String, AnalyzerGeneXpert> routes = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Set<GeneXpertTransport> unrouted = ConcurrentHashMap.newKeySet(); // connections waiting for their first frame
+    private GeneXpertTransport.Listener server;
+
+    private GeneXpertSharedPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Adds an analyzer to the shared port of its configuration, opening the port if needed.
+     *
+     * @param analyzer Analyzer (id_analyzer and port_analyzer set)
+     * @return Shared port, or null if the port could not be opened
+     */
+    static synchronized GeneXpertSharedPort register(AnalyzerGeneXpert analyzer) {
+        int portNumber = analyzer.port_analyzer;
+        GeneXpertSharedPort shared = ports.get(portNumber);
+        if (shared == null) {
+            shared = new GeneXpertSharedPort(portNumber);
+            try {
+                shared.open();
+            } catch (IOException e) {
+                logger.error("ERROR: Failed to start shared ASTM port {}: {}", portNumber, e.getMessage());
+                return null;
+            }
+            ports.put(portNumber, shared);
+        }
+
+        String id = (analyzer.getId_analyzer() == null) ? "" : analyzer.getId_analyzer().trim();
+        AnalyzerGeneXpert previous = shared.routes.put(id, analyzer);
+        if (previous != null && previous != analyzer) {
+            logger.warn("Shared port {}: analyzer {} registered again, previous instance replaced", portNumber, id);
+        }
+        logger.info("Shared port {}: analyzer {} registered ({} analyzer(s))", portNumber, id, shared.routes.size());
+        return shared;
+    }
+
+    /**
+     * Removes an analyzer from this port; the port is closed when no analyzer is left.
+     */
+    void unregister(AnalyzerGeneXpert analyzer) {
+        synchronized (GeneXpertSharedPort.class) {
+            routes.values().remove(analyzer);
+            if (routes.isEmpty() && ports.get(port) == this) {
+                ports.remove(port);
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    logger.warn("Shared port {}: error while closing listener: {}", port, e.getMessage());
+                }
+                for (GeneXpertTransport s : unrouted) {
+                    closeQuietly(s);
+                }
+                logger.info("Shared port {} closed", port);
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        server = GeneXpertRuntime.get().transport().listen(port);
+        logger.info("Shared ASTM port {} started", port);
+        GeneXpertRuntime.get().startListener("GeneXpert-SharedPort-" + port, this::acceptLoop);
+    }
+
+    private void acceptLoop() {
+        GeneXpertTransport.Listener s = server;
+        while (!s.isClosed()) {
+            if (s.onAcceptable(() -> GeneXpertRuntime.get().startListener("GeneXpert-SharedPort-" + port, this::acceptLoop))) {
+                return; // goes on when a connection is pending
+            }
+            try {
+                GeneXpertTransport client = s.accept();
+                logger.info("Shared port {}: accepted connection from {}", port, client.remoteAddress());
+                GeneXpertTimerWheel.Deadline timer = GeneXpertRuntime.get().timers().deadline(() -> closeQuietly(client));
+                unrouted.add(client);
+                GeneXpertRuntime.get().startListener("GeneXpert-SharedPort-" + port + "-Session", () -> route(client, timer));
+            } catch (IOException e) {
+                if (s.isClosed()) break;
+                logger.error("ERROR: Shared port {}: accept failed: {}", port, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Reads the first frame of a connection, finds its analyzer and runs the analyzer session.
+     * The connection is closed here unless it was handed over to the analyzer, or its ENQ wait to the
+     * event loop (route is then called again when bytes arrive).
+     *
+     * @param client Connection, in {@link #unrouted}
+     * @param timer Deadline closing the connection (idle wait for ENQ, then first frame)
+     */
+    private void route(GeneXpertTransport client, GeneXpertTimerWheel.Deadline timer) {
+        GeneXpertRuntime runtime = GeneXpertRuntime.get();
+        boolean handedOver = false;
+        try {
+            if (server.isClosed()) return;
+            if (timer.expired()) {
+                // closed by the timer while its ENQ wait was with the event loop
+                logger.warn("Shared port {}: connection from {} timed out before routing, closed", port, client.remoteAddress());
+                return;
+            }
+            InputStream in = client.input();
+            OutputStream out = client.output();
+            int maxFrame = runtime.maxFrameBytes();
+            GeneXpertFrameCodec decoder = new GeneXpertFrameCodec(maxFrame);
+            ByteArrayOutputStream firstFrame = new ByteArrayOutputStream(256);
+
+            while (true) {
+                // Wait for ENQ (an idle instrument may keep the connection open for a long time)
+                if (runtime.idleTimeoutMs() > 0) timer.arm(runtime.idleTimeoutMs());
+                else timer.disarm();
+                if (in.available() == 0
+                        && client.onReadable(() -> runtime.background("GeneXpert-SharedPort-" + port + "-Session", () -> route(client, timer)))) {
+                    handedOver = true; // the timer stays armed
+                    return;
+                }
+                int b = in.read();
+                if (b == -1) {
+                    logger.info("Shared port {}: connection closed before routing", port);
+                    return;
+                }
+                if (b != ENQ) continue;
+
+                out.write(ACK);
+                out.flush();
+                timer.arm(runtime.receiveTimeoutMs());
+
+                // Read the first frame (NAK and wait for the retransmission on checksum errors)
+                boolean received = false;
+                while (!received) {
+                    b = in.read();
+                    if (b == -1) throw new IOException("Stream closed while waiting for the first frame");
+                    if (b == EOT) break; // empty transmission: wait for the next ENQ
+                    if (b != GeneXpertFrameCodec.STX) continue;
+
+                    firstFrame.reset();
+                    firstFrame.write(b);
+                    received = decoder.readFrame(() -> {
+                        int c = in.read();
+                        if (c >= 0 && firstFrame.size() <= maxFrame + 8) firstFrame.write(c);
+                        return c;
+                    });
+                    if (decoder.isOversized()) {
+                        // Receiver interrupt: an oversized first frame cannot be replayed to the analyzer
+                        out.write(EOT);
+                        out.flush();
+                        logger.warn("Shared port {}: first frame from {} exceeds {} bytes, connection closed",
+                                port, client.remoteAddress(), maxFrame);
+                        return;
+                    }
+                    if (!received) {
+                        out.write(NAK);
+                        out.flush();
+                    }
+                }
+                if (received) break;
+            }
+            timer.disarm();
+            unrouted.remove(client);
+
+            String sender = senderName(new String(decoder.payload(), 0, decoder.length(), StandardCharsets.US_ASCII));
+            AnalyzerGeneXpert analyzer = routes.get(sender);
+            if (analyzer == null) {
+                logger.warn("Shared port {}: no analyzer configured for sender '{}' (H.5), connection from {} closed",
+                        port, sender, client.remoteAddress());
+                return;
+            }
+            logger.info("Shared port {}: connection from {} routed to analyzer {}", port, client.remoteAddress(), sender);
+            handedOver = true;
+            analyzer.runRoutedSession(client, firstFrame.toByteArray());
+
+        } catch (IOException e) {
+            if (timer.expired()) {
+                logger.warn("Shared port {}: connection from {} timed out before routing, closed", port, client.remoteAddress());
+            } else if (!server.isClosed()) {
+                logger.warn("Shared port {}: connection failed before routing: {}", port, e.getMessage());
+            }
+        } finally {
+            if (!handedOver) {
+                timer.disarm();
+                unrouted.remove(client);
+                closeQuietly(client);
+            }
+        }
+    }
+
+    private static void closeQuietly(GeneXpertTransport s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Extracts the first component of the sender name (H.5) from the first record of a frame.
+     *
+     * @param text Frame text (without frame number), starting with the header record
+     * @return Sender name, or an empty string if the frame does not start with an H record
+     */
+    static String senderName(String text) {
+        int end = text.indexOf('\r');
+        String line = ((end >= 0) ? text.substring(0, end) : text).trim();
+        line = line.replaceFirst("^[0-7](?=H\\|)", "");
+        if (!line.startsWith("H|")) return "";
+
+        String[] fields = line.split("\\|", -1);
+        if (fields.length < 5) return "";
+        // H.2 holds the repeat, component and escape delimiters (e.g. \^& or @^\)
+        char component = (fields[1].length() >= 2) ? fields[1].charAt(1) : '^';
+        String sender = fields[4];
+        int sep = sender.indexOf(component);
+        return ((sep >= 0) ? sender.substring(0, sep) : sender).trim();
+    }
+}
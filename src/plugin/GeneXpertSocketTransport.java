@@ -0,0 +1,105 @@
+package plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * E1381 over blocking TCP sockets ({@code genexpert.transport = tcp}, the default).
+ * <p>
+ * Streams are buffered, so a received frame costs one read call instead of one per byte, and
+ * TCP_NODELAY is set: the link layer flushes complete protocol units and waits for the reply,
+ * which Nagle's algorithm would otherwise hold back behind the peer's delayed ACK.
+ */
+final class GeneXpertSocketTransport implements GeneXpertTransport {
+
+    private static final int BUFFER_BYTES = 8192;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    /** Provider of this carrier. */
+    static final Provider PROVIDER = new Provider() {
+        @Override
+        public String name() {
+            return "tcp";
+        }
+
+        @Override
+        public Listener listen(int port) throws IOException {
+            ServerSocket server = new ServerSocket(port);
+            return new Listener() {
+                @Override
+                public GeneXpertTransport accept() throws IOException {
+                    return new GeneXpertSocketTransport(server.accept());
+                }
+
+                @Override
+                public boolean isClosed() {
+                    return server.isClosed();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    server.close();
+                }
+            };
+        }
+
+        @Override
+        public GeneXpertTransport connect(String host, int port) throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                return new GeneXpertSocketTransport(socket);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+    };
+
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+
+    GeneXpertSocketTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        try {
+            socket.setTcpNoDelay(true);
+            this.input = new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES);
+            this.output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream input() {
+        return input;
+    }
+
+    @Override
+    public OutputStream output() {
+        return output;
+    }
+
+    @Override
+    public String remoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,337 @@
+package plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lifecycle of the specimens of one analyzer: when each was queried by the analyzer (LAB-27), ordered by
+ * LabBook (LAB-28), and had its results uploaded and acknowledged (LAB-29).
+ * <p>
+ * Each specimen ID maps to the first and last time of every {@link Stage} and the number of events
+ * (about 200 bytes per specimen). The index is a hash map in update order: a lookup is O(1), and the
+ * specimens not updated within the time window, or beyond the capacity, are dropped oldest first.
+ * Turnaround times (query or order to the first result accepted by LabBook) are recorded in the
+ * {@link GeneXpertMetrics} of the analyzer as results are accepted.
+ * <p>
+ * Optionally, the index is saved to a snapshot file (when it changed, at most once per
+ * snapshot interval, and when the analyzer stops) and reloaded at startup.
+ */
+final class GeneXpertSpecimenTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeneXpertSpecimenTracker.class);
+
+    private static final long MAGIC = 0x4758535045433031L; // "GXSPEC01"
+
+    /** Lifecycle stages, in their usual order. */
+    enum Stage {
+        QUERIED("LAB-27 query from analyzer"),
+        ORDER_SENT("LAB-27 order sent to analyzer"),
+        ORDER_RECEIVED("LAB-28 order from LabBook"),
+        ORDER_DELIVERED("LAB-28 order accepted by analyzer"),
+        RESULT_RECEIVED("LAB-29 result from analyzer"),
+        RESULT_ACCEPTED("LAB-29 result accepted by LabBook"),
+        RESULT_REJECTED("LAB-29 result not accepted by LabBook");
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    /**
+     * Events of one specimen (times in epoch ms, 0 = stage not reached).
+     */
+    static final class Lifecycle {
+        final String specimenId;
+        final long[] first = new long[STAGES.length];
+        final long[] last = new long[STAGES.length];
+        int events = 0;
+        long updated = 0L;
+
+        Lifecycle(String specimenId) {
+            this.specimenId = specimenId;
+        }
+
+        /** First time of a stage (epoch ms), 0 if not reached. */
+        long first(Stage stage) {
+            return first[stage.ordinal()];
+        }
+
+        /** Latest stage reached. */
+        Stage lastStage() {
+            Stage latest = null;
+            long at = -1L;
+            for (Stage stage : STAGES) {
+                if (last[stage.ordinal()] != 0L && last[stage.ordinal()] >= at) {
+                    at = last[stage.ordinal()];
+                    latest = stage;
+                }
+            }
+            return latest;
+        }
+
+        Lifecycle copy() {
+            Lifecycle c = new Lifecycle(specimenId);
+            System.arraycopy(first, 0, c.first, 0, first.length);
+            System.arraycopy(last, 0, c.last, 0, last.length);
+            c.events = events;
+            c.updated = updated;
+            return c;
+        }
+    }
+
+    private final String analyzerId;
+    private final int capacity;
+    private final long windowMs;
+    private final Path file;
+    private final LinkedHashMap<String, Lifecycle> index = new LinkedHashMap<>();
+    private final GeneXpertMetrics metrics;
+    private boolean dirty = false;
+
+    /**
+     * @param analyzerId Analyzer identifier (id_analyzer), for reports
+     * @param capacity Most specimens kept
+     * @param windowMs Time after its last event during which a specimen is kept, in ms
+     * @param file Snapshot file, or null to keep the index in memory only
+     * @param metrics Metrics receiving the turnaround times, or null
+     */
+    GeneXpertSpecimenTracker(String analyzerId, int capacity, long windowMs, Path file, GeneXpertMetrics metrics) {
+        this.analyzerId = analyzerId;
+        this.metrics = metrics;
+        this.capacity = Math.max(1, capacity);
+        this.windowMs = Math.max(1L, windowMs);
+        this.file = file;
+        if (file != null) load();
+    }
+
+    /**
+     * Records an event of a specimen (ignored for an empty ID or a "query all").
+     */
+    void record(String specimenId, Stage stage) {
+        if (specimenId == null || specimenId.isEmpty() || "ALL".equals(specimenId)) return;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Lifecycle specimen = index.remove(specimenId); // re-inserted last: the map stays in update order
+            if (specimen == null) specimen = new Lifecycle(specimenId);
+            int s = stage.ordinal();
+            if (specimen.first[s] == 0L) {
+                specimen.first[s] = now;
+                if (stage == Stage.RESULT_ACCEPTED) recordTurnaround(specimen, now);
+            }
+            specimen.last[s] = now;
+            specimen.events++;
+            specimen.updated = now;
+            index.put(specimenId, specimen);
+            dirty = true;
+            evict(now);
+        }
+    }
+
+    /**
+     * Records an event for the specimens of the O and Q records of a message (each specimen once).
+     *
+     * @param records ASTM records (frame number prefixes allowed)
+     */
+    void recordAll(String[] records, Stage stage) {
+        String previous = null;
+        for (String record : records) {
+            String specimenId = specimenOf(record);
+            if (specimenId == null || specimenId.equals(previous)) continue;
+            record(specimenId, stage);
+            previous = specimenId;
+        }
+    }
+
+    /**
+     * Specimen ID of an O or Q record: first component of field 3, without the leading "^" of a query range.
+     *
+     * @param record ASTM record (frame number prefix allowed)
+     * @return Specimen ID, or null if the record is not an O or Q record
+     */
+    static String specimenOf(String record) {
+        if (record == null) return null;
+        int p = 0;
+        if (!record.isEmpty() && record.charAt(0) >= '0' && record.charAt(0) <= '7') p++; // ASTM frame number
+        if (!record.startsWith("O|", p) && !record.startsWith("Q|", p)) return null;
+        int start = record.indexOf('|', p + 2);
+        if (start < 0) return "";
+        start++;
+        if (start < record.length() && record.charAt(start) == '^') start++;
+        int end = start;
+        while (end < record.length() && record.charAt(end) != '|' && record.charAt(end) != '^') end++;
+        return record.substring(start, end).trim();
+    }
+
+    private void recordTurnaround(Lifecycle specimen, long acceptedAt) {
+        if (metrics == null) return;
+        long queried = specimen.first(Stage.QUERIED);
+        long ordered = specimen.first(Stage.ORDER_RECEIVED);
+        if (queried != 0L) metrics.queryToResult.record(Math.max(0L, acceptedAt - queried) * 1000L);
+        if (ordered != 0L) metrics.orderToResult.record(Math.max(0L, acceptedAt - ordered) * 1000L);
+    }
+
+    private void evict(long now) {
+        Iterator<Lifecycle> oldest = index.values().iterator();
+        while (oldest.hasNext()) {
+            Lifecycle specimen = oldest.next();
+            if (index.size() <= capacity && now - specimen.updated < windowMs) break;
+            oldest.remove();
+        }
+    }
+
+    /**
+     * @return Copy of the lifecycle of a specimen, or null if it is not tracked
+     */
+    synchronized Lifecycle lookup(String specimenId) {
+        Lifecycle specimen = (specimenId == null) ? null : index.get(specimenId.trim());
+        return (specimen == null) ? null : specimen.copy();
+    }
+
+    /** Number of specimens tracked. */
+    synchronized int size() {
+        evict(System.currentTimeMillis());
+        return index.size();
+    }
+
+    /**
+     * Lifecycle of a specimen as text, one line per stage reached, in time order.
+     */
+    String describe(String specimenId) {
+        Lifecycle specimen = lookup(specimenId);
+        if (specimen == null) return "Specimen " + specimenId + " not tracked for analyzer " + analyzerId;
+        StringBuilder text = new StringBuilder(256);
+        text.append("Specimen ").append(specimen.specimenId).append(", analyzer ").append(analyzerId)
+            .append(", ").append(specimen.events).append(" events\n");
+        List<Stage> stages = new ArrayList<>();
+        for (Stage stage : STAGES) {
+            if (specimen.first(stage) != 0L) stages.add(stage);
+        }
+        stages.sort((a, b) -> Long.compare(specimen.first(a), specimen.first(b)));
+        for (Stage stage : stages) {
+            long first = specimen.first[stage.ordinal()];
+            long last = specimen.last[stage.ordinal()];
+            text.append(Instant.ofEpochMilli(first)).append("  ").append(stage.label);
+            if (last != first) text.append(" (again ").append(Instant.ofEpochMilli(last)).append(')');
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Specimens queried or ordered without a result accepted by LabBook, oldest first, as text.
+     *
+     * @param max Most specimens listed
+     */
+    synchronized String unfinished(int max) {
+        StringBuilder text = new StringBuilder(256);
+        int listed = 0;
+        for (Lifecycle specimen : index.values()) {
+            if (listed >= max) break;
+            if (specimen.first(Stage.RESULT_ACCEPTED) != 0L) continue;
+            long since = Math.min(nonZero(specimen.first(Stage.QUERIED)), nonZero(specimen.first(Stage.ORDER_RECEIVED)));
+            if (since == Long.MAX_VALUE) continue; // result only
+            Stage stage = specimen.lastStage();
+            text.append(specimen.specimenId).append("  since ").append(Instant.ofEpochMilli(since))
+                .append("  last: ").append(stage.label).append(' ').append(Instant.ofEpochMilli(specimen.last[stage.ordinal()]))
+                .append('\n');
+            listed++;
+        }
+        return text.toString();
+    }
+
+    private static long nonZero(long at) {
+        return (at == 0L) ? Long.MAX_VALUE : at;
+    }
+
+    // === Snapshot ===
+
+    /**
+     * Writes the index to the snapshot file if it changed since the last snapshot.
+     */
+    void snapshot() {
+        if (file == null) return;
+        List<Lifecycle> specimens;
+        synchronized (this) {
+            if (!dirty) return;
+            dirty = false;
+            specimens = new ArrayList<>(index.size());
+            for (Lifecycle specimen : index.values()) {
+                specimens.add(specimen.copy());
+            }
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            try (OutputStream stream = Files.newOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeLong(MAGIC);
+                out.writeInt(STAGES.length);
+                out.writeInt(specimens.size());
+                for (Lifecycle specimen : specimens) {
+                    out.writeUTF(specimen.specimenId);
+                    out.writeInt(specimen.events);
+                    out.writeLong(specimen.updated);
+                    for (int s = 0; s < STAGES.length; s++) {
+                        out.writeLong(specimen.first[s]);
+                        out.writeLong(specimen.last[s]);
+                    }
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Cannot write GeneXpert specimen snapshot {} ({})", file, e.getMessage());
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(file)) return;
+        long now = System.currentTimeMillis();
+        try (InputStream stream = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            if (in.readLong() != MAGIC || in.readInt() != STAGES.length) {
+                logger.warn("GeneXpert specimen snapshot {} has an unknown format: ignored", file);
+                return;
+            }
+            int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    Lifecycle specimen = new Lifecycle(in.readUTF());
+                    specimen.events = in.readInt();
+                    specimen.updated = in.readLong();
+                    for (int s = 0; s < STAGES.length; s++) {
+                        specimen.first[s] = in.readLong();
+                        specimen.last[s] = in.readLong();
+                    }
+                    index.put(specimen.specimenId, specimen);
+                }
+                evict(now);
+                logger.info("GeneXpert specimen snapshot {}: {} specimens loaded for analyzer {}", file, index.size(), analyzerId);
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot read GeneXpert specimen snapshot {} ({}): {} specimens loaded", file, e.getMessage(), index.size());
+        }
+    }
+
+}
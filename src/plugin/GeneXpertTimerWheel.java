@@ -0,0 +1,174 @@
+package plugin;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timer wheel driving the E1381 timers of all sessions (ENQ and ACK waits, frame reception, idle reaping).
+ * <p>
+ * One daemon thread advances the wheel every tick and runs the expired tasks. Tasks must be short
+ * (typically closing a socket). Timers fire up to one tick late.
+ * <p>
+ * Sessions use {@link Deadline}s rather than scheduling a task per wait: extending or disarming a
+ * deadline only updates its expiry time, and an idle connection (deadline disarmed) has no wheel entry.
+ */
+final class GeneXpertTimerWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeneXpertTimerWheel.class);
+
+    private static final class Entry {
+        final long tick;
+        final Runnable task;
+        Entry next;
+
+        Entry(long tick, Runnable task) {
+            this.tick = tick;
+            this.task = task;
+        }
+    }
+
+    private final long tickNanos;
+    private final Entry[] buckets;
+    private final int mask;
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private long currentTick = 0; // wheel thread only
+
+    /**
+     * @param tickMs Tick duration in ms (timer resolution)
+     * @param size Number of buckets (rounded up to a power of two)
+     */
+    GeneXpertTimerWheel(long tickMs, int size) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, tickMs));
+        int n = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.buckets = new Entry[n];
+        this.mask = n - 1;
+
+        Thread t = new Thread(this::run, "GeneXpert-timer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Runs a task once after the given delay, on the wheel thread.
+     */
+    void schedule(long delayNanos, Runnable task) {
+        long elapsed = System.nanoTime() - start + Math.max(0L, delayNanos);
+        pending.add(new Entry((elapsed + tickNanos - 1) / tickNanos, task));
+    }
+
+    /**
+     * Creates a deadline running the given action when it expires.
+     */
+    Deadline deadline(Runnable onExpiry) {
+        return new Deadline(onExpiry);
+    }
+
+    private void run() {
+        while (true) {
+            long next = start + (currentTick + 1) * tickNanos;
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            currentTick++;
+
+            Entry e;
+            while ((e = pending.poll()) != null) {
+                int i = (int) (Math.max(e.tick, currentTick) & mask);
+                e.next = buckets[i];
+                buckets[i] = e;
+            }
+
+            int i = (int) (currentTick & mask);
+            Entry keep = null;
+            e = buckets[i];
+            buckets[i] = null;
+            while (e != null) {
+                Entry following = e.next;
+                if (e.tick <= currentTick) {
+                    try {
+                        e.task.run();
+                    } catch (RuntimeException ex) {
+                        logger.warn("GeneXpert timer task failed: {}", ex.toString());
+                    }
+                } else {
+                    e.next = keep; // later round
+                    keep = e;
+                }
+                e = following;
+            }
+            buckets[i] = keep; // tasks run above schedule through the pending queue
+        }
+    }
+
+    /**
+     * Resettable timeout of one session wait.
+     * <p>
+     * {@link #arm} sets the expiry time and {@link #disarm} clears it. A deadline keeps one wheel entry
+     * for its earliest expiry: re-arming it later (e.g. after each frame) only updates the expiry time,
+     * and when the entry fires it is moved to the new expiry time, or dropped if the deadline was disarmed.
+     * The expiry action runs on the wheel thread, and {@link #expired()} tells the session that its
+     * wait ended because of the deadline.
+     */
+    final class Deadline {
+        private final Runnable onExpiry;
+        private long expiresAt = 0L; // System.nanoTime(), 0 = disarmed
+        private long entryAt = 0L;   // expiry time of the wheel entry, 0 = none
+        private volatile boolean expired = false;
+
+        private Deadline(Runnable onExpiry) {
+            this.onExpiry = onExpiry;
+        }
+
+        /**
+         * Starts (or restarts) the timeout.
+         */
+        synchronized void arm(long timeoutMs) {
+            expired = false;
+            long now = System.nanoTime();
+            long at = now + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            expiresAt = (at == 0L) ? 1L : at;
+            if (entryAt == 0L || expiresAt - entryAt < 0) {
+                scheduleEntry(now);
+            }
+        }
+
+        /** Stops the timeout. */
+        synchronized void disarm() {
+            expiresAt = 0L;
+        }
+
+        /** true if the deadline expired since it was last armed. */
+        boolean expired() {
+            return expired;
+        }
+
+        private void scheduleEntry(long now) {
+            long at = expiresAt;
+            entryAt = at;
+            schedule(at - now, () -> fire(at));
+        }
+
+        private void fire(long at) {
+            synchronized (this) {
+                if (at != entryAt) return; // superseded by an earlier entry
+                entryAt = 0L;
+                if (expiresAt == 0L) return;
+                long now = System.nanoTime();
+                if (expiresAt - now > 0) {
+                    scheduleEntry(now);
+                    return;
+                }
+                expiresAt = 0L;
+                expired = true;
+            }
+            onExpiry.run();
+        }
+    }
+}
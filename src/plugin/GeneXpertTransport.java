@@ -0,0 +1,105 @@
+package plugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte carrier of one E1381 connection, under the link layer of {@link AnalyzerGeneXpert} and
+ * {@link GeneXpertSharedPort}.
+ * <p>
+ * The link layer reads and writes bytes through the streams, flushes after each protocol unit
+ * (ENQ, frame, ACK/NAK, EOT), and drives its own timeouts with the timer wheel: a transport has no
+ * read timeout, and {@link #close()} from another thread must end a blocked read (with -1 or an
+ * IOException). Reads and writes each come from one thread at a time.
+ * <p>
+ * A carrier served by an event loop also lets a waiting session give its thread back: see
+ * {@link #onReadable} and {@link Listener#onAcceptable}. The other carriers keep the defaults, and their
+ * callers block in {@code read()} and {@code accept()}.
+ * <p>
+ * Carriers are selected with {@code genexpert.transport} (see {@link GeneXpertRuntime#transport()}):
+ * <ul>
+ *   <li>{@code tcp}: blocking sockets ({@link GeneXpertSocketTransport}), the default</li>
+ *   <li>{@code nio}: non-blocking socket channels on one selector ({@link GeneXpertChannelTransport})</li>
+ *   <li>{@code memory}: in-process pipes ({@link GeneXpertMemoryTransport}), for benchmarks and tests</li>
+ * </ul>
+ */
+interface GeneXpertTransport extends Closeable {
+
+    /** Bytes received from the peer (buffered by the transport). */
+    InputStream input();
+
+    /** Bytes sent to the peer; nothing is guaranteed to leave before {@code flush()}. */
+    OutputStream output();
+
+    /** Peer address, for logs and events. */
+    String remoteAddress();
+
+    /** true once the connection is closed, by either side of this process. */
+    boolean isClosed();
+
+    /**
+     * Closes the connection; a read blocked in another thread ends, and a task waiting in
+     * {@link #onReadable} runs.
+     */
+    @Override
+    void close() throws IOException;
+
+    /**
+     * Runs {@code task} once when the connection has bytes to read, reaches its end of stream or is closed,
+     * so that the reader can return its thread meanwhile.
+     *
+     * @param task Callback, run on the event loop thread: it must hand the read to an executor
+     * @return true if the task will run later; false if the carrier has no event loop, or if bytes or the
+     *         end of stream are already there: the caller then reads at once
+     */
+    default boolean onReadable(Runnable task) {
+        return false;
+    }
+
+    /**
+     * Passive side: connections accepted on one port.
+     */
+    interface Listener extends Closeable {
+
+        /**
+         * Waits for the next connection.
+         *
+         * @throws IOException If the listener is closed (or fails) while waiting
+         */
+        GeneXpertTransport accept() throws IOException;
+
+        boolean isClosed();
+
+        /**
+         * Runs {@code task} once when a connection is pending or the listener is closed, like
+         * {@link GeneXpertTransport#onReadable}.
+         *
+         * @return true if the task will run later; false if the carrier has no event loop, or if a connection
+         *         is already pending: the caller then calls {@link #accept()} at once
+         */
+        default boolean onAcceptable(Runnable task) {
+            return false;
+        }
+    }
+
+    /**
+     * Factory of one kind of carrier.
+     */
+    interface Provider {
+
+        /** Name of the carrier ({@code genexpert.transport} value). */
+        String name();
+
+        /**
+         * Opens a listener on a port (all interfaces).
+         */
+        Listener listen(int port) throws IOException;
+
+        /**
+         * Connects to a listener.
+         */
+        GeneXpertTransport connect(String host, int port) throws IOException;
+    }
+}
@@ -0,0 +1,131 @@
+package plugin;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limit of the concurrent requests to one LabBook URL, shared by all analyzers.
+ * <p>
+ * The limit follows AIMD, driven by the round trips and failures of the requests:
+ * <ul>
+ *   <li>a request that fails (no reply, or a reply that is not HL7) or whose round trip exceeds
+ *       {@code tolerance} times the no-load round trip (plus {@value #SLACK_MS} ms) decreases the limit by
+ *       {@value #BACKOFF_PERCENT}%, at most once per smoothed round trip, so that the requests of one congested
+ *       period count once</li>
+ *   <li>a request that succeeds in time while at least half of the limit is in use increases the limit
+ *       by 1/limit, i.e. by one request per limit's worth of successes</li>
+ * </ul>
+ * The no-load round trip is the smallest recent round trip: it follows faster requests at once and
+ * slower ones slowly (1/256 of the difference per request), so a LabBook that becomes durably slower is
+ * eventually judged on its new pace. It is only meaningful if the first requests do not already overload
+ * LabBook, hence a small initial limit. The limit stays between 1 and the configured maximum.
+ * <p>
+ * When the limit is reached, callers wait for a request to end; urgent requests
+ * ({@link GeneXpertPriority#urgent()}) take a free slot before routine ones, until a routine request has
+ * waited {@link GeneXpertPriority#AGING_MS}: it then competes with them for the next slot.
+ */
+final class GeneXpertUpstreamLimiter {
+
+    private static final int BACKOFF_PERCENT = 10;
+    private static final long SLACK_MS = 5L;
+    private static final long SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(SLACK_MS);
+
+    private final String url;
+    private final int maxLimit;
+    private final double tolerance;
+
+    // guarded by this
+    private double limit;
+    private int inFlight = 0;
+    private int urgentWaiting = 0;
+    private long noLoadRtt = 0L;   // ns
+    private long srtt = 0L;        // ns
+    private long lastDecrease = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+
+    /**
+     * @param url LabBook URL
+     * @param initialLimit Limit before the first requests
+     * @param maxLimit Highest limit
+     * @param tolerance Round trip, relative to the no-load round trip, above which LabBook is considered congested
+     */
+    GeneXpertUpstreamLimiter(String url, int initialLimit, int maxLimit, double tolerance) {
+        this.url = url;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.max(1, Math.min(this.maxLimit, initialLimit));
+        this.tolerance = Math.max(1.0, tolerance);
+    }
+
+    /**
+     * Waits for a free slot.
+     *
+     * @param priority Priority of the request
+     * @param waitMs Longest wait, in ms
+     * @return true if the request may be sent (then {@link #release} must be called), false after the wait
+     *         or if interrupted
+     */
+    synchronized boolean acquire(GeneXpertPriority priority, long waitMs) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        long aged = start + TimeUnit.MILLISECONDS.toNanos(GeneXpertPriority.AGING_MS);
+        boolean urgent = priority.urgent();
+        if (urgent) urgentWaiting++;
+        try {
+            while (inFlight >= (int) limit || (!urgent && urgentWaiting > 0)) {
+                long now = System.nanoTime();
+                long left = deadline - now;
+                if (left <= 0) return false;
+                if (!urgent && now - aged >= 0) {
+                    urgent = true; // aged: no longer held back, and holds back newer routine requests
+                    urgentWaiting++;
+                    continue;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, urgent ? left : Math.min(left, aged - now));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            inFlight++;
+            return true;
+        } finally {
+            // routine requests held back by this one may go
+            if (urgent && --urgentWaiting == 0) notifyAll();
+        }
+    }
+
+    /**
+     * Ends a request and adapts the limit.
+     *
+     * @param rttNanos Round trip of the request
+     * @param ok false if the request failed
+     */
+    synchronized void release(long rttNanos, boolean ok) {
+        boolean saturated = inFlight * 2 >= (int) limit;
+        inFlight--;
+        long now = System.nanoTime();
+        if (ok) {
+            noLoadRtt = (noLoadRtt == 0L || rttNanos < noLoadRtt) ? rttNanos : noLoadRtt + (rttNanos - noLoadRtt) / 256;
+            srtt = (srtt == 0L) ? rttNanos : srtt + (rttNanos - srtt) / 8;
+        }
+        if (!ok || rttNanos > tolerance * noLoadRtt + SLACK_NANOS) {
+            if (now - lastDecrease >= srtt) {
+                limit = Math.max(1.0, limit * (100 - BACKOFF_PERCENT) / 100.0);
+                lastDecrease = now;
+            }
+        } else if (saturated) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        notifyAll();
+    }
+
+    /** Current limit. */
+    synchronized int limit() {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "upstream " + url + ": limit " + (int) limit + ", in flight " + inFlight + ", no-load round trip "
+                + (noLoadRtt / 1000L) + " us";
+    }
+}
@@ -0,0 +1,143 @@
+package plugin;
+
+import java.io.IOException;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+
+/**
+ * Warm-up of the HL7 and ASTM conversion paths, run once in the background when the first analyzer
+ * starts listening (see {@link GeneXpertRuntime#warmUp}).
+ * <p>
+ * Without it, the first transaction after a restart pays for HAPI class loading, structure
+ * initialisation and interpreted code, typically several hundred ms. The warm-up runs every
+ * conversion of the plugin over synthetic messages, on a throwaway analyzer instance using the
+ * analyzer's mapping: OML^O33 to ASTM and ACK^R22 (LAB-28), ASTM to OUL^R22 and ACK to ASTM (LAB-29),
+ * ASTM query to QBP^Q11 and RSP^K11 to ASTM (LAB-27), plus HL7 parsing and encoding of each message
+ * and the E1381 frame encoding, decoding and record splitting.
+ * <p>
+ * Nothing leaves the process: no socket, upstream call, archive or metric is involved.
+ */
+final class GeneXpertWarmup {
+
+    private static final String ANALYZER_ID = "GX_WARMUP";
+    private static final String SPECIMEN = "WARMUP0001";
+    private static final String PATIENT = "WARMUP0001";
+
+    private final AnalyzerGeneXpert converter = new AnalyzerGeneXpert();
+    private final String[] lab29;
+    private final String[] query;
+    private final String oml;
+    private final String rsp;
+    private final String ack;
+
+    /**
+     * @param mapping Mapping of the analyzer; its first test is used in the synthetic messages
+     */
+    GeneXpertWarmup(GeneXpertMapping mapping) {
+        converter.setId_analyzer(ANALYZER_ID);
+        converter.setMapping(mapping);
+
+        GeneXpertMapping.Test test = mapping.firstTest();
+        String vendorCode = (test != null) ? test.vendorTestCode : "warmup";
+
+        this.lab29 = new String[] {
+            "H|\\^&|||GeneXpert^GeneXpert Dx 6.2^4.7||||||P|1394-97|20260101120000",
+            "P|1|" + PATIENT + "||WARMUP^PATIENT||19700101|U",
+            "O|1|" + SPECIMEN + "||^^^" + vendorCode + "|R|20260101110000|||||||||SPUTUM||||||||||F",
+            "R|1|^" + vendorCode + "^^result^Warm-up^1^Result^|NOT DETECTED^|||||F||WARMUP|20260101113000|20260101115900|GX-W1",
+            "C|1|I|Warm-up|G",
+            "L|1|N"
+        };
+        this.query = new String[] {
+            "H|\\^&|||GeneXpert^GeneXpert Dx 6.2^4.7||||||Q|1394-97|20260101120000",
+            "Q|1|||ALL||||||||A",
+            "L|1|N"
+        };
+        this.oml = "MSH|^~\\&|LabBook|LIS|GeneXpert|Analyzer|20260101120000||OML^O33^OML_O33|WARMUP0001|P|2.5.1\r"
+                + "PID|1||" + PATIENT + "^^^LABBOOK||WARMUP^PATIENT||19700101|U\r"
+                + "SPM|1|" + SPECIMEN + "||SPUTUM\r"
+                + "ORC|NW|" + SPECIMEN + "\r"
+                + "OBR|1|" + SPECIMEN + "||" + vendorCode + "^Warm-up\r";
+        // Without a mapped test, the RSP carries no order (an unmapped OBR would log a warning per iteration)
+        this.rsp = "MSH|^~\\&|LabBook|LIS|GeneXpert|Analyzer|20260101120001||RSP^K11^RSP_K11|WARMUP0002|P|2.5.1\r"
+                + "MSA|AA|WARMUP0001\r"
+                + "QAK|GENEXPERT|OK\r"
+                + "QPD|LAB-27^IHE|GENEXPERT|ALL\r"
+                + "PID|1||" + PATIENT + "^^^LABBOOK||WARMUP^PATIENT||19700101|U\r"
+                + "SPM|1|" + SPECIMEN + "||SPUTUM\r"
+                + ((test != null) ? "OBR|1|" + SPECIMEN + "||^^^" + test.lisTestCode + "\r" : "")
+                + "DSC||I\r";
+        this.ack = "MSH|^~\\&|LabBook|LIS|GeneXpert|Analyzer|20260101120002||ACK^R22^ACK|WARMUP0003|P|2.5.1\r"
+                + "MSA|AA|WARMUP0002\r";
+    }
+
+    /**
+     * Runs all conversions the given number of times.
+     *
+     * @param iterations Number of rounds
+     * @throws IllegalStateException If a conversion fails (the warm-up messages are always valid)
+     */
+    void run(int iterations) {
+        PipeParser parser = GeneXpertRuntime.get().parser();
+        GeneXpertReceiveBuffer rx = GeneXpertRuntime.get().receiveBuffer();
+        try {
+            for (int i = 0; i < iterations; i++) {
+                // LAB-29: frames in, OUL^R22 out, ACK back
+                String[] records = receive(rx, lab29);
+                check(converter.convertASTMtoOUL_R22(records), "OUL^R22");
+                check(converter.convertACKtoASTM(ack), "L|1|Y");
+
+                // LAB-28: OML^O33 in, ASTM order and ACK^R22 out
+                check(converter.convertOML_O33ToASTM(oml)[0], "H|");
+                check(converter.generateAckR22(oml, "AA"), "ACK^R22");
+
+                // LAB-27: query frames in, QBP^Q11 out, RSP^K11 back as ASTM
+                String qbp = converter.convertASTMQueryToQBP_Q11(receive(rx, query));
+                check(qbp, "QBP^Q11");
+                check(String.join("\r", converter.convertRSP_K11toASTM(rsp)), "L|1|F");
+
+                // HL7 structures not otherwise parsed by the plugin
+                check(roundTrip(parser, qbp), "QBP^Q11");
+                check(roundTrip(parser, rsp), "RSP^K11");
+            }
+        } finally {
+            GeneXpertRuntime.get().recycle(rx);
+        }
+    }
+
+    /**
+     * Encodes the records as E1381 frames and decodes them into the receive buffer, as a session does.
+     */
+    private static String[] receive(GeneXpertReceiveBuffer rx, String[] records) {
+        rx.reset();
+        try {
+            for (int i = 0; i < records.length; i++) {
+                byte[] frame = GeneXpertFrameCodec.encodeFrame((i + 1) % 8, records[i] + "\r");
+                int[] pos = { 1 }; // after STX
+                if (!rx.decoder().readFrame(() -> (pos[0] < frame.length) ? frame[pos[0]++] & 0xFF : -1) || !rx.appendFrame()) {
+                    throw new IllegalStateException("warm-up frame rejected: " + records[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("warm-up frame rejected: " + e.getMessage(), e);
+        }
+        return rx.records();
+    }
+
+    private static String roundTrip(PipeParser parser, String er7) {
+        try {
+            Message message = parser.parse(er7);
+            return parser.encode(message);
+        } catch (HL7Exception e) {
+            throw new IllegalStateException("warm-up HL7 message rejected: " + e.getMessage(), e);
+        }
+    }
+
+    private static void check(String result, String expected) {
+        if (result == null || !result.contains(expected)) {
+            throw new IllegalStateException("unexpected warm-up conversion result: " + result);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Fixed-size ring buffer of the most recent raw bytes exchanged on one ASTM E1381 session.
+ * <p>
+ * Bytes are stored as they travel on the wire, grouped in segments so that each segment carries a
+ * single timestamp instead of one per byte: a segment starts when the direction changes or after
+ * {@value #SEGMENT_GAP_MS} ms without traffic, so that a slow link sending one byte per read does not
+ * use one segment per byte. Received bytes are recorded per read of the connection ({@link #tap}),
+ * one lock and one clock read per block. Recording costs array copies and no allocation; the buffer
+ * is only rendered as text when {@link #dump()} is called (checksum error, NAK, timeout or on demand).
+ */
+final class GeneXpertWireTrace {
+
+    static final byte RX = '<'; // analyzer -> Connect
+    static final byte TX = '>'; // Connect -> analyzer
+
+    private static final long SEGMENT_GAP_MS = 100L;
+    private static final int TAP_BYTES = 512;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final byte[] data;
+    private final long[] segStart;
+    private final long[] segMillis;
+    private final byte[] segDir;
+
+    private long written = 0;   // total bytes recorded since creation
+    private long segments = 0;  // total segments opened since creation
+    private byte lastDir = 0;
+    private long lastMillis = 0;
+
+    /**
+     * Creates a trace buffer.
+     *
+     * @param capacity Number of wire bytes kept (older bytes are overwritten)
+     */
+    GeneXpertWireTrace(int capacity) {
+        this.data = new byte[Math.max(capacity, 64)];
+        int segCapacity = Math.max(this.data.length / 8, 16);
+        this.segStart = new long[segCapacity];
+        this.segMillis = new long[segCapacity];
+        this.segDir = new byte[segCapacity];
+    }
+
+    /**
+     * Wraps the input stream of a new connection so that the bytes of each read are recorded as one
+     * received block. The previous traffic is forgotten.
+     *
+     * @param in Input stream of the connection
+     * @return Stream to read the connection from
+     */
+    InputStream tap(InputStream in) {
+        clear();
+        return new Tap(in);
+    }
+
+    /** Records a block of bytes received from the analyzer. */
+    synchronized void rx(byte[] buf, int off, int len) {
+        put(RX, buf, off, len);
+    }
+
+    /** Records one byte received from the analyzer (outside {@link #tap}, e.g. already read by a router). */
+    synchronized void rx(int b) {
+        if (b < 0) return;
+        put(RX, (byte) b);
+    }
+
+    /** Records one byte sent to the analyzer. */
+    synchronized void tx(int b) {
+        put(TX, (byte) b);
+    }
+
+    /** Records a block of bytes sent to the analyzer. */
+    synchronized void tx(byte[] buf, int off, int len) {
+        put(TX, buf, off, len);
+    }
+
+    /** Forgets all recorded traffic. */
+    private synchronized void clear() {
+        written = 0;
+        segments = 0;
+        lastDir = 0;
+        lastMillis = 0;
+    }
+
+    private void put(byte dir, byte b) {
+        segment(dir);
+        data[(int) (written % data.length)] = b;
+        written++;
+    }
+
+    private void put(byte dir, byte[] buf, int off, int len) {
+        if (len <= 0) return;
+        segment(dir);
+        if (len > data.length) { // only the end is kept
+            written += len - data.length;
+            off += len - data.length;
+            len = data.length;
+        }
+        while (len > 0) {
+            int p = (int) (written % data.length);
+            int n = Math.min(len, data.length - p);
+            System.arraycopy(buf, off, data, p, n);
+            written += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Opens a new segment on a direction change or after a pause. */
+    private void segment(byte dir) {
+        long now = System.currentTimeMillis();
+        if (dir != lastDir || now - lastMillis > SEGMENT_GAP_MS || segments == 0) {
+            int s = (int) (segments % segStart.length);
+            segStart[s] = written;
+            segMillis[s] = now;
+            segDir[s] = dir;
+            segments++;
+            lastDir = dir;
+        }
+        lastMillis = now;
+    }
+
+    /**
+     * Renders the retained traffic, oldest first, one line per segment.
+     * Control characters are shown by name (e.g. {@code <STX>}), other non-printable bytes in hex.
+     *
+     * @return Multi-line text, or an empty string if nothing was recorded
+     */
+    synchronized String dump() {
+        if (written == 0) return "";
+
+        long oldestByte = Math.max(0, written - data.length);
+        long firstSeg = Math.max(0, segments - segStart.length);
+
+        StringBuilder sb = new StringBuilder(256);
+        for (long seg = firstSeg; seg < segments; seg++) {
+            int s = (int) (seg % segStart.length);
+            long end = (seg + 1 < segments) ? segStart[(int) ((seg + 1) % segStart.length)] : written;
+            long start = Math.max(segStart[s], oldestByte);
+            if (start >= end) continue;
+
+            sb.append(TIME_FORMAT.format(Instant.ofEpochMilli(segMillis[s])))
+              .append(segDir[s] == RX ? " <<< " : " >>> ");
+            for (long p = start; p < end; p++) {
+                appendPrintable(sb, data[(int) (p % data.length)] & 0xFF);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Input stream of a connection recording each block read from it.
+     */
+    private final class Tap extends InputStream {
+        private final InputStream in;
+        private final byte[] buffer = new byte[TAP_BYTES];
+        private int pos = 0;
+        private int len = 0;
+
+        Tap(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == len && !fill()) return -1;
+            return buffer[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int n) throws IOException {
+            if (n == 0) return 0;
+            if (pos == len && !fill()) return -1;
+            int count = Math.min(n, len - pos);
+            System.arraycopy(buffer, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (len - pos) + in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(buffer, 0, buffer.length);
+            if (n <= 0) return false;
+            rx(buffer, 0, n);
+            pos = 0;
+            len = n;
+            return true;
+        }
+    }
+
+    private static void appendPrintable(StringBuilder sb, int b) {
+        if (b >= 32 && b <= 126) {
+            sb.append((char) b);
+            return;
+        }
+        switch (b) {
+            case 0x02: sb.append("<STX>"); break;
+            case 0x03: sb.append("<ETX>"); break;
+            case 0x04: sb.append("<EOT>"); break;
+            case 0x05: sb.append("<ENQ>"); break;
+            case 0x06: sb.append("<ACK>"); break;
+            case 0x15: sb.append("<NAK>"); break;
+            case 0x17: sb.append("<ETB>"); break;
+            case 0x0D: sb.append("<CR>"); break;
+            case 0x0A: sb.append("<LF>"); break;
+            default:
+                sb.append("<0x").append(Character.toUpperCase(Character.forDigit(b >> 4, 16)))
+                  .append(Character.toUpperCase(Character.forDigit(b & 0x0F, 16))).append('>');
+        }
+    }
+}